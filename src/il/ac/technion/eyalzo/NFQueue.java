@@ -1,8 +1,13 @@
 package il.ac.technion.eyalzo;
+import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 
 /**
@@ -16,6 +21,11 @@ public class NFQueue
 	 * Location in /proc indicating if ethernet header is included in packet's payload
 	 */
 	private static final String PROC_NFQ_INCLUDE_ETH_HDR_IN_PAYLOAD = "/proc/sys/net/netfilter/nfqueue-include-etherent-header-in-payload";
+	/**
+	 * Per-queue kernel state, one line per queue: queue number, peer port ID, packets waiting for a verdict, copy mode,
+	 * copy range, queue dropped, user dropped, last packet ID and 1.
+	 */
+	private static final String PROC_NFQ_QUEUES = "/proc/net/netfilter/nfnetlink_queue";
 
 	private final int queueNum;
 
@@ -37,7 +47,7 @@ public class NFQueue
 			m_value = value;
 		}
 
-		int getValue()
+		public int getValue()
 		{
 			return m_value;
 		}
@@ -66,7 +76,48 @@ public class NFQueue
 	/**
 	 * Version of the java code, will be matched against the compiled native version to verify compatibility.
 	 */
-	private static final int NFQ_JAVA_VERSION = 4;
+	private static final int NFQ_JAVA_VERSION = 7;
+
+	/**
+	 * Size of the buffer that holds a single packet's payload. Large enough for GSO/GRO super-packets, see
+	 * {@link #setGso(boolean)}.
+	 */
+	private static final int MAX_PAYLOAD_BYTES = 65535;
+	/**
+	 * Number of bytes reserved per packet in the batch buffer, on top of room for one packet of
+	 * {@link #MAX_PAYLOAD_BYTES}. A batch that does not fit is passed in parts.
+	 */
+	private static final int BATCH_BYTES_PER_PACKET = 4096;
+
+	//
+	// Batch table layout. Every packet in a batch takes BATCH_FIELDS ints in the table, filled by the native code,
+	// except for the verdict which is filled by the listener.
+	//
+	/**
+	 * Offset of the packet's payload in the batch data buffer.
+	 */
+	public static final int BATCH_OFFSET = 0;
+	/**
+	 * Payload length, or -1 if the native code failed to read the payload.
+	 */
+	public static final int BATCH_LENGTH = 1;
+	/**
+	 * Packet ID as given by the kernel.
+	 */
+	public static final int BATCH_ID = 2;
+	/**
+	 * Verdict value, see {@link Verdict#getValue()}. Initialized to {@link Verdict#NF_DROP} by the native code.
+	 */
+	public static final int BATCH_VERDICT = 3;
+	/**
+	 * Number of ints per packet in the batch table.
+	 */
+	public static final int BATCH_FIELDS = 4;
+	/**
+	 * Shift of the target queue number in an {@link Verdict#NF_QUEUE} verdict value, see NF_VERDICT_QBITS in
+	 * netfilter.h.
+	 */
+	private static final int VERDICT_QUEUE_SHIFT = 16;
 
 	/**
 	 * Indicates whether ethernet header is included in the packet's payload -1 is unknown, 0 not included, 1 included.
@@ -102,6 +153,37 @@ public class NFQueue
 	 */
 	private boolean m_isLooping = false;
 
+	//
+	// Batch mode
+	//
+	/**
+	 * Direct buffer that holds the payloads of all the packets in the current batch. Null when batch mode is off.
+	 */
+	private ByteBuffer m_batchData;
+
+	/**
+	 * Direct buffer behind {@link #m_batchTable}, kept so the native code can hold its address.
+	 */
+	private ByteBuffer m_batchTableBuf;
+
+	/**
+	 * Offset, length, ID and verdict per packet in the current batch. See {@link #BATCH_FIELDS}.
+	 */
+	private IntBuffer m_batchTable;
+
+	//
+	// Statistics
+	//
+	/**
+	 * Number of batch upcalls from the native code.
+	 */
+	private long statBatches;
+
+	/**
+	 * Number of packets delivered in batches.
+	 */
+	private long statBatchPackets;
+
 	//
 	// Operations.
 	//
@@ -209,8 +291,7 @@ public class NFQueue
 	 *            The copy mode.
 	 * @param numBytges
 	 *            For COPY_PACKET mode, this is the maximum number of bytes to copy. This is also effected by the native
-	 *            library's buffer size, which defaults to 4096 bytes. If you want higher values, you'll need to
-	 *            recompile the library.
+	 *            library's buffer size, which is 65535 bytes.
 	 * @return true for success, false for failure. This method will fail if we are currently looping waiting for
 	 *         events.
 	 */
@@ -247,6 +328,86 @@ public class NFQueue
 		}
 	}
 
+	/**
+	 * Set the fail-open flag, so the kernel accepts packets instead of dropping them when the queue is full or the
+	 * socket buffer overflows. Takes effect on the next call to {@link #loop()}, and is ignored with a warning on
+	 * kernels that do not support it (before 3.6).
+	 * 
+	 * @return true for success, false for failure. This method will fail if we are currently looping waiting for
+	 *         events.
+	 */
+	public boolean setFailOpen(boolean failOpen) throws NFQueueException
+	{
+		assertValid();
+		synchronized (this)
+		{
+			if (m_isLooping)
+				return false;
+			setFailOpen(m_peer, failOpen);
+			return true;
+		}
+	}
+
+	/**
+	 * Set the GSO flag, so the kernel queues GSO/GRO super-packets of up to 64KB as they are, instead of segmenting
+	 * them first. Verdicts apply to the whole super-packet. Takes effect on the next call to {@link #loop()}, and is
+	 * ignored with a warning on kernels that do not support it (before 3.10).
+	 * 
+	 * @return true for success, false for failure. This method will fail if we are currently looping waiting for
+	 *         events.
+	 */
+	public boolean setGso(boolean gso) throws NFQueueException
+	{
+		assertValid();
+		synchronized (this)
+		{
+			if (m_isLooping)
+				return false;
+			setGso(m_peer, gso);
+			return true;
+		}
+	}
+
+	/**
+	 * Turn batch mode on or off. In batch mode the native code collects up to the given number of packets that are
+	 * already waiting on the netlink socket, copies them to a direct buffer and makes a single upcall for all of them.
+	 * The verdicts are then sent back together, using one netlink message for every run of packets with the same
+	 * verdict.
+	 * <p>
+	 * Listeners that implement {@link NFQueueBatchListener} get the whole batch at once. Others are still called once
+	 * per packet, but without the per-packet JNI calls.
+	 * 
+	 * @param maxPackets
+	 *            Max number of packets in a batch. 1 or less turns batch mode off.
+	 * @return true for success, false for failure. This method will fail if we are currently looping waiting for
+	 *         events.
+	 */
+	public boolean setBatchSize(int maxPackets) throws NFQueueException
+	{
+		assertValid();
+		synchronized (this)
+		{
+			if (m_isLooping)
+				return false;
+
+			if (maxPackets <= 1)
+			{
+				setBatchBuffers(m_peer, null, null, 0);
+				m_batchData = null;
+				m_batchTableBuf = null;
+				m_batchTable = null;
+				return true;
+			}
+
+			m_batchData = ByteBuffer.allocateDirect(maxPackets * BATCH_BYTES_PER_PACKET + MAX_PAYLOAD_BYTES);
+			m_batchTableBuf = ByteBuffer.allocateDirect(maxPackets * BATCH_FIELDS * 4);
+			m_batchTableBuf.order(ByteOrder.nativeOrder());
+			m_batchTable = m_batchTableBuf.asIntBuffer();
+			setBatchBuffers(m_peer, m_batchData, m_batchTableBuf, maxPackets);
+			return true;
+		}
+	}
+
 	/**
 	 * A handler for received packets. Called from the native code. Should return the verdict for the packet.
 	 * 
@@ -262,35 +423,101 @@ public class NFQueue
 		{
 			if (m_payloadBuf == null)
 			{
-				m_payloadBuf = new byte[4096];
+				m_payloadBuf = new byte[MAX_PAYLOAD_BYTES];
 			}
 
 			int bytesRead = getPacketPayload(packetHandle, m_payloadBuf);
+			verdict = deliverPayload(bytesRead);
+		}
+		return verdict.getValue();
+	}
+
+	/**
+	 * A handler for a batch of received packets. Called from the native code in batch mode, after the batch table and
+	 * data buffer were filled. The verdicts are returned in the table.
+	 * 
+	 * @param count
+	 *            Number of packets in the batch.
+	 * @return Zero. Reserved for future use.
+	 */
+	private int onPacketsReceived(int count)
+	{
+		statBatches++;
+		statBatchPackets += count;
+
+		if (m_listener == null)
+			return 0;
+
+		if (m_listener instanceof NFQueueBatchListener)
+		{
+			try
+			{
+				((NFQueueBatchListener) m_listener).onPacketsReceived(m_batchData, m_batchTable, count);
+			} catch (Throwable t)
+			{
+				// Verdicts that were not set remain drop
+				t.printStackTrace();
+			}
+			return 0;
+		}
+
+		if (m_payloadBuf == null)
+		{
+			m_payloadBuf = new byte[MAX_PAYLOAD_BYTES];
+		}
+
+		for (int i = 0; i < count; i++)
+		{
+			int entry = i * BATCH_FIELDS;
+			int bytesRead = m_batchTable.get(entry + BATCH_LENGTH);
 			if (bytesRead >= 0)
 			{
-				try
-				{
-					verdict = m_listener.onPacketReceived(m_payloadBuf,
-							bytesRead);
-				} catch (Throwable t)
-				{
-					// Since the native code won't catch this, we should... Even
-					// if we can't do too much with it.
-					t.printStackTrace();
-				}
-			} else
+				m_batchData.position(m_batchTable.get(entry + BATCH_OFFSET));
+				m_batchData.get(m_payloadBuf, 0, bytesRead);
+			}
+
+			Verdict verdict = deliverPayload(bytesRead);
+			m_batchTable.put(entry + BATCH_VERDICT, verdict.getValue());
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Pass the payload that is already in {@link #m_payloadBuf} to the listener.
+	 * 
+	 * @param bytesRead
+	 *            Payload length, or negative if the native code failed to read it.
+	 * @return The listener's verdict, or drop on error.
+	 */
+	private Verdict deliverPayload(int bytesRead)
+	{
+		Verdict verdict = Verdict.NF_DROP;
+
+		if (bytesRead >= 0)
+		{
+			try
 			{
-				try
-				{
-					m_listener.onPacketReceiveError(getLastErrorMsg());
-				} catch (Throwable t)
-				{
-					// Again, not much we can do...
-					t.printStackTrace();
-				}
+				verdict = m_listener.onPacketReceived(m_payloadBuf, bytesRead);
+			} catch (Throwable t)
+			{
+				// Since the native code won't catch this, we should... Even
+				// if we can't do too much with it.
+				t.printStackTrace();
+			}
+		} else
+		{
+			try
+			{
+				m_listener.onPacketReceiveError(getLastErrorMsg());
+			} catch (Throwable t)
+			{
+				// Again, not much we can do...
+				t.printStackTrace();
 			}
 		}
-		return verdict.getValue();
+
+		return verdict;
 	}
 
 	/**
@@ -358,6 +585,14 @@ public class NFQueue
 
 	private native void setRecvBufferSize(long peer, int bufSize);
 
+	private native void setBatchBuffers(long peer, ByteBuffer data, ByteBuffer table, int maxPackets);
+
+	private native void setFailOpen(long peer, boolean failOpen);
+
+	private native void setGso(long peer, boolean gso);
+
+	private native long getOverruns(long peer);
+
 	private native static int getNativeVersion();
 
 	//
@@ -455,4 +690,94 @@ public class NFQueue
 	{
 		return queueNum;
 	}
+
+	/**
+	 * @param queueNum
+	 *            Queue to send the packet to.
+	 * @return Verdict value for the batch table, that queues the packet again on the given queue, with that queue's
+	 *         copy mode.
+	 */
+	public static int getQueueVerdict(int queueNum)
+	{
+		return Verdict.NF_QUEUE.getValue() | (queueNum << VERDICT_QUEUE_SHIFT);
+	}
+
+	/**
+	 * Read the number of packets that wait in the kernel for a verdict on this queue.
+	 * 
+	 * @return Number of packets, or -1 if the queue is not listed or the kernel state could not be read.
+	 */
+	public int readBacklog()
+	{
+		BufferedReader in = null;
+		try
+		{
+			in = new BufferedReader(new FileReader(PROC_NFQ_QUEUES));
+			while (true)
+			{
+				String line = in.readLine();
+				if (line == null)
+					break;
+
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length >= 3 && Integer.parseInt(fields[0]) == queueNum)
+					return Integer.parseInt(fields[2]);
+			}
+		} catch (IOException e)
+		{
+		} catch (NumberFormatException e)
+		{
+		} finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				} catch (IOException e)
+				{
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return Number of times the netlink socket buffer overflowed, meaning that the kernel dropped packets or, in
+	 *         fail-open mode, accepted them untouched.
+	 */
+	public long getStatOverruns()
+	{
+		if (m_peer == 0)
+			return 0;
+		return getOverruns(m_peer);
+	}
+
+	/**
+	 * @return Number of batch upcalls so far. Zero when batch mode is off.
+	 */
+	public long getStatBatches()
+	{
+		return statBatches;
+	}
+
+	/**
+	 * @return Number of packets delivered in batches so far.
+	 */
+	public long getStatBatchPackets()
+	{
+		return statBatchPackets;
+	}
+
+	/**
+	 * @return Average number of packets per batch upcall, or zero if there were no batches yet.
+	 */
+	public double getAverageBatchSize()
+	{
+		long batches = statBatches;
+		if (batches == 0)
+			return 0;
+		return (double) statBatchPackets / batches;
+	}
 };
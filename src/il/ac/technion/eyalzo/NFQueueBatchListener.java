@@ -0,0 +1,24 @@
+package il.ac.technion.eyalzo;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A listener to queue events that can handle a whole batch of packets at once.
+ * Used only when batch mode is on, see {@link NFQueue#setBatchSize(int)}.
+ */
+public interface NFQueueBatchListener extends NFQueueListener
+{
+    /**
+     * A notification that a batch of packets was received.
+     *
+     * @param data Direct buffer with the payloads of all the packets. Reused
+     * between calls.
+     * @param table Per-packet offset, length, ID and verdict, each packet
+     * taking {@link NFQueue#BATCH_FIELDS} ints. Reused between calls.
+     * @param count Number of packets in the batch.
+     * The listener should put a verdict value for every packet at index
+     * {@link NFQueue#BATCH_VERDICT}. Packets left untouched are dropped.
+     */
+    public void onPacketsReceived(ByteBuffer data, IntBuffer table, int count);
+}
@@ -4,6 +4,7 @@ import il.ac.technion.eyalzo.common.OctetConverter;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 public class IPPacket
 {
@@ -71,9 +72,18 @@ public class IPPacket
     /** Size of vlan tag in ethernet frame */
     private static final int    VLAN_TAG_LEN               = 4;
 
-    /** Raw packet data. */
+    /** Raw packet data. Null while the packet is a view over {@link #_buffer_}. */
     protected byte[]            _data_;
 
+    /** Direct buffer holding the raw packet, when used as a read-only view. Null when backed by {@link #_data_}. */
+    protected ByteBuffer        _buffer_;
+
+    /** The byte offset into {@link #_buffer_} where the raw packet begins. */
+    private int                 __bufferOffset;
+
+    /** Number of bytes of the raw packet in {@link #_buffer_}. */
+    private int                 __bufferLength;
+
     /** The byte offset into the raw packet where the IP packet begins. */
     private int                 __offset;
 
@@ -104,9 +114,30 @@ public class IPPacket
      */
     public int size()
     {
+        if (_buffer_ != null)
+            return __bufferLength;
         return _data_.length;
     }
 
+    /**
+     * @param index Offset in the raw packet.
+     * @return The byte at the given offset, from the byte array or the buffer, whichever backs the packet now.
+     */
+    protected final byte _byte_(int index)
+    {
+        if (_buffer_ == null)
+            return _data_[index];
+        return _buffer_.get(__bufferOffset + index);
+    }
+
+    /**
+     * @return Offset of the raw packet in the backing buffer, or zero if backed by a byte array.
+     */
+    protected final int getBufferOffset()
+    {
+        return __bufferOffset;
+    }
+
     /**
      * Sets the raw packet byte array. Although this method would appear to violate object-oriented principles, it is
      * necessary to implement efficient packet processing. You don't necessarily want to allocate a new IPPacket and data
@@ -117,9 +148,40 @@ public class IPPacket
     public void setData(byte[] data)
     {
         _data_ = data;
+        _buffer_ = null;
+        this.__offset = 0;
+    }
+
+    /**
+     * Wraps a raw IP packet (without Ethernet header) that sits in a buffer, typically a direct buffer filled by native
+     * code, so headers can be read without copying the packet first. The buffer's content is read with absolute gets,
+     * except for bulk copies of the payload that move its position.
+     * <p>
+     * This is a read-only view: setters and checksum updates need a byte array and must not be called until
+     * {@link #setData(byte[])} is called again.
+     * 
+     * @param buffer Buffer holding the packet.
+     * @param offset Offset of the packet in the buffer.
+     * @param length Number of bytes of the packet in the buffer.
+     */
+    public void setData(ByteBuffer buffer, int offset, int length)
+    {
+        _data_ = null;
+        _buffer_ = buffer;
+        __bufferOffset = offset;
+        __bufferLength = length;
         this.__offset = 0;
     }
 
+    /**
+     * @return True if the packet is currently a view over a buffer rather than a byte array.
+     * @see #setData(ByteBuffer, int, int)
+     */
+    public final boolean isBufferBacked()
+    {
+        return _buffer_ != null;
+    }
+
     /**
      * @see IPPacket.setData(byte[])
      * @param data
@@ -187,7 +249,7 @@ public class IPPacket
      */
     public final int getIPVersion()
     {
-        return ((_data_[__offset + 0] & 0xf0) >> 4);
+        return ((_byte_(__offset + 0) & 0xf0) >> 4);
     }
 
     /**
@@ -208,7 +270,7 @@ public class IPPacket
      */
     public final int getIPHeaderLength()
     {
-        return (_data_[__offset + 0] & 0x0f);
+        return (_byte_(__offset + 0) & 0x0f);
     }
 
     /**
@@ -237,7 +299,7 @@ public class IPPacket
      */
     public final int getTypeOfService()
     {
-        return (_data_[__offset + OFFSET_TYPE_OF_SERVICE] & 0xff);
+        return (_byte_(__offset + OFFSET_TYPE_OF_SERVICE) & 0xff);
     }
 
     /**
@@ -256,7 +318,7 @@ public class IPPacket
      */
     public final int getIPPacketLength()
     {
-        return (((_data_[__offset + OFFSET_TOTAL_LENGTH] & 0xff) << 8) | (_data_[__offset + OFFSET_TOTAL_LENGTH + 1] & 0xff));
+        return (((_byte_(__offset + OFFSET_TOTAL_LENGTH) & 0xff) << 8) | (_byte_(__offset + OFFSET_TOTAL_LENGTH + 1) & 0xff));
     }
 
     /**
@@ -277,7 +339,7 @@ public class IPPacket
      */
     public final int getIdentification()
     {
-        return (((_data_[__offset + OFFSET_IDENTIFICATION] & 0xff) << 8) | (_data_[__offset + OFFSET_IDENTIFICATION + 1] & 0xff));
+        return (((_byte_(__offset + OFFSET_IDENTIFICATION) & 0xff) << 8) | (_byte_(__offset + OFFSET_IDENTIFICATION + 1) & 0xff));
     }
 
     /**
@@ -299,7 +361,7 @@ public class IPPacket
      */
     public final int getIPFlags()
     {
-        return ((_data_[__offset + OFFSET_FLAGS] & 0xe0) >> 5);
+        return ((_byte_(__offset + OFFSET_FLAGS) & 0xe0) >> 5);
     }
 
     /**
@@ -321,7 +383,7 @@ public class IPPacket
      */
     public final int getFragmentOffset()
     {
-        return (((_data_[__offset + OFFSET_FLAGS] & 0x1f) << 8) | (_data_[__offset + OFFSET_FLAGS + 1] & 0xff));
+        return (((_byte_(__offset + OFFSET_FLAGS) & 0x1f) << 8) | (_byte_(__offset + OFFSET_FLAGS + 1) & 0xff));
     }
 
     /**
@@ -339,7 +401,7 @@ public class IPPacket
      */
     public final int getProtocol()
     {
-        return _data_[__offset + OFFSET_PROTOCOL];
+        return _byte_(__offset + OFFSET_PROTOCOL);
     }
 
     /**
@@ -357,7 +419,7 @@ public class IPPacket
      */
     public final int getTTL()
     {
-        return _data_[__offset + OFFSET_TTL];
+        return _byte_(__offset + OFFSET_TTL);
     }
 
     /**
@@ -372,7 +434,7 @@ public class IPPacket
         int imax = checksumOffset;
 
         while (i < imax)
-            total += (((_data_[i++] & 0xff) << 8) | (_data_[i++] & 0xff));
+            total += (((_byte_(i++) & 0xff) << 8) | (_byte_(i++) & 0xff));
 
         // Skip existing checksum.
         i = checksumOffset + 2;
@@ -380,10 +442,10 @@ public class IPPacket
         imax = length - (length % 2);
 
         while (i < imax)
-            total += (((_data_[i++] & 0xff) << 8) | (_data_[i++] & 0xff));
+            total += (((_byte_(i++) & 0xff) << 8) | (_byte_(i++) & 0xff));
 
         if (i < length)
-            total += ((_data_[i] & 0xff) << 8);
+            total += ((_byte_(i) & 0xff) << 8);
 
         total += virtualHeaderTotal;
 
@@ -429,7 +491,7 @@ public class IPPacket
      */
     public final int getIPChecksum()
     {
-        return (((_data_[__offset + OFFSET_IP_CHECKSUM] & 0xff) << 8) | (_data_[__offset + OFFSET_IP_CHECKSUM + 1] & 0xff));
+        return (((_byte_(__offset + OFFSET_IP_CHECKSUM) & 0xff) << 8) | (_byte_(__offset + OFFSET_IP_CHECKSUM + 1) & 0xff));
     }
 
     /**
@@ -439,8 +501,9 @@ public class IPPacket
      */
     public final void getSource(byte[] address)
     {
-        System.arraycopy(_data_, __offset + OFFSET_SOURCE_ADDRESS, address, 0, (address.length < LENGTH_SOURCE_ADDRESS
-                ? address.length : LENGTH_SOURCE_ADDRESS));
+        int length = (address.length < LENGTH_SOURCE_ADDRESS ? address.length : LENGTH_SOURCE_ADDRESS);
+        for (int i = 0; i < length; i++)
+            address[i] = _byte_(__offset + OFFSET_SOURCE_ADDRESS + i);
     }
 
     /**
@@ -451,8 +514,9 @@ public class IPPacket
      */
     public final void getDestination(byte[] address)
     {
-        System.arraycopy(_data_, __offset + OFFSET_DESTINATION_ADDRESS, address, 0,
-                         (address.length < LENGTH_DESTINATION_ADDRESS ? address.length : LENGTH_DESTINATION_ADDRESS));
+        int length = (address.length < LENGTH_DESTINATION_ADDRESS ? address.length : LENGTH_DESTINATION_ADDRESS);
+        for (int i = 0; i < length; i++)
+            address[i] = _byte_(__offset + OFFSET_DESTINATION_ADDRESS + i);
     }
 
     /**
@@ -462,7 +526,7 @@ public class IPPacket
      */
     public final void getSource(StringBuffer buffer)
     {
-        OctetConverter.octetsToString(buffer, _data_, __offset + OFFSET_SOURCE_ADDRESS);
+        OctetConverter.intToString(buffer, getSourceAsWord());
     }
 
     /**
@@ -472,7 +536,7 @@ public class IPPacket
      */
     public final void getDestination(StringBuffer buffer)
     {
-        OctetConverter.octetsToString(buffer, _data_, __offset + OFFSET_DESTINATION_ADDRESS);
+        OctetConverter.intToString(buffer, getDestinationAsWord());
     }
 
     /**
@@ -500,7 +564,7 @@ public class IPPacket
      */
     public final int getSourceAsWord()
     {
-        return OctetConverter.octetsToInt(_data_, __offset + OFFSET_SOURCE_ADDRESS);
+        return _word_(__offset + OFFSET_SOURCE_ADDRESS);
     }
 
     /**
@@ -508,7 +572,17 @@ public class IPPacket
      */
     public final int getDestinationAsWord()
     {
-        return OctetConverter.octetsToInt(_data_, __offset + OFFSET_DESTINATION_ADDRESS);
+        return _word_(__offset + OFFSET_DESTINATION_ADDRESS);
+    }
+
+    /**
+     * @param index Offset in the raw packet.
+     * @return Big-endian 32-bit word that starts at the given offset.
+     */
+    private final int _word_(int index)
+    {
+        return ((_byte_(index) & 0xff) << 24) | ((_byte_(index + 1) & 0xff) << 16) | ((_byte_(index + 2) & 0xff) << 8)
+                | (_byte_(index + 3) & 0xff);
     }
 
     /**
@@ -615,7 +689,7 @@ public class IPPacket
             return null;
         }
 
-        if (_data_[OFFSET_ETHER_TYPE] != ETHER_TYPE_VLAN[0] || _data_[OFFSET_ETHER_TYPE + 1] != ETHER_TYPE_VLAN[1])
+        if (_byte_(OFFSET_ETHER_TYPE) != ETHER_TYPE_VLAN[0] || _byte_(OFFSET_ETHER_TYPE + 1) != ETHER_TYPE_VLAN[1])
         {
             return null;
         }
@@ -2,6 +2,8 @@ package il.ac.technion.eyalzo.net;
 
 import il.ac.technion.eyalzo.common.OctetConverter;
 
+import java.nio.ByteBuffer;
+
 public class TCPPacket extends IPPacket
 {
 
@@ -105,7 +107,7 @@ public class TCPPacket extends IPPacket
 
 			loop: do
 			{
-				byte kind = _data_[offset];
+				byte kind = _byte_(offset);
 
 				switch (kind)
 				{
@@ -120,7 +122,7 @@ public class TCPPacket extends IPPacket
 					break loop;
 				// break;
 				default:
-					offset += _data_[offset + 1];
+					offset += _byte_(offset + 1);
 					/*
 					 * int length = _data_[offset + 1]; while(length-- > 0) _data_[offset++] = KIND_NOP;
 					 */
@@ -160,7 +162,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public boolean isSet(int mask)
 	{
-		return ((_data_[__offset + OFFSET_CONTROL] & mask) == mask);
+		return ((_byte_(__offset + OFFSET_CONTROL) & mask) == mask);
 	}
 
 	/**
@@ -170,7 +172,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public boolean isSetAny(int mask)
 	{
-		return ((_data_[__offset + OFFSET_CONTROL] & mask) != 0);
+		return ((_byte_(__offset + OFFSET_CONTROL) & mask) != 0);
 	}
 
 	/**
@@ -180,7 +182,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public boolean isSetOnly(int mask)
 	{
-		int flags = _data_[__offset + OFFSET_CONTROL] & 0xff;
+		int flags = _byte_(__offset + OFFSET_CONTROL) & 0xff;
 		return ((flags & mask) == flags);
 	}
 
@@ -192,7 +194,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public void addControlFlags(int mask)
 	{
-		int flags = _data_[__offset + OFFSET_CONTROL] & 0xff;
+		int flags = _byte_(__offset + OFFSET_CONTROL) & 0xff;
 		flags |= mask;
 		_data_[__offset + OFFSET_CONTROL] = (byte) (flags & 0xff);
 	}
@@ -205,7 +207,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public void removeControlFlags(int mask)
 	{
-		int flags = _data_[__offset + OFFSET_CONTROL] & 0xff;
+		int flags = _byte_(__offset + OFFSET_CONTROL) & 0xff;
 		flags |= mask;
 		flags ^= mask;
 		_data_[__offset + OFFSET_CONTROL] = (byte) (flags & 0xff);
@@ -229,6 +231,16 @@ public class TCPPacket extends IPPacket
 		__offset = getIPHdrOffset() + getIPHeaderByteLength();
 	}
 
+	/**
+	 * @see IPPacket#setData(ByteBuffer, int, int)
+	 */
+	@Override
+	public void setData(ByteBuffer buffer, int offset, int length)
+	{
+		super.setData(buffer, offset, length);
+		__offset = getIPHdrOffset() + getIPHeaderByteLength();
+	}
+
 	/**
 	 * @see IPPacket.setData(byte[])
 	 * @param data
@@ -272,7 +284,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public final int getSourcePort()
 	{
-		return (((_data_[__offset + OFFSET_SOURCE_PORT] & 0xff) << 8) | (_data_[__offset + OFFSET_SOURCE_PORT + 1] & 0xff));
+		return (((_byte_(__offset + OFFSET_SOURCE_PORT) & 0xff) << 8) | (_byte_(__offset + OFFSET_SOURCE_PORT + 1) & 0xff));
 	}
 
 	/**
@@ -280,8 +292,8 @@ public class TCPPacket extends IPPacket
 	 */
 	public final int getDestinationPort()
 	{
-		return (((_data_[__offset + OFFSET_DESTINATION_PORT] & 0xff) << 8) | (_data_[__offset + OFFSET_DESTINATION_PORT
-				+ 1] & 0xff));
+		return (((_byte_(__offset + OFFSET_DESTINATION_PORT) & 0xff) << 8) | (_byte_(__offset + OFFSET_DESTINATION_PORT
+				+ 1) & 0xff));
 	}
 
 	/**
@@ -300,9 +312,9 @@ public class TCPPacket extends IPPacket
 	 */
 	public final long getSequenceNumber()
 	{
-		return (((_data_[__offset + OFFSET_SEQUENCE] & 0xffL) << 24)
-				| ((_data_[__offset + OFFSET_SEQUENCE + 1] & 0xffL) << 16)
-				| ((_data_[__offset + OFFSET_SEQUENCE + 2] & 0xffL) << 8) | (_data_[__offset + OFFSET_SEQUENCE + 3] & 0xffL));
+		return (((_byte_(__offset + OFFSET_SEQUENCE) & 0xffL) << 24)
+				| ((_byte_(__offset + OFFSET_SEQUENCE + 1) & 0xffL) << 16)
+				| ((_byte_(__offset + OFFSET_SEQUENCE + 2) & 0xffL) << 8) | (_byte_(__offset + OFFSET_SEQUENCE + 3) & 0xffL));
 	}
 
 	/**
@@ -321,8 +333,8 @@ public class TCPPacket extends IPPacket
 	 */
 	public final long getAckNumber()
 	{
-		return (((_data_[__offset + OFFSET_ACK] & 0xffL) << 24) | ((_data_[__offset + OFFSET_ACK + 1] & 0xffL) << 16)
-				| ((_data_[__offset + OFFSET_ACK + 2] & 0xffL) << 8) | (_data_[__offset + OFFSET_ACK + 3] & 0xffL));
+		return (((_byte_(__offset + OFFSET_ACK) & 0xffL) << 24) | ((_byte_(__offset + OFFSET_ACK + 1) & 0xffL) << 16)
+				| ((_byte_(__offset + OFFSET_ACK + 2) & 0xffL) << 8) | (_byte_(__offset + OFFSET_ACK + 3) & 0xffL));
 	}
 
 	@Override
@@ -349,7 +361,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public final int getTCPHeaderLength()
 	{
-		return (_data_[__offset + OFFSET_HEADER_LENGTH] & 0xf0) >> 4;
+		return (_byte_(__offset + OFFSET_HEADER_LENGTH) & 0xf0) >> 4;
 	}
 
 	/**
@@ -377,7 +389,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public final int getWindowSize()
 	{
-		return (((_data_[__offset + OFFSET_WINDOW_SIZE] & 0xff) << 8) | (_data_[__offset + OFFSET_WINDOW_SIZE + 1] & 0xff));
+		return (((_byte_(__offset + OFFSET_WINDOW_SIZE) & 0xff) << 8) | (_byte_(__offset + OFFSET_WINDOW_SIZE + 1) & 0xff));
 	}
 
 	/**
@@ -397,7 +409,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public final int getUrgentPointer()
 	{
-		return (((_data_[__offset + OFFSET_URG_POINTER] & 0xff) << 8) | (_data_[__offset + OFFSET_URG_POINTER + 1] & 0xff));
+		return (((_byte_(__offset + OFFSET_URG_POINTER) & 0xff) << 8) | (_byte_(__offset + OFFSET_URG_POINTER + 1) & 0xff));
 	}
 
 	/**
@@ -405,7 +417,7 @@ public class TCPPacket extends IPPacket
 	 */
 	public final int getTCPChecksum()
 	{
-		return (((_data_[__offset + OFFSET_TCP_CHECKSUM] & 0xff) << 8) | (_data_[__offset + OFFSET_TCP_CHECKSUM + 1] & 0xff));
+		return (((_byte_(__offset + OFFSET_TCP_CHECKSUM) & 0xff) << 8) | (_byte_(__offset + OFFSET_TCP_CHECKSUM + 1) & 0xff));
 	}
 
 	/**
@@ -460,16 +472,42 @@ public class TCPPacket extends IPPacket
 		return getIPPacketLength() - getIPAndTCPHeaderByteLength();
 	}
 
+	/**
+	 * Copies TCP payload bytes to a byte array, from the byte array or the direct buffer that currently backs this
+	 * packet.
+	 * 
+	 * @param dataOffset
+	 *            Offset in the TCP payload of the first byte to copy.
+	 * @param dest
+	 *            Target array.
+	 * @param destOffset
+	 *            Offset in the target array.
+	 * @param length
+	 *            Number of bytes to copy.
+	 */
+	public final void copyTCPData(int dataOffset, byte[] dest, int destOffset, int length)
+	{
+		int srcOffset = getCombinedHeaderByteLength() + dataOffset;
+		if (_buffer_ == null)
+		{
+			System.arraycopy(_data_, srcOffset, dest, destOffset, length);
+			return;
+		}
+
+		_buffer_.position(getBufferOffset() + srcOffset);
+		_buffer_.get(dest, destOffset, length);
+	}
+
 	private final int __getVirtualHeaderTotal()
 	{
-		int s1 = ((_data_[getIPHdrOffset() + OFFSET_SOURCE_ADDRESS] & 0xff) << 8)
-				| (_data_[getIPHdrOffset() + OFFSET_SOURCE_ADDRESS + 1] & 0xff);
-		int s2 = ((_data_[getIPHdrOffset() + OFFSET_SOURCE_ADDRESS + 2] & 0xff) << 8)
-				| (_data_[getIPHdrOffset() + OFFSET_SOURCE_ADDRESS + 3] & 0xff);
-		int d1 = ((_data_[getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS] & 0xff) << 8)
-				| (_data_[getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS + 1] & 0xff);
-		int d2 = ((_data_[getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS + 2] & 0xff) << 8)
-				| (_data_[getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS + 3] & 0xff);
+		int s1 = ((_byte_(getIPHdrOffset() + OFFSET_SOURCE_ADDRESS) & 0xff) << 8)
+				| (_byte_(getIPHdrOffset() + OFFSET_SOURCE_ADDRESS + 1) & 0xff);
+		int s2 = ((_byte_(getIPHdrOffset() + OFFSET_SOURCE_ADDRESS + 2) & 0xff) << 8)
+				| (_byte_(getIPHdrOffset() + OFFSET_SOURCE_ADDRESS + 3) & 0xff);
+		int d1 = ((_byte_(getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS) & 0xff) << 8)
+				| (_byte_(getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS + 1) & 0xff);
+		int d2 = ((_byte_(getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS + 2) & 0xff) << 8)
+				| (_byte_(getIPHdrOffset() + OFFSET_DESTINATION_ADDRESS + 3) & 0xff);
 		return s1 + s2 + d1 + d2 + getProtocol() + getTCPPacketByteLength();
 	}
 
@@ -3,44 +3,128 @@ package il.ac.technion.eyalzo.pack;
 import il.ac.technion.eyalzo.NFQueue;
 import il.ac.technion.eyalzo.NFQueue.CopyMode;
 import il.ac.technion.eyalzo.NFQueue.Verdict;
+import il.ac.technion.eyalzo.NFQueueBatchListener;
 import il.ac.technion.eyalzo.NFQueueException;
 import il.ac.technion.eyalzo.NFQueueListener;
 import il.ac.technion.eyalzo.common.LoggingUtil;
 import il.ac.technion.eyalzo.net.TCPPacket;
+import il.ac.technion.eyalzo.pack.conns.FlowTable;
 import il.ac.technion.eyalzo.pack.conns.Machine;
 import il.ac.technion.eyalzo.pack.conns.RemoteMachineList;
+import il.ac.technion.eyalzo.pack.conns.TcpConn;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Call {@link #pauseCapture()} before {@link Thread#start()} if you don't want this one to capture on startup.
  */
-public class CaptureThread extends Thread implements NFQueueListener
+public class CaptureThread extends Thread implements NFQueueBatchListener
 {
 	private Logger log;
 	private RemoteMachineList machineList;
 	/**
-	 * Maximum number of bytes ion captured packet. Also needed for connection processing buffer.
+	 * Maximum number of bytes ion captured packet. Also needed for connection processing buffer. Max IPv4 packet size,
+	 * for GSO/GRO super-packets.
 	 */
-	public static final int MAX_PACKET_BYTES = 4096;
+	public static final int MAX_PACKET_BYTES = 65535;
 	private static int MAX_NFQUEUE_MSG_COUNT = 1000;
+	/**
+	 * Max number of packets passed from the native code in a single call, with their verdicts sent back together.
+	 */
+	private static final int NFQUEUE_BATCH_SIZE = 64;
+	/**
+	 * How often to check the queue backlog against {@link Main#overloadBudgetMillis}.
+	 */
+	private static final long OVERLOAD_CHECK_MILLIS = 100;
+	/**
+	 * An overloaded queue that got no batch for that long has nothing waiting, and leaves overload, see
+	 * {@link #expireIdleOverloads(long)}.
+	 */
+	private static final long OVERLOAD_IDLE_MILLIS = 5 * OVERLOAD_CHECK_MILLIS;
+	/**
+	 * Copy range for queues that do not inspect the TCP payload: max IP header, max TCP header and the first payload
+	 * byte, that tells whether the packet may be HTTP.
+	 */
+	public static final int HEADERS_COPY_RANGE = 60 + 60 + 1;
 	private NFQueue nfQueue;
+	/**
+	 * Side and direction of the queue.
+	 */
+	private final QueueNum queueKind;
+	/**
+	 * Max number of bytes the kernel copies per packet.
+	 */
+	private int copyRange = MAX_PACKET_BYTES;
+	/**
+	 * Queue that gets the packets that were cut by {@link #copyRange} and are needed in full, or -1 if none.
+	 */
+	private short requeueNum = -1;
+	/**
+	 * Full-copy queue of a headers-only queue, that gets only re-queued packets, see {@link TcpConn#requeued}.
+	 */
+	private boolean requeueTarget;
 	private TCPPacket tcpPacket;
+	/**
+	 * Heap copy of the current packet when it arrives in a batch. In zero-copy mode it may hold only the headers.
+	 */
+	private byte[] rawIpPacket = new byte[MAX_PACKET_BYTES];
+	/**
+	 * Packets handed to the shards, when {@link ShardWorker#isEnabled()}. Created on the first batch.
+	 */
+	private ShardBatch shardBatch;
+	/**
+	 * Batch entry of each packet in {@link #shardBatch}.
+	 */
+	private final int[] shardBatchEntries = new int[NFQUEUE_BATCH_SIZE];
 	/**
 	 * 1-based serial number of capture threads.
 	 */
 	private static int count = 1;
 
+	//
+	// Overload
+	//
+	/**
+	 * Queues that are currently over budget. New connections are shed while it is not empty, on all the queues,
+	 * because the SYN may be seen by a queue other than the one that is overloaded.
+	 */
+	private static final CopyOnWriteArrayList<CaptureThread> overloadedQueues = new CopyOnWriteArrayList<CaptureThread>();
+	/**
+	 * Set by the capture thread, and cleared by it or by {@link #expireIdleOverloads(long)}, under the lock of this.
+	 */
+	private volatile boolean overloaded;
+	/**
+	 * Time of the last batch, for {@link #expireIdleOverloads(long)}.
+	 */
+	private volatile long lastBatchTime;
+	/**
+	 * Moving average of the processing time per packet, in nanos.
+	 */
+	private long avgPacketNanos;
+	private long lastOverloadCheck;
+	/**
+	 * Socket overruns as of the last check, to detect new ones.
+	 */
+	private long lastOverruns;
+	private long overloadStartTime;
+
 	//
 	// Statistics
 	//
-	private static long statErrorException;
+	/**
+	 * Exceptions when handling packets, of all the capture threads. Counted by the shards too.
+	 */
+	private static final AtomicLong statErrorException = new AtomicLong();
 	private static long statErrorRead;
 
 	/**
@@ -55,6 +139,22 @@ public class CaptureThread extends Thread implements NFQueueListener
 	 * Number of dropped packets.
 	 */
 	private long statPacketsDrop;
+	/**
+	 * Number of packets sent to {@link #requeueNum} for a full copy. Not counted anywhere else.
+	 */
+	private long statPacketsRequeued;
+	/**
+	 * Number of packets accepted untouched, without tracking, because of overload. Counted by the shards too.
+	 */
+	private final AtomicLong statPacketsShed = new AtomicLong();
+	/**
+	 * Number of times the queue went over budget.
+	 */
+	private long statOverloads;
+	/**
+	 * Total time spent in overload, not including the current period.
+	 */
+	private long statOverloadMillis;
 
 	//
 	// Artificial packet loss
@@ -83,13 +183,83 @@ public class CaptureThread extends Thread implements NFQueueListener
 	 */
 	private long statBytesTcpPayload;
 
-	public CaptureThread(QueueNum queueNum, RemoteMachineList serverList)
+	/**
+	 * @param queueKind
+	 *            Side and direction.
+	 * @param queueNum
+	 *            NFQUEUE number, one of the queues of that side and direction when there are several.
+	 * @param serverList
+	 *            Remote machine list.
+	 */
+	public CaptureThread(QueueNum queueKind, short queueNum, RemoteMachineList serverList)
+	{
+		this(queueKind, queueNum, MAX_PACKET_BYTES, (short) -1, serverList);
+	}
+
+	/**
+	 * Full-copy queue of a headers-only queue.
+	 * 
+	 * @param queueKind
+	 *            Side and direction.
+	 * @param requeueNum
+	 *            NFQUEUE number the headers-only queue re-queues to, see {@link QueueNum#getRequeueNum(int, int)}.
+	 * @param serverList
+	 *            Remote machine list.
+	 * @return Capture thread of the full-copy queue, not started yet.
+	 */
+	public static CaptureThread createRequeueTarget(QueueNum queueKind, short requeueNum, RemoteMachineList serverList)
+	{
+		CaptureThread result = new CaptureThread(queueKind, requeueNum, serverList);
+		result.requeueTarget = true;
+		return result;
+	}
+
+	/**
+	 * @param queueKind
+	 *            Side and direction.
+	 * @param queueNum
+	 *            NFQUEUE number, one of the queues of that side and direction when there are several.
+	 * @param copyRange
+	 *            Max number of bytes to copy per packet, for example {@link #HEADERS_COPY_RANGE}.
+	 * @param requeueNum
+	 *            Queue with full copy, to send packets that were cut and are needed in full, or -1 if none.
+	 * @param serverList
+	 *            Remote machine list.
+	 */
+	public CaptureThread(QueueNum queueKind, short queueNum, int copyRange, short requeueNum,
+			RemoteMachineList serverList)
 	{
 		// Set serial number in thread name for web-gui monitoring
-		super(String.format("Capture%02d-%s", CaptureThread.count, queueNum.name()));
+		this(String.format("Capture%02d-%s-%d", CaptureThread.count, queueKind.name(), queueNum), queueKind,
+				serverList);
+
+		this.copyRange = Math.min(copyRange, MAX_PACKET_BYTES);
+		this.requeueNum = requeueNum;
+
+		nfQueue = initNfqueue(this, queueNum, MAX_NFQUEUE_MSG_COUNT, this.copyRange, null);
+	}
+
+	/**
+	 * Offline capture, with no NFQUEUE behind it. Packets are fed by calling
+	 * {@link #onPacketReceived(byte[], int)} directly, so the thread is not started.
+	 * 
+	 * @param queueKind
+	 *            Side and direction.
+	 * @param serverList
+	 *            Remote machine list.
+	 */
+	public CaptureThread(QueueNum queueKind, RemoteMachineList serverList)
+	{
+		this(String.format("Offline%02d-%s", CaptureThread.count, queueKind.name()), queueKind, serverList);
+	}
+
+	private CaptureThread(String name, QueueNum queueKind, RemoteMachineList serverList)
+	{
+		super(name);
 
-		this.sideSender = queueNum.sideSender;
-		this.dirOut = queueNum.dirOut;
+		this.queueKind = queueKind;
+		this.sideSender = queueKind.sideSender;
+		this.dirOut = queueKind.dirOut;
 		this.machineList = serverList;
 
 		CaptureThread.count++;
@@ -98,8 +268,6 @@ public class CaptureThread extends Thread implements NFQueueListener
 		log.setLevel(Level.ALL);
 
 		tcpPacket = new TCPPacket(MAX_PACKET_BYTES);
-
-		nfQueue = initNfqueue(this, queueNum.queueNum, MAX_NFQUEUE_MSG_COUNT, null);
 	}
 
 	@Override
@@ -154,8 +322,402 @@ public class CaptureThread extends Thread implements NFQueueListener
 		System.err.println(this.getName() + ": onPacketReceiveError \"" + errMsg + "\"");
 	}
 
+	@Override
+	public void onPacketsReceived(ByteBuffer data, IntBuffer table, int count)
+	{
+		long startTime = System.nanoTime();
+		ShardBatch batch = ShardWorker.isEnabled() ? getShardBatch() : null;
+
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				int entry = i * NFQueue.BATCH_FIELDS;
+				int offset = table.get(entry + NFQueue.BATCH_OFFSET);
+				int length = table.get(entry + NFQueue.BATCH_LENGTH);
+
+				Verdict verdict;
+				if (length < 0)
+				{
+					onPacketReceiveError("Failed to read packet " + table.get(entry + NFQueue.BATCH_ID));
+					verdict = Verdict.NF_DROP;
+				} else if (requeueNum >= 0 && needsRequeue(data, offset, length))
+				{
+					// The full-copy queue will handle it
+					statPacketsRequeued++;
+					table.put(entry + NFQueue.BATCH_VERDICT, NFQueue.getQueueVerdict(requeueNum));
+					continue;
+				} else if (batch != null)
+				{
+					// Copied in full, as the shard handles it after the buffer moves on, and the verdict comes later
+					shardBatchEntries[batch.size()] = entry;
+					byte[] packet = batch.reserve(this, length);
+					data.position(offset);
+					data.get(packet, 0, length);
+					submitReserved(batch, packet, length);
+					continue;
+				} else if (Main.zeroCopy)
+				{
+					verdict = onPacketReceived(data, offset, length);
+				} else
+				{
+					data.position(offset);
+					data.get(rawIpPacket, 0, length);
+					verdict = onPacketReceived(rawIpPacket, length);
+				}
+
+				table.put(entry + NFQueue.BATCH_VERDICT, verdict.getValue());
+			}
+		} finally
+		{
+			// Also after a failure, so the next batch starts clean
+			if (batch != null)
+			{
+				batch.await();
+				for (int i = 0; i < batch.size(); i++)
+					table.put(shardBatchEntries[i] + NFQueue.BATCH_VERDICT, batch.getVerdict(i).getValue());
+				batch.clear();
+			}
+
+			// All handled, so the headers-only queue may take the next packets of these connections again
+			if (requeueTarget)
+				releaseRequeued(data, table, count);
+		}
+
+		if (count > 0)
+			updateOverload(count, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Re-queued packets are handled by another capture thread, after the packets that follow them here. So while a
+	 * tracked connection has re-queued packets that were not handled yet, counted in {@link TcpConn#requeued}, its
+	 * next packets are re-queued too. Once the full-copy queue handled them all, the connection's packets are handled
+	 * here again, so only the packets around a full copy are copied twice. A connection is tracked from its SYN, that
+	 * is never cut, so it is already known when the first packet is re-queued.
+	 * 
+	 * @param data
+	 *            Batch buffer.
+	 * @param offset
+	 *            Offset of the packet in the buffer.
+	 * @param length
+	 *            Number of bytes of the packet that were copied.
+	 * @return True if the packet should go to {@link #requeueNum}, because it needs a full copy or its connection
+	 *         already went there.
+	 */
+	private boolean needsRequeue(ByteBuffer data, int offset, int length)
+	{
+		boolean fullCopy = needsFullCopy(data, offset, length);
+		if (!fullCopy && statPacketsRequeued == 0)
+			return false;
+
+		TcpConn conn = getConnection(data, offset, length);
+		if (conn == null)
+			return fullCopy;
+		if (!fullCopy && conn.requeued.get() == 0)
+			return false;
+
+		conn.requeued.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Count the batch's packets as handled in {@link TcpConn#requeued} of their connections. Called by the full-copy
+	 * queue after the whole batch was handled, and just before the verdicts are sent.
+	 * 
+	 * @param data
+	 *            Batch buffer.
+	 * @param table
+	 *            Batch table.
+	 * @param count
+	 *            Number of packets in the batch.
+	 */
+	private void releaseRequeued(ByteBuffer data, IntBuffer table, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			int entry = i * NFQueue.BATCH_FIELDS;
+			int length = table.get(entry + NFQueue.BATCH_LENGTH);
+			if (length < 0)
+				continue;
+
+			TcpConn conn = getConnection(data, table.get(entry + NFQueue.BATCH_OFFSET), length);
+			// Only this thread decrements, and the connection may be a new one on the same addresses
+			if (conn != null && conn.requeued.get() > 0)
+				conn.requeued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The tracked connection of the packet in the batch buffer, or null if it is not tracked or not TCP.
+	 */
+	private TcpConn getConnection(ByteBuffer data, int offset, int length)
+	{
+		int ipHeaderLen = (data.get(offset) & 0x0f) * 4;
+		if (data.get(offset + 9) != 6 || ipHeaderLen + 4 > length)
+			return null;
+
+		int srcAddr = data.getInt(offset + 12);
+		int dstAddr = data.getInt(offset + 16);
+		int srcPort = data.getShort(offset + ipHeaderLen) & 0xffff;
+		int dstPort = data.getShort(offset + ipHeaderLen + 2) & 0xffff;
+		if (dirOut)
+			return machineList.getConnection(FlowTable.addrsKey(dstAddr, srcAddr), FlowTable.portsKey(dstPort,
+					srcPort));
+		return machineList.getConnection(FlowTable.addrsKey(srcAddr, dstAddr), FlowTable.portsKey(srcPort, dstPort));
+	}
+
+	/**
+	 * @param data
+	 *            Batch buffer.
+	 * @param offset
+	 *            Offset of the packet in the buffer.
+	 * @param length
+	 *            Number of bytes of the packet that were copied.
+	 * @return True if the packet was cut by the copy range and its payload may be needed, meaning that it may be HTTP
+	 *         or the first payload byte was cut too.
+	 */
+	private static boolean needsFullCopy(ByteBuffer data, int offset, int length)
+	{
+		int ipTotalLen = ((data.get(offset + 2) & 0xff) << 8) | (data.get(offset + 3) & 0xff);
+		if (length >= ipTotalLen)
+			return false;
+
+		int ipHeaderLen = (data.get(offset) & 0x0f) * 4;
+		if (ipHeaderLen + 13 >= length)
+			return true;
+		int headersLen = ipHeaderLen + ((data.get(offset + ipHeaderLen + 12) & 0xf0) >> 4) * 4;
+		if (headersLen >= length)
+			return true;
+
+		return isHttpPrefix(data.get(offset + headersLen));
+	}
+
+	/**
+	 * Track the processing time per packet and, at most every {@link #OVERLOAD_CHECK_MILLIS}, check if the packets
+	 * waiting in the kernel would take longer than {@link Main#overloadBudgetMillis} to drain, or if the socket buffer
+	 * overflowed since the last check. Leaves overload only when the backlog drains in half the budget.
+	 * 
+	 * @param count
+	 *            Number of packets in the last batch.
+	 * @param nanos
+	 *            Time it took to handle them.
+	 */
+	private void updateOverload(int count, long nanos)
+	{
+		long packetNanos = nanos / count;
+		avgPacketNanos = avgPacketNanos == 0 ? packetNanos : (avgPacketNanos * 7 + packetNanos) / 8;
+
+		long now = System.currentTimeMillis();
+		lastBatchTime = now;
+		if (nfQueue == null || Main.overloadBudgetMillis <= 0 || now - lastOverloadCheck < OVERLOAD_CHECK_MILLIS)
+			return;
+		lastOverloadCheck = now;
+
+		// When the kernel state cannot be read, a full batch is a hint that more are waiting
+		int backlog = nfQueue.readBacklog();
+		if (backlog < 0)
+			backlog = count;
+		long drainMillis = backlog * avgPacketNanos / 1000000;
+
+		long overruns = nfQueue.getStatOverruns();
+		boolean overrun = overruns != lastOverruns;
+		lastOverruns = overruns;
+
+		if (!overloaded && (overrun || drainMillis > Main.overloadBudgetMillis))
+		{
+			synchronized (this)
+			{
+				overloaded = true;
+				overloadStartTime = now;
+				statOverloads++;
+				overloadedQueues.add(this);
+			}
+			log.log(Level.WARNING, "{0}: overload, backlog {1}, {2} nanos per packet, shedding new connections",
+					new Object[] { getName(), backlog, avgPacketNanos });
+		} else if (overloaded && !overrun && drainMillis < Main.overloadBudgetMillis / 2)
+		{
+			leaveOverload(now);
+		}
+	}
+
+	/**
+	 * Leave overload, if still in it.
+	 */
+	private synchronized void leaveOverload(long now)
+	{
+		if (!overloaded)
+			return;
+
+		overloaded = false;
+		statOverloadMillis += now - overloadStartTime;
+		overloadedQueues.remove(this);
+		log.log(Level.WARNING, "{0}: overload is over, after {1} millis", new Object[] { getName(),
+				now - overloadStartTime });
+	}
+
+	/**
+	 * Take out of overload the queues that got no batch for {@link #OVERLOAD_IDLE_MILLIS}. The backlog is checked only
+	 * when batches arrive, so a queue that went quiet would otherwise shed new connections forever. Called
+	 * periodically by the {@link TimeoutThread}.
+	 */
+	public static void expireIdleOverloads(long now)
+	{
+		for (CaptureThread curThread : overloadedQueues)
+			if (now - curThread.lastBatchTime > OVERLOAD_IDLE_MILLIS)
+				curThread.leaveOverload(now);
+	}
+
 	@Override
 	public Verdict onPacketReceived(byte[] rawIpPacket, int ipPayloadLength)
+	{
+		if (ShardWorker.isEnabled())
+		{
+			ShardBatch batch = getShardBatch();
+			try
+			{
+				submitPacket(batch, rawIpPacket, ipPayloadLength);
+				batch.await();
+				return batch.size() == 0 ? Verdict.NF_ACCEPT : batch.getVerdict(0);
+			} finally
+			{
+				batch.clear();
+			}
+		}
+
+		// Put the raw IP packet in a TCP structure for further analysis
+		tcpPacket.setData(rawIpPacket, false);
+
+		return processPacket(rawIpPacket, ipPayloadLength);
+	}
+
+	/**
+	 * Zero-copy handling of a packet that sits in the native batch buffer. The headers are read directly from the
+	 * buffer and the payload is copied only once, by the connection that buffers it. The heap copy that the connection
+	 * code needs for TCP options and spoofed packet templates holds only the headers, except for sender side and
+	 * outgoing packets, that may be altered or buffered, and packets that may start with an HTTP header.
+	 * 
+	 * @param data
+	 *            Batch buffer.
+	 * @param offset
+	 *            Offset of the packet in the buffer.
+	 * @param length
+	 *            Number of bytes of the packet.
+	 * @return Verdict if to drop or accept the packet.
+	 */
+	Verdict onPacketReceived(ByteBuffer data, int offset, int length)
+	{
+		tcpPacket.setData(data, offset, length);
+
+		// Headers and the first payload byte, that tells whether it can be HTTP
+		int headersLen = tcpPacket.getCombinedHeaderByteLength();
+		int copyLen = Math.min(length, headersLen + 1);
+		if (sideSender || dirOut || copyLen <= headersLen || isHttpPrefix(data.get(offset + headersLen)))
+			copyLen = length;
+
+		data.position(offset);
+		data.get(rawIpPacket, 0, copyLen);
+
+		return processPacket(rawIpPacket, length);
+	}
+
+	/**
+	 * @return True if the given first payload byte can start an HTTP request or response, as detected by
+	 *         {@link Machine#processPacket(TcpConn, TCPPacket, byte[], boolean)}.
+	 */
+	private static boolean isHttpPrefix(byte firstByte)
+	{
+		return firstByte == 'G' || firstByte == 'P' || firstByte == 'H';
+	}
+
+	private ShardBatch getShardBatch()
+	{
+		if (shardBatch == null)
+			shardBatch = new ShardBatch(NFQUEUE_BATCH_SIZE);
+		return shardBatch;
+	}
+
+	/**
+	 * Copy the packet to the batch and hand it to the shard of its connection. Its verdict is ready after
+	 * {@link ShardBatch#await()}.
+	 */
+	public void submitPacket(ShardBatch batch, byte[] rawIpPacket, int ipPayloadLength)
+	{
+		byte[] packet = batch.reserve(this, ipPayloadLength);
+		System.arraycopy(rawIpPacket, 0, packet, 0, ipPayloadLength);
+		submitReserved(batch, packet, ipPayloadLength);
+	}
+
+	/**
+	 * Count a packet that was copied to the batch's reserved buffer, and hand it to the shard of its connection, unless
+	 * it is handled here like in {@link #handleMessage(byte[])}.
+	 */
+	private void submitReserved(ShardBatch batch, byte[] packet, int ipPayloadLength)
+	{
+		statPacket++;
+		statBytesRawIp += ipPayloadLength;
+
+		long addrs;
+		int ports;
+		try
+		{
+			tcpPacket.setData(packet, false);
+
+			// Do not capture altered packets
+			if (dirOut && PackUtils.hasPack(packet))
+			{
+				statPacketsDupElim++;
+				batch.complete(Verdict.NF_ACCEPT);
+				return;
+			}
+
+			// Count the number of TCP payload bytes
+			statBytesTcpPayload += tcpPacket.getTCPDataByteLength();
+
+			addrs = FlowTable.addrsKey(tcpPacket, dirOut);
+			ports = FlowTable.portsKey(tcpPacket, dirOut);
+		} catch (Exception e)
+		{
+			// Fail open, like in processPacket(byte[], int)
+			logException(e);
+			batch.complete(Verdict.NF_ACCEPT);
+			return;
+		}
+
+		batch.dispatch(addrs, ports);
+	}
+
+	/**
+	 * Count a verdict of the shards, by the thread that awaited it.
+	 */
+	void countVerdict(Verdict verdict)
+	{
+		if (verdict == Verdict.NF_DROP)
+			statPacketsDrop++;
+	}
+
+	/**
+	 * Handle a packet in the shard that owns its connection.
+	 * 
+	 * @param tcp
+	 *            The shard's packet, to be set to the given packet.
+	 */
+	Verdict handleShardPacket(TCPPacket tcp, byte[] packet)
+	{
+		tcp.setData(packet, false);
+		try
+		{
+			return handleConnection(tcp, packet);
+		} catch (Exception e)
+		{
+			logException(e);
+			return Verdict.NF_ACCEPT;
+		}
+	}
+
+	/**
+	 * Handle a packet that was already set in {@link #tcpPacket}.
+	 */
+	private Verdict processPacket(byte[] rawIpPacket, int ipPayloadLength)
 	{
 		Verdict verdict = Verdict.NF_ACCEPT;
 
@@ -173,20 +735,33 @@ public class CaptureThread extends Thread implements NFQueueListener
 				statPacketsDrop++;
 		} catch (Exception e)
 		{
-			statErrorException++;
-			if (log.isLoggable(Level.WARNING))
-			{
-				StringWriter sWriter = new StringWriter();
-				e.printStackTrace(new PrintWriter(sWriter));
-				LoggingUtil.log(log, Level.WARNING, "Java exception when handling message {0}: {1}", statPacket,
-						sWriter.getBuffer().toString());
-			}
+			logException(e);
 		}
 
 		return verdict;
 	}
 
-	public static NFQueue initNfqueue(NFQueueListener listener, short queueNum, int queueLen, Logger log)
+	/**
+	 * Count and log an exception. Called by the shards too, so it updates only atomic counters.
+	 */
+	private void logException(Exception e)
+	{
+		statErrorException.incrementAndGet();
+		if (log.isLoggable(Level.WARNING))
+		{
+			StringWriter sWriter = new StringWriter();
+			e.printStackTrace(new PrintWriter(sWriter));
+			LoggingUtil.log(log, Level.WARNING, "Java exception when handling message {0}: {1}", statPacket, sWriter
+					.getBuffer().toString());
+		}
+	}
+
+	/**
+	 * @param copyRange
+	 *            Max number of bytes to copy per packet.
+	 */
+	public static NFQueue initNfqueue(NFQueueListener listener, short queueNum, int queueLen, int copyRange,
+			Logger log)
 	{
 		NFQueue nfQueue = null;
 
@@ -194,11 +769,21 @@ public class CaptureThread extends Thread implements NFQueueListener
 		{
 			nfQueue = new NFQueue(queueNum, queueLen);
 			nfQueue.setListener(listener);
-			if (!nfQueue.setCopyMode(CopyMode.COPY_PACKET, 4096))
+			if (!nfQueue.setCopyMode(CopyMode.COPY_PACKET, copyRange))
 			{
 				LoggingUtil.log(log, Level.SEVERE, "NFQueue error, failed to set copy mode on queue " + queueNum);
 				System.exit(1);
 			}
+			// Let traffic through untouched rather than drop it when we fall behind
+			if (!nfQueue.setFailOpen(true))
+				LoggingUtil.log(log, Level.WARNING, "NFQueue error, failed to set fail-open on queue " + queueNum);
+			if (!nfQueue.setGso(Main.gso))
+				LoggingUtil.log(log, Level.WARNING, "NFQueue error, failed to set GSO on queue " + queueNum);
+			if (!nfQueue.setBatchSize(NFQUEUE_BATCH_SIZE))
+			{
+				LoggingUtil.log(log, Level.SEVERE, "NFQueue error, failed to set batch size on queue " + queueNum);
+				System.exit(1);
+			}
 		} catch (UnsatisfiedLinkError e)
 		{
 			System.err.println("Library file is missing. Workaround:\n"
@@ -216,6 +801,7 @@ public class CaptureThread extends Thread implements NFQueueListener
 
 	/**
 	 * @param rawIpPacket
+	 *            Raw IP packet, already set in {@link #tcpPacket}.
 	 * @return Verdict if to drop or accept the packet.
 	 * @throws UnknownHostException
 	 */
@@ -228,23 +814,49 @@ public class CaptureThread extends Thread implements NFQueueListener
 			return Verdict.NF_ACCEPT;
 		}
 
-		// Put the raw IP packet in a TCP structure for further analysis
-		tcpPacket.setData(rawIpPacket, false);
+		// Count the number of TCP payload bytes
+		statBytesTcpPayload += tcpPacket.getTCPDataByteLength();
+
+		return handleConnection(tcpPacket, rawIpPacket);
+	}
+
+	/**
+	 * Find the packet's connection, or add it, and let it handle the packet. Called by the capture thread, or by the
+	 * shard that owns the connection.
+	 * 
+	 * @param tcp
+	 *            The packet, set to the raw IP packet.
+	 */
+	private Verdict handleConnection(TCPPacket tcp, byte[] rawIpPacket) throws UnknownHostException
+	{
+		// Tracked connections are found by the packet's addresses and ports, with no allocation
+		TcpConn conn = machineList.getConnection(tcp, dirOut);
+		if (conn != null)
+			return conn.getMachine().processPacket(conn, tcp, rawIpPacket, dirOut);
+
+		// Under overload only connections that are already tracked are handled, and new ones pass untouched
+		if (isShedding())
+		{
+			statPacketsShed.incrementAndGet();
+			return Verdict.NF_ACCEPT;
+		}
+
+		// Only a SYN can start a connection, so other packets of unknown flows do not add a machine
+		if (!tcp.isSet(TCPPacket.MASK_SYN))
+			return Verdict.NF_ACCEPT;
+
 		InetSocketAddress otherAddr;
 		if (this.dirOut)
 		{
-			otherAddr = new InetSocketAddress(tcpPacket.getDestinationAsInetAddress(), tcpPacket.getDestinationPort());
+			otherAddr = new InetSocketAddress(tcp.getDestinationAsInetAddress(), tcp.getDestinationPort());
 		} else
 		{
-			otherAddr = new InetSocketAddress(tcpPacket.getSourceAsInetAddress(), tcpPacket.getSourcePort());
+			otherAddr = new InetSocketAddress(tcp.getSourceAsInetAddress(), tcp.getSourcePort());
 		}
 
-		// Count the number of TCP payload bytes
-		statBytesTcpPayload += tcpPacket.getTCPDataByteLength();
-
 		// Find the remote machine or add new
 		Machine machine = machineList.getMachineOrAddNew(otherAddr);
-		return machine.processPacket(tcpPacket, rawIpPacket, dirOut);
+		return machine.processPacket(null, tcp, rawIpPacket, dirOut);
 	}
 
 	/**
@@ -331,6 +943,14 @@ public class CaptureThread extends Thread implements NFQueueListener
 		return this.dirOut;
 	}
 
+	/**
+	 * @return Side and direction of the queue.
+	 */
+	public QueueNum getQueueKind()
+	{
+		return this.queueKind;
+	}
+
 	public long getStatPacketsDropped()
 	{
 		return this.statPacketsDrop;
@@ -349,4 +969,122 @@ public class CaptureThread extends Thread implements NFQueueListener
 	{
 		return this.statBytesTcpPayload;
 	}
+
+	/**
+	 * @return Number of packets that were sent to the full-copy queue.
+	 */
+	public long getStatPacketsRequeued()
+	{
+		return this.statPacketsRequeued;
+	}
+
+	/**
+	 * @return Max number of bytes the kernel copies per packet.
+	 */
+	public int getCopyRange()
+	{
+		return this.copyRange;
+	}
+
+	/**
+	 * @return Number of packets that were accepted untouched because of overload.
+	 */
+	public long getStatPacketsShed()
+	{
+		return this.statPacketsShed.get();
+	}
+
+	/**
+	 * @return Number of times this queue went over budget.
+	 */
+	public long getStatOverloads()
+	{
+		return this.statOverloads;
+	}
+
+	/**
+	 * @return Total time this queue spent in overload, including the current period.
+	 */
+	public synchronized long getStatOverloadMillis()
+	{
+		if (overloaded)
+			return statOverloadMillis + System.currentTimeMillis() - overloadStartTime;
+		return statOverloadMillis;
+	}
+
+	/**
+	 * @return Number of netlink socket overflows, where the kernel had to let packets through or drop them.
+	 */
+	public long getStatOverruns()
+	{
+		if (nfQueue == null)
+			return 0;
+
+		return nfQueue.getStatOverruns();
+	}
+
+	/**
+	 * @return Moving average of the processing time per packet, in nanos.
+	 */
+	public long getAvgPacketNanos()
+	{
+		return this.avgPacketNanos;
+	}
+
+	/**
+	 * @return True if this queue is over budget.
+	 */
+	public boolean isOverloaded()
+	{
+		return this.overloaded;
+	}
+
+	/**
+	 * @return True if new connections are shed, because at least one queue is over budget.
+	 */
+	public static boolean isShedding()
+	{
+		return !overloadedQueues.isEmpty();
+	}
+
+	/**
+	 * @return Number of queues that are currently over budget.
+	 */
+	public static int getOverloadedQueues()
+	{
+		return overloadedQueues.size();
+	}
+
+	/**
+	 * @return Number of batches received from the queue.
+	 */
+	public long getStatBatches()
+	{
+		if (nfQueue == null)
+			return 0;
+
+		return nfQueue.getStatBatches();
+	}
+
+	/**
+	 * @return Average number of packets per batch received from the queue.
+	 */
+	public double getAverageBatchSize()
+	{
+		if (nfQueue == null)
+			return 0;
+
+		return nfQueue.getAverageBatchSize();
+	}
+
+	/**
+	 * @return The queue number this thread is reading from, or -1 if offline.
+	 */
+	public int getQueueNum()
+	{
+		if (nfQueue == null)
+			return -1;
+
+		return nfQueue.getQueueNum();
+	}
 }
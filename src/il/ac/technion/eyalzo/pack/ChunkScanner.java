@@ -0,0 +1,61 @@
+package il.ac.technion.eyalzo.pack;
+
+/**
+ * Rolling-hash state of a single stream, that is fed data as it arrives. Finds the same chunk ends as
+ * {@link Chunker#nextChunkEnd(byte[], int, int, int)}, but when called again for the same chunk, from where the former
+ * call stopped, the hash is carried on instead of warmed up again over the window. This way every byte of a chunk is
+ * hashed once, no matter how many small packets it came in.
+ * <p>
+ * When called for another chunk, or with another search offset, the hash is warmed up like in the stateless search.
+ * <p>
+ * Not thread-safe, as it belongs to the stream's buffer.
+ */
+public abstract class ChunkScanner
+{
+	/**
+	 * Start of the chunk the hash belongs to.
+	 */
+	protected int chunkStart;
+	/**
+	 * Next chunk end to check when the hash is carried on.
+	 */
+	protected int nextEnd;
+	/**
+	 * True if the hash is valid for {@link #chunkStart} and {@link #nextEnd}.
+	 */
+	protected boolean warm;
+
+	/**
+	 * Same as {@link Chunker#nextChunkEnd(byte[], int, int, int)}.
+	 */
+	public final int nextChunkEnd(byte[] data, int chunkStart, int searchOffset, int endOffset)
+	{
+		boolean carry = warm && chunkStart == this.chunkStart && searchOffset == nextEnd;
+		this.chunkStart = chunkStart;
+		warm = false;
+
+		return scan(data, chunkStart, searchOffset, endOffset, carry);
+	}
+
+	/**
+	 * The data was shifted to the left, so offsets are updated to keep the hash.
+	 *
+	 * @param bytes
+	 *            Number of bytes removed from the start of the data.
+	 */
+	public void shift(int bytes)
+	{
+		chunkStart -= bytes;
+		nextEnd -= bytes;
+	}
+
+	/**
+	 * Implementations should set {@link #nextEnd} and {@link #warm} when the data was not enough, so the next call
+	 * may carry on.
+	 *
+	 * @param carry
+	 *            True if the hash should be carried on from {@link #nextEnd}, which is also the search offset.
+	 * @return Same as {@link Chunker#nextChunkEnd(byte[], int, int, int)}.
+	 */
+	protected abstract int scan(byte[] data, int chunkStart, int searchOffset, int endOffset, boolean carry);
+}
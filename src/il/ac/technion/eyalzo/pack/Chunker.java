@@ -0,0 +1,68 @@
+package il.ac.technion.eyalzo.pack;
+
+/**
+ * Content-defined chunking, used both when stamping files and when chunking received TCP streams.
+ * <p>
+ * The chunk boundaries are a function of the content only, so the same chunker must be used by all the parties that
+ * compare chunks. For that reason each chunker has a permanent ID that is recorded in persisted metadata, see
+ * {@link RabinUtils#getMetaId(Chunker, Signature)}.
+ * <p>
+ * Implementations are stateless and thread-safe. Streams that are chunked as they arrive keep their own state, see
+ * {@link #newScanner()}.
+ */
+public interface Chunker
+{
+	/**
+	 * @return Permanent ID of this chunker, as recorded in persisted metadata.
+	 */
+	public int getId();
+
+	/**
+	 * @return Short name, as given in command-line arguments.
+	 */
+	public String getName();
+
+	/**
+	 * @return Minimal chunk length, except for the last chunk of a file.
+	 */
+	public int getMinChunkLen();
+
+	/**
+	 * @return Maximal chunk length. A chunk is cut at this length if no anchor was found before.
+	 */
+	public int getMaxChunkLen();
+
+	/**
+	 * @return Expected average chunk length in random data.
+	 */
+	public int getAvgChunkLen();
+
+	/**
+	 * @return Number of bytes, starting at a chunk's end, that are needed in order to decide that it is a chunk end.
+	 *         Zero if the decision depends only on bytes before the chunk end.
+	 */
+	public int getLookahead();
+
+	/**
+	 * Find the end of a chunk.
+	 * 
+	 * @param data
+	 *            The data.
+	 * @param chunkStart
+	 *            Offset of the first byte of the chunk. May be -1 before the first anchor of a stream, where only the
+	 *            maximal length counts.
+	 * @param searchOffset
+	 *            First chunk end to check, normally <code>chunkStart + {@link #getMinChunkLen()}</code>, or further
+	 *            when continuing a former search on the same chunk.
+	 * @param endOffset
+	 *            Exclusive end of the valid data.
+	 * @return Exclusive end offset of the chunk, or -1 if the data is not enough to decide. Next time the search
+	 *         may continue from <code>endOffset - {@link #getLookahead()} + 1</code>.
+	 */
+	public int nextChunkEnd(byte[] data, int chunkStart, int searchOffset, int endOffset);
+
+	/**
+	 * @return New rolling state for a single stream, that carries the hash between searches of the same chunk.
+	 */
+	public ChunkScanner newScanner();
+}
@@ -1,13 +1,14 @@
 package il.ac.technion.eyalzo.pack;
 
-import il.ac.technion.eyalzo.pack.conns.RemoteMachineList;
+import il.ac.technion.eyalzo.pack.conns.TcpEventTrace;
 
+/**
+ * Periodic maintenance of the content store, the chain journal and the connection events trace. Inactive connections and machines expire in the
+ * {@link TimeoutThread}.
+ */
 public class CleanupThread extends Thread
 {
 	private static final int LOOP_MILLIS = 1000 * 15;
-	private static final int REMOTE_MACHINE_TTL_MILLIS = 1000 * 60 * 60;
-	private final RemoteMachineList remoteMachineListSnd;
-	private final RemoteMachineList remoteMachineListRcv;
 	//
 	// Statistics
 	//
@@ -20,13 +21,9 @@ public class CleanupThread extends Thread
 	 */
 	private int statLoopsCount;
 
-	public CleanupThread(RemoteMachineList remoteMachineListSnd,
-			RemoteMachineList remoteMachineListRcv)
+	public CleanupThread()
 	{
 		super("CleanupThread");
-
-		this.remoteMachineListSnd = remoteMachineListSnd;
-		this.remoteMachineListRcv = remoteMachineListRcv;
 	}
 
 	@Override
@@ -70,8 +67,12 @@ public class CleanupThread extends Thread
 
 	private void cleanup()
 	{
-		remoteMachineListSnd.cleanup(REMOTE_MACHINE_TTL_MILLIS);
-		remoteMachineListRcv.cleanup(REMOTE_MACHINE_TTL_MILLIS);
-//		Main.chains.backupChains();
+		if (Main.store != null)
+			Main.store.maintain();
+		Main.chains.maintain();
+
+		TcpEventTrace trace = TcpEventTrace.getTrace();
+		if (trace != null)
+			trace.flush();
 	}
 }
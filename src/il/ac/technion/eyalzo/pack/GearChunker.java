@@ -0,0 +1,187 @@
+package il.ac.technion.eyalzo.pack;
+
+import java.util.Random;
+
+/**
+ * FastCDC: Gear rolling hash with normalized chunking.
+ * <p>
+ * The Gear hash takes a single shift, add and table lookup per byte, and since every byte is shifted out of the 64-bit
+ * value after 64 bytes, there is no need to remove the oldest byte. An anchor is a hash with none of the mask bits set.
+ * The mask is taken from the leftmost bits, that cover the most bytes.
+ * <p>
+ * Normalized chunking uses a harder mask (more bits) before the normal chunk length and an easier mask after it, so
+ * chunk lengths gather around the normal length instead of spreading exponentially. The limits are those of the
+ * other chunkers, so buffers and packets sizes still apply.
+ */
+public class GearChunker implements Chunker
+{
+	public static final int ID = 3;
+	public static final String NAME = "gear";
+	/**
+	 * Number of mask bits for the normal chunk length.
+	 */
+	private static final int NORMAL_BITS = Integer.numberOfTrailingZeros(RabinUtils.getAverageChunkLen());
+	/**
+	 * Normalization level, as number of bits to add before the normal length and remove after it.
+	 */
+	private static final int NORMAL_LEVEL = 2;
+	/**
+	 * Mask for chunks shorter than the normal length.
+	 */
+	private static final long MASK_SMALL = -1L << (Long.SIZE - (NORMAL_BITS + NORMAL_LEVEL));
+	/**
+	 * Mask for chunks longer than the normal length.
+	 */
+	private static final long MASK_LARGE = -1L << (Long.SIZE - (NORMAL_BITS - NORMAL_LEVEL));
+	/**
+	 * Fixed seed, so all the parties have the same table.
+	 */
+	private static final long GEAR_SEED = 0x5041434BL;
+	private static final long[] GEAR = new long[256];
+
+	static
+	{
+		// The generator's algorithm is fixed by the API, so it is the same everywhere
+		Random rand = new Random(GEAR_SEED);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = rand.nextLong();
+	}
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public String getName()
+	{
+		return NAME;
+	}
+
+	public int getMinChunkLen()
+	{
+		return RabinUtils.MIN_CHUNK_LEN;
+	}
+
+	public int getMaxChunkLen()
+	{
+		return RabinUtils.MAX_CHUNK_LEN;
+	}
+
+	public int getAvgChunkLen()
+	{
+		return RabinUtils.getAverageChunkLen();
+	}
+
+	public int getLookahead()
+	{
+		return 0;
+	}
+
+	public int nextChunkEnd(byte[] data, int chunkStart, int searchOffset, int endOffset)
+	{
+		int maxEnd = chunkStart + RabinUtils.MAX_CHUNK_LEN;
+		int lastEnd = Math.min(endOffset, maxEnd);
+		// A chunk end is checked with the hash of the byte right before it
+		int end = Math.max(searchOffset, 1);
+		if (end > lastEnd)
+			return -1;
+
+		// Warm-up with the bytes that are still in the hash, without crossing the chunk start
+		long hash = 0;
+		for (int i = Math.max(Math.max(chunkStart, 0), end - Long.SIZE); i < end - 1; i++)
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+
+		// Harder mask until the normal length
+		int normalEnd = Math.min(lastEnd, chunkStart + RabinUtils.getAverageChunkLen() - 1);
+		for (; end <= normalEnd; end++)
+		{
+			hash = (hash << 1) + GEAR[data[end - 1] & 0xff];
+			if ((hash & MASK_SMALL) == 0)
+				return end;
+		}
+
+		// Easier mask after the normal length
+		for (; end <= lastEnd; end++)
+		{
+			hash = (hash << 1) + GEAR[data[end - 1] & 0xff];
+			if ((hash & MASK_LARGE) == 0)
+				return end;
+		}
+
+		// If the maximal chunk does not have an anchor
+		if (lastEnd == maxEnd)
+			return maxEnd;
+
+		return -1;
+	}
+
+	public ChunkScanner newScanner()
+	{
+		return new Scanner();
+	}
+
+	private static class Scanner extends ChunkScanner
+	{
+		/**
+		 * Hash of the last chunk end that was checked, one before {@link #nextEnd}.
+		 */
+		private long hash;
+
+		@Override
+		protected int scan(byte[] data, int chunkStart, int searchOffset, int endOffset, boolean carry)
+		{
+			int maxEnd = chunkStart + RabinUtils.MAX_CHUNK_LEN;
+			int lastEnd = Math.min(endOffset, maxEnd);
+			int normalEnd = chunkStart + RabinUtils.getAverageChunkLen() - 1;
+
+			// The hash of the chunk end before the search offset was already checked
+			int end;
+			long h;
+			if (carry)
+			{
+				end = nextEnd - 1;
+				h = hash;
+			} else
+			{
+				end = Math.max(searchOffset, 1);
+				if (end > lastEnd)
+					return -1;
+
+				// Warm-up with the bytes that are still in the hash, without crossing the chunk start
+				h = 0;
+				for (int i = Math.max(Math.max(chunkStart, 0), end - Long.SIZE); i < end; i++)
+					h = (h << 1) + GEAR[data[i] & 0xff];
+				if ((h & (end <= normalEnd ? MASK_SMALL : MASK_LARGE)) == 0)
+					return end;
+			}
+
+			// Harder mask until the normal length
+			int lastSmallEnd = Math.min(lastEnd, normalEnd);
+			while (end < lastSmallEnd)
+			{
+				h = (h << 1) + GEAR[data[end] & 0xff];
+				end++;
+				if ((h & MASK_SMALL) == 0)
+					return end;
+			}
+
+			// Easier mask after the normal length
+			while (end < lastEnd)
+			{
+				h = (h << 1) + GEAR[data[end] & 0xff];
+				end++;
+				if ((h & MASK_LARGE) == 0)
+					return end;
+			}
+
+			// If the maximal chunk does not have an anchor
+			if (lastEnd == maxEnd)
+				return maxEnd;
+
+			hash = h;
+			nextEnd = end + 1;
+			warm = true;
+			return -1;
+		}
+	}
+}
@@ -1,13 +1,18 @@
 package il.ac.technion.eyalzo.pack;
 
+import il.ac.technion.eyalzo.pack.conns.ConnBufferPool;
 import il.ac.technion.eyalzo.pack.conns.RemoteMachineList;
+import il.ac.technion.eyalzo.pack.conns.TcpEventTrace;
 import il.ac.technion.eyalzo.pack.files.DirList;
 import il.ac.technion.eyalzo.pack.files.DiskScanThread;
 import il.ac.technion.eyalzo.pack.spoof.SpoofThread;
+import il.ac.technion.eyalzo.pack.stamps.ChunkContentCache;
+import il.ac.technion.eyalzo.pack.stamps.ChunkContentStore;
 import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
 import il.ac.technion.eyalzo.pack.stamps.StreamsChainList;
 import il.ac.technion.eyalzo.webgui.WebGuiHandler;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -31,6 +36,14 @@ public class Main
 	 * Global chain list.
 	 */
 	public static StreamsChainList chains;
+	/**
+	 * Content of stream chunks, for predictions.
+	 */
+	public static ChunkContentCache contents;
+	/**
+	 * Content of stream chunks on disk, behind {@link #contents}. Null if not used.
+	 */
+	public static ChunkContentStore store;
 	/**
 	 * Global senders machine list as the basis for the global connection list.
 	 */
@@ -57,10 +70,94 @@ public class Main
 	 * If greater than zero, this is the packet loss ratio (1 to ...).
 	 */
 	public static int lossRate = 0;
+	/**
+	 * Read packet headers directly from the native batch buffer, and copy the payload only into connection buffers.
+	 */
+	public static boolean zeroCopy = false;
+	/**
+	 * Number of queues, and capture threads, per side and direction. The iptables rules must spread by connection, with
+	 * <code>--queue-balance</code> alone, see {@link QueueNum#getIptablesTarget(int)}.
+	 */
+	public static int queueFanout = 1;
+	/**
+	 * Number of threads that own the connections, each by its 4-tuple, see {@link ShardWorker}. Zero to handle
+	 * connections in the capture threads.
+	 */
+	public static int shards = 0;
+	/**
+	 * Max time, in millis, that the packets waiting in a queue may take to handle. Above it new connections are
+	 * accepted untouched, until the queues catch up. Zero turns overload protection off.
+	 */
+	public static int overloadBudgetMillis = 50;
+	/**
+	 * Queues that do not inspect the TCP payload copy only the headers, and re-queue packets they need in full to a
+	 * companion queue, see {@link QueueNum#getRequeueNum(int, int)}.
+	 */
+	public static boolean headersOnly = true;
+	/**
+	 * Take GSO/GRO super-packets from the queues as they are, so offloads can stay on.
+	 */
+	public static boolean gso = true;
+	/**
+	 * Where to cut chunks when stamping files. Recorded in each directory's metadata.
+	 */
+	public static Chunker fileChunker = new RabinChunker();
+	/**
+	 * Where to cut chunks in received streams. Recorded in the saved chains.
+	 */
+	public static Chunker streamChunker = new PackChunker();
+	/**
+	 * How to sign chunks, both when stamping files and in streams. Recorded with the chunker.
+	 */
+	public static Signature signature = Signature.SHA1;
+	/**
+	 * Number of threads that chunk local files, at the lowest priority.
+	 */
+	public static int indexThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Max rate, in MB/sec, at which local files are read for chunking. Zero for no limit.
+	 */
+	public static int indexReadMBps = 0;
+	/**
+	 * Budget, in MB, for the content of stream chunks.
+	 */
+	public static int contentCacheMB = 256;
+	/**
+	 * Directory of the content store, or null for none.
+	 */
+	public static String contentStoreDir = null;
+	/**
+	 * Disk budget, in GB, for the content store.
+	 */
+	public static int contentStoreGB = 100;
+	/**
+	 * Data arrays of the receiver buffers, reused by connections.
+	 */
+	public static final ConnBufferPool connBuffers = new ConnBufferPool();
+	/**
+	 * Max number of recent events kept per connection, for the web GUI. Zero to keep none.
+	 */
+	public static int connEventsDepth = 256;
+	/**
+	 * Keep one of each that many chunk, prediction and ACK events per connection. HTTP and close events are always
+	 * kept.
+	 */
+	public static int connEventsSampling = 1;
+	/**
+	 * File of the global trace of all the connection events, or null for none, see {@link TcpEventTrace}.
+	 */
+	public static String connEventsTraceFile = null;
 	private static final boolean DEBUG_ALL = false;
 	private static final boolean DEBUG_DIRS = false;
 
-	public Main(String deviceName, boolean noNetwork, boolean noDiskScan, boolean restoreChains) throws IOException
+	/**
+	 * @param restoreChains
+	 *            Start with the chains of the former run.
+	 * @param keepChains
+	 *            Record the chains for the next run. Without restore, the former chains are overwritten.
+	 */
+	public Main(String deviceName, boolean noNetwork, boolean noDiskScan, boolean restoreChains, boolean keepChains)
+			throws IOException
 	{
 		remoteMachineListSnd = new RemoteMachineList(true);
 		remoteMachineListRcv = new RemoteMachineList(false);
@@ -76,14 +173,37 @@ public class Main
 		//
 		// Stamps
 		//
+		System.out.println("Chunkers: files " + fileChunker.getName() + ", streams " + streamChunker.getName()
+				+ ", signature " + signature.name);
 		chunks = new GlobalChunkList();
-		chains = new StreamsChainList(restoreChains);
+		chains = new StreamsChainList(restoreChains, keepChains);
+		store = openContentStore();
+		contents = new ChunkContentCache((long) contentCacheMB << 20, store);
+
+		// Write what is still buffered, on a normal exit too
+		Runtime.getRuntime().addShutdownHook(new Thread("ShutdownHook")
+		{
+			@Override
+			public void run()
+			{
+				if (store != null)
+					store.close();
+				chains.close();
+				TcpEventTrace.close();
+			}
+		});
+
+		if (connEventsTraceFile != null)
+		{
+			TcpEventTrace.open(connEventsTraceFile);
+			System.out.println("Connection events trace " + connEventsTraceFile);
+		}
 
 		//
 		// Threads
 		//
-		new CleanupThread(remoteMachineListSnd, remoteMachineListRcv).start();
-		new TimeoutThread(remoteMachineListRcv).start();
+		new CleanupThread().start();
+		new TimeoutThread(remoteMachineListSnd, remoteMachineListRcv).start();
 
 		diskScan = new DiskScanThread(DEBUG_DIRS || DEBUG_ALL);
 		if (!noDiskScan)
@@ -122,21 +242,33 @@ public class Main
 		//
 		// Capture
 		//
+		ShardWorker.startShards(shards);
 		for (QueueNum curQueue : QueueNum.values())
 		{
-			// Machine list is reversed because it holds the list of the remote
-			CaptureThread captureThread = new CaptureThread(curQueue, curQueue.sideSender ? remoteMachineListRcv
-					: remoteMachineListSnd);
-			captureThreads.add(captureThread);
-			captureThread.start();
-			
-			// It usually prevents the "File exists" error that happens in fast machines
-			try
-			{
-				Thread.sleep(100);
-			} catch (InterruptedException e)
+			System.out.println("Queues for " + curQueue.name() + ": " + curQueue.getIptablesTarget(queueFanout));
+			if (queueFanout > 1)
+				System.out.println("   Without --queue-cpu-fanout, that spreads by CPU and splits connections");
+
+			boolean queueHeadersOnly = headersOnly && !curQueue.payloadInspected;
+			if (queueHeadersOnly)
+				System.out.println("   Headers only, full copies re-queued to "
+						+ curQueue.getRequeueNum(queueFanout, 0) + "-"
+						+ curQueue.getRequeueNum(queueFanout, queueFanout - 1));
+
+			for (int i = 0; i < queueFanout; i++)
 			{
-				e.printStackTrace();
+				// Machine list is reversed because it holds the list of the remote
+				RemoteMachineList machineList = curQueue.sideSender ? remoteMachineListRcv : remoteMachineListSnd;
+				if (queueHeadersOnly)
+				{
+					startCapture(new CaptureThread(curQueue, curQueue.getQueueNum(queueFanout, i),
+							CaptureThread.HEADERS_COPY_RANGE, curQueue.getRequeueNum(queueFanout, i), machineList));
+					startCapture(CaptureThread.createRequeueTarget(curQueue, curQueue.getRequeueNum(queueFanout, i),
+							machineList));
+				} else
+				{
+					startCapture(new CaptureThread(curQueue, curQueue.getQueueNum(queueFanout, i), machineList));
+				}
 			}
 		}
 
@@ -150,6 +282,45 @@ public class Main
 			}
 	}
 
+	/**
+	 * Open the content store in {@link #contentStoreDir}, after {@link #chunks} was created, and add its chunks.
+	 * 
+	 * @return Null if there is no store or it failed to open.
+	 */
+	public static ChunkContentStore openContentStore()
+	{
+		if (contentStoreDir == null)
+			return null;
+
+		try
+		{
+			ChunkContentStore result = new ChunkContentStore(new File(contentStoreDir), (long) contentStoreGB << 30,
+					ChunkContentStore.SEGMENT_BYTES, chunks);
+			System.out.println(String.format("Content store %s: %,d MB in %,d segments", contentStoreDir, result
+					.getBytes() >> 20, result.getSegmentsCount()));
+			return result;
+		} catch (IOException e)
+		{
+			System.err.println("Failed to open content store " + contentStoreDir + ": " + e);
+			return null;
+		}
+	}
+
+	private static void startCapture(CaptureThread captureThread)
+	{
+		captureThreads.add(captureThread);
+		captureThread.start();
+
+		// It usually prevents the "File exists" error that happens in fast machines
+		try
+		{
+			Thread.sleep(100);
+		} catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * @param args
 	 * @throws IOException
@@ -160,6 +331,7 @@ public class Main
 		boolean noNetwork = false;
 		boolean noDiskScan = false;
 		boolean noRestoreChains = false;
+		boolean resetChains = false;
 		String deviceName = "lo";
 
 		for (String curArg : args)
@@ -170,17 +342,69 @@ public class Main
 				noDiskScan = true;
 			else if ("norestorechains".equalsIgnoreCase(curArg))
 				noRestoreChains = true;
+			else if ("resetchains".equalsIgnoreCase(curArg))
+				resetChains = true;
 			else if (curArg.startsWith("eth") || curArg.startsWith("wlan") || curArg.equals("lo"))
 				deviceName = curArg;
 			else if ("debugsha1".equalsIgnoreCase(curArg))
 				debugSha1 = 100;
 			else if (curArg.startsWith("loss="))
 				lossRate = Integer.parseInt(curArg.split("=")[1]);
+			else if ("zerocopy".equalsIgnoreCase(curArg))
+				zeroCopy = true;
+			else if (curArg.startsWith("fanout="))
+				queueFanout = Math.max(1, Math.min(QueueNum.MAX_FANOUT, Integer.parseInt(curArg.split("=")[1])));
+			else if ("nogso".equalsIgnoreCase(curArg))
+				gso = false;
+			else if ("fullcopy".equalsIgnoreCase(curArg))
+				headersOnly = false;
+			else if (curArg.startsWith("shards="))
+				shards = Math.max(0, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("budget="))
+				overloadBudgetMillis = Math.max(0, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("index="))
+				indexThreads = Math.max(1, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("indexmb="))
+				indexReadMBps = Math.max(0, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("cachemb="))
+				contentCacheMB = Math.max(1, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("store="))
+				contentStoreDir = curArg.split("=")[1];
+			else if (curArg.startsWith("events="))
+				connEventsDepth = Math.max(0, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("eventsample="))
+				connEventsSampling = Math.max(1, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("eventtrace="))
+				connEventsTraceFile = curArg.split("=")[1];
+			else if (curArg.startsWith("storegb="))
+				contentStoreGB = Math.max(1, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("chunker="))
+			{
+				// The same chunker for both files and streams, so their chunks match
+				Chunker chunker = RabinUtils.getChunker(curArg.split("=")[1]);
+				if (chunker == null)
+				{
+					System.err.println("Unknown chunker " + curArg + ", use pack, rabin or gear");
+					System.exit(-1);
+				}
+				fileChunker = chunker;
+				streamChunker = chunker;
+			} else if (curArg.startsWith("signature="))
+			{
+				signature = Signature.getByName(curArg.split("=")[1]);
+				if (signature == null)
+				{
+					System.err.println("Unknown signature " + curArg + ", use sha1 or xxh64");
+					System.exit(-1);
+				}
+			}
 		}
 
 		try
 		{
-			new Main(deviceName, noNetwork, noDiskScan, !noRestoreChains);
+			// Saved chains are overwritten only when asked to
+			new Main(deviceName, noNetwork, noDiskScan, !noRestoreChains && !resetChains, !noRestoreChains
+					|| resetChains);
 		} catch (IOException e)
 		{
 			e.printStackTrace();
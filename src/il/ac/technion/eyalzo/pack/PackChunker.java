@@ -0,0 +1,120 @@
+package il.ac.technion.eyalzo.pack;
+
+/**
+ * The PACK rolling hash, where each byte is shifted left until it leaves the 64-bit value, and an anchor is a window
+ * with a fixed set of bits. See {@link RabinUtils#rabinRollingNextAnchor(byte[], int, int)}.
+ * <p>
+ * The chunk ends right after the last byte of the anchor's window. Chunks may be one byte longer than
+ * {@link RabinUtils#MAX_CHUNK_LEN}, as they always were in streams.
+ */
+public class PackChunker implements Chunker
+{
+	public static final int ID = 1;
+	public static final String NAME = "pack";
+	private static final int MAX_LEN = RabinUtils.MAX_CHUNK_LEN + 1;
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public String getName()
+	{
+		return NAME;
+	}
+
+	public int getMinChunkLen()
+	{
+		return RabinUtils.MIN_CHUNK_LEN;
+	}
+
+	public int getMaxChunkLen()
+	{
+		return MAX_LEN;
+	}
+
+	public int getAvgChunkLen()
+	{
+		return RabinUtils.getAverageChunkLen();
+	}
+
+	public int getLookahead()
+	{
+		return 0;
+	}
+
+	public int nextChunkEnd(byte[] data, int chunkStart, int searchOffset, int endOffset)
+	{
+		int maxEnd = chunkStart + MAX_LEN;
+		int lastEnd = Math.min(endOffset, maxEnd);
+		if (searchOffset > lastEnd)
+			return -1;
+
+		// The anchor function works with the inclusive last byte of the window
+		int find = RabinUtils.rabinRollingNextAnchor(data, searchOffset - 1, lastEnd - 1);
+		if (find >= 0)
+			return find + 1;
+
+		// If the maximal chunk does not have an anchor
+		if (lastEnd == maxEnd)
+			return maxEnd;
+
+		return -1;
+	}
+
+	public ChunkScanner newScanner()
+	{
+		return new Scanner();
+	}
+
+	private static class Scanner extends ChunkScanner
+	{
+		/**
+		 * Hash of the last chunk end that was checked, one before {@link #nextEnd}.
+		 */
+		private long hash;
+
+		@Override
+		protected int scan(byte[] data, int chunkStart, int searchOffset, int endOffset, boolean carry)
+		{
+			int maxEnd = chunkStart + MAX_LEN;
+			int lastEnd = Math.min(endOffset, maxEnd);
+
+			// The hash of the chunk end before the search offset was already checked
+			int end;
+			long h;
+			if (carry)
+			{
+				end = nextEnd - 1;
+				h = hash;
+			} else
+			{
+				// A full window is needed before the first chunk end
+				end = Math.max(searchOffset, RabinUtils.ROL_PACK_WINDOW_BYTES);
+				if (end > lastEnd)
+					return -1;
+
+				h = RabinUtils.rabinRollingWindow(data, end);
+				if (RabinUtils.isRabinRollingAnchor(h))
+					return end;
+			}
+
+			while (end < lastEnd)
+			{
+				h = RabinUtils.rabinRollingStep(h, data[end - RabinUtils.ROL_PACK_WINDOW_BYTES], data[end]);
+				end++;
+				if (RabinUtils.isRabinRollingAnchor(h))
+					return end;
+			}
+
+			// If the maximal chunk does not have an anchor
+			if (lastEnd == maxEnd)
+				return maxEnd;
+
+			hash = h;
+			nextEnd = end + 1;
+			warm = true;
+			return -1;
+		}
+	}
+}
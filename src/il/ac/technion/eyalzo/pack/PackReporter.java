@@ -7,6 +7,18 @@ public class PackReporter extends Reporter
 	private static final String	COL_STAMPS			= "Stamps_Store";
 	private static final String	COL_STAMPS_KNOWN	= "Stamps_Known";
 	private static final String	COL_STAMPS_UNKNOWN	= "Stamps_Unknown";
+	private static final String	COL_OVERLOAD_QUEUES	= "Overload_Queues";
+	private static final String	COL_OVERLOADS		= "Overloads";
+	private static final String	COL_OVERLOAD_MILLIS	= "Overload_Millis";
+	private static final String	COL_SHED_PACKETS	= "Shed_Packets";
+	private static final String	COL_QUEUE_OVERRUNS	= "Queue_Overruns";
+	private static final String	COL_CONTENT_BYTES	= "Content_Bytes";
+	private static final String	COL_CONTENT_HITS	= "Content_Hits";
+	private static final String	COL_CONTENT_MISSES	= "Content_Misses";
+	private static final String	COL_CONTENT_EVICTED	= "Content_Evicted";
+	private static final String	COL_CONTENT_LOADS	= "Content_Loads";
+	private static final String	COL_STORE_BYTES		= "Store_Bytes";
+	private static final String	COL_STORE_LIVE		= "Store_Live_Bytes";
 
 	@Override
 	protected void onFlushData()
@@ -14,6 +26,34 @@ public class PackReporter extends Reporter
 		this.set(COL_STAMPS, Main.chunks.getChunksCount());
 		this.set(COL_STAMPS_KNOWN, Main.chunks.getStatChunksKnown());
 		this.set(COL_STAMPS_UNKNOWN, Main.chunks.getStatChunksUnknown());
+
+		long overloads = 0;
+		long overloadMillis = 0;
+		long shedPackets = 0;
+		long overruns = 0;
+		for (CaptureThread curThread : Main.captureThreads)
+		{
+			overloads += curThread.getStatOverloads();
+			overloadMillis += curThread.getStatOverloadMillis();
+			shedPackets += curThread.getStatPacketsShed();
+			overruns += curThread.getStatOverruns();
+		}
+		this.set(COL_OVERLOAD_QUEUES, CaptureThread.getOverloadedQueues());
+		this.set(COL_OVERLOADS, overloads);
+		this.set(COL_OVERLOAD_MILLIS, overloadMillis);
+		this.set(COL_SHED_PACKETS, shedPackets);
+		this.set(COL_QUEUE_OVERRUNS, overruns);
+
+		this.set(COL_CONTENT_BYTES, Main.contents.getBytes());
+		this.set(COL_CONTENT_HITS, Main.contents.getStatHits());
+		this.set(COL_CONTENT_MISSES, Main.contents.getStatMisses());
+		this.set(COL_CONTENT_EVICTED, Main.contents.getStatEvictions());
+		this.set(COL_CONTENT_LOADS, Main.contents.getStatLoads());
+		if (Main.store != null)
+		{
+			this.set(COL_STORE_BYTES, Main.store.getBytes());
+			this.set(COL_STORE_LIVE, Main.store.getLiveBytes());
+		}
 	}
 
 	@Override
@@ -30,6 +70,30 @@ public class PackReporter extends Reporter
 		this
 				.addColumn(COL_STAMPS_UNKNOWN, COLUMN_TYPE_INT_DIFF,
 						"Number of lookups in stamps store that did not find the stamp at all");
+		this.addColumn(COL_OVERLOAD_QUEUES, COLUMN_TYPE_INT_ABS,
+				"Number of queues that are over the time budget, while new connections are shed");
+		this.addColumn(COL_OVERLOADS, COLUMN_TYPE_INT_DIFF,
+				"Number of times a queue went over the time budget");
+		this.addColumn(COL_OVERLOAD_MILLIS, COLUMN_TYPE_INT_DIFF,
+				"Time spent in overload, summed over the queues");
+		this.addColumn(COL_SHED_PACKETS, COLUMN_TYPE_INT_DIFF,
+				"Number of packets of new connections that were accepted untouched because of overload");
+		this.addColumn(COL_QUEUE_OVERRUNS, COLUMN_TYPE_INT_DIFF,
+				"Number of netlink socket overflows, where the kernel let packets through (fail-open) or dropped them");
+		this.addColumn(COL_CONTENT_BYTES, COLUMN_TYPE_INT_ABS,
+				"Bytes of stream chunk content in the cache, for predictions");
+		this.addColumn(COL_CONTENT_HITS, COLUMN_TYPE_INT_DIFF,
+				"Number of predictions that found the chunk's content in the cache");
+		this.addColumn(COL_CONTENT_MISSES, COLUMN_TYPE_INT_DIFF,
+				"Number of predictions that were skipped because the chunk's content was not in the cache");
+		this.addColumn(COL_CONTENT_EVICTED, COLUMN_TYPE_INT_DIFF,
+				"Number of chunks whose content was evicted from the cache, or not admitted to it");
+		this.addColumn(COL_CONTENT_LOADS, COLUMN_TYPE_INT_DIFF,
+				"Number of predictions that loaded the chunk's content from the store on disk");
+		this.addColumn(COL_STORE_BYTES, COLUMN_TYPE_INT_ABS,
+				"Bytes in the content store segments, including garbage that was not compacted yet");
+		this.addColumn(COL_STORE_LIVE, COLUMN_TYPE_INT_ABS,
+				"Bytes of chunk content in the store that can still be read");
 	}
 
 }
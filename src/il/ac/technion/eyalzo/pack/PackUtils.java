@@ -187,7 +187,7 @@ public class PackUtils
 				it.remove();
 
 				// If the TCP sequence is backward, then quit after the item was removed from outbox
-				if (!predSent.addPredChunk(curPredSeq, curPredChunk))
+				if (!predSent.addPredChunk(curPredSeq, curPredChunk, predOutbox.popContent(curPredSeq)))
 					return null;
 			}
 		}
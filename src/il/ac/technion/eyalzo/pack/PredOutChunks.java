@@ -20,6 +20,11 @@ public class PredOutChunks
 	 * All the chunks in ascending subsequent order. Key is the TCP sequence and value is the predicted chunk item.
 	 */
 	private LinkedHashMap<Long, ChunkItem> chunks = new LinkedHashMap<Long, ChunkItem>();
+	/**
+	 * Content of the predicted chunks, by TCP sequence, kept from when the prediction was made until it is ACKed, as the
+	 * content cache may evict it meanwhile. Only for chunks that were added with content, in the same order.
+	 */
+	private LinkedHashMap<Long, byte[]> contents = new LinkedHashMap<Long, byte[]>();
 
 	public LinkedHashMap<Long, ChunkItem> getChunks()
 	{
@@ -31,6 +36,7 @@ public class PredOutChunks
 		synchronized (chunks)
 		{
 			chunks.clear();
+			contents.clear();
 			this.tcpSeqNext = tcpSeq;
 		}
 	}
@@ -61,6 +67,17 @@ public class PredOutChunks
 	 *         sequence range).
 	 */
 	public boolean addPredChunk(long tcpSeq, ChunkItem predChunk)
+	{
+		return addPredChunk(tcpSeq, predChunk, null);
+	}
+
+	/**
+	 * Like {@link #addPredChunk(long, ChunkItem)}, and keep the chunk's content until {@link #popContent(long)}.
+	 * 
+	 * @param content
+	 *            The chunk's content, or null if not kept.
+	 */
+	public boolean addPredChunk(long tcpSeq, ChunkItem predChunk, byte[] content)
 	{
 		synchronized (chunks)
 		{
@@ -69,6 +86,8 @@ public class PredOutChunks
 				return false;
 
 			chunks.put(tcpSeq, predChunk);
+			if (content != null)
+				contents.put(tcpSeq, content);
 			tcpSeqNext = TcpUtils.tcpSequenceAdd(tcpSeq, predChunk.getLength());
 		}
 
@@ -237,4 +256,38 @@ public class PredOutChunks
 			return chunks.remove(remoteSeq);
 		}
 	}
+
+	/**
+	 * Get and remove the content that was kept with the chunk of the given TCP sequence. Call it before
+	 * {@link #popChunk(long)}, or when the chunk is removed from the list by its iterator.
+	 * 
+	 * @return Null if no content was kept.
+	 */
+	public byte[] popContent(long tcpSeq)
+	{
+		synchronized (chunks)
+		{
+			return contents.remove(tcpSeq);
+		}
+	}
+
+	/**
+	 * Drop the kept content of predictions that end before the given TCP sequence, as the sender already sent data
+	 * after them, so their content is not held for long when they are not ACKed. The predictions themselves are kept.
+	 */
+	public void releaseContentsBefore(long tcpSeq)
+	{
+		synchronized (chunks)
+		{
+			Iterator<Entry<Long, byte[]>> it = contents.entrySet().iterator();
+			while (it.hasNext())
+			{
+				Entry<Long, byte[]> entry = it.next();
+				long chunkEnd = TcpUtils.tcpSequenceAdd(entry.getKey(), entry.getValue().length);
+				if (TcpUtils.tcpSequenceDiff(chunkEnd, tcpSeq) < 0)
+					break;
+				it.remove();
+			}
+		}
+	}
 }
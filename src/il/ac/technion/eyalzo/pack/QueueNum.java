@@ -2,20 +2,87 @@ package il.ac.technion.eyalzo.pack;
 
 public enum QueueNum
 {
-	SenderIn(1, true, false), SenderOut(2, true, true), ReceiverIn(3, false, false), ReceiverOut(4, false, true);
+	SenderIn(1, true, false, false), SenderOut(2, true, true, true), ReceiverIn(3, false, false, true), ReceiverOut(4,
+			false, true, false);
+
+	/**
+	 * Max number of queues per side and direction, so the primary and re-queue ranges, up to 8 times the fan-out, fit
+	 * in the positive range of a short.
+	 */
+	public static final int MAX_FANOUT = Short.MAX_VALUE / 8;
 
 	public final short queueNum;
 	public final boolean dirOut;
 	public final boolean sideSender;
+	/**
+	 * The TCP payload is needed by the engine, beyond HTTP headers that are parsed for information only. When false,
+	 * the queue may copy only the headers to user space.
+	 * <p>
+	 * Sender-out and receiver-in carry the stream data, that is chunked and matched against predictions, so they copy
+	 * in full. Sender-in and receiver-out carry the ACKs with the PACK options, and payload only in HTTP requests.
+	 * Cutting the data queues instead would re-queue nearly every data packet, and copy each twice.
+	 */
+	public final boolean payloadInspected;
 
 	/**
 	 * @param sideSender
 	 *            Remote machines are senders.
 	 */
-	QueueNum(int queueNum, boolean sideSender, boolean dirOut)
+	QueueNum(int queueNum, boolean sideSender, boolean dirOut, boolean payloadInspected)
 	{
 		this.queueNum = (short) queueNum;
 		this.sideSender = sideSender;
 		this.dirOut = dirOut;
+		this.payloadInspected = payloadInspected;
+	}
+
+	/**
+	 * Queue number when each side and direction is spread over several queues, with iptables
+	 * <code>--queue-balance</code>. Every side and direction gets a contiguous range, so with fan-out 1 the numbers are
+	 * the same as {@link #queueNum}.
+	 * <p>
+	 * The kernel picks the queue in a range by a hash of the address pair that does not depend on direction, so when
+	 * the in and out ranges have the same size, both directions of a connection go to queues with the same index.
+	 * 
+	 * @param fanout
+	 *            Number of queues per side and direction.
+	 * @param index
+	 *            Zero-based index of the queue in the range.
+	 * @return NFQUEUE number.
+	 */
+	public short getQueueNum(int fanout, int index)
+	{
+		return (short) ((queueNum - 1) * fanout + 1 + index);
+	}
+
+	/**
+	 * Queue that gets, by verdict and not by iptables, the packets that a headers-only queue needs in full. The re-queue
+	 * ranges follow all the primary ranges, from <code>4 * fanout + 1</code>, so they never collide.
+	 * 
+	 * @param fanout
+	 *            Number of queues per side and direction.
+	 * @param index
+	 *            Zero-based index of the headers-only queue in the range.
+	 * @return NFQUEUE number.
+	 */
+	public short getRequeueNum(int fanout, int index)
+	{
+		return (short) (values().length * fanout + getQueueNum(fanout, index));
+	}
+
+	/**
+	 * The balance must not be combined with <code>--queue-cpu-fanout</code>. It picks the queue by the CPU that
+	 * handles the packet and not by the address pair, so the packets of a connection may reach several queues, and
+	 * its state would be touched by several capture threads at once.
+	 * 
+	 * @param fanout
+	 *            Number of queues per side and direction.
+	 * @return Target for the iptables rule, either <code>--queue-num x</code> or <code>--queue-balance x:y</code>.
+	 */
+	public String getIptablesTarget(int fanout)
+	{
+		if (fanout <= 1)
+			return "--queue-num " + queueNum;
+		return "--queue-balance " + getQueueNum(fanout, 0) + ":" + getQueueNum(fanout, fanout - 1);
 	}
 }
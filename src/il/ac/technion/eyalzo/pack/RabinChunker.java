@@ -0,0 +1,118 @@
+package il.ac.technion.eyalzo.pack;
+
+/**
+ * Rabin fingerprint over a window of {@link RabinUtils#FINGERPRINT_BYTES_LEN} bytes, where an anchor is a fingerprint
+ * with all the bits of {@link RabinUtils#ANCHOR_MASK} set. See {@link RabinUtils#rabinNextAnchor(byte[], int, int)}.
+ * <p>
+ * The chunk ends right before the first byte of the anchor's window, so the decision needs the window and one more
+ * byte after the chunk end. This is how files were always stamped.
+ */
+public class RabinChunker implements Chunker
+{
+	public static final int ID = 2;
+	public static final String NAME = "rabin";
+	private static final int LOOKAHEAD = RabinUtils.FINGERPRINT_BYTES_LEN + 1;
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public String getName()
+	{
+		return NAME;
+	}
+
+	public int getMinChunkLen()
+	{
+		return RabinUtils.MIN_CHUNK_LEN;
+	}
+
+	public int getMaxChunkLen()
+	{
+		return RabinUtils.MAX_CHUNK_LEN;
+	}
+
+	public int getAvgChunkLen()
+	{
+		return RabinUtils.getAverageChunkLen();
+	}
+
+	public int getLookahead()
+	{
+		return LOOKAHEAD;
+	}
+
+	public int nextChunkEnd(byte[] data, int chunkStart, int searchOffset, int endOffset)
+	{
+		int maxEnd = chunkStart + RabinUtils.MAX_CHUNK_LEN;
+		int lastWindow = endOffset - LOOKAHEAD;
+
+		// Check for anchor (if the rightmost bits are all 1), up to the maximal chunk length
+		boolean reachedMaxSize = maxEnd <= lastWindow;
+		int anchor = RabinUtils.rabinNextAnchor(data, searchOffset, reachedMaxSize ? maxEnd - 1 : lastWindow);
+		if (anchor >= 0)
+			return anchor;
+
+		if (reachedMaxSize)
+			return maxEnd;
+
+		return -1;
+	}
+
+	public ChunkScanner newScanner()
+	{
+		return new Scanner();
+	}
+
+	private static class Scanner extends ChunkScanner
+	{
+		/**
+		 * Fingerprint of the last window that was checked, one before {@link #nextEnd}.
+		 */
+		private int hash;
+
+		@Override
+		protected int scan(byte[] data, int chunkStart, int searchOffset, int endOffset, boolean carry)
+		{
+			int maxEnd = chunkStart + RabinUtils.MAX_CHUNK_LEN;
+			int lastWindow = endOffset - LOOKAHEAD;
+			boolean reachedMaxSize = maxEnd <= lastWindow;
+			int limit = reachedMaxSize ? maxEnd - 1 : lastWindow;
+
+			// The window before the search offset was already checked
+			int anchor;
+			int h;
+			if (carry)
+			{
+				anchor = nextEnd - 1;
+				h = hash;
+			} else
+			{
+				anchor = searchOffset;
+				if (anchor > limit)
+					return reachedMaxSize ? maxEnd : -1;
+
+				h = RabinUtils.rhf.hashWindow(data, anchor);
+				if ((h & RabinUtils.ANCHOR_MASK) == RabinUtils.ANCHOR_MASK)
+					return anchor;
+			}
+
+			while (anchor < limit)
+			{
+				h = RabinUtils.rhf.roll(h, data[anchor], data[anchor + RabinUtils.FINGERPRINT_BYTES_LEN]);
+				anchor++;
+				if ((h & RabinUtils.ANCHOR_MASK) == RabinUtils.ANCHOR_MASK)
+					return anchor;
+			}
+
+			if (reachedMaxSize)
+				return maxEnd;
+
+			hash = h;
+			nextEnd = anchor + 1;
+			warm = true;
+			return -1;
+		}
+	}
+}
@@ -78,6 +78,16 @@ public final class RabinHashFunction32 implements Cloneable
 
 	private final int						P;
 	private transient int[]					table32, table40, table48, table56;
+	/**
+	 * Number of bytes in a rolling window, or zero if this function does not
+	 * roll.
+	 */
+	private final int						windowBytes;
+	/**
+	 * tableOut[i] is the byte i as the oldest byte of a full window, that is
+	 * i*x<sup>8*windowBytes</sup> (mod P), to be removed when the window moves.
+	 */
+	private transient int[]					tableOut;
 
 	/**
 	 * <p>
@@ -96,9 +106,32 @@ public final class RabinHashFunction32 implements Cloneable
 	 *            <code>int</code>
 	 */
 	public RabinHashFunction32(final int P)
+	{
+		this(P, 0);
+	}
+
+	/**
+	 * <p>
+	 * Creates a RabinHashFunction32 that can also roll over a fixed-size
+	 * window, see {@link #roll(int, byte, byte)}.
+	 * </p>
+	 * 
+	 * @param P
+	 *            a degree 32 polynomial over GF(2), represented as an
+	 *            <code>int</code>
+	 * @param windowBytes
+	 *            number of bytes in the rolling window, or zero for a hash
+	 *            function that does not roll
+	 */
+	public RabinHashFunction32(final int P, final int windowBytes)
 	{
 		this.P = P;
+		this.windowBytes = windowBytes;
 		initializeTables();
+		if (windowBytes > 0)
+		{
+			initializeOutTable();
+		}
 	}
 
 	private void initializeTables()
@@ -155,6 +188,19 @@ public final class RabinHashFunction32 implements Cloneable
 		}
 	}
 
+	private void initializeOutTable()
+	{
+		// The hash is linear, so the contribution of the byte that leaves is
+		// the hash of that byte followed by a full window of zeros
+		final byte[] window = new byte[windowBytes + 1];
+		tableOut = new int[256];
+		for (int i = 0; i < 256; i++)
+		{
+			window[0] = (byte) i;
+			tableOut[i] = hash(window, 0, window.length, 0);
+		}
+	}
+
 	/**
 	 * @return irreducible polynomial used in this hash function, represented as
 	 *         an <code>int</code>
@@ -164,6 +210,15 @@ public final class RabinHashFunction32 implements Cloneable
 		return P;
 	}
 
+	/**
+	 * @return number of bytes in the rolling window, or zero if this function
+	 *         does not roll
+	 */
+	public int getWindowBytes()
+	{
+		return windowBytes;
+	}
+
 	private int computeWShifted(final int w)
 	{
 		return table32[w & 0xFF] ^ table40[(w >>> 8) & 0xFF]
@@ -216,6 +271,50 @@ public final class RabinHashFunction32 implements Cloneable
 		return w;
 	}
 
+	/**
+	 * <p>
+	 * Return the Rabin hash value of a window of {@link #getWindowBytes()}
+	 * bytes, to be rolled later with {@link #roll(int, byte, byte)}. Same as
+	 * hashing these bytes with any of the other methods.
+	 * </p>
+	 * 
+	 * @param A
+	 *            the array of bytes
+	 * @param offset
+	 *            offset of the first byte of the window
+	 * @return the hash value
+	 */
+	public int hashWindow(final byte[] A, final int offset)
+	{
+		return hash(A, offset, windowBytes, 0);
+	}
+
+	/**
+	 * <p>
+	 * Moves the window one byte forward, in O(1): the hash value of bytes
+	 * <code>b1..bn</code> is computed from the hash value of
+	 * <code>b0..b(n-1)</code>, with <code>out</code> being <code>b0</code> and
+	 * <code>in</code> being <code>bn</code>. The result is exactly the hash
+	 * value of the new window.
+	 * </p>
+	 * 
+	 * @param w
+	 *            hash value of the current window
+	 * @param out
+	 *            the oldest byte, that leaves the window
+	 * @param in
+	 *            the new byte, that enters the window
+	 * @return the hash value of the new window
+	 * @throws NullPointerException
+	 *             if this function was created without a window
+	 */
+	public int roll(final int w, final byte out, final byte in)
+	{
+		// w*x^8 (mod P), minus the oldest byte, plus the new byte
+		return (w << 8) ^ table32[w >>> 24] ^ tableOut[out & 0xFF]
+				^ (in & 0xFF);
+	}
+
 	/**
 	 * <p>
 	 * Return the Rabin hash value of an array of chars.
@@ -315,7 +414,8 @@ public final class RabinHashFunction32 implements Cloneable
 	public boolean equals(final Object o)
 	{
 		return o instanceof RabinHashFunction32
-				&& ((RabinHashFunction32) o).P == P;
+				&& ((RabinHashFunction32) o).P == P
+				&& ((RabinHashFunction32) o).windowBytes == windowBytes;
 	}
 
 	public int hashCode()
@@ -1,23 +1,26 @@
 package il.ac.technion.eyalzo.pack;
 
 import il.ac.technion.eyalzo.pack.conns.TcpUtils;
-import il.ac.technion.eyalzo.pack.files.FileUtils;
+import il.ac.technion.eyalzo.pack.files.FileChunkList;
+import il.ac.technion.eyalzo.pack.files.MappedFileReader;
 import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
 import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 
 public class RabinUtils
 {
-	public static final RabinHashFunction32 rhf = RabinHashFunction32.DEFAULT_HASH_FUNCTION;
 	/**
 	 * Number of bytes in a fingerprint.
 	 */
 	public final static int FINGERPRINT_BYTES_LEN = 48;
+	/**
+	 * The default Rabin hash function, that can also roll over a fingerprint window.
+	 */
+	public static final RabinHashFunction32 rhf = new RabinHashFunction32(
+			RabinHashFunction32.DEFAULT_HASH_FUNCTION.getP(), FINGERPRINT_BYTES_LEN);
 	/**
 	 * Number of fingerprint bits to be compared with a single value. Average chunk size will then be 2^x.
 	 */
@@ -45,7 +48,10 @@ public class RabinUtils
 	 * Default block size for file reads.
 	 */
 	private final static int BLOCK_SIZE = 100000 + MAX_CHUNK_LEN;
-	private static MessageDigest md = null;
+	/**
+	 * First two bytes of a metadata file with a header, see {@link #putMetaHeader(ByteBuffer, Chunker, Signature)}.
+	 */
+	private final static short META_HEADER_MARK = (short) 0xffff;
 
 	//
 	// Rolling Rabin
@@ -101,116 +107,130 @@ public class RabinUtils
 		}
 	}
 
-	private static void initDigest()
-	{
-		if (md != null)
-			return;
-
-		try
-		{
-			md = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e)
-		{
-			e.printStackTrace();
-		}
-	}
-
 	/**
 	 * Build chunk list from all the file's bytes. That includes that chunk that starts from the file's beginning, after
 	 * a minimal-chunk skip. The last chunk may not be added if too short.
 	 * 
+	 * @param chunker
+	 *            Where to cut the chunks.
+	 * @param signature
+	 *            How to sign the chunks.
 	 * @return Null if failed to read the entire file or even one block.
 	 */
-	public synchronized static LinkedList<ChunkItem> calcFileChunks(long totalSize, GlobalChunkList globalStampList,
-			String fileName)
+	public static LinkedList<ChunkItem> calcFileChunks(Chunker chunker, Signature signature, long totalSize,
+			GlobalChunkList globalStampList, String fileName)
 	{
 		if (totalSize <= 0)
 			return null;
 
-		LinkedList<ChunkItem> result = new LinkedList<ChunkItem>();
+		FileChunkList result = new FileChunkList(0);
+		if (!calcFileChunks(chunker, signature, fileName, totalSize, 0, totalSize, null, result))
+			return null;
 
-		// The first block always starts with the file
-		long prevAnchorOffset = 0;
-		long curAnchorOffset;
+		return result.toChunkItems(globalStampList);
+	}
+
+	/**
+	 * Chunk a range of a file. Chunks start at the given offset, that must be a chunk start, and go on until a chunk
+	 * ends at or after the stop offset, at one of the sync ends, or at the end of the file, where the last chunk may
+	 * not be added if too short.
+	 * <p>
+	 * Every chunk end depends only on the previous chunk end and the data, so once a range reaches a chunk end of
+	 * another range that was chunked separately, it goes on exactly like it.
+	 * 
+	 * @param startOffset
+	 *            Start of the first chunk.
+	 * @param stopOffset
+	 *            Where to stop, after the chunk that ends at or after it.
+	 * @param syncEnds
+	 *            Optional chunks of a range that follows, to stop when reaching one of their ends.
+	 * @param result
+	 *            Where to add the chunks.
+	 * @return False if failed to read a block.
+	 */
+	public static boolean calcFileChunks(Chunker chunker, Signature signature, String fileName, long totalSize,
+			long startOffset, long stopOffset, FileChunkList syncEnds, FileChunkList result)
+	{
+		MappedFileReader reader;
+		try
+		{
+			reader = new MappedFileReader(fileName);
+		} catch (IOException e)
+		{
+			return false;
+		}
+
+		try
+		{
+			// The file may have been truncated since it was listed
+			if (reader.size() < totalSize)
+				return false;
+
+			return calcFileChunks(chunker, signature, reader, totalSize, startOffset, stopOffset, syncEnds, result);
+		} catch (IOException e)
+		{
+			return false;
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	private static boolean calcFileChunks(Chunker chunker, Signature signature, MappedFileReader reader,
+			long totalSize, long startOffset, long stopOffset, FileChunkList syncEnds, FileChunkList result)
+			throws IOException
+	{
+		long prevAnchorOffset = startOffset;
+
+		// One block for the whole file, as the chunker works directly on the array
+		byte[] data = new byte[(int) Math.min(BLOCK_SIZE, totalSize - startOffset)];
 
 		//
 		// Read the file in large blocks, to find anchors
 		//
-		long bufferOffset = 0;
+		long bufferOffset = startOffset;
 		while (true)
 		{
 			// How many bytes to read from file into the buffer
 			boolean lastLoop = (bufferOffset + BLOCK_SIZE) >= totalSize;
 			int readBytes = lastLoop ? (int) (totalSize - bufferOffset) : BLOCK_SIZE;
 
-			// Read the file
-			ByteBuffer buffer = FileUtils.readBlock(fileName, bufferOffset, readBytes, ByteOrder.BIG_ENDIAN, null);
+			// Copy from the mapped file
+			reader.read(bufferOffset, data, 0, readBytes);
 
-			// Read error?
-			if (buffer == null)
-				return null;
+			int chunkStart = (int) (prevAnchorOffset - bufferOffset);
+			while (true)
+			{
+				int chunkEnd = chunker.nextChunkEnd(data, chunkStart, chunkStart + chunker.getMinChunkLen(), readBytes);
+				if (chunkEnd < 0)
+					break;
 
-			// Where is the last buffer offset where it should still look for
-			// anchors
-			long lastBufferAnchorOffset = buffer.capacity() - 1 - FINGERPRINT_BYTES_LEN;
+				int blockLen = chunkEnd - chunkStart;
+				prevAnchorOffset += blockLen;
+				result.add(prevAnchorOffset, signature.sign(data, chunkStart, blockLen));
 
-			// Offset where to stop in buffer because reached maximal block size
-			int anchorOffsetByMaxBlockSize = (int) (bufferOffset - prevAnchorOffset) + MAX_CHUNK_LEN;
-			for (int i = MIN_CHUNK_LEN; i <= lastBufferAnchorOffset; i++)
-			{
-				buffer.limit(i + FINGERPRINT_BYTES_LEN);
-				buffer.position(i);
-				int curHash = rhf.hash(buffer);
-				boolean reachedMaxSize = (i == anchorOffsetByMaxBlockSize);
-				// Check for anchor (if the rightmost bits are all 1)
-				if ((curHash & ANCHOR_MASK) == ANCHOR_MASK || reachedMaxSize)
-				{
-					// The anchor offset
-					curAnchorOffset = bufferOffset + i;
-					int blockLen = (int) (curAnchorOffset - prevAnchorOffset);
-
-					int sha1 = calculateSha1(buffer, (int) (prevAnchorOffset - bufferOffset), blockLen);
-					// System.out.println(String.format("%,d: 0x%08X",
-					// prevAnchorOffset, sha1));
-
-					// Add to result
-					ChunkItem stampItem = globalStampList.getChunkOrAddNew(sha1, blockLen);
-					result.add(stampItem);
-					prevAnchorOffset = curAnchorOffset;
-
-					// When to stop because reached block max size
-					anchorOffsetByMaxBlockSize = i + MAX_CHUNK_LEN;
-
-					// Skip the minimal block size
-					i += MIN_CHUNK_LEN - 1;
-				}
+				if (prevAnchorOffset >= stopOffset
+						|| (syncEnds != null && syncEnds.indexOfEnd(prevAnchorOffset) >= 0))
+					return true;
+
+				chunkStart = chunkEnd;
 			}
 
 			// Handle the last and break
-			if (lastLoop && !result.contains(prevAnchorOffset))
+			if (lastLoop)
 			{
 				int length = (int) (totalSize - prevAnchorOffset);
 
 				// Skip the last chunk if too short
-				if (length < MIN_CHUNK_LEN)
-					break;
-
-				int sha1 = calculateSha1(buffer, (int) (prevAnchorOffset - bufferOffset), length);
-				// System.out.println(String.format("%,d: 0x%08X",
-				// prevAnchorOffset, sha1));
+				if (length >= chunker.getMinChunkLen())
+					result.add(totalSize, signature.sign(data, (int) (prevAnchorOffset - bufferOffset), length));
 
-				// Add to result
-				ChunkItem stampItem = globalStampList.getChunkOrAddNew(sha1, length);
-				result.add(stampItem);
-
-				break;
+				return true;
 			}
 
 			// Next offset, to overlap with the last found anchor
 			bufferOffset = prevAnchorOffset;
 		}
-
-		return result;
 	}
 
 	/**
@@ -222,18 +242,9 @@ public class RabinUtils
 	 *            How many bytes to put in the hash.
 	 * @return Hash result.
 	 */
-	public synchronized static int calculateSha1(ByteBuffer buffer, int offset, int len)
+	public static int calculateSha1(ByteBuffer buffer, int offset, int len)
 	{
-		initDigest();
-
-		// Do SHA-1
-		byte[] sha1Array;
-		md.update(buffer.array(), buffer.arrayOffset() + offset, len);
-		sha1Array = md.digest();
-
-		int sha1 = (int) ((0x00ffL & sha1Array[0]) | (0x00ffL & sha1Array[1]) << 8 | (0x00ffL & sha1Array[2]) << 16 | (0x00ffL & sha1Array[3]) << 24);
-
-		return sha1;
+		return Signature.SHA1.sign(buffer.array(), buffer.arrayOffset() + offset, len);
 	}
 
 	/**
@@ -245,18 +256,9 @@ public class RabinUtils
 	 *            How many bytes to put in the hash.
 	 * @return Hash result.
 	 */
-	public synchronized static int calculateSha1(byte[] buffer, int offset, int len)
+	public static int calculateSha1(byte[] buffer, int offset, int len)
 	{
-		initDigest();
-
-		// Do SHA-1
-		byte[] sha1Array;
-		md.update(buffer, offset, len);
-		sha1Array = md.digest();
-
-		int sha1 = (int) ((0x00ffL & sha1Array[0]) | (0x00ffL & sha1Array[1]) << 8 | (0x00ffL & sha1Array[2]) << 16 | (0x00ffL & sha1Array[3]) << 24);
-
-		return sha1;
+		return Signature.SHA1.sign(buffer, offset, len);
 	}
 
 	/**
@@ -268,11 +270,42 @@ public class RabinUtils
 	 */
 	public static boolean isAnchor(byte[] data, int offset)
 	{
-		//TODO make it a rolling hash
+		// A single window, see rabinNextAnchor() for scanning
 		int curHash = rhf.hash(data, offset, FINGERPRINT_BYTES_LEN, 0);
 		return (curHash & RabinUtils.ANCHOR_MASK) == RabinUtils.ANCHOR_MASK;
 	}
 
+	/**
+	 * Find the next anchor with the Rabin fingerprint, rolling the window one byte at a time. Gives exactly the same
+	 * anchors as {@link #isAnchor(byte[], int)} at every offset, in O(1) per byte instead of hashing the entire
+	 * window.
+	 * 
+	 * @param data
+	 *            Byte array of the data.
+	 * @param offset
+	 *            First offset to check for anchor.
+	 * @param endOffset
+	 *            Inclusive offset of the last window to check. Must have a full window of data after it.
+	 * @return Offset of the first byte of the anchor's window, or -1 if not found.
+	 */
+	public static int rabinNextAnchor(byte[] data, int offset, int endOffset)
+	{
+		if (offset > endOffset)
+			return -1;
+
+		int curHash = rhf.hashWindow(data, offset);
+		for (int i = offset;; i++)
+		{
+			if ((curHash & ANCHOR_MASK) == ANCHOR_MASK)
+				return i;
+
+			if (i >= endOffset)
+				return -1;
+
+			curHash = rhf.roll(curHash, data[i], data[i + FINGERPRINT_BYTES_LEN]);
+		}
+	}
+
 	public static int calcRabinFingerprint(byte[] data, int offset)
 	{
 		return rhf.hash(data, offset, FINGERPRINT_BYTES_LEN, 0);
@@ -283,6 +316,89 @@ public class RabinUtils
 		return AVG_CHUNK_LEN;
 	}
 
+	/**
+	 * @param name
+	 *            Chunker name, as in {@link Chunker#getName()}.
+	 * @return New chunker, or null if the name is unknown.
+	 */
+	public static Chunker getChunker(String name)
+	{
+		if (PackChunker.NAME.equalsIgnoreCase(name))
+			return new PackChunker();
+		if (RabinChunker.NAME.equalsIgnoreCase(name))
+			return new RabinChunker();
+		if (GearChunker.NAME.equalsIgnoreCase(name))
+			return new GearChunker();
+		return null;
+	}
+
+	/**
+	 * @param id
+	 *            Chunker ID, as in {@link Chunker#getId()}.
+	 * @return Name of the chunker, or the ID itself if unknown.
+	 */
+	public static String getChunkerName(int id)
+	{
+		switch (id)
+		{
+		case PackChunker.ID:
+			return PackChunker.NAME;
+		case RabinChunker.ID:
+			return RabinChunker.NAME;
+		case GearChunker.ID:
+			return GearChunker.NAME;
+		default:
+			return Integer.toString(id);
+		}
+	}
+
+	/**
+	 * @return ID of the chunks in metadata made by the given chunker and signature. SHA-1 is zero, so it is the same
+	 *         as the chunker's ID.
+	 */
+	public static int getMetaId(Chunker chunker, Signature signature)
+	{
+		return chunker.getId() | (signature.id << 8);
+	}
+
+	/**
+	 * @return Chunker and signature names of a metadata ID, see {@link #getMetaId(Chunker, Signature)}.
+	 */
+	public static String getMetaName(int metaId)
+	{
+		return getChunkerName(metaId & 0xff) + "/" + Signature.getName(metaId >>> 8);
+	}
+
+	/**
+	 * Write the header of a metadata file, that records the chunker and signature that made its chunks.
+	 */
+	public static void putMetaHeader(ByteBuffer buffer, Chunker chunker, Signature signature)
+	{
+		// 2: Mark
+		buffer.putShort(META_HEADER_MARK);
+		// 2: Chunker ID, and signature ID in the high byte
+		buffer.putShort((short) getMetaId(chunker, signature));
+	}
+
+	/**
+	 * Read the header of a metadata file, if there is one. Files that were saved before there was a header start with
+	 * a length that is always below {@link #META_HEADER_MARK}.
+	 * 
+	 * @param buffer
+	 *            Metadata at the start of the file. Its position is moved after the header, if any.
+	 * @param legacyChunkerId
+	 *            Chunker that made the chunks of files without a header, signed with SHA-1.
+	 * @return Metadata ID of the chunks in this file, see {@link #getMetaId(Chunker, Signature)}.
+	 */
+	public static int getMetaHeader(ByteBuffer buffer, int legacyChunkerId)
+	{
+		if (buffer.remaining() < 4 || buffer.getShort(buffer.position()) != META_HEADER_MARK)
+			return legacyChunkerId;
+
+		buffer.getShort();
+		return 0x0000ffff & buffer.getShort();
+	}
+
 	static long rabinHash(byte[] s)
 	{
 		long ret = 0;
@@ -329,7 +445,10 @@ public class RabinUtils
 		return -1;
 	}
 
-	static int rabinRollingAnchorCount(byte[] buffer)
+	/**
+	 * @return Number of PACK rolling-hash anchors in the entire buffer, with no minimal distance between them.
+	 */
+	public static int rabinRollingAnchorCount(byte[] buffer)
 	{
 		int result = 0;
 
@@ -356,7 +475,10 @@ public class RabinUtils
 		return result;
 	}
 
-	static int samplebyteAnchorCount(byte[] buffer)
+	/**
+	 * @return Number of SampleByte anchors in the entire buffer, with no minimal distance between them.
+	 */
+	public static int samplebyteAnchorCount(byte[] buffer)
 	{
 		int result = 0;
 
@@ -426,6 +548,31 @@ public class RabinUtils
 		}
 	}
 
+	/**
+	 * @return PACK rolling hash of the window that ends right before the given offset, the same as when rolled there
+	 *         by {@link #rabinRollingNextAnchor(byte[], int, int)}.
+	 */
+	static long rabinRollingWindow(byte[] buffer, int endOffset)
+	{
+		long hash = 0;
+		for (int i = endOffset - ROL_PACK_CLEANUP_BITS; i < endOffset; i++)
+			hash = (hash << 1) ^ (0x00ffL & buffer[i]);
+		return hash;
+	}
+
+	/**
+	 * @return PACK rolling hash moved one byte forward.
+	 */
+	static long rabinRollingStep(long hash, byte out, byte in)
+	{
+		return ((hash ^ ((0x00ffL & out) << ROL_PACK_SHIFT_BITS)) << 1) ^ (0x00ffL & in);
+	}
+
+	static boolean isRabinRollingAnchor(long hash)
+	{
+		return (hash & ROL_PACK_MASK) == ROL_PACK_ANCHOR;
+	}
+
 	/**
 	 * @return Value at the given offset
 	 */
@@ -0,0 +1,157 @@
+package il.ac.technion.eyalzo.pack;
+
+import il.ac.technion.eyalzo.NFQueue.Verdict;
+import il.ac.technion.eyalzo.net.TCPPacket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Packets handed together to the shards, whose verdicts are awaited together, like a batch from the kernel queue. The
+ * packets are copied, so the shards do not depend on the caller's buffers. Used by one thread at a time.
+ */
+public class ShardBatch
+{
+	/**
+	 * Initial buffer per packet, that grows for larger ones.
+	 */
+	private static final int INITIAL_PACKET_BYTES = 2048;
+
+	private final PacketTask[] tasks;
+	private int size;
+	/**
+	 * Packets that were handed to shards and not handled yet.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	/**
+	 * Thread that awaits the verdicts.
+	 */
+	private volatile Thread waiter;
+
+	/**
+	 * A packet and its verdict.
+	 */
+	private class PacketTask extends ShardTask
+	{
+		CaptureThread thread;
+		byte[] packet = new byte[INITIAL_PACKET_BYTES];
+		int length;
+		Verdict verdict;
+
+		@Override
+		protected void run(TCPPacket tcp)
+		{
+			try
+			{
+				verdict = thread.handleShardPacket(tcp, packet);
+			} finally
+			{
+				if (pending.decrementAndGet() == 0)
+					LockSupport.unpark(waiter);
+			}
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            Max number of packets in a batch.
+	 */
+	public ShardBatch(int capacity)
+	{
+		tasks = new PacketTask[capacity];
+		for (int i = 0; i < capacity; i++)
+			tasks[i] = new PacketTask();
+	}
+
+	/**
+	 * Get the buffer for the next packet, to be filled by the caller and then passed to {@link #dispatch(long, int)} or
+	 * {@link #complete(Verdict)}.
+	 *
+	 * @param thread
+	 *            Capture thread of the packet's queue.
+	 * @return Buffer of at least the given length.
+	 */
+	byte[] reserve(CaptureThread thread, int length)
+	{
+		PacketTask task = tasks[size];
+		task.thread = thread;
+		task.length = length;
+		task.verdict = null;
+		if (task.packet.length < length)
+			task.packet = new byte[Math.max(length, task.packet.length * 2)];
+		return task.packet;
+	}
+
+	/**
+	 * Hand the reserved packet to the shard of its connection.
+	 */
+	void dispatch(long addrs, int ports)
+	{
+		waiter = Thread.currentThread();
+		pending.incrementAndGet();
+		ShardWorker.post(addrs, ports, tasks[size++]);
+	}
+
+	/**
+	 * Set the verdict of the reserved packet, that needs no shard.
+	 */
+	void complete(Verdict verdict)
+	{
+		tasks[size++].verdict = verdict;
+	}
+
+	/**
+	 * Wait until the shards handled all the dispatched packets.
+	 */
+	public void await()
+	{
+		while (pending.get() != 0)
+			LockSupport.park(this);
+
+		for (int i = 0; i < size; i++)
+			tasks[i].thread.countVerdict(tasks[i].verdict);
+	}
+
+	/**
+	 * @return Verdict of the i'th packet, after {@link #await()}. Accept if its handling failed.
+	 */
+	public Verdict getVerdict(int i)
+	{
+		Verdict verdict = tasks[i].verdict;
+		return verdict == null ? Verdict.NF_ACCEPT : verdict;
+	}
+
+	/**
+	 * @return Length of the i'th packet.
+	 */
+	public int getLength(int i)
+	{
+		return tasks[i].length;
+	}
+
+	/**
+	 * @return Capture thread of the i'th packet.
+	 */
+	public CaptureThread getThread(int i)
+	{
+		return tasks[i].thread;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isFull()
+	{
+		return size == tasks.length;
+	}
+
+	/**
+	 * Start a new batch, after {@link #await()}.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+}
@@ -0,0 +1,17 @@
+package il.ac.technion.eyalzo.pack;
+
+import il.ac.technion.eyalzo.net.TCPPacket;
+
+/**
+ * Work on a connection that must be done by the shard that owns it, see {@link ShardWorker}.
+ */
+public abstract class ShardTask
+{
+	/**
+	 * Called by the shard's worker thread.
+	 * 
+	 * @param tcp
+	 *            The worker's packet, free for any use.
+	 */
+	protected abstract void run(TCPPacket tcp);
+}
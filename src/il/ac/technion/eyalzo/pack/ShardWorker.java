@@ -0,0 +1,182 @@
+package il.ac.technion.eyalzo.pack;
+
+import il.ac.technion.eyalzo.common.LoggingUtil;
+import il.ac.technion.eyalzo.net.TCPPacket;
+import il.ac.technion.eyalzo.util.MpscQueue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One of the threads that own the connections, when {@link Main#shards} is set. Each connection belongs to a single
+ * shard by its 4-tuple, so packets of both directions and the connection's timer events are handled by one thread, in
+ * order, and its state has a single writer.
+ * <p>
+ * Capture threads and the timer thread hand work to the shard through a lock-free queue (see {@link MpscQueue}), and
+ * the shard sleeps when the queue is empty.
+ */
+public class ShardWorker extends Thread
+{
+	private static final int QUEUE_CAPACITY = 4096;
+	/**
+	 * Busy polls before sleeping, to save the wake-up of a shard that gets packets all the time.
+	 */
+	private static final int SPINS = 100;
+	/**
+	 * Longest sleep, in case a wake-up is missed.
+	 */
+	private static final long PARK_NANOS = 1000000;
+
+	/**
+	 * All the shards, or null if connections are handled by the capture threads.
+	 */
+	private static volatile ShardWorker[] shards;
+
+	private final Logger log = Logger.getAnonymousLogger();
+	private final MpscQueue<ShardTask> queue = new MpscQueue<ShardTask>(QUEUE_CAPACITY);
+	private final TCPPacket tcpPacket = new TCPPacket(CaptureThread.MAX_PACKET_BYTES);
+	private volatile boolean sleeping;
+
+	//
+	// Statistics
+	//
+	private volatile long statTasks;
+	private volatile long statSleeps;
+
+	private ShardWorker(int shardNum)
+	{
+		super("ShardWorker-" + shardNum);
+		setDaemon(true);
+	}
+
+	/**
+	 * Start the shards, once, before the capture starts.
+	 * 
+	 * @param count
+	 *            Number of shards, or 0 for none.
+	 */
+	public static synchronized void startShards(int count)
+	{
+		if (count <= 0 || shards != null)
+			return;
+
+		ShardWorker[] result = new ShardWorker[count];
+		for (int i = 0; i < count; i++)
+		{
+			result[i] = new ShardWorker(i);
+			result[i].start();
+		}
+		shards = result;
+	}
+
+	/**
+	 * @return True if connections are handled by the shards.
+	 */
+	public static boolean isEnabled()
+	{
+		return shards != null;
+	}
+
+	/**
+	 * @return The shards, or null if not enabled.
+	 */
+	public static ShardWorker[] getShards()
+	{
+		return shards;
+	}
+
+	/**
+	 * Hand the task to the shard of the connection. Waits while the shard's queue is full.
+	 * 
+	 * @param addrs
+	 *            Connection's addresses, see {@link il.ac.technion.eyalzo.pack.conns.FlowTable#addrsKey(int, int)}.
+	 * @param ports
+	 *            Connection's ports, see {@link il.ac.technion.eyalzo.pack.conns.FlowTable#portsKey(int, int)}.
+	 */
+	public static void post(long addrs, int ports, ShardTask task)
+	{
+		ShardWorker[] all = shards;
+		long hash = (addrs ^ (ports * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+		ShardWorker shard = all[(int) (((hash >>> 32) * all.length) >>> 32)];
+
+		while (!shard.queue.offer(task))
+		{
+			// Let the shard catch up
+			LockSupport.unpark(shard);
+			Thread.yield();
+		}
+		if (shard.sleeping)
+			LockSupport.unpark(shard);
+	}
+
+	private void logException(Throwable t)
+	{
+		if (log.isLoggable(Level.WARNING))
+		{
+			StringWriter sWriter = new StringWriter();
+			t.printStackTrace(new PrintWriter(sWriter));
+			LoggingUtil.log(log, Level.WARNING, "{0}: Java exception in task: {1}", getName(), sWriter.getBuffer()
+					.toString());
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		int idle = 0;
+		while (true)
+		{
+			ShardTask task = queue.poll();
+			if (task != null)
+			{
+				idle = 0;
+				try
+				{
+					task.run(tcpPacket);
+				} catch (Throwable t)
+				{
+					logException(t);
+				}
+				statTasks++;
+				continue;
+			}
+
+			if (++idle < SPINS)
+			{
+				Thread.yield();
+				continue;
+			}
+
+			// Producers check the flag after they publish, so either they see it or the queue is not empty here
+			sleeping = true;
+			if (queue.isEmpty())
+			{
+				statSleeps++;
+				LockSupport.parkNanos(this, PARK_NANOS);
+			}
+			sleeping = false;
+			idle = 0;
+		}
+	}
+
+	/**
+	 * @return Number of tasks waiting.
+	 */
+	public int getQueueSize()
+	{
+		return queue.size();
+	}
+
+	public long getStatTasks()
+	{
+		return statTasks;
+	}
+
+	public long getStatSleeps()
+	{
+		return statSleeps;
+	}
+}
@@ -0,0 +1,219 @@
+package il.ac.technion.eyalzo.pack;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Chunk signatures, that are the 32-bit stamps the receiver predicts and the sender checks. Both sides must use the
+ * same signature, and it is recorded in persisted metadata along with the chunker, see
+ * {@link RabinUtils#getMetaId(Chunker, Signature)}.
+ * <p>
+ * Signing does not lock, so capture threads and the disk scanner can sign at the same time.
+ */
+public enum Signature
+{
+	/**
+	 * First 4 bytes of SHA-1, in little-endian order. Each thread has its own digest.
+	 */
+	SHA1(0, "sha1")
+	{
+		@Override
+		public int sign(byte[] data, int offset, int len)
+		{
+			MessageDigest md = DIGEST.get();
+			md.update(data, offset, len);
+			byte[] sha1Array = md.digest();
+
+			return (int) ((0x00ffL & sha1Array[0]) | (0x00ffL & sha1Array[1]) << 8 | (0x00ffL & sha1Array[2]) << 16 | (0x00ffL & sha1Array[3]) << 24);
+		}
+	},
+	/**
+	 * Lower 32 bits of the non-cryptographic xxHash64, with seed 0. Several times faster than SHA-1, but a sender
+	 * could make up data with the same stamp as a chunk it expects the receiver to have.
+	 */
+	XXH64(1, "xxh64")
+	{
+		@Override
+		public int sign(byte[] data, int offset, int len)
+		{
+			return (int) xxh64(data, offset, len, 0);
+		}
+	};
+
+	/**
+	 * Permanent ID, as recorded in persisted metadata.
+	 */
+	public final int id;
+	/**
+	 * Short name, as given in command-line arguments.
+	 */
+	public final String name;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance("SHA1");
+			} catch (NoSuchAlgorithmException e)
+			{
+				// Every Java platform must support SHA-1
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	//
+	// xxHash64 primes
+	//
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+	private Signature(int id, String name)
+	{
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * @param data
+	 *            Data to sign.
+	 * @param offset
+	 *            Offset of the first byte to sign.
+	 * @param len
+	 *            How many bytes to sign.
+	 * @return The 32-bit stamp.
+	 */
+	public abstract int sign(byte[] data, int offset, int len);
+
+	/**
+	 * @param name
+	 *            Signature name, as in {@link #name}.
+	 * @return The signature, or null if the name is unknown.
+	 */
+	public static Signature getByName(String name)
+	{
+		for (Signature cur : values())
+		{
+			if (cur.name.equalsIgnoreCase(name))
+				return cur;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return Name of the signature with the given ID, or the ID itself if unknown.
+	 */
+	public static String getName(int id)
+	{
+		for (Signature cur : values())
+		{
+			if (cur.id == id)
+				return cur.name;
+		}
+
+		return Integer.toString(id);
+	}
+
+	/**
+	 * xxHash64 of a byte range.
+	 */
+	static long xxh64(byte[] data, int offset, int len, long seed)
+	{
+		int end = offset + len;
+		long hash;
+
+		if (len >= 32)
+		{
+			long v1 = seed + PRIME64_1 + PRIME64_2;
+			long v2 = seed + PRIME64_2;
+			long v3 = seed;
+			long v4 = seed - PRIME64_1;
+
+			int limit = end - 32;
+			do
+			{
+				v1 = xxh64Round(v1, getLongLE(data, offset));
+				v2 = xxh64Round(v2, getLongLE(data, offset + 8));
+				v3 = xxh64Round(v3, getLongLE(data, offset + 16));
+				v4 = xxh64Round(v4, getLongLE(data, offset + 24));
+				offset += 32;
+			} while (offset <= limit);
+
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = xxh64Merge(hash, v1);
+			hash = xxh64Merge(hash, v2);
+			hash = xxh64Merge(hash, v3);
+			hash = xxh64Merge(hash, v4);
+		} else
+		{
+			hash = seed + PRIME64_5;
+		}
+
+		hash += len;
+
+		for (; offset + 8 <= end; offset += 8)
+		{
+			hash ^= xxh64Round(0, getLongLE(data, offset));
+			hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+		}
+
+		if (offset + 4 <= end)
+		{
+			hash ^= getIntLE(data, offset) * PRIME64_1;
+			hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+			offset += 4;
+		}
+
+		for (; offset < end; offset++)
+		{
+			hash ^= (data[offset] & 0xffL) * PRIME64_5;
+			hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+		}
+
+		// Avalanche
+		hash ^= hash >>> 33;
+		hash *= PRIME64_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME64_3;
+		hash ^= hash >>> 32;
+
+		return hash;
+	}
+
+	/**
+	 * @return Little-endian 64-bit word that starts at the given offset.
+	 */
+	private static long getLongLE(byte[] data, int offset)
+	{
+		return getIntLE(data, offset) | getIntLE(data, offset + 4) << 32;
+	}
+
+	/**
+	 * @return Little-endian unsigned 32-bit word that starts at the given offset.
+	 */
+	private static long getIntLE(byte[] data, int offset)
+	{
+		return (data[offset] & 0xffL) | (data[offset + 1] & 0xffL) << 8 | (data[offset + 2] & 0xffL) << 16
+				| (data[offset + 3] & 0xffL) << 24;
+	}
+
+	private static long xxh64Round(long acc, long input)
+	{
+		acc += input * PRIME64_2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME64_1;
+	}
+
+	private static long xxh64Merge(long acc, long val)
+	{
+		acc ^= xxh64Round(0, val);
+		return acc * PRIME64_1 + PRIME64_4;
+	}
+}
@@ -2,23 +2,25 @@ package il.ac.technion.eyalzo.pack;
 
 import il.ac.technion.eyalzo.pack.conns.RemoteMachineList;
 
+/**
+ * Advances the deadlines of the remote machine lists: sender chunks that were buffered for too long, and inactive
+ * connections and machines. Only what expires is visited, see {@link RemoteMachineList#expireTimers(long)}. Also
+ * takes idle capture queues out of overload.
+ */
 public class TimeoutThread extends Thread {
-	private static final int LOOP_MILLIS = 10;
+	private static final int LOOP_MILLIS = RemoteMachineList.TIMER_TICK_MILLIS;
 	private static final int MIN_TIMEOUT = LOOP_MILLIS + 5;
-	private static int sndChunkTimeoutMillis = 1000;
-	/**
-	 * Receiver side remote machines, meaning that these are senders.
-	 */
-	private final RemoteMachineList remoteMachineListRcv;
+	private static volatile int sndChunkTimeoutMillis = 1000;
+	private final RemoteMachineList[] remoteMachineLists;
 
 	//
 	// Statistics
 	//
 
-	public TimeoutThread(RemoteMachineList remoteMachineListRcv) {
+	public TimeoutThread(RemoteMachineList... remoteMachineLists) {
 		super("TimeoutThread");
 
-		this.remoteMachineListRcv = remoteMachineListRcv;
+		this.remoteMachineLists = remoteMachineLists;
 	}
 
 	@Override
@@ -38,7 +40,10 @@ public class TimeoutThread extends Thread {
 	}
 
 	private void cleanup() {
-		remoteMachineListRcv.releaseTimeoutBuffers(sndChunkTimeoutMillis);
+		long now = System.currentTimeMillis();
+		for (RemoteMachineList curList : remoteMachineLists)
+			curList.expireTimers(now);
+		CaptureThread.expireIdleOverloads(now);
 	}
 
 	/**
@@ -48,4 +53,11 @@ public class TimeoutThread extends Thread {
 		sndChunkTimeoutMillis = Math.max(MIN_TIMEOUT, Math.min(
 				sndChunkTimeoutMillis, timeoutMillis / 2 - LOOP_MILLIS));
 	}
+
+	/**
+	 * @return How long a sender chunk may be buffered before it is sent anyway.
+	 */
+	public static int getSndChunkTimeoutMillis() {
+		return sndChunkTimeoutMillis;
+	}
 }
@@ -0,0 +1,192 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.files.FileItem;
+import il.ac.technion.eyalzo.pack.stamps.ChainItem;
+import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
+import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * Heap footprint and speed of the global chunk list with N distinct chunks, in:
+ * <ol>
+ * <li>HashMap: boxed keys in a {@link HashMap}, and chunks with their own file set and chain list, as chunks were
+ * kept before.</li>
+ * <li>Index: {@link GlobalChunkList}, with a primitive index to chunk IDs and chunks that refer to a file or a chain
+ * directly.</li>
+ * </ol>
+ * With <code>files</code>, every chunk is also added to a file, as chunks of local files are.
+ * <p>
+ * Run with a large heap, like <code>-Xmx4g</code>. Counts that do not fit are reported as such.
+ * <p>
+ * Usage: <code>ChunkIndexBenchmark [count,count,...] [files]</code>
+ */
+public class ChunkIndexBenchmark
+{
+	private static final String[] MODES = { "HashMap", "Index" };
+
+	/**
+	 * A chunk as it was, for the footprint only.
+	 */
+	@SuppressWarnings("unused")
+	private static class LegacyChunkItem
+	{
+		int stamp;
+		int length;
+		byte[] chunkContent;
+		HashSet<FileItem> files = new HashSet<FileItem>();
+		LinkedList<ChainItem> chains = new LinkedList<ChainItem>();
+		int statStreamCount;
+		LegacyChunkItem nextChunk;
+
+		LegacyChunkItem(int stamp, int length)
+		{
+			this.stamp = stamp;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Keeps the chunk list alive while the heap is measured.
+	 */
+	private static Object list;
+
+	private static int stamp(int i)
+	{
+		int x = i * 0x9E3779B9;
+		return x ^ (x >>> 16);
+	}
+
+	private static int length(int i)
+	{
+		return RabinUtils.MIN_CHUNK_LEN + (stamp(i) >>> 20) % (RabinUtils.MAX_CHUNK_LEN - RabinUtils.MIN_CHUNK_LEN);
+	}
+
+	private static long usedHeap() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return Nanos to add all the chunks.
+	 */
+	private static long build(int mode, int count, FileItem file)
+	{
+		long startTime = System.nanoTime();
+		if (mode == 0)
+		{
+			HashMap<Long, LegacyChunkItem> chunks = new HashMap<Long, LegacyChunkItem>();
+			list = chunks;
+			for (int i = 0; i < count; i++)
+			{
+				int stamp = stamp(i);
+				int length = length(i);
+				long key = ChunkItem.getLongForHashCode(stamp, length);
+				LegacyChunkItem chunk = chunks.get(key);
+				if (chunk == null)
+				{
+					chunk = new LegacyChunkItem(stamp, length);
+					chunks.put(key, chunk);
+				}
+				if (file != null)
+					chunk.files.add(file);
+			}
+		} else
+		{
+			GlobalChunkList chunks = new GlobalChunkList();
+			list = chunks;
+			for (int i = 0; i < count; i++)
+			{
+				ChunkItem chunk = chunks.getChunkOrAddNew(stamp(i), length(i));
+				if (file != null)
+					chunk.addFile(file);
+			}
+		}
+		return System.nanoTime() - startTime;
+	}
+
+	/**
+	 * @return Nanos to find all the chunks.
+	 */
+	@SuppressWarnings("unchecked")
+	private static long lookup(int mode, int count)
+	{
+		long found = 0;
+		long startTime = System.nanoTime();
+		if (mode == 0)
+		{
+			HashMap<Long, LegacyChunkItem> chunks = (HashMap<Long, LegacyChunkItem>) list;
+			for (int i = 0; i < count; i++)
+			{
+				if (chunks.get(ChunkItem.getLongForHashCode(stamp(i), length(i))) != null)
+					found++;
+			}
+		} else
+		{
+			GlobalChunkList chunks = (GlobalChunkList) list;
+			for (int i = 0; i < count; i++)
+			{
+				if (chunks.getChunkItem(stamp(i), length(i)) != null)
+					found++;
+			}
+		}
+		long nanos = System.nanoTime() - startTime;
+
+		if (found != count)
+			System.err.println("Found only " + found + " of " + count + " chunks!");
+		return nanos;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		String counts = args.length > 0 ? args[0] : "1000000,10000000,100000000";
+		boolean withFiles = args.length > 1 && args[1].equals("files");
+
+		FileItem file = null;
+		if (withFiles)
+		{
+			File temp = File.createTempFile("chunks", ".bench");
+			temp.deleteOnExit();
+			file = FileItem.init(temp, 0);
+		}
+
+		System.out.println(String.format("Max heap %,d MB, chunks %s", Runtime.getRuntime().maxMemory() >> 20,
+				withFiles ? "in a file" : "without files"));
+		System.out.println(String.format("%-8s %12s %12s %12s %12s %12s", "Mode", "Chunks", "Heap MB", "Bytes/chunk",
+				"Add ns", "Get ns"));
+
+		for (String countArg : counts.split(","))
+		{
+			int count = Integer.parseInt(countArg.trim());
+			for (int mode = 0; mode < MODES.length; mode++)
+			{
+				list = null;
+				long before = usedHeap();
+				try
+				{
+					long addNanos = build(mode, count, file);
+					long heap = usedHeap() - before;
+					long getNanos = lookup(mode, count);
+
+					System.out.println(String.format("%-8s %,12d %,12d %,12.1f %,12.1f %,12.1f", MODES[mode], count,
+							heap >> 20, (double) heap / count, (double) addNanos / count, (double) getNanos / count));
+				} catch (OutOfMemoryError e)
+				{
+					list = null;
+					System.out.println(String.format("%-8s %,12d %12s", MODES[mode], count, "out of memory"));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lookups per second of the global chunk list with 1 to N threads, each mixing lookups of known chunks with additions
+ * of new ones, as capture threads and the disk scanner do. Compares a single lock (one stripe) with the default
+ * striping.
+ * <p>
+ * Scaling shows only with as many cores as threads.
+ * <p>
+ * Usage: <code>ChunkListConcurrencyBenchmark [threads=N] [chunks=N] [new=percent] [time=ms]</code>
+ */
+public class ChunkListConcurrencyBenchmark
+{
+	private static int stamp(int i)
+	{
+		int x = i * 0x9E3779B9;
+		return x ^ (x >>> 16);
+	}
+
+	private static int length(int i)
+	{
+		return 2048 + (i & 0x3FF);
+	}
+
+	/**
+	 * Runs until stopped, and counts the lookups.
+	 */
+	private static class Worker extends Thread
+	{
+		private final GlobalChunkList chunks;
+		private final int knownChunks;
+		private final int newPercent;
+		private final int threadNum;
+		private final CountDownLatch start;
+		private final AtomicBoolean stop;
+		long lookups;
+
+		Worker(GlobalChunkList chunks, int knownChunks, int newPercent, int threadNum, CountDownLatch start,
+				AtomicBoolean stop)
+		{
+			this.chunks = chunks;
+			this.knownChunks = knownChunks;
+			this.newPercent = newPercent;
+			this.threadNum = threadNum;
+			this.start = start;
+			this.stop = stop;
+		}
+
+		@Override
+		public void run()
+		{
+			int random = 0x2545F491 * (threadNum + 1);
+			// New chunks of each thread are in a range of their own, above the known ones
+			int nextNew = knownChunks + threadNum * (Integer.MAX_VALUE / 64);
+			long count = 0;
+
+			try
+			{
+				start.await();
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+
+			while (!stop.get())
+			{
+				for (int i = 0; i < 1000; i++)
+				{
+					random ^= random << 13;
+					random ^= random >>> 17;
+					random ^= random << 5;
+					int index = (random >>> 1) % 100 < newPercent ? nextNew++ : (random >>> 1) % knownChunks;
+					if (chunks.getChunkOrAddNew(stamp(index), length(index)) != null)
+						count++;
+				}
+			}
+			lookups = count;
+		}
+	}
+
+	/**
+	 * @return Lookups per second of all the threads together.
+	 */
+	private static double measure(GlobalChunkList chunks, int knownChunks, int newPercent, int threads, long millis)
+			throws InterruptedException
+	{
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean stop = new AtomicBoolean();
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			workers[i] = new Worker(chunks, knownChunks, newPercent, i, start, stop);
+			workers[i].start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		long lookups = 0;
+		for (Worker worker : workers)
+		{
+			worker.join();
+			lookups += worker.lookups;
+		}
+		long nanos = System.nanoTime() - startTime;
+
+		return lookups * 1000000000.0 / nanos;
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		int knownChunks = 1000000;
+		int newPercent = 5;
+		long millis = 2000;
+
+		for (String curArg : args)
+		{
+			if (curArg.startsWith("threads="))
+				maxThreads = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("chunks="))
+				knownChunks = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("new="))
+				newPercent = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("time="))
+				millis = Long.parseLong(curArg.split("=")[1]);
+		}
+
+		System.out.println(String.format("%d cores, %,d known chunks, %d%% new, %,d ms per run", Runtime.getRuntime()
+				.availableProcessors(), knownChunks, newPercent, millis));
+		System.out.println(String.format("%-8s %8s %16s %16s", "Stripes", "Threads", "Lookups/sec", "Per thread"));
+
+		int[] stripeBitsList = { 0, GlobalChunkList.DEFAULT_STRIPE_BITS };
+		for (int stripeBits : stripeBitsList)
+		{
+			for (int threads = 1; threads <= maxThreads; threads *= 2)
+			{
+				GlobalChunkList chunks = new GlobalChunkList(stripeBits);
+				for (int i = 0; i < knownChunks; i++)
+					chunks.getChunkOrAddNew(stamp(i), length(i));
+
+				// Warm-up
+				measure(chunks, knownChunks, newPercent, threads, millis / 2);
+				double perSec = measure(chunks, knownChunks, newPercent, threads, millis);
+				System.out.println(String.format("%-8d %8d %,16.0f %,16.0f", 1 << stripeBits, threads, perSec, perSec
+						/ threads));
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Data to run micro-benchmarks on. Chunkers find anchors at very different rates in text, markup, binaries and data
+ * that is already compressed, so every primitive should be measured on each of them.
+ * <p>
+ * The generated corpora are the same in every run. Real files can be used instead, see {@link #load(File, int)}.
+ */
+public class Corpus
+{
+	public final String name;
+	public final byte[] data;
+
+	private static final String[] SYLLABLES = { "a", "an", "ar", "be", "con", "de", "di", "e", "en", "er", "es",
+			"for", "ha", "in", "is", "ka", "la", "le", "li", "ma", "me", "ne", "o", "on", "or", "pa", "pro", "ra", "re",
+			"ri", "se", "so", "sta", "ta", "te", "ter", "the", "ti", "to", "tra", "u", "un", "ve", "vi", "wa" };
+	private static final int VOCABULARY = 4000;
+	private static final String[] TAGS = { "div", "span", "p", "li", "td", "h2", "em", "strong" };
+	private static final String[] CLASSES = { "content", "item", "nav-link", "title", "footer", "col-md-4", "row",
+			"active", "meta", "summary" };
+
+	public Corpus(String name, byte[] data)
+	{
+		this.name = name;
+		this.data = data;
+	}
+
+	/**
+	 * @return All the generated corpora, each of about the given size.
+	 */
+	public static LinkedList<Corpus> generate(int size)
+	{
+		LinkedList<Corpus> result = new LinkedList<Corpus>();
+		result.add(new Corpus("text", text(size, 1)));
+		result.add(new Corpus("html", html(size, 2)));
+		result.add(new Corpus("binary", binary(size, 3)));
+		result.add(new Corpus("compressed", compressed(size, 4)));
+		return result;
+	}
+
+	/**
+	 * Every file in the directory is a corpus, truncated to the given size.
+	 */
+	public static LinkedList<Corpus> load(File dir, int size) throws IOException
+	{
+		LinkedList<Corpus> result = new LinkedList<Corpus>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + dir);
+
+		for (File file : files)
+		{
+			if (!file.isFile() || file.length() == 0)
+				continue;
+
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				result.add(new Corpus(file.getName(), read(in, size)));
+			} finally
+			{
+				in.close();
+			}
+		}
+
+		return result;
+	}
+
+	private static byte[] read(InputStream in, int size) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int len;
+		while (out.size() < size && (len = in.read(buffer, 0, Math.min(buffer.length, size - out.size()))) > 0)
+			out.write(buffer, 0, len);
+		return out.toByteArray();
+	}
+
+	private static String[] vocabulary(Random rand)
+	{
+		String[] result = new String[VOCABULARY];
+		for (int i = 0; i < result.length; i++)
+		{
+			StringBuilder word = new StringBuilder();
+			int syllables = 1 + rand.nextInt(3);
+			for (int j = 0; j < syllables; j++)
+				word.append(SYLLABLES[rand.nextInt(SYLLABLES.length)]);
+			result[i] = word.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * @return A word, where lower indexes are much more common, like in natural language.
+	 */
+	private static String word(String[] vocabulary, Random rand)
+	{
+		double d = rand.nextDouble();
+		return vocabulary[(int) (d * d * d * vocabulary.length)];
+	}
+
+	private static void sentence(StringBuilder sb, String[] vocabulary, Random rand)
+	{
+		int words = 4 + rand.nextInt(16);
+		for (int i = 0; i < words; i++)
+		{
+			String word = word(vocabulary, rand);
+			if (i == 0)
+				sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+			else
+				sb.append(word);
+			sb.append(i == words - 1 ? (rand.nextInt(5) == 0 ? "? " : ". ") : (rand.nextInt(8) == 0 ? ", " : " "));
+		}
+	}
+
+	/**
+	 * @return Plain text of sentences and paragraphs.
+	 */
+	public static byte[] text(int size, long seed)
+	{
+		Random rand = new Random(seed);
+		String[] vocabulary = vocabulary(rand);
+		StringBuilder sb = new StringBuilder(size + 1024);
+		while (sb.length() < size)
+		{
+			int sentences = 2 + rand.nextInt(6);
+			for (int i = 0; i < sentences; i++)
+				sentence(sb, vocabulary, rand);
+			sb.append("\n\n");
+		}
+		sb.setLength(size);
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * @return Web pages, with the same header and navigation in each and nested markup around the text.
+	 */
+	public static byte[] html(int size, long seed)
+	{
+		Random rand = new Random(seed);
+		String[] vocabulary = vocabulary(rand);
+		StringBuilder sb = new StringBuilder(size + 4096);
+		int page = 0;
+		while (sb.length() < size)
+		{
+			// Boilerplate repeats in every page
+			sb.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"utf-8\">\n<title>Page ").append(
+					page++).append("</title>\n<link rel=\"stylesheet\" href=\"/static/css/main.css\">\n");
+			sb.append("<script src=\"/static/js/jquery.min.js\"></script>\n</head>\n<body>\n<ul class=\"nav\">\n");
+			for (int i = 0; i < 10; i++)
+				sb.append("  <li><a class=\"nav-link\" href=\"/").append(vocabulary[i]).append(".html\">").append(
+						vocabulary[i]).append("</a></li>\n");
+			sb.append("</ul>\n");
+
+			int elements = 20 + rand.nextInt(60);
+			for (int i = 0; i < elements; i++)
+			{
+				String tag = TAGS[rand.nextInt(TAGS.length)];
+				sb.append("<").append(tag).append(" class=\"").append(CLASSES[rand.nextInt(CLASSES.length)]).append(
+						"\" id=\"e").append(rand.nextInt(100000)).append("\">");
+				if (rand.nextInt(4) == 0)
+					sb.append("<a href=\"/").append(word(vocabulary, rand)).append("/").append(rand.nextInt(10000))
+							.append("\">");
+				sentence(sb, vocabulary, rand);
+				sb.append("</").append(tag).append(">\n");
+			}
+
+			sb.append("<div class=\"footer\">&copy; 2010 All rights reserved</div>\n</body>\n</html>\n");
+		}
+		sb.setLength(size);
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * @return The JVM's own module image, or machine-like records if it cannot be read.
+	 */
+	public static byte[] binary(int size, long seed)
+	{
+		File modules = new File(System.getProperty("java.home"), "lib" + File.separator + "modules");
+		if (modules.length() > size)
+		{
+			try
+			{
+				InputStream in = new FileInputStream(modules);
+				try
+				{
+					// Skip the header and index, to get to class files
+					long skip = modules.length() / 4;
+					while (skip > 0)
+						skip -= in.skip(skip);
+					byte[] result = read(in, size);
+					if (result.length == size)
+						return result;
+				} finally
+				{
+					in.close();
+				}
+			} catch (IOException e)
+			{
+			}
+		}
+
+		// Records of small integers, offsets and identifiers, like tables in executables
+		Random rand = new Random(seed);
+		byte[] result = new byte[size];
+		int offset = 0;
+		while (offset + 16 <= size)
+		{
+			int value = rand.nextInt(8) == 0 ? rand.nextInt() : rand.nextInt(256);
+			int pointer = 0x400000 + offset * 4;
+			for (int i = 0; i < 4; i++)
+			{
+				result[offset + i] = (byte) (value >>> (i * 8));
+				result[offset + 4 + i] = (byte) (pointer >>> (i * 8));
+			}
+			result[offset + 8] = (byte) rand.nextInt(16);
+			offset += 16;
+		}
+		return result;
+	}
+
+	/**
+	 * @return Deflated text and markup, as in compressed archives and images.
+	 */
+	public static byte[] compressed(int size, long seed)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+		byte[] buffer = new byte[64 * 1024];
+		while (out.size() < size)
+		{
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			deflater.setInput(seed % 2 == 0 ? html(size, seed) : text(size, seed));
+			deflater.finish();
+			while (!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+			deflater.end();
+			seed++;
+		}
+
+		byte[] result = new byte[size];
+		System.arraycopy(out.toByteArray(), 0, result, 0, size);
+		return result;
+	}
+}
@@ -0,0 +1,223 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.pack.Chunker;
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Signature;
+import il.ac.technion.eyalzo.pack.files.FileChunkList;
+import il.ac.technion.eyalzo.pack.files.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Chunks and signs every file of a directory, on one thread, with:
+ * <ol>
+ * <li>Read: a new file handle and a new heap buffer per block, re-reading the overlap from the last anchor, as the
+ * files were read before.</li>
+ * <li>Mapped: the file is mapped once and every block is copied to the same array, see
+ * {@link il.ac.technion.eyalzo.pack.files.MappedFileReader}.</li>
+ * </ol>
+ * Both read the files from the page cache after the first round, so the difference is in system calls, copies and
+ * garbage. Garbage is shown as bytes allocated by the thread, where the JVM can tell, and as collector runs and time.
+ * <p>
+ * Without a directory, a temporary one is filled with random files.
+ * <p>
+ * Usage: <code>FileIndexBenchmark [dir] [rounds] [chunker] [signature]</code>
+ */
+public class FileIndexBenchmark
+{
+	private static final String[] MODES = { "Read", "Mapped" };
+	/**
+	 * Same block size as {@link RabinUtils}.
+	 */
+	private static final int BLOCK_SIZE = 100000 + RabinUtils.MAX_CHUNK_LEN;
+	private static final int GENERATED_FILES = 8;
+	private static final int GENERATED_FILE_BYTES = 32 * 1024 * 1024;
+
+	/**
+	 * Checksum of the chunks, so the work cannot be optimized away and both modes can be compared.
+	 */
+	private static long signatures;
+
+	/**
+	 * The loop of {@link RabinUtils#calcFileChunks(Chunker, Signature, String, long, long, long, FileChunkList, FileChunkList)}
+	 * over {@link FileUtils#readBlock(String, long, int, ByteOrder, java.util.logging.Logger)}.
+	 */
+	private static boolean chunkRead(Chunker chunker, Signature signature, String fileName, long totalSize,
+			FileChunkList result)
+	{
+		long prevAnchorOffset = 0;
+		long bufferOffset = 0;
+		while (true)
+		{
+			boolean lastLoop = (bufferOffset + BLOCK_SIZE) >= totalSize;
+			int readBytes = lastLoop ? (int) (totalSize - bufferOffset) : BLOCK_SIZE;
+
+			ByteBuffer buffer = FileUtils.readBlock(fileName, bufferOffset, readBytes, ByteOrder.BIG_ENDIAN, null);
+			if (buffer == null)
+				return false;
+
+			byte[] data = buffer.array();
+			int dataOffset = buffer.arrayOffset();
+			int dataEnd = dataOffset + buffer.capacity();
+
+			int chunkStart = dataOffset + (int) (prevAnchorOffset - bufferOffset);
+			while (true)
+			{
+				int chunkEnd = chunker.nextChunkEnd(data, chunkStart, chunkStart + chunker.getMinChunkLen(), dataEnd);
+				if (chunkEnd < 0)
+					break;
+
+				int blockLen = chunkEnd - chunkStart;
+				prevAnchorOffset += blockLen;
+				result.add(prevAnchorOffset, signature.sign(data, chunkStart, blockLen));
+				chunkStart = chunkEnd;
+			}
+
+			if (lastLoop)
+			{
+				int length = (int) (totalSize - prevAnchorOffset);
+				if (length >= chunker.getMinChunkLen())
+					result.add(totalSize, signature.sign(data, dataOffset + (int) (prevAnchorOffset - bufferOffset),
+							length));
+				return true;
+			}
+
+			bufferOffset = prevAnchorOffset;
+		}
+	}
+
+	private static void run(int mode, File[] files, Chunker chunker, Signature signature)
+	{
+		for (File file : files)
+		{
+			FileChunkList result = new FileChunkList(0);
+			if (mode == 0)
+				chunkRead(chunker, signature, file.getPath(), file.length(), result);
+			else
+				RabinUtils.calcFileChunks(chunker, signature, file.getPath(), file.length(), 0, file.length(), null,
+						result);
+
+			signatures += result.size() + result.getLastEnd();
+		}
+	}
+
+	private static long getGcCount()
+	{
+		long result = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			result += Math.max(0, gc.getCollectionCount());
+		return result;
+	}
+
+	private static long getGcMillis()
+	{
+		long result = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			result += Math.max(0, gc.getCollectionTime());
+		return result;
+	}
+
+	/**
+	 * @return Bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static File generateDir() throws IOException
+	{
+		File dir = File.createTempFile("index", ".bench");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+
+		Random rand = new Random(1);
+		byte[] data = new byte[GENERATED_FILE_BYTES];
+		for (int i = 0; i < GENERATED_FILES; i++)
+		{
+			rand.nextBytes(data);
+			File file = new File(dir, "file" + i);
+			file.deleteOnExit();
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(data);
+			out.close();
+		}
+
+		return dir;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		File dir = args.length > 0 ? new File(args[0]) : generateDir();
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		Chunker chunker = args.length > 2 ? RabinUtils.getChunker(args[2]) : Main.fileChunker;
+		Signature signature = args.length > 3 ? Signature.getByName(args[3]) : Signature.XXH64;
+		if (chunker == null || signature == null)
+		{
+			System.err.println("Unknown chunker or signature");
+			return;
+		}
+
+		Main.debugLevel = 0;
+
+		File[] files = dir.listFiles();
+		if (files == null)
+		{
+			System.err.println("Cannot list " + dir);
+			return;
+		}
+		long totalBytes = 0;
+		for (File file : files)
+			totalBytes += file.length();
+
+		System.out.println(String.format("Chunk %,d files of %,d MB in %s, %s/%s, best of %d rounds", files.length,
+				totalBytes >> 20, dir, chunker.getName(), signature.name, rounds));
+
+		// Warm-up, that also brings the files to the page cache
+		long[] checksums = new long[MODES.length];
+		for (int mode = 0; mode < MODES.length; mode++)
+		{
+			signatures = 0;
+			run(mode, files, chunker, signature);
+			checksums[mode] = signatures;
+		}
+		if (checksums[0] != checksums[1])
+			System.err.println("Chunks mismatch between the modes!");
+
+		System.out.println(String.format("%-8s %10s %14s %10s %8s", "Mode", "MB/sec", "Allocated MB", "GC runs",
+				"GC ms"));
+		for (int mode = 0; mode < MODES.length; mode++)
+		{
+			long best = Long.MAX_VALUE;
+			long allocated = getAllocatedBytes();
+			long gcCount = getGcCount();
+			long gcMillis = getGcMillis();
+
+			for (int round = 0; round < rounds; round++)
+			{
+				long startTime = System.nanoTime();
+				run(mode, files, chunker, signature);
+				best = Math.min(best, System.nanoTime() - startTime);
+			}
+
+			if (allocated >= 0)
+				allocated = (getAllocatedBytes() - allocated) / rounds;
+			System.out.println(String.format("%-8s %,10.1f %,14.1f %,10.1f %,8.1f", MODES[mode], totalBytes / 1e6
+					/ (best / 1e9), allocated / 1e6, (double) (getGcCount() - gcCount) / rounds,
+					(double) (getGcMillis() - gcMillis) / rounds));
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.pack.conns.FlowTable;
+import il.ac.technion.eyalzo.pack.conns.TcpConn;
+import il.ac.technion.eyalzo.pack.conns.TcpConnRcv;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lookups per second of live connections by 4-tuple, with many concurrent flows: the {@link FlowTable} with 1 to N
+ * threads, and the former lookup with a single thread, that allocates the remote and local addresses of each packet and
+ * looks them up in a map of machines and then in the machine's map of connections.
+ * <p>
+ * Scaling shows only with as many cores as threads.
+ * <p>
+ * Usage: <code>FlowTableBenchmark [flows=N] [machines=N] [threads=N] [time=ms]</code>
+ */
+public class FlowTableBenchmark
+{
+	/**
+	 * Flows share these connections, as only the lookup is measured.
+	 */
+	private static final TcpConn[] CONNS = new TcpConn[1024];
+	static
+	{
+		for (int i = 0; i < CONNS.length; i++)
+			CONNS[i] = new TcpConnRcv(false, i, 0);
+	}
+
+	private static final int LOCAL_ADDR = 0x0A000001;
+
+	/**
+	 * Flows spread over the machines, each with its own local port.
+	 */
+	private static int remoteAddr(int flow, int machines)
+	{
+		return 0x50000000 + (flow % machines);
+	}
+
+	private static int remotePort(int flow, int machines)
+	{
+		return 80 + (flow % machines) % 3;
+	}
+
+	private static int localPort(int flow, int machines)
+	{
+		return 1024 + flow / machines;
+	}
+
+	private static InetAddress inetAddress(int addr) throws UnknownHostException
+	{
+		return InetAddress.getByAddress(new byte[] { (byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8),
+				(byte) addr });
+	}
+
+	/**
+	 * Packets of random flows, until stopped.
+	 */
+	private static class Worker extends Thread
+	{
+		private final FlowTable flows;
+		private final HashMap<InetSocketAddress, HashMap<InetSocketAddress, TcpConn>> machinesMap;
+		private final int flowsCount;
+		private final int machines;
+		private final int threadNum;
+		private final CountDownLatch start;
+		private final AtomicBoolean stop;
+		long lookups;
+
+		Worker(FlowTable flows, HashMap<InetSocketAddress, HashMap<InetSocketAddress, TcpConn>> machinesMap,
+				int flowsCount, int machines, int threadNum, CountDownLatch start, AtomicBoolean stop)
+		{
+			this.flows = flows;
+			this.machinesMap = machinesMap;
+			this.flowsCount = flowsCount;
+			this.machines = machines;
+			this.threadNum = threadNum;
+			this.start = start;
+			this.stop = stop;
+		}
+
+		@Override
+		public void run()
+		{
+			int random = 0x2545F491 * (threadNum + 1);
+			long count = 0;
+
+			try
+			{
+				start.await();
+				while (!stop.get())
+				{
+					for (int i = 0; i < 1000; i++)
+					{
+						random ^= random << 13;
+						random ^= random >>> 17;
+						random ^= random << 5;
+						int flow = (random >>> 1) % flowsCount;
+						if (lookup(flow) != null)
+							count++;
+					}
+				}
+			} catch (InterruptedException e)
+			{
+				return;
+			} catch (UnknownHostException e)
+			{
+				throw new RuntimeException(e);
+			}
+			lookups = count;
+		}
+
+		private TcpConn lookup(int flow) throws UnknownHostException
+		{
+			if (flows != null)
+				return flows.get(FlowTable.addrsKey(remoteAddr(flow, machines), LOCAL_ADDR), FlowTable.portsKey(
+						remotePort(flow, machines), localPort(flow, machines)));
+
+			InetSocketAddress otherAddr = new InetSocketAddress(inetAddress(remoteAddr(flow, machines)), remotePort(
+					flow, machines));
+			HashMap<InetSocketAddress, TcpConn> connections;
+			synchronized (machinesMap)
+			{
+				connections = machinesMap.get(otherAddr);
+			}
+			InetSocketAddress localAddr = new InetSocketAddress(inetAddress(LOCAL_ADDR), localPort(flow, machines));
+			synchronized (connections)
+			{
+				return connections.get(localAddr);
+			}
+		}
+	}
+
+	/**
+	 * @param flows
+	 *            Flow table, or null for the machines map.
+	 * @return Lookups per second of all the threads together.
+	 */
+	private static double measure(FlowTable flows,
+			HashMap<InetSocketAddress, HashMap<InetSocketAddress, TcpConn>> machinesMap, int flowsCount, int machines,
+			int threads, long millis) throws InterruptedException
+	{
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean stop = new AtomicBoolean();
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			workers[i] = new Worker(flows, machinesMap, flowsCount, machines, i, start, stop);
+			workers[i].start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		long lookups = 0;
+		for (Worker worker : workers)
+		{
+			worker.join();
+			lookups += worker.lookups;
+		}
+		long nanos = System.nanoTime() - startTime;
+
+		return lookups * 1000000000.0 / nanos;
+	}
+
+	public static void main(String[] args) throws InterruptedException, UnknownHostException
+	{
+		int flowsCount = 1000000;
+		int machines = 10000;
+		int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		long millis = 2000;
+
+		for (String curArg : args)
+		{
+			if (curArg.startsWith("flows="))
+				flowsCount = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("machines="))
+				machines = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("threads="))
+				maxThreads = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("time="))
+				millis = Long.parseLong(curArg.split("=")[1]);
+		}
+
+		System.out.println(String.format("%d cores, %,d flows with %,d machines, %,d ms per run", Runtime.getRuntime()
+				.availableProcessors(), flowsCount, machines, millis));
+		System.out.println(String.format("%-12s %8s %16s %16s", "Lookup", "Threads", "Lookups/sec", "Per thread"));
+
+		//
+		// Former lookup, by machine and then by local address
+		//
+		HashMap<InetSocketAddress, HashMap<InetSocketAddress, TcpConn>> machinesMap = new HashMap<InetSocketAddress, HashMap<InetSocketAddress, TcpConn>>();
+		for (int flow = 0; flow < flowsCount; flow++)
+		{
+			InetSocketAddress otherAddr = new InetSocketAddress(inetAddress(remoteAddr(flow, machines)), remotePort(
+					flow, machines));
+			HashMap<InetSocketAddress, TcpConn> connections = machinesMap.get(otherAddr);
+			if (connections == null)
+			{
+				connections = new HashMap<InetSocketAddress, TcpConn>();
+				machinesMap.put(otherAddr, connections);
+			}
+			connections.put(new InetSocketAddress(inetAddress(LOCAL_ADDR), localPort(flow, machines)), CONNS[flow
+					% CONNS.length]);
+		}
+		measure(null, machinesMap, flowsCount, machines, 1, millis / 2);
+		double perSec = measure(null, machinesMap, flowsCount, machines, 1, millis);
+		System.out.println(String.format("%-12s %8d %,16.0f %,16.0f", "Machines", 1, perSec, perSec));
+		machinesMap = null;
+
+		//
+		// Flow table
+		//
+		FlowTable flows = new FlowTable();
+		for (int flow = 0; flow < flowsCount; flow++)
+			flows.putIfAbsent(FlowTable.addrsKey(remoteAddr(flow, machines), LOCAL_ADDR), FlowTable.portsKey(
+					remotePort(flow, machines), localPort(flow, machines)), CONNS[flow % CONNS.length]);
+		for (int threads = 1; threads <= maxThreads; threads *= 2)
+		{
+			// Warm-up
+			measure(flows, null, flowsCount, machines, threads, millis / 2);
+			perSec = measure(flows, null, flowsCount, machines, threads, millis);
+			System.out.println(String.format("%-12s %8d %,16.0f %,16.0f", "Flow table", threads, perSec, perSec
+					/ threads));
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A primitive to measure on a corpus, and the harness that measures it: warm-up until the JIT is done, then several
+ * timed iterations, each running the primitive over the whole corpus as many times as fits. Results are the mean
+ * throughput with its error, and the allocation rate.
+ * <p>
+ * Like in JMH, the result of every run is consumed, so the JIT cannot drop the work.
+ */
+public abstract class MicroBenchmark
+{
+	public final String name;
+
+	/**
+	 * Consumes results, see {@link #run(byte[])}.
+	 */
+	private static volatile long sink;
+	/**
+	 * Student's t for a two-sided 99.9% interval, by degrees of freedom from 1.
+	 */
+	private static final double[] T999 = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59 };
+
+	protected MicroBenchmark(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Called before the corpus is measured, outside of the measurement.
+	 */
+	protected void setUp(Corpus corpus) throws IOException
+	{
+	}
+
+	/**
+	 * Called after the corpus was measured.
+	 */
+	protected void tearDown()
+	{
+	}
+
+	/**
+	 * Process the entire corpus once.
+	 *
+	 * @return Anything that depends on the work done, like a count or a checksum.
+	 */
+	protected abstract long run(byte[] data);
+
+	/**
+	 * Result of measuring a primitive on a corpus.
+	 */
+	public static class Result
+	{
+		/**
+		 * Mean throughput of the iterations, in MB/sec.
+		 */
+		public final double mbPerSec;
+		/**
+		 * Half the width of the 99.9% confidence interval of the mean, in MB/sec.
+		 */
+		public final double error;
+		/**
+		 * Allocation rate in MB/sec, or -1 if the JVM cannot tell.
+		 */
+		public final double allocMbPerSec;
+		/**
+		 * Bytes allocated per run over the corpus, or -1 if the JVM cannot tell.
+		 */
+		public final double allocBytesPerRun;
+
+		Result(double mbPerSec, double error, double allocMbPerSec, double allocBytesPerRun)
+		{
+			this.mbPerSec = mbPerSec;
+			this.error = error;
+			this.allocMbPerSec = allocMbPerSec;
+			this.allocBytesPerRun = allocBytesPerRun;
+		}
+	}
+
+	/**
+	 * @return Bytes allocated by this thread so far, or -1 if the JVM cannot tell.
+	 */
+	static long getAllocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return Student's t for a two-sided 99.9% interval, rounded up between table rows.
+	 */
+	private static double studentT999(int degrees)
+	{
+		if (degrees <= T999.length)
+			return T999[degrees - 1];
+		return degrees <= 20 ? 3.85 : degrees <= 30 ? 3.65 : 3.29;
+	}
+
+	/**
+	 * Runs the primitive over the corpus again and again, for the given time.
+	 *
+	 * @return Number of runs.
+	 */
+	private long iteration(byte[] data, long millis)
+	{
+		long endTime = System.nanoTime() + millis * 1000000L;
+		long runs = 0;
+		long result = 0;
+		do
+		{
+			result += run(data);
+			runs++;
+		} while (System.nanoTime() < endTime);
+
+		sink += result;
+		return runs;
+	}
+
+	/**
+	 * @param warmupMillis
+	 *            How long to run before measuring.
+	 * @param iterations
+	 *            Number of measured iterations, at least 2.
+	 * @param iterationMillis
+	 *            Length of every measured iteration.
+	 */
+	public Result measure(Corpus corpus, long warmupMillis, int iterations, long iterationMillis) throws IOException
+	{
+		setUp(corpus);
+		try
+		{
+			iteration(corpus.data, warmupMillis);
+
+			double[] mbPerSec = new double[iterations];
+			long totalRuns = 0;
+			long totalNanos = 0;
+			long allocated = getAllocatedBytes();
+			for (int i = 0; i < iterations; i++)
+			{
+				long startTime = System.nanoTime();
+				long runs = iteration(corpus.data, iterationMillis);
+				long nanos = System.nanoTime() - startTime;
+
+				mbPerSec[i] = (double) runs * corpus.data.length / 1e6 / (nanos / 1e9);
+				totalRuns += runs;
+				totalNanos += nanos;
+			}
+			if (allocated >= 0)
+				allocated = getAllocatedBytes() - allocated;
+
+			double mean = 0;
+			for (double cur : mbPerSec)
+				mean += cur;
+			mean /= iterations;
+
+			double variance = 0;
+			for (double cur : mbPerSec)
+				variance += (cur - mean) * (cur - mean);
+			variance /= iterations - 1;
+
+			double error = studentT999(iterations - 1) * Math.sqrt(variance / iterations);
+
+			if (allocated < 0)
+				return new Result(mean, error, -1, -1);
+			return new Result(mean, error, allocated / 1e6 / (totalNanos / 1e9), (double) allocated / totalRuns);
+		} finally
+		{
+			tearDown();
+		}
+	}
+}
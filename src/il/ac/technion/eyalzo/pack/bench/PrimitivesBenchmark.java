@@ -0,0 +1,274 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.pack.Chunker;
+import il.ac.technion.eyalzo.pack.GearChunker;
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.PackChunker;
+import il.ac.technion.eyalzo.pack.RabinChunker;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Signature;
+import il.ac.technion.eyalzo.pack.conns.ConnBuffer;
+import il.ac.technion.eyalzo.pack.conns.TcpUtils;
+import il.ac.technion.eyalzo.pack.files.FileChunkList;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Measures the chunking and hashing primitives on every corpus, see {@link MicroBenchmark} and {@link Corpus}. Run it
+ * before and after changing a chunker or a signature, on the same machine.
+ * <p>
+ * Usage: <code>PrimitivesBenchmark [filter] [corpus=dir] [size=bytes] [warmup=ms] [iterations=N] [time=ms]</code>
+ * <ul>
+ * <li>filter: run only primitives whose name contains it.</li>
+ * <li>corpus: use the files of a directory instead of the generated text, HTML, binary and compressed data.</li>
+ * </ul>
+ * Ant target <code>bench</code> runs it, with <code>-Dbench.args="..."</code>.
+ */
+public class PrimitivesBenchmark
+{
+	/**
+	 * Chunk length for the signature primitives.
+	 */
+	private static final int SIGN_CHUNK_LEN = 2048;
+	private static final int PAYLOAD_LEN = TcpUtils.PACKET_SIZE - TcpUtils.COMBINED_HEADERS_LEN;
+
+	private static LinkedList<MicroBenchmark> createBenchmarks()
+	{
+		LinkedList<MicroBenchmark> benchmarks = new LinkedList<MicroBenchmark>();
+
+		benchmarks.add(new MicroBenchmark("RabinUtils.rabinRollingNextAnchor")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				long result = 0;
+				int offset = 0;
+				while (true)
+				{
+					int anchor = RabinUtils.rabinRollingNextAnchor(data, offset, data.length - 1);
+					if (anchor < 0)
+						return result;
+					result += anchor;
+					offset = anchor + 1;
+				}
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("RabinUtils.rabinRollingAnchorCount")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				return RabinUtils.rabinRollingAnchorCount(data);
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("RabinUtils.samplebyteAnchorCount")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				return RabinUtils.samplebyteAnchorCount(data);
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("RabinUtils.rabinNextAnchor")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				long result = 0;
+				int offset = 0;
+				int endOffset = data.length - RabinUtils.FINGERPRINT_BYTES_LEN;
+				while (true)
+				{
+					int anchor = RabinUtils.rabinNextAnchor(data, offset, endOffset);
+					if (anchor < 0)
+						return result;
+					result += anchor;
+					offset = anchor + 1;
+				}
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("RabinHashFunction32.hash")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				return RabinUtils.rhf.hash(data);
+			}
+		});
+
+		benchmarks.add(new ChunkerBenchmark(new PackChunker()));
+		benchmarks.add(new ChunkerBenchmark(new RabinChunker()));
+		benchmarks.add(new ChunkerBenchmark(new GearChunker()));
+
+		benchmarks.add(new MicroBenchmark("RabinUtils.calculateSha1")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				long result = 0;
+				for (int offset = 0; offset + SIGN_CHUNK_LEN <= data.length; offset += SIGN_CHUNK_LEN)
+					result += RabinUtils.calculateSha1(data, offset, SIGN_CHUNK_LEN);
+				return result;
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("Signature.XXH64")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				long result = 0;
+				for (int offset = 0; offset + SIGN_CHUNK_LEN <= data.length; offset += SIGN_CHUNK_LEN)
+					result += Signature.XXH64.sign(data, offset, SIGN_CHUNK_LEN);
+				return result;
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("RabinUtils.calcFileChunks")
+		{
+			private File file;
+
+			@Override
+			protected void setUp(Corpus corpus) throws IOException
+			{
+				file = File.createTempFile("corpus", ".bench");
+				file.deleteOnExit();
+				FileOutputStream out = new FileOutputStream(file);
+				try
+				{
+					out.write(corpus.data);
+				} finally
+				{
+					out.close();
+				}
+			}
+
+			@Override
+			protected void tearDown()
+			{
+				file.delete();
+			}
+
+			@Override
+			protected long run(byte[] data)
+			{
+				FileChunkList chunks = new FileChunkList(0);
+				RabinUtils.calcFileChunks(Main.fileChunker, Main.signature, file.getPath(), data.length, 0,
+						data.length, null, chunks);
+				return chunks.size();
+			}
+		});
+
+		benchmarks.add(new MicroBenchmark("ConnBuffer.findNextAnchor+shiftDataByAnchor")
+		{
+			@Override
+			protected long run(byte[] data)
+			{
+				long result = 0;
+				long seq = 1000;
+				ConnBuffer buffer = new ConnBuffer(1, seq);
+				for (int offset = 0; offset < data.length; offset += PAYLOAD_LEN)
+				{
+					int len = Math.min(PAYLOAD_LEN, data.length - offset);
+					buffer.addData(data, offset, len, seq);
+					seq = TcpUtils.tcpSequenceAdd(seq, len);
+
+					while (buffer.findNextAnchor())
+					{
+						result += buffer.calculateSha1();
+						buffer.shiftDataByAnchor();
+					}
+				}
+				return result;
+			}
+		});
+
+		return benchmarks;
+	}
+
+	/**
+	 * Cuts the entire corpus into chunks, without signing them.
+	 */
+	private static class ChunkerBenchmark extends MicroBenchmark
+	{
+		private final Chunker chunker;
+
+		ChunkerBenchmark(Chunker chunker)
+		{
+			super("Chunker." + chunker.getName());
+			this.chunker = chunker;
+		}
+
+		@Override
+		protected long run(byte[] data)
+		{
+			long result = 0;
+			int chunkStart = 0;
+			while (true)
+			{
+				int chunkEnd = chunker.nextChunkEnd(data, chunkStart, chunkStart + chunker.getMinChunkLen(),
+						data.length);
+				if (chunkEnd < 0)
+					return result;
+				result += chunkEnd;
+				chunkStart = chunkEnd;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		String filter = null;
+		File corpusDir = null;
+		int size = 4 * 1024 * 1024;
+		long warmupMillis = 2000;
+		int iterations = 5;
+		long iterationMillis = 1000;
+
+		for (String curArg : args)
+		{
+			if (curArg.startsWith("corpus="))
+				corpusDir = new File(curArg.substring("corpus=".length()));
+			else if (curArg.startsWith("size="))
+				size = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("warmup="))
+				warmupMillis = Long.parseLong(curArg.split("=")[1]);
+			else if (curArg.startsWith("iterations="))
+				iterations = Math.max(2, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("time="))
+				iterationMillis = Long.parseLong(curArg.split("=")[1]);
+			else
+				filter = curArg;
+		}
+
+		Main.debugLevel = 0;
+
+		LinkedList<Corpus> corpora = corpusDir == null ? Corpus.generate(size) : Corpus.load(corpusDir, size);
+
+		System.out.println(String.format("%d corpora of up to %,d bytes, warm-up %,d ms, %d iterations of %,d ms",
+				corpora.size(), size, warmupMillis, iterations, iterationMillis));
+		System.out.println(String.format("%-45s %-12s %10s %12s %14s %14s", "Benchmark", "Corpus", "MB/sec", "Error",
+				"Alloc MB/sec", "Alloc B/run"));
+
+		for (MicroBenchmark benchmark : createBenchmarks())
+		{
+			if (filter != null && !benchmark.name.contains(filter))
+				continue;
+
+			for (Corpus corpus : corpora)
+			{
+				MicroBenchmark.Result result = benchmark.measure(corpus, warmupMillis, iterations, iterationMillis);
+				System.out.println(String.format("%-45s %-12s %,10.1f %12s %,14.2f %,14.0f", benchmark.name,
+						corpus.name, result.mbPerSec, String.format("+- %,.1f", result.error), result.allocMbPerSec,
+						result.allocBytesPerRun));
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Signature;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Signs chunks from 1 to N threads at once, like capture threads and the disk scanner do, with:
+ * <ol>
+ * <li>Locked: one shared SHA-1 digest behind a global lock, as signing was done before.</li>
+ * <li>SHA-1: a digest per thread, see {@link Signature#SHA1}.</li>
+ * <li>xxHash64: see {@link Signature#XXH64}.</li>
+ * </ol>
+ * Each thread signs its own chunks, so the only shared thing is the lock, if any.
+ * <p>
+ * Usage: <code>SignatureBenchmark [threads] [chunks-per-thread] [rounds]</code>
+ */
+public class SignatureBenchmark
+{
+	private static final String[] MODES = { "Locked", "SHA-1", "xxHash64" };
+	/**
+	 * Number of distinct chunks per thread, to keep them in the cache like recently received data.
+	 */
+	private static final int CHUNKS = 64;
+
+	private static final Object lock = new Object();
+	private static MessageDigest sharedDigest;
+
+	/**
+	 * Checksum of the signatures, so the work cannot be optimized away.
+	 */
+	private static volatile long signatures;
+
+	private static int signLocked(byte[] data, int offset, int len)
+	{
+		synchronized (lock)
+		{
+			sharedDigest.update(data, offset, len);
+			byte[] sha1Array = sharedDigest.digest();
+			return (int) ((0x00ffL & sha1Array[0]) | (0x00ffL & sha1Array[1]) << 8 | (0x00ffL & sha1Array[2]) << 16 | (0x00ffL & sha1Array[3]) << 24);
+		}
+	}
+
+	/**
+	 * @return Time in nanos until all the threads were done.
+	 */
+	private static long run(final int mode, int threads, final int chunksPerThread) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++)
+		{
+			// Random chunk lengths around the average, as found by the chunker
+			final Random rand = new Random(t);
+			final byte[][] chunks = new byte[CHUNKS][];
+			for (int i = 0; i < CHUNKS; i++)
+			{
+				chunks[i] = new byte[RabinUtils.MIN_CHUNK_LEN
+						+ rand.nextInt(RabinUtils.MAX_CHUNK_LEN - RabinUtils.MIN_CHUNK_LEN)];
+				rand.nextBytes(chunks[i]);
+			}
+
+			new Thread("Sign" + t)
+			{
+				@Override
+				public void run()
+				{
+					long sum = 0;
+					try
+					{
+						start.await();
+					} catch (InterruptedException e)
+					{
+						return;
+					}
+
+					for (int i = 0; i < chunksPerThread; i++)
+					{
+						byte[] chunk = chunks[i % CHUNKS];
+						switch (mode)
+						{
+						case 0:
+							sum += signLocked(chunk, 0, chunk.length);
+							break;
+						case 1:
+							sum += Signature.SHA1.sign(chunk, 0, chunk.length);
+							break;
+						default:
+							sum += Signature.XXH64.sign(chunk, 0, chunk.length);
+						}
+					}
+
+					signatures += sum;
+					done.countDown();
+				}
+			}.start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - startTime;
+	}
+
+	public static void main(String[] args) throws InterruptedException, NoSuchAlgorithmException
+	{
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int chunksPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		Main.debugLevel = 0;
+		sharedDigest = MessageDigest.getInstance("SHA1");
+
+		System.out.println(String.format("Sign %,d chunks per thread, 1-%d threads, best of %d rounds",
+				chunksPerThread, maxThreads, rounds));
+		System.out.print("Threads");
+		for (String mode : MODES)
+			System.out.print(String.format(" %16s", mode + " chunks/s"));
+		System.out.println();
+
+		// Warm-up
+		for (int mode = 0; mode < MODES.length; mode++)
+			run(mode, 1, chunksPerThread);
+
+		for (int threads = 1; threads <= maxThreads; threads++)
+		{
+			System.out.print(String.format("%7d", threads));
+			for (int mode = 0; mode < MODES.length; mode++)
+			{
+				long best = Long.MAX_VALUE;
+				for (int round = 0; round < rounds; round++)
+					best = Math.min(best, run(mode, threads, chunksPerThread));
+
+				System.out.print(String.format(" %,16.0f", (double) threads * chunksPerThread / best * 1e9));
+			}
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package il.ac.technion.eyalzo.pack.bench;
+
+import il.ac.technion.eyalzo.NFQueue;
+import il.ac.technion.eyalzo.net.TCPPacket;
+import il.ac.technion.eyalzo.pack.CaptureThread;
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.conns.ConnBuffer;
+import il.ac.technion.eyalzo.pack.conns.TcpUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * Replays a receiver-in TCP stream, laid out in a direct buffer exactly like an NFQueue batch, through the two capture
+ * paths:
+ * <ol>
+ * <li>Copy: the packet is copied to a heap array (what the native code did per packet), wrapped by {@link TCPPacket}
+ * and its payload copied again to the connection buffer.</li>
+ * <li>Zero-copy: headers are read directly from the direct buffer and the payload is copied once, to the connection
+ * buffer.</li>
+ * </ol>
+ * Both paths then look for anchors and sign chunks, like the receiver does, unless told to stop earlier.
+ * <p>
+ * Usage: <code>ZeroCopyBenchmark [packets] [rounds] [sha1|anchors|copy]</code>
+ */
+public class ZeroCopyBenchmark
+{
+	private static final int HEADERS_LEN = TcpUtils.COMBINED_HEADERS_LEN;
+	private static final int PAYLOAD_LEN = TcpUtils.PACKET_SIZE - HEADERS_LEN;
+	private static final long START_SEQ = 1000;
+
+	private final ByteBuffer data;
+	private final IntBuffer table;
+	private final int packets;
+	/**
+	 * Look for anchors after every packet.
+	 */
+	private final boolean anchors;
+	/**
+	 * Sign every chunk that was found.
+	 */
+	private final boolean sign;
+	private final TCPPacket tcpPacket = new TCPPacket(CaptureThread.MAX_PACKET_BYTES);
+	private final byte[] rawIpPacket = new byte[CaptureThread.MAX_PACKET_BYTES];
+
+	/**
+	 * Checksum of the signatures, so the work cannot be optimized away and both paths can be compared.
+	 */
+	private long signatures;
+
+	private ZeroCopyBenchmark(int packets, boolean anchors, boolean sign)
+	{
+		this.packets = packets;
+		this.anchors = anchors;
+		this.sign = sign;
+
+		data = ByteBuffer.allocateDirect(packets * TcpUtils.PACKET_SIZE);
+		ByteBuffer tableBuf = ByteBuffer.allocateDirect(packets * NFQueue.BATCH_FIELDS * 4);
+		tableBuf.order(ByteOrder.nativeOrder());
+		table = tableBuf.asIntBuffer();
+
+		// Same stream every run
+		Random rand = new Random(1);
+		byte[] packet = new byte[TcpUtils.PACKET_SIZE];
+		long seq = START_SEQ;
+		for (int i = 0; i < packets; i++)
+		{
+			// IPv4, 20 bytes IP header, TCP, 20 bytes TCP header with ACK
+			packet[0] = 0x45;
+			TcpUtils.setIpTotalLen(packet, TcpUtils.PACKET_SIZE);
+			packet[9] = 6;
+			packet[20 + 12] = 0x50;
+			packet[20 + 13] = 0x10;
+			TcpUtils.setTcpSeq(packet, seq);
+			for (int j = HEADERS_LEN; j < packet.length; j++)
+				packet[j] = (byte) rand.nextInt(256);
+
+			int offset = data.position();
+			data.put(packet);
+
+			int entry = i * NFQueue.BATCH_FIELDS;
+			table.put(entry + NFQueue.BATCH_OFFSET, offset);
+			table.put(entry + NFQueue.BATCH_LENGTH, packet.length);
+
+			seq = TcpUtils.tcpSequenceAdd(seq, PAYLOAD_LEN);
+		}
+	}
+
+	private long replayCopy()
+	{
+		ConnBuffer buffer = new ConnBuffer(1, START_SEQ);
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < packets; i++)
+		{
+			int entry = i * NFQueue.BATCH_FIELDS;
+			int length = table.get(entry + NFQueue.BATCH_LENGTH);
+			data.position(table.get(entry + NFQueue.BATCH_OFFSET));
+			data.get(rawIpPacket, 0, length);
+
+			tcpPacket.setData(rawIpPacket, false);
+			buffer.addData(rawIpPacket, tcpPacket.getCombinedHeaderByteLength(), tcpPacket.getTCPDataByteLength(),
+					tcpPacket.getSequenceNumber());
+			buffer = handleAnchors(buffer, TcpUtils.tcpSequenceAdd(tcpPacket.getSequenceNumber(), PAYLOAD_LEN));
+		}
+
+		return System.nanoTime() - startTime;
+	}
+
+	private long replayZeroCopy()
+	{
+		ConnBuffer buffer = new ConnBuffer(1, START_SEQ);
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < packets; i++)
+		{
+			int entry = i * NFQueue.BATCH_FIELDS;
+			int offset = table.get(entry + NFQueue.BATCH_OFFSET);
+			int length = table.get(entry + NFQueue.BATCH_LENGTH);
+
+			tcpPacket.setData(data, offset, length);
+			// Headers only, as the capture thread does for receiver-in data
+			int copyLen = Math.min(length, tcpPacket.getCombinedHeaderByteLength() + 1);
+			data.position(offset);
+			data.get(rawIpPacket, 0, copyLen);
+
+			buffer.addData(tcpPacket);
+			buffer = handleAnchors(buffer, TcpUtils.tcpSequenceAdd(tcpPacket.getSequenceNumber(), PAYLOAD_LEN));
+		}
+
+		return System.nanoTime() - startTime;
+	}
+
+	/**
+	 * @param nextSeq
+	 *            TCP sequence of the next packet.
+	 * @return The buffer to use for the next packet.
+	 */
+	private ConnBuffer handleAnchors(ConnBuffer buffer, long nextSeq)
+	{
+		// Without anchors nothing is shifted, so start over when the buffer gets big
+		if (!anchors)
+		{
+			if (buffer.getLenWithForwards() > RabinUtils.MAX_CHUNK_LEN * 2)
+				return new ConnBuffer(1, nextSeq);
+			return buffer;
+		}
+
+		while (buffer.findNextAnchor())
+		{
+			if (sign)
+				signatures += buffer.calculateSha1();
+			buffer.shiftDataByAnchor();
+		}
+
+		return buffer;
+	}
+
+	private static void print(String name, long nanos, int packets)
+	{
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-10s %,8d ms  %,12.0f packets/sec  %,8.1f MB/sec", name, nanos / 1000000,
+				packets / seconds, (double) packets * PAYLOAD_LEN / seconds / 1e6));
+	}
+
+	public static void main(String[] args)
+	{
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String mode = args.length > 2 ? args[2].toLowerCase() : "sha1";
+		boolean anchors = !mode.equals("copy");
+		boolean sign = mode.equals("sha1");
+
+		Main.debugLevel = 0;
+
+		ZeroCopyBenchmark benchmark = new ZeroCopyBenchmark(packets, anchors, sign);
+
+		System.out.println(String.format("Replay %,d packets of %,d bytes, %,d rounds, mode %s", packets,
+				TcpUtils.PACKET_SIZE, rounds, mode));
+
+		long totalCopy = 0;
+		long totalZeroCopy = 0;
+		long signaturesCopy = 0;
+		long signaturesZeroCopy = 0;
+		for (int round = 0; round <= rounds; round++)
+		{
+			benchmark.signatures = 0;
+			long copy = benchmark.replayCopy();
+			signaturesCopy = benchmark.signatures;
+
+			benchmark.signatures = 0;
+			long zeroCopy = benchmark.replayZeroCopy();
+			signaturesZeroCopy = benchmark.signatures;
+
+			// First round is a warm-up
+			if (round == 0)
+				continue;
+
+			totalCopy += copy;
+			totalZeroCopy += zeroCopy;
+		}
+
+		if (signaturesCopy != signaturesZeroCopy)
+			System.err.println("Signature mismatch between the paths!");
+
+		print("Copy", totalCopy / rounds, packets);
+		print("Zero-copy", totalZeroCopy / rounds, packets);
+		System.out.println(String.format("Gain %,.1f%%", (totalCopy - totalZeroCopy) * 100.0 / totalCopy));
+	}
+}
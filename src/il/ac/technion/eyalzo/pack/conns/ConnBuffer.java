@@ -1,12 +1,12 @@
 package il.ac.technion.eyalzo.pack.conns;
 
+import il.ac.technion.eyalzo.net.TCPPacket;
+import il.ac.technion.eyalzo.pack.ChunkScanner;
+import il.ac.technion.eyalzo.pack.Chunker;
 import il.ac.technion.eyalzo.pack.Main;
-import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Signature;
 import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
-
-import java.util.Iterator;
-import java.util.TreeMap;
-import java.util.Map.Entry;
+import il.ac.technion.eyalzo.util.LongRangeSet;
 
 /**
  * Receiver buffer per connection that accumulates incoming packets until it is possible to sign and shift.
@@ -16,17 +16,46 @@ import java.util.Map.Entry;
  * check if a <b>new</b> anchor was found now thanks to that new data. If a number other than -1 is returned it means
  * that such an anchor was found. With the new anchor call {@link #calculateSha1()} and then
  * {@link #shiftDataByAnchor()}.
+ * <p>
+ * The data is a window over an array taken from {@link Main#connBuffers}. Offsets are relative to the window's start,
+ * and a shift only moves the start, with no copy. The live data is moved to the array's start only when new data does
+ * not fit after it, so every byte is copied at most about once per array length. Call {@link #release()} when the
+ * connection ends, to return the array.
  */
 public class ConnBuffer
 {
+	/**
+	 * Where to cut the chunks, as set for the streams when the buffer was created.
+	 */
+	private final Chunker chunker = Main.streamChunker;
+	/**
+	 * Rolling hash of the current chunk, carried between packets so every byte is hashed once.
+	 */
+	private final ChunkScanner scanner = chunker.newScanner();
+	/**
+	 * How to sign the chunks, as set when the buffer was created.
+	 */
+	private final Signature signature = Main.signature;
 	/**
 	 * Internal buffer size. Should suffice to hold forward data that is data received after a missing TCP data.
 	 */
-	private static int DATA_CAPACITY = RabinUtils.MAX_CHUNK_LEN * 4;
+	private final int dataCapacity = chunker.getMaxChunkLen() * 4;
 	/**
-	 * Data itself.
+	 * Data itself, from {@link #base}.
 	 */
 	protected byte[] internalBuffer;
+	/**
+	 * Offset in {@link #internalBuffer} of the window's start, that all the other offsets are relative to.
+	 */
+	private int base;
+	/**
+	 * Bytes shifted out of the window so far, which make offsets in the stream from offsets in the window.
+	 */
+	private long shifted;
+	/**
+	 * True after {@link #release()}, when data is ignored.
+	 */
+	private boolean released;
 	/**
 	 * Connection serial number, for debug prints.
 	 */
@@ -44,17 +73,18 @@ public class ConnBuffer
 	 */
 	protected int dataLen;
 	/**
-	 * Forward data, after missing packet(s). Key is the offset and value is the size.
+	 * Forward data, after missing packet(s), as offsets in the stream (see {@link #shifted}), so shifts do not change
+	 * them.
 	 */
-	protected TreeMap<Integer, Integer> forwards = new TreeMap<Integer, Integer>();
+	protected final LongRangeSet forwards = new LongRangeSet();
 
 	//
 	// Anchor
 	//
 	/**
-	 * Where to start searching for anchor next time.
+	 * First chunk end to check when searching for anchor next time. Starts at 1 since a chunk has at least one byte.
 	 */
-	protected int anchorSearchOffset;
+	protected int anchorSearchOffset = 1;
 	/**
 	 * Buffer-offset of the byte after the last found anchor. If {@link #chunkStartOffset} is not -1 it points to the
 	 * byte after the last found chunk. Starts with -1 so the first anchor will not be considered as chunk.
@@ -89,21 +119,64 @@ public class ConnBuffer
 	 *            Number of bytes to add.
 	 */
 	public synchronized void addData(byte[] data, int dataOffset, int len, long tcpSeq)
+	{
+		int bufferOffset = prepareAddData(len, tcpSeq);
+		if (bufferOffset < 0)
+			return;
+
+		// Copy data to the internal buffer
+		System.arraycopy(data, dataOffset, this.internalBuffer, base + bufferOffset, len);
+
+		commitAddData(bufferOffset, len, tcpSeq);
+	}
+
+	/**
+	 * Add the TCP payload of a packet to the internal buffer. Same as {@link #addData(byte[], int, int, long)}, but
+	 * the payload is copied straight from the packet's backing store, so a packet that is a view over a direct buffer
+	 * is copied only once.
+	 * 
+	 * @param tcp
+	 *            The packet, backed by a byte array or a buffer.
+	 */
+	public synchronized void addData(TCPPacket tcp)
+	{
+		int len = tcp.getTCPDataByteLength();
+		long tcpSeq = tcp.getSequenceNumber();
+
+		int bufferOffset = prepareAddData(len, tcpSeq);
+		if (bufferOffset < 0)
+			return;
+
+		// Copy data to the internal buffer
+		tcp.copyTCPData(0, this.internalBuffer, base + bufferOffset, len);
+
+		commitAddData(bufferOffset, len, tcpSeq);
+	}
+
+	/**
+	 * Make room for new data in the internal buffer.
+	 * 
+	 * @return Offset in the window where the new data should be copied, from {@link #base}, or -1 if the data should be
+	 *         ignored.
+	 */
+	private int prepareAddData(int len, long tcpSeq)
 	{
 		// Initialize for the first time and save TCP sequence
 		if (this.internalBuffer == null)
 		{
+			if (released)
+				return -1;
 			// Sanity check, in case the connection was initialized with a higher sequence (usually during tests)
 			long diff = TcpUtils.tcpSequenceDiff(this.connStartSeq, tcpSeq);
 			if (diff < 0)
-				return;
-			this.internalBuffer = new byte[DATA_CAPACITY];
+				return -1;
+			this.internalBuffer = Main.connBuffers.take(dataCapacity);
 			this.seqBuffer = tcpSeq;
 		}
 
 		// No data
 		if (len <= 0)
-			return;
+			return -1;
 
 		// Find the offset in buffer of the given data
 		int bufferOffset = (int) TcpUtils.tcpSequenceDiff(this.seqBuffer, tcpSeq);
@@ -115,20 +188,49 @@ public class ConnBuffer
 			if (Main.debugLevel >= 5)
 				System.out.println(String.format("      %,d: RCV %,d duplicate", connSerial,
 						getConnOffsetFromTcpSeq(tcpSeq)));
-			return;
+			return -1;
 		}
 
 		// Overflow
-		if (bufferOffset + len > this.internalBuffer.length)
+		if (base + bufferOffset + len > this.internalBuffer.length)
+			makeRoom(bufferOffset + len);
+
+		return bufferOffset;
+	}
+
+	/**
+	 * Move the data to the start of the array, and grow it if still needed.
+	 * 
+	 * @param needed
+	 *            Number of bytes needed from the window's start.
+	 */
+	private void makeRoom(int needed)
+	{
+		if (base > 0)
 		{
-			byte[] tempBuffer = new byte[bufferOffset + len + 2 * RabinUtils.MAX_CHUNK_LEN];
-			System.arraycopy(internalBuffer, 0, tempBuffer, 0, dataLen);
-			internalBuffer = tempBuffer;
+			// In place, with forwards and the gaps between them
+			int liveLen = getLenWithForwards();
+			if (liveLen > 0)
+				System.arraycopy(internalBuffer, base, internalBuffer, 0, liveLen);
+			scanner.shift(base);
+			base = 0;
 		}
 
-		// Copy data to the internal buffer
-		System.arraycopy(data, dataOffset, this.internalBuffer, bufferOffset, len);
+		if (needed > this.internalBuffer.length)
+		{
+			// Far forward data, beyond the pooled size
+			byte[] tempBuffer = new byte[needed + 2 * chunker.getMaxChunkLen()];
+			System.arraycopy(internalBuffer, 0, tempBuffer, 0, getLenWithForwards());
+			Main.connBuffers.give(internalBuffer);
+			internalBuffer = tempBuffer;
+		}
+	}
 
+	/**
+	 * Update the data length and forwards after new data was copied to the internal buffer.
+	 */
+	private void commitAddData(int bufferOffset, int len, long tcpSeq)
+	{
 		// Forward data?
 		if (bufferOffset > dataLen)
 		{
@@ -136,19 +238,8 @@ public class ConnBuffer
 			// Try to merge with former forward
 			//
 
-			// Get a key-value (offset-length) with the greatest offset that is less or equal to the new forward
-			Entry<Integer, Integer> entry = forwards.floorEntry(bufferOffset);
-			if (entry != null)
-			{
-				int foundOffset = entry.getKey();
-				int foundLen = entry.getValue();
-				if (foundOffset + foundLen >= bufferOffset)
-					forwards.put(foundOffset, len + (bufferOffset - foundOffset));
-				else
-					forwards.put(bufferOffset, len);
-			} else
-				// Remember for future the forward data
-				forwards.put(bufferOffset, len);
+			// Remember for future the forward data, merged with the ranges it overlaps or touches
+			forwards.add(shifted + bufferOffset, shifted + bufferOffset + len);
 
 			// Debug print
 			if (Main.debugLevel >= 5)
@@ -169,11 +260,9 @@ public class ConnBuffer
 	 */
 	private void handleForwards()
 	{
-		Iterator<Entry<Integer, Integer>> it = this.forwards.entrySet().iterator();
-		while (it.hasNext())
+		while (!forwards.isEmpty())
 		{
-			Entry<Integer, Integer> entry = it.next();
-			int forwardBufferOffset = entry.getKey();
+			int forwardBufferOffset = (int) (forwards.getFirstStart() - shifted);
 
 			// Still points to forward data
 			if (forwardBufferOffset > dataLen)
@@ -184,14 +273,13 @@ public class ConnBuffer
 				System.out.println(String.format("      %,d: RCV fixed %,d forwards %,d", this.connSerial,
 						getConnOffsetFromBufferOffset(forwardBufferOffset), this.forwards.size()));
 
-			int forwardLength = entry.getValue();
-			int nextDataLen = forwardBufferOffset + forwardLength;
+			int nextDataLen = (int) (forwards.getFirstEnd() - shifted);
 
 			// Jump to the next considering the rare option that all forward
 			// item overlaps with past data
 			dataLen = Math.max(dataLen, nextDataLen);
 
-			it.remove();
+			forwards.removeFirst();
 		}
 	}
 
@@ -236,7 +324,7 @@ public class ConnBuffer
 		if (!isChunkReady())
 			return 0;
 
-		return RabinUtils.calculateSha1(internalBuffer, chunkStartOffset, chunkEndOffset - chunkStartOffset);
+		return signature.sign(internalBuffer, base + chunkStartOffset, chunkEndOffset - chunkStartOffset);
 	}
 
 	/**
@@ -245,40 +333,11 @@ public class ConnBuffer
 	 *         gaps.
 	 */
 	public synchronized int getLenWithForwards()
-	{
-		int result = dataLen;
-
-		// TODO smarter forwards so the last item will be enough
-		Iterator<Entry<Integer, Integer>> it = this.forwards.entrySet().iterator();
-		while (it.hasNext())
-		{
-			Entry<Integer, Integer> entry = it.next();
-			int forwardBufferOffset = entry.getKey();
-			int forwardLength = entry.getValue();
-
-			result = Math.max(result, forwardBufferOffset + forwardLength);
-		}
-
-		return result;
-	}
-
-	protected synchronized void shiftForwards(int shift)
 	{
 		if (forwards.isEmpty())
-			return;
+			return dataLen;
 
-		TreeMap<Integer, Integer> newForwards = new TreeMap<Integer, Integer>();
-		Iterator<Entry<Integer, Integer>> it = this.forwards.entrySet().iterator();
-		while (it.hasNext())
-		{
-			Entry<Integer, Integer> entry = it.next();
-			int forwardBufferOffset = entry.getKey();
-			int forwardLength = entry.getValue();
-
-			newForwards.put(forwardBufferOffset - shift, forwardLength);
-		}
-
-		forwards = newForwards;
+		return Math.max(dataLen, (int) (forwards.getLastEnd() - shifted));
 	}
 
 	synchronized int getDataLen()
@@ -288,9 +347,9 @@ public class ConnBuffer
 
 	synchronized void printData(int offset, int len)
 	{
-		int endOffset = offset + len;
+		int endOffset = base + offset + len;
 		int newLine = 0;
-		for (int i = offset; i < endOffset; i++)
+		for (int i = base + offset; i < endOffset; i++)
 		{
 			System.out.print(String.format("%02x ", internalBuffer[i]));
 			newLine++;
@@ -316,34 +375,27 @@ public class ConnBuffer
 	 */
 	public synchronized boolean findNextAnchor()
 	{
-		int lastOffsetForAnchor = Math.min(dataLen - 1, chunkEndOffset + RabinUtils.MAX_CHUNK_LEN);
-		// Very common because of the minimum chunk size
-		if (anchorSearchOffset > lastOffsetForAnchor)
+		if (internalBuffer == null)
 			return false;
 
-		// Look for the next anchor
-		int find = RabinUtils.rabinRollingNextAnchor(internalBuffer, anchorSearchOffset, lastOffsetForAnchor);
+		// Look for the next anchor, or the end of a chunk that is too big, in the array's offsets. Before the first
+		// anchor, the chunk end is -1 and the window is at the array's start.
+		int find = scanner.nextChunkEnd(internalBuffer, base + chunkEndOffset, base + anchorSearchOffset, base
+				+ dataLen);
 
-		// If not found but chunk is too big
 		if (find == -1)
 		{
-			// If the maximal chunk does not have an anchor
-			if (lastOffsetForAnchor == chunkEndOffset + RabinUtils.MAX_CHUNK_LEN)
-				find = lastOffsetForAnchor;
-			else
-			{
-				// Just remember not to calculate again the same bytes next time
-				anchorSearchOffset = lastOffsetForAnchor + 1;
-				return false;
-			}
+			// Just remember not to calculate again the same bytes next time
+			anchorSearchOffset = Math.max(anchorSearchOffset, dataLen - chunker.getLookahead() + 1);
+			return false;
 		}
+		find -= base;
 
 		// Next time start at the point that ensures large enough chunks
-		anchorSearchOffset = find + RabinUtils.MIN_CHUNK_LEN;
+		anchorSearchOffset = find + chunker.getMinChunkLen();
 
 		chunkStartOffset = chunkEndOffset;
-		// End offset is exclusive while the anchor function returns the inclusive last byte of the anchor
-		chunkEndOffset = find + 1;
+		chunkEndOffset = find;
 
 		return true;
 	}
@@ -360,7 +412,7 @@ public class ConnBuffer
 
 		int size = chunkEndOffset - chunkStartOffset;
 		byte[] result = new byte[size];
-		System.arraycopy(internalBuffer, chunkStartOffset, result, 0, size);
+		System.arraycopy(internalBuffer, base + chunkStartOffset, result, 0, size);
 
 		return result;
 	}
@@ -376,7 +428,8 @@ public class ConnBuffer
 	}
 
 	/**
-	 * Shift data in the internal buffer so it will start after the last found anchor.
+	 * Shift the window so it will start after the last found anchor. The data is not moved, see
+	 * {@link #makeRoom(int)}.
 	 * 
 	 * @return True if shift was performed. False if there is nothing to shift.
 	 */
@@ -386,34 +439,15 @@ public class ConnBuffer
 		if (!isChunkReady())
 			return false;
 
-		// There is not much data in the window, so spare the shift
-		if (dataLen <= DATA_CAPACITY / 4)
-			return false;
-
-		//
-		// Shift left by copy
-		//
-		int dataLenWithForwards = this.getLenWithForwards();
-		int copyLen = dataLenWithForwards - chunkEndOffset;
-		byte[] temp = new byte[copyLen];
-		// It can't be negative
-		if (copyLen > 0)
-		{
-			System.arraycopy(internalBuffer, chunkEndOffset, temp, 0, copyLen);
-			System.arraycopy(temp, 0, internalBuffer, 0, copyLen);
-			//		System.arraycopy(internalBuffer, chunkEndOffset, internalBuffer, 0, copyLen);
-		}
-
 		// Update buffer variables
+		base += chunkEndOffset;
+		shifted += chunkEndOffset;
 		dataLen -= chunkEndOffset;
 		seqBuffer = TcpUtils.tcpSequenceAdd(seqBuffer, chunkEndOffset);
 
-		// Next search just needs to be shifted
+		// Next search just needs to be shifted, while the scanner keeps the array's offsets
 		anchorSearchOffset -= chunkEndOffset;
 
-		// Update forwards
-		shiftForwards(chunkEndOffset);
-
 		// Reset anchor variables
 		chunkStartOffset = 0;
 		chunkEndOffset = 0;
@@ -439,6 +473,9 @@ public class ConnBuffer
 	 */
 	public synchronized boolean handleMatchedPackAck(long tcpSeq, ChunkItem ackChunk)
 	{
+		if (released)
+			return false;
+
 		// The byte after the ACKed chunk
 		int ackChunkStartOffset = (int) TcpUtils.tcpSequenceDiff(seqBuffer, tcpSeq);
 		int ackChunkEndOffset = ackChunkStartOffset + ackChunk.getLength();
@@ -453,7 +490,7 @@ public class ConnBuffer
 		this.chunkEndOffset = ackChunkEndOffset;
 
 		// Next search should start from the byte after this chunk
-		anchorSearchOffset = chunkEndOffset + RabinUtils.MIN_CHUNK_LEN;
+		anchorSearchOffset = chunkEndOffset + chunker.getMinChunkLen();
 
 		// We don't have real data there, but it is needed for the shift
 		dataLen = Math.max(dataLen, ackChunkEndOffset);
@@ -463,6 +500,38 @@ public class ConnBuffer
 		return true;
 	}
 
+	/**
+	 * @param tcpSeq
+	 *            TCP sequence of the stream's end, like that of the FIN.
+	 * @return True if all the data up to the given sequence arrived, with no holes waiting for retransmissions.
+	 */
+	public synchronized boolean isCompleteTo(long tcpSeq)
+	{
+		if (internalBuffer == null)
+			return !released;
+
+		return forwards.isEmpty() && TcpUtils.tcpSequenceDiff(getSeqFromBufferOffset(dataLen), tcpSeq) <= 0;
+	}
+
+	/**
+	 * Return the array to the pool, when the connection ends. Data that arrives later is ignored.
+	 */
+	public synchronized void release()
+	{
+		if (internalBuffer != null)
+		{
+			Main.connBuffers.give(internalBuffer);
+			internalBuffer = null;
+		}
+		released = true;
+
+		forwards.clear();
+		base = 0;
+		dataLen = 0;
+		chunkStartOffset = -1;
+		chunkEndOffset = -1;
+	}
+
 	public int getChunkLen()
 	{
 		if (!isChunkReady())
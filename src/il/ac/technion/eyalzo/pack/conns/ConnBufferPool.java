@@ -0,0 +1,92 @@
+package il.ac.technion.eyalzo.pack.conns;
+
+/**
+ * Shared pool of the data arrays of the receiver buffers (see {@link ConnBuffer}), so connections that come and go
+ * reuse the same arrays instead of allocating new ones.
+ * <p>
+ * All the pooled arrays have the size of the first one taken, as it depends only on the stream chunker. Arrays of
+ * other sizes, like those grown for far forward data, are left to the garbage collector. Free arrays are kept up to a
+ * total size, above which they are dropped too.
+ */
+public class ConnBufferPool
+{
+	/**
+	 * Max size of the free arrays together.
+	 */
+	private static final long MAX_FREE_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Size of the pooled arrays, or 0 until the first one is taken.
+	 */
+	private int capacity;
+	private byte[][] free = new byte[16][];
+	private int freeCount;
+
+	//
+	// Statistics
+	//
+	private long statTaken;
+	private long statAllocated;
+
+	/**
+	 * @return A free array of the given size, or a new one.
+	 */
+	public synchronized byte[] take(int size)
+	{
+		statTaken++;
+		if (capacity == 0)
+			capacity = size;
+
+		if (size == capacity && freeCount > 0)
+		{
+			freeCount--;
+			byte[] result = free[freeCount];
+			free[freeCount] = null;
+			return result;
+		}
+
+		statAllocated++;
+		return new byte[size];
+	}
+
+	/**
+	 * Return an array that is no longer used. Its content is not cleared.
+	 */
+	public synchronized void give(byte[] buffer)
+	{
+		if (buffer.length != capacity || (long) (freeCount + 1) * capacity > MAX_FREE_BYTES)
+			return;
+
+		if (freeCount == free.length)
+		{
+			byte[][] newFree = new byte[free.length * 2][];
+			System.arraycopy(free, 0, newFree, 0, freeCount);
+			free = newFree;
+		}
+		free[freeCount++] = buffer;
+	}
+
+	/**
+	 * @return Number of free arrays.
+	 */
+	public synchronized int getFreeCount()
+	{
+		return freeCount;
+	}
+
+	/**
+	 * @return Number of arrays taken so far, new or reused.
+	 */
+	public synchronized long getStatTaken()
+	{
+		return statTaken;
+	}
+
+	/**
+	 * @return Number of arrays that were allocated because none was free.
+	 */
+	public synchronized long getStatAllocated()
+	{
+		return statAllocated;
+	}
+}
@@ -0,0 +1,242 @@
+package il.ac.technion.eyalzo.pack.conns;
+
+import il.ac.technion.eyalzo.net.TCPPacket;
+
+/**
+ * Live connections by their IPv4 4-tuple, for the per-packet lookup.
+ * <p>
+ * The key is packed in primitives, addresses in a long and ports in an int, so a lookup reads the packet's headers and
+ * does not allocate. Keys are in open addressing arrays with linear probing, split to stripes, each with its own lock,
+ * like {@link il.ac.technion.eyalzo.pack.stamps.GlobalChunkList}.
+ * <p>
+ * The {@link Machine} of each connection keeps it too, as a view for the web GUI and statistics.
+ */
+public class FlowTable
+{
+	/**
+	 * Default number of stripes, as a power of 2 well above the number of capture threads.
+	 */
+	public static final int DEFAULT_STRIPE_BITS = 4;
+	private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+	private final int stripeBits;
+	private final Stripe[] stripes;
+
+	/**
+	 * Flows of keys that fall in the same stripe. The stripe itself is the lock.
+	 */
+	private static class Stripe
+	{
+		long[] keyAddrs = new long[INITIAL_STRIPE_CAPACITY];
+		int[] keyPorts = new int[INITIAL_STRIPE_CAPACITY];
+		/**
+		 * Null where the slot is free.
+		 */
+		TcpConn[] conns = new TcpConn[INITIAL_STRIPE_CAPACITY];
+		int size;
+	}
+
+	public FlowTable()
+	{
+		this(DEFAULT_STRIPE_BITS);
+	}
+
+	/**
+	 * @param stripeBits
+	 *            Number of stripes as a power of 2, from 0 for a single lock.
+	 */
+	public FlowTable(int stripeBits)
+	{
+		this.stripeBits = stripeBits;
+		stripes = new Stripe[1 << stripeBits];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * @return Both IPv4 addresses, as returned by {@link il.ac.technion.eyalzo.net.IPPacket#getSourceAsWord()}, in one
+	 *         key.
+	 */
+	public static long addrsKey(int remoteAddr, int localAddr)
+	{
+		return ((long) remoteAddr << 32) | (localAddr & 0xffffffffL);
+	}
+
+	/**
+	 * @return Both ports in one key.
+	 */
+	public static int portsKey(int remotePort, int localPort)
+	{
+		return (remotePort << 16) | (localPort & 0xffff);
+	}
+
+	/**
+	 * @param dirOut
+	 *            True if the packet goes out, so the local side is the source.
+	 */
+	public static long addrsKey(TCPPacket tcp, boolean dirOut)
+	{
+		return dirOut ? addrsKey(tcp.getDestinationAsWord(), tcp.getSourceAsWord()) : addrsKey(tcp
+				.getSourceAsWord(), tcp.getDestinationAsWord());
+	}
+
+	/**
+	 * @param dirOut
+	 *            True if the packet goes out, so the local side is the source.
+	 */
+	public static int portsKey(TCPPacket tcp, boolean dirOut)
+	{
+		return dirOut ? portsKey(tcp.getDestinationPort(), tcp.getSourcePort()) : portsKey(tcp.getSourcePort(), tcp
+				.getDestinationPort());
+	}
+
+	private static long hash(long addrs, int ports)
+	{
+		return (addrs ^ ((long) ports * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL;
+	}
+
+	/**
+	 * Stripe from the hash's top bits, and the slot from the bits below them.
+	 */
+	private Stripe stripeOf(long hash)
+	{
+		if (stripeBits == 0)
+			return stripes[0];
+		return stripes[(int) (hash >>> (Long.SIZE - stripeBits))];
+	}
+
+	private static int slotOf(long hash, int capacity)
+	{
+		return (int) (hash >>> 16) & (capacity - 1);
+	}
+
+	/**
+	 * @return The connection, or null if the flow is not tracked.
+	 */
+	public TcpConn get(long addrs, int ports)
+	{
+		long hash = hash(addrs, ports);
+		Stripe stripe = stripeOf(hash);
+		synchronized (stripe)
+		{
+			int mask = stripe.conns.length - 1;
+			for (int i = slotOf(hash, stripe.conns.length);; i = (i + 1) & mask)
+			{
+				TcpConn conn = stripe.conns[i];
+				if (conn == null || (stripe.keyAddrs[i] == addrs && stripe.keyPorts[i] == ports))
+					return conn;
+			}
+		}
+	}
+
+	/**
+	 * Add the connection, unless the flow is already tracked.
+	 *
+	 * @return The connection that was there already, or null if the given one was added.
+	 */
+	public TcpConn putIfAbsent(long addrs, int ports, TcpConn conn)
+	{
+		long hash = hash(addrs, ports);
+		Stripe stripe = stripeOf(hash);
+		synchronized (stripe)
+		{
+			int mask = stripe.conns.length - 1;
+			int i = slotOf(hash, stripe.conns.length);
+			for (; stripe.conns[i] != null; i = (i + 1) & mask)
+			{
+				if (stripe.keyAddrs[i] == addrs && stripe.keyPorts[i] == ports)
+					return stripe.conns[i];
+			}
+
+			stripe.keyAddrs[i] = addrs;
+			stripe.keyPorts[i] = ports;
+			stripe.conns[i] = conn;
+			stripe.size++;
+
+			// Keep it at most half full, so probes stay short
+			if (stripe.size * 2 > stripe.conns.length)
+				grow(stripe);
+			return null;
+		}
+	}
+
+	private static void grow(Stripe stripe)
+	{
+		long[] oldAddrs = stripe.keyAddrs;
+		int[] oldPorts = stripe.keyPorts;
+		TcpConn[] oldConns = stripe.conns;
+		int capacity = oldConns.length * 2;
+		stripe.keyAddrs = new long[capacity];
+		stripe.keyPorts = new int[capacity];
+		stripe.conns = new TcpConn[capacity];
+
+		int mask = capacity - 1;
+		for (int j = 0; j < oldConns.length; j++)
+		{
+			if (oldConns[j] == null)
+				continue;
+			int i = slotOf(hash(oldAddrs[j], oldPorts[j]), capacity);
+			while (stripe.conns[i] != null)
+				i = (i + 1) & mask;
+			stripe.keyAddrs[i] = oldAddrs[j];
+			stripe.keyPorts[i] = oldPorts[j];
+			stripe.conns[i] = oldConns[j];
+		}
+	}
+
+	/**
+	 * Remove the flow, if it still belongs to the given connection.
+	 *
+	 * @return True if removed.
+	 */
+	public boolean remove(long addrs, int ports, TcpConn conn)
+	{
+		long hash = hash(addrs, ports);
+		Stripe stripe = stripeOf(hash);
+		synchronized (stripe)
+		{
+			int mask = stripe.conns.length - 1;
+			int i = slotOf(hash, stripe.conns.length);
+			for (; stripe.conns[i] != conn || stripe.keyAddrs[i] != addrs || stripe.keyPorts[i] != ports; i = (i + 1)
+					& mask)
+			{
+				if (stripe.conns[i] == null)
+					return false;
+			}
+
+			// Shift back the following keys of the run, so lookups need no tombstones
+			int free = i;
+			for (int j = (i + 1) & mask; stripe.conns[j] != null; j = (j + 1) & mask)
+			{
+				int home = slotOf(hash(stripe.keyAddrs[j], stripe.keyPorts[j]), stripe.conns.length);
+				// Move only if its home is not within (free, j]
+				if (((j - home) & mask) >= ((j - free) & mask))
+				{
+					stripe.keyAddrs[free] = stripe.keyAddrs[j];
+					stripe.keyPorts[free] = stripe.keyPorts[j];
+					stripe.conns[free] = stripe.conns[j];
+					free = j;
+				}
+			}
+			stripe.conns[free] = null;
+			stripe.size--;
+			return true;
+		}
+	}
+
+	/**
+	 * @return Number of tracked flows.
+	 */
+	public int size()
+	{
+		int result = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				result += stripe.size;
+			}
+		}
+		return result;
+	}
+}
@@ -7,12 +7,12 @@ import il.ac.technion.eyalzo.net.TCPPacket;
 import il.ac.technion.eyalzo.pack.CaptureThread;
 import il.ac.technion.eyalzo.pack.Main;
 import il.ac.technion.eyalzo.pack.spoof.SpoofThread;
+import il.ac.technion.eyalzo.util.TimerWheel;
 import il.ac.technion.eyalzo.webgui.DisplayTable;
 
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 public class Machine
@@ -31,9 +31,34 @@ public class Machine
 	InetSocketAddress addr;
 	/**
 	 * Live real connection, each for a different client IP+port. When a session is turned into upload from cache, the
-	 * connection is removed from this list.
+	 * connection is removed from this list. Packets find their connection in {@link #flows}, so this is only a view
+	 * for the web GUI and statistics.
 	 */
 	private HashMap<InetSocketAddress, TcpConn> connections = new HashMap<InetSocketAddress, TcpConn>();
+	/**
+	 * The list that holds this machine, with the flows and timers of all its connections.
+	 */
+	private final RemoteMachineList list;
+	/**
+	 * All the live connections of the side, by 4-tuple.
+	 */
+	private final FlowTable flows;
+	/**
+	 * Removes the machine when it may have been inactive for {@link RemoteMachineList#TTL_MILLIS}.
+	 */
+	final TimerWheel.Timer idleTimer = new TimerWheel.Timer()
+	{
+		@Override
+		protected void expire(long now)
+		{
+			if (list.removeMachine(Machine.this, now - RemoteMachineList.TTL_MILLIS))
+				return;
+
+			// Still active, or waits for its connections to expire
+			list.timers.schedule(this, Math.max(statLastActionTime + RemoteMachineList.TTL_MILLIS, now
+					+ RemoteMachineList.RETRY_MILLIS));
+		}
+	};
 
 	//
 	// Times
@@ -47,10 +72,12 @@ public class Machine
 	 */
 	long statLastActionTime;
 
-	public Machine(boolean sideSender, InetSocketAddress serverAddr)
+	public Machine(boolean sideSender, InetSocketAddress serverAddr, RemoteMachineList list)
 	{
 		this.sideSender = sideSender;
 		this.addr = serverAddr;
+		this.list = list;
+		this.flows = list.flows;
 		this.statStartTime = System.currentTimeMillis();
 		this.statLastActionTime = this.statStartTime;
 	}
@@ -76,41 +103,46 @@ public class Machine
 		synchronized (connections)
 		{
 			TcpConn conn = connections.remove(clientAddr);
-			return (conn != null);
+			if (conn == null)
+				return false;
+			flows.remove(conn.flowAddrs, conn.flowPorts, conn);
+			list.timers.cancel(conn.idleTimer);
+			conn.removed();
+			return true;
 		}
 	}
 
 	/**
-	 * Cleanup inactive connections.
+	 * Remove the connection if it is inactive, when its idle timer expires.
 	 * 
-	 * @param lastAllowedAckTime
-	 *            Connection that did not receive an ACK since then, should be closed.
-	 * @return Number of removed connections due to timeout.
+	 * @return True if removed, or false if it had packets since the given time's TTL.
 	 */
-	@SuppressWarnings("incomplete-switch")
-	int cleanup(long lastAllowedAckTime)
+	boolean expireConnection(TcpConn conn, long now)
 	{
-		int result = 0;
-
 		synchronized (connections)
 		{
-			Iterator<TcpConn> it = connections.values().iterator();
-			while (it.hasNext())
-			{
-				TcpConn curConn = it.next();
-
-				// Skip sessions that accepted an ack recently
-				if (curConn.isAlive(lastAllowedAckTime))
-					continue;
+			// Already removed, while the expiry waited for the shard
+			if (connections.get(conn.localAddr) != conn)
+				return true;
 
-				// Remove inactive connection
-				it.remove();
+			// Skip sessions that accepted an ack recently
+			if (conn.isAlive(now - RemoteMachineList.TTL_MILLIS))
+				return false;
 
-				result++;
-			}
+			connections.remove(conn.localAddr);
 		}
+		flows.remove(conn.flowAddrs, conn.flowPorts, conn);
+		conn.removed();
 
-		return result;
+		return true;
+	}
+
+	/**
+	 * @return Deadlines of the side's connections and machines.
+	 */
+	TimerWheel getTimers()
+	{
+		return list.timers;
 	}
 
 	/**
@@ -144,16 +176,42 @@ public class Machine
 		return this.addr;
 	}
 
-	public Verdict processPacket(TCPPacket tcp, byte[] rawIpPacket, boolean dirOut) throws UnknownHostException
+	private static InetSocketAddress getLocalAddr(TCPPacket tcp, boolean dirOut) throws UnknownHostException
+	{
+		return new InetSocketAddress(dirOut ? tcp.getSourceAsInetAddress() : tcp.getDestinationAsInetAddress(),
+				dirOut ? tcp.getSourcePort() : tcp.getDestinationPort());
+	}
+
+	/**
+	 * Track a new connection, unless the packet's flow is already tracked.
+	 */
+	private void addConnection(TcpConn conn, TCPPacket tcp, boolean dirOut) throws UnknownHostException
+	{
+		conn.machine = this;
+		conn.flowAddrs = FlowTable.addrsKey(tcp, dirOut);
+		conn.flowPorts = FlowTable.portsKey(tcp, dirOut);
+		if (flows.putIfAbsent(conn.flowAddrs, conn.flowPorts, conn) != null)
+			return;
+
+		conn.localAddr = getLocalAddr(tcp, dirOut);
+		synchronized (connections)
+		{
+			connections.put(conn.localAddr, conn);
+		}
+		list.timers.schedule(conn.idleTimer, conn.getLastPacketTime() + RemoteMachineList.TTL_MILLIS);
+	}
+
+	/**
+	 * @param conn
+	 *            The packet's connection, as found in the {@link FlowTable}, or null if the flow is not tracked yet.
+	 */
+	public Verdict processPacket(TcpConn conn, TCPPacket tcp, byte[] rawIpPacket, boolean dirOut)
+			throws UnknownHostException
 	{
 		Verdict result = Verdict.NF_ACCEPT;
 
 		this.statLastActionTime = System.currentTimeMillis();
 
-		// Local address, to locate the connection
-		InetSocketAddress localAddr = new InetSocketAddress(dirOut ? tcp.getSourceAsInetAddress() : tcp
-				.getDestinationAsInetAddress(), dirOut ? tcp.getSourcePort() : tcp.getDestinationPort());
-
 		long remoteSeq = dirOut ? tcp.getAckNumber() : tcp.getSequenceNumber();
 		long localSeq = dirOut ? tcp.getSequenceNumber() : tcp.getAckNumber();
 
@@ -161,52 +219,46 @@ public class Machine
 		// : ".", tcp.flagsToString()));
 
 		//
-		// Get or add the connection
+		// Add the connection if it is new
 		//
-		TcpConn conn = null;
-		synchronized (connections)
+		if (conn == null)
 		{
-			// Try to find that connection in the remote machine's connection
-			// list
-			conn = connections.get(localAddr);
-			if (conn == null)
-			{
-				// It must be SYN
-				if (!tcp.isSet(TCPPacket.MASK_SYN))
-					return result;
+			// It must be SYN
+			if (!tcp.isSet(TCPPacket.MASK_SYN))
+				return result;
 
-				// Hijack for later spoof
-				if (dirOut)
-				{
-					result = Verdict.NF_DROP;
-					SpoofThread.sendPackPermitted(rawIpPacket);
-				}
+			// Hijack for later spoof
+			if (dirOut)
+			{
+				result = Verdict.NF_DROP;
+				SpoofThread.sendPackPermitted(rawIpPacket);
+			}
 
-				if (tcp.isSet(TCPPacket.MASK_ACK))
-					return result;
+			if (tcp.isSet(TCPPacket.MASK_ACK))
+				return result;
 
-				int windowScaling = TcpUtils.getTcpOptionWindowScaling(rawIpPacket);
+			int windowScaling = TcpUtils.getTcpOptionWindowScaling(rawIpPacket);
 
-				//
-				// Add new connection
-				//
+			//
+			// Add new connection
+			//
 
-				// SYN consumes one sequence but it has no data in practice
-				if (sideSender)
-					conn = new TcpConnSnd(dirOut, tcp.getSequenceNumber(), windowScaling);
-				else
-					conn = new TcpConnRcv(dirOut, tcp.getSequenceNumber(), windowScaling);
+			// SYN consumes one sequence but it has no data in practice
+			if (sideSender)
+				conn = new TcpConnSnd(dirOut, tcp.getSequenceNumber(), windowScaling);
+			else
+				conn = new TcpConnRcv(dirOut, tcp.getSequenceNumber(), windowScaling);
 
-				connections.put(localAddr, conn);
+			conn.setRemoteMss(dirOut, TcpUtils.getTcpOptionMss(rawIpPacket));
+			addConnection(conn, tcp, dirOut);
 
-				// Only the local sequence has a meaning
-				if (Main.debugLevel >= 2)
-					System.out.println(String.format("%,d: %s. %s SYN. New. Port %,d. Init seq %,d", conn.getSerial(),
-							(sideSender ? "SND" : "RCV"), (dirOut ? "Sent" : "Got"), localAddr.getPort(),
-							dirOut ? localSeq : remoteSeq));
+			// Only the local sequence has a meaning
+			if (Main.debugLevel >= 2)
+				System.out.println(String.format("%,d: %s. %s SYN. New. Port %,d. Init seq %,d", conn.getSerial(),
+						(sideSender ? "SND" : "RCV"), (dirOut ? "Sent" : "Got"), dirOut ? tcp.getSourcePort() : tcp
+								.getDestinationPort(), dirOut ? localSeq : remoteSeq));
 
-				return result;
-			}
+			return result;
 		}
 
 		//
@@ -220,6 +272,7 @@ public class Machine
 				// Set window scaling and mark as established
 				int windowScaling = TcpUtils.getTcpOptionWindowScaling(rawIpPacket);
 				conn.synAck(dirOut, tcp.getSequenceNumber(), windowScaling);
+				conn.setRemoteMss(dirOut, TcpUtils.getTcpOptionMss(rawIpPacket));
 
 				// If going out then hijack and set the PACK Permitted flag
 				if (dirOut)
@@ -282,12 +335,13 @@ public class Machine
 			String contentType = VideoUtils.getContentTypeFromPayload(rawIpPacket, startOffset,
 					headerLen > 0 ? headerLen : rawIpPacket.length);
 
-			TcpEventHttpResponse event = conn.addEventHttpResponse(dirOut, localSeq, remoteSeq, httpResponseCode,
-					headerLen, contentLength, contentType);
+			conn.addEventHttpResponse(dirOut, localSeq, remoteSeq, httpResponseCode, headerLen, contentLength,
+					contentType);
 
 			if (Main.debugLevel >= 3)
-				System.out.println(String.format("   %,d: %,d %s", conn.getSerial(), conn.getRalativeSeq(remoteSeq),
-						event));
+				System.out.println(String.format("   %,d: %,d HTTP response %d, length %d (%s), header len %,d", conn
+						.getSerial(), conn.getRalativeSeq(remoteSeq), httpResponseCode, contentLength, contentType,
+						headerLen));
 			return result;
 		}
 
@@ -301,11 +355,12 @@ public class Machine
 			String hostName = VideoUtils.getHostFromPayload(rawIpPacket, startOffset, rawIpPacket.length);
 			setHostName(hostName);
 
-			TcpEventHttpRequest event = conn.addEventHttpRequest(dirOut, localSeq, remoteSeq, hostName, url);
+			conn.addEventHttpRequest(dirOut, localSeq, remoteSeq, hostName, url);
 
 			if (Main.debugLevel >= 4)
-				System.out.println(String.format("   %,d: %s %,d %s %s", conn.getSerial(), sideSender ? "SND" : "RCV",
-						conn.getRalativeSeq(remoteSeq), (dirOut ? "sent" : "got"), event));
+				System.out.println(String.format("   %,d: %s %,d %s HTTP request %s%s", conn.getSerial(),
+						sideSender ? "SND" : "RCV", conn.getRalativeSeq(remoteSeq), (dirOut ? "sent" : "got"),
+						hostName == null ? "" : hostName, url));
 		}
 
 		return result;
@@ -472,31 +527,4 @@ public class Machine
 			return new HashMap<InetSocketAddress, TcpConn>(connections);
 		}
 	}
-
-	public int releaseTimeoutBuffers(long lastAllowedActionTime)
-	{
-		// Sanity check
-		if (!sideSender)
-			return 0;
-
-		int result = 0;
-
-		synchronized (connections)
-		{
-			Iterator<TcpConn> it = connections.values().iterator();
-			while (it.hasNext())
-			{
-				TcpConnSnd curConn = (TcpConnSnd) it.next();
-
-				// Skip connections that do not buffer or were recently active 
-				if (!curConn.isBufferingBefore(lastAllowedActionTime))
-					continue;
-
-				// Release the buffer and data
-				curConn.releaseCurrentBuffer();
-			}
-		}
-
-		return result;
-	}
 }
@@ -1,5 +1,7 @@
 package il.ac.technion.eyalzo.pack.conns;
 
+import il.ac.technion.eyalzo.net.TCPPacket;
+import il.ac.technion.eyalzo.util.TimerWheel;
 import il.ac.technion.eyalzo.webgui.DisplayTable;
 
 import java.net.InetSocketAddress;
@@ -15,6 +17,18 @@ import java.util.Map.Entry;
  */
 public class RemoteMachineList
 {
+	/**
+	 * Connections and machines with no packets for that long are removed.
+	 */
+	static final long TTL_MILLIS = 1000L * 60 * 60;
+	/**
+	 * When to check again a machine that is inactive, but still has connections that did not expire yet.
+	 */
+	static final long RETRY_MILLIS = 1000L * 15;
+	/**
+	 * Resolution of the deadlines, that is also the minimal timeout of buffered sender chunks.
+	 */
+	public static final int TIMER_TICK_MILLIS = 10;
 	/**
 	 * Remote machines are senders.
 	 * <p>
@@ -27,6 +41,14 @@ public class RemoteMachineList
 	 * name (if found in an HTTP session).
 	 */
 	private HashMap<InetSocketAddress, Machine> machines = new HashMap<InetSocketAddress, Machine>();
+	/**
+	 * Connections of all the machines, by 4-tuple, for the per-packet lookup.
+	 */
+	final FlowTable flows = new FlowTable();
+	/**
+	 * Deadlines of the machines, their connections and the sender's buffered chunks, so only what expires is visited.
+	 */
+	final TimerWheel timers = new TimerWheel(TIMER_TICK_MILLIS, System.currentTimeMillis());
 
 	public RemoteMachineList(boolean remoteSideSender)
 	{
@@ -48,10 +70,14 @@ public class RemoteMachineList
 			// If does not exist then add a new record
 			if (curMachine == null)
 			{
-				curMachine = new Machine(!remoteSideSender, addr);
+				curMachine = new Machine(!remoteSideSender, addr, this);
 				machines.put(addr, curMachine);
+				timers.schedule(curMachine.idleTimer, curMachine.statLastActionTime + TTL_MILLIS);
 			}
 
+			// So the idle timer does not remove it before it gets the connection
+			curMachine.statLastActionTime = System.currentTimeMillis();
+
 			// Return the new or existing record
 			return curMachine;
 		}
@@ -70,6 +96,28 @@ public class RemoteMachineList
 		}
 	}
 
+	/**
+	 * @param dirOut
+	 *            True if the packet goes out, so the local side is the source.
+	 * @return The packet's connection, or null if its flow is not tracked.
+	 */
+	public TcpConn getConnection(TCPPacket tcp, boolean dirOut)
+	{
+		return flows.get(FlowTable.addrsKey(tcp, dirOut), FlowTable.portsKey(tcp, dirOut));
+	}
+
+	/**
+	 * @param addrs
+	 *            Key of the addresses, see {@link FlowTable#addrsKey(int, int)}.
+	 * @param ports
+	 *            Key of the ports, see {@link FlowTable#portsKey(int, int)}.
+	 * @return The connection, or null if its flow is not tracked.
+	 */
+	public TcpConn getConnection(long addrs, int ports)
+	{
+		return flows.get(addrs, ports);
+	}
+
 	/**
 	 * @return Number of machines in the list. Note: it may be decreased by { {@link #cleanup(long)}.
 	 */
@@ -82,32 +130,44 @@ public class RemoteMachineList
 	}
 
 	/**
-	 * Handle connections timeout and remove inactive machines.
-	 * <p>
-	 * It locks the machine list and walks through the entire connection list per machine, so it should not be called
-	 * too often.
+	 * Remove the machine if nothing happened for too long, when its idle timer expires.
+	 * 
+	 * @return True if removed.
 	 */
-	public void cleanup(long connTtlMillis)
+	boolean removeMachine(Machine machine, long lastAllowedActionTime)
 	{
-		long lastAllowedActionTime = System.currentTimeMillis() - connTtlMillis;
-
 		synchronized (machines)
 		{
-			Iterator<Machine> it = machines.values().iterator();
-			while (it.hasNext())
-			{
-				Machine curMachine = it.next();
-				// Cleanup connections
-				curMachine.cleanup(lastAllowedActionTime);
-				// Remove server if nothing happened for too long
-				if (curMachine.isInactive(lastAllowedActionTime))
-				{
-					it.remove();
-				}
-			}
+			// Removed already, and maybe replaced
+			if (machines.get(machine.addr) != machine)
+				return true;
+			if (!machine.isInactive(lastAllowedActionTime))
+				return false;
+
+			machines.remove(machine.addr);
+			return true;
 		}
 	}
 
+	/**
+	 * Handle what expired: inactive connections and machines, and sender chunks that were buffered for too long. To be
+	 * called every {@link #TIMER_TICK_MILLIS} by a single thread.
+	 * 
+	 * @return Number of expired timers.
+	 */
+	public int expireTimers(long now)
+	{
+		return timers.advance(now);
+	}
+
+	/**
+	 * @return Number of deadlines that are waiting.
+	 */
+	public int getTimersCount()
+	{
+		return timers.size();
+	}
+
 	/**
 	 * @return Duplicate of the full machine list.
 	 */
@@ -120,19 +180,11 @@ public class RemoteMachineList
 	}
 
 	/**
-	 * @return Number of TCP connections still registered for all the machines together. Time consuming, so be careful.
+	 * @return Number of TCP connections still registered for all the machines together.
 	 */
 	public int getConnectionsCount()
 	{
-		int result = 0;
-
-		LinkedList<Machine> machinesDup = getMachinesDup();
-		for (Machine curMachine : machinesDup)
-		{
-			result += curMachine.getConnsCount();
-		}
-
-		return result;
+		return flows.size();
 	}
 
 	public DisplayTable webGuiMachineList(String machineDetailsLink)
@@ -355,20 +407,4 @@ public class RemoteMachineList
 
 		return result;
 	}
-
-	public void releaseTimeoutBuffers(int sndChunkBufferTimeoutMillis)
-	{
-		long lastAllowedActionTime = System.currentTimeMillis() - sndChunkBufferTimeoutMillis;
-
-		synchronized (machines)
-		{
-			Iterator<Machine> it = machines.values().iterator();
-			while (it.hasNext())
-			{
-				Machine curMachine = it.next();
-				// Cleanup connections
-				curMachine.releaseTimeoutBuffers(lastAllowedActionTime);
-			}
-		}
-	}
 }
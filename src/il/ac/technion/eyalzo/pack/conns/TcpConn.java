@@ -2,9 +2,14 @@ package il.ac.technion.eyalzo.pack.conns;
 
 import il.ac.technion.eyalzo.NFQueue.Verdict;
 import il.ac.technion.eyalzo.net.TCPPacket;
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.ShardTask;
+import il.ac.technion.eyalzo.pack.ShardWorker;
+import il.ac.technion.eyalzo.util.TimerWheel;
 import il.ac.technion.eyalzo.webgui.DisplayTable;
 
-import java.util.LinkedList;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class TcpConn
 {
@@ -40,11 +45,53 @@ public abstract class TcpConn
 	long lastPacketTime;
 	long lostPacket = 0;
 	long gotPacket = 0;
+	/**
+	 * Remote machine, set when the connection is tracked.
+	 */
+	Machine machine;
+	/**
+	 * Key in {@link FlowTable}, set when the connection is tracked.
+	 */
+	long flowAddrs;
+	int flowPorts;
+	/**
+	 * Key in the machine's connections, set when the connection is tracked.
+	 */
+	InetSocketAddress localAddr;
+	/**
+	 * Packets of this connection that a headers-only queue re-queued for a full copy, and the full-copy queue did not
+	 * handle yet. While there are any, the next packets of the connection in that queue are re-queued too, so they
+	 * keep their order on the full-copy queue.
+	 */
+	public final AtomicInteger requeued = new AtomicInteger();
+	/**
+	 * Removes the connection when it may have had no packets for {@link RemoteMachineList#TTL_MILLIS}. With shards,
+	 * the connection's shard does it, after its earlier packets.
+	 */
+	final TimerWheel.Timer idleTimer = new TimerWheel.Timer()
+	{
+		@Override
+		protected void expire(long now)
+		{
+			if (ShardWorker.isEnabled())
+				ShardWorker.post(flowAddrs, flowPorts, idleTask);
+			else
+				expireIdle(now);
+		}
+	};
+	private final ShardTask idleTask = new ShardTask()
+	{
+		@Override
+		protected void run(TCPPacket tcp)
+		{
+			expireIdle(System.currentTimeMillis());
+		}
+	};
 
 	/**
-	 * Events during the connection time.
+	 * Recent events during the connection time, see {@link Main#connEventsDepth}.
 	 */
-	protected LinkedList<TcpEvent> tcpEvents = new LinkedList<TcpEvent>();
+	protected final TcpEventRing tcpEvents = new TcpEventRing(Main.connEventsDepth, Main.connEventsSampling);
 
 	//
 	// Windows
@@ -57,6 +104,10 @@ public abstract class TcpConn
 	 * Number of bits to move to the left (1 less than the sent scaling).
 	 */
 	protected int remoteWindowScaling;
+	/**
+	 * MSS the remote announced in its SYN or SYN+ACK, that limits the local's outgoing segments, or zero if not seen.
+	 */
+	protected int remoteMss;
 	/**
 	 * Without scaling.
 	 */
@@ -134,6 +185,20 @@ public abstract class TcpConn
 		}
 	}
 
+	/**
+	 * Keep the MSS of the remote, from its SYN or SYN+ACK.
+	 * 
+	 * @param dirOut
+	 *            Direction of the SYN or SYN+ACK, where only incoming is of the remote.
+	 * @param mss
+	 *            The packet's MSS option, or zero if it has none.
+	 */
+	void setRemoteMss(boolean dirOut, int mss)
+	{
+		if (!dirOut && mss > 0)
+			this.remoteMss = mss;
+	}
+
 	/**
 	 * Handle incoming or outgoing packet.
 	 * <p>
@@ -149,6 +214,14 @@ public abstract class TcpConn
 	 */
 	public abstract Verdict handlePacket(boolean dirOut, TCPPacket tcp, byte[] rawIpPacket);
 
+	/**
+	 * @return The remote machine, that holds this connection for the web GUI and statistics.
+	 */
+	public Machine getMachine()
+	{
+		return machine;
+	}
+
 	/**
 	 * Caught SYN+ACK. No need for direction as we assume that it is no the side who sent the SYN that initiated the
 	 * connection.
@@ -221,64 +294,72 @@ public abstract class TcpConn
 		return TcpUtils.tcpSequenceDiff(this.remoteSeqStart, seqAbs);
 	}
 
-	public TcpEventHttpResponse addEventHttpResponse(boolean dirUp, long localSeq, long remoteSeq, int responseCode,
-			int headerLen, long contentLength, String contentType)
+	/**
+	 * Record an event in the ring and in the global trace, if any. The values are by type, see the add methods.
+	 */
+	protected void addEvent(TcpEventType type, boolean dirUp, int flags, long localSeq, long remoteSeq, int count,
+			long value0, long value1, long value2, String text0, String text1)
 	{
-		TcpEventHttpResponse event = new TcpEventHttpResponse(dirUp, localSeq, remoteSeq, responseCode, headerLen,
-				contentLength, contentType);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
+		long now = System.currentTimeMillis();
+		if (dirUp)
+			flags |= TcpEventRing.FLAG_DIR_UP;
+
+		TcpEventTrace trace = TcpEventTrace.getTrace();
+		if (trace != null)
+			trace.write(serial, type, flags, now, localSeq, remoteSeq, count, value0, value1, value2);
 
-		return event;
+		tcpEvents.add(type, flags, (int) (now - startTime), localSeq, remoteSeq, count, value0, value1, value2,
+				text0, text1);
 	}
 
-	public TcpEventHttpRequest addEventHttpRequest(boolean dirUp, long localSeq, long remoteSeq, String hostName,
-			String url)
+	/**
+	 * @param headerLen
+	 *            Optional. Length of the HTTP header including the ending double newline. May be -1 if the header end
+	 *            was not detected (when in second packet etc).
+	 */
+	public void addEventHttpResponse(boolean dirUp, long localSeq, long remoteSeq, int responseCode, int headerLen,
+			long contentLength, String contentType)
 	{
-		TcpEventHttpRequest event = new TcpEventHttpRequest(dirUp, localSeq, remoteSeq, hostName, url);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.HTTP_RESPONSE, dirUp, 0, localSeq, remoteSeq, responseCode, contentLength, headerLen,
+				0, contentType, null);
 	}
 
-	public TcpEventFirstAnchor addEventFirstAnchor(boolean dirUp, long localSeq, long remoteSeq)
+	public void addEventHttpRequest(boolean dirUp, long localSeq, long remoteSeq, String hostName, String url)
 	{
-		TcpEventFirstAnchor event = new TcpEventFirstAnchor(dirUp, localSeq, remoteSeq);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.HTTP_REQUEST, dirUp, 0, localSeq, remoteSeq, 0, 0, 0, 0, hostName, url);
 	}
 
-	public TcpEventClose addEventClose(boolean dirUp, long localSeq, long remoteSeq, boolean isFin)
+	public void addEventFirstAnchor(boolean dirUp, long localSeq, long remoteSeq)
 	{
-		TcpEventClose event = new TcpEventClose(dirUp, localSeq, remoteSeq, isFin);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.FIRST_ANCHOR, dirUp, 0, localSeq, remoteSeq, 0, 0, 0, 0, null, null);
 	}
 
-	public TcpEventChunk addEventChunk(long localSeq, long remoteSeq, long signature, int chunkLen,
-			int receiverWindowSize, boolean chunkInFile, boolean matchExpected)
+	/**
+	 * @param isFin
+	 *            True for FIN or false for RST.
+	 */
+	public void addEventClose(boolean dirUp, long localSeq, long remoteSeq, boolean isFin)
 	{
-		TcpEventChunk event = new TcpEventChunk(localSeq, remoteSeq, signature, chunkLen, receiverWindowSize,
-				chunkInFile, matchExpected);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
+		addEvent(TcpEventType.CLOSE, dirUp, isFin ? TcpEventRing.FLAG_FIN : 0, localSeq, remoteSeq, 0, 0, 0, 0, null,
+				null);
+	}
 
-		return event;
+	/**
+	 * @param signature
+	 *            Stamp of the chunk that ends before this anchor.
+	 * @param receiverWindowSize
+	 *            Window size of sender when chunk was detected.
+	 * @param chunkInFile
+	 *            True if chunk was also found in file.
+	 * @param matchExpected
+	 *            True if matched the expected next chunk by a chain.
+	 */
+	public void addEventChunk(long localSeq, long remoteSeq, long signature, int chunkLen, int receiverWindowSize,
+			boolean chunkInFile, boolean matchExpected)
+	{
+		addEvent(TcpEventType.CHUNK, false, (chunkInFile ? TcpEventRing.FLAG_IN_FILE : 0)
+				| (matchExpected ? TcpEventRing.FLAG_MATCH : 0), localSeq, remoteSeq, chunkLen, signature,
+				receiverWindowSize, 0, null, null);
 	}
 
 	/**
@@ -290,12 +371,12 @@ public abstract class TcpConn
 		return globalSerial - 1;
 	}
 
-	public int getEventsCount()
+	/**
+	 * @return Number of events so far, including those that are no longer kept.
+	 */
+	public long getEventsCount()
 	{
-		synchronized (tcpEvents)
-		{
-			return tcpEvents.size();
-		}
+		return tcpEvents.getStatEvents();
 	}
 
 	/**
@@ -322,120 +403,119 @@ public abstract class TcpConn
 
 		synchronized (tcpEvents)
 		{
-			for (TcpEvent curEvent : tcpEvents)
+			for (int i = 0; i < tcpEvents.size(); i++)
 			{
+				TcpEventType type = tcpEvents.getType(i);
+
 				//
 				// Filter
 				//
 				if (!showChunks)
 				{
-					if (!(curEvent instanceof TcpEventHttpRequest || curEvent instanceof TcpEventHttpResponse))
+					if (!(type == TcpEventType.HTTP_REQUEST || type == TcpEventType.HTTP_RESPONSE))
 						continue;
 				}
 
 				if (!showHttp)
 				{
-					if (!(curEvent instanceof TcpEventChunk || curEvent instanceof TcpEventFirstAnchor
-							|| curEvent instanceof TcpEventSndSign || curEvent instanceof TcpEventSndPredSkip || curEvent instanceof TcpEventPredIn))
+					if (!(type == TcpEventType.CHUNK || type == TcpEventType.FIRST_ANCHOR
+							|| type == TcpEventType.SND_SIGN || type == TcpEventType.SND_PRED_SKIP || type == TcpEventType.PRED_IN))
 						continue;
 				}
 
-				table.addRow(curEvent.getColor());
+				table.addRow(type == TcpEventType.SND_SIGN && !tcpEvents.isSet(i, TcpEventRing.FLAG_MATCH) ? "#a00000"
+						: type.color);
 
 				// Time
-				table.addCell(curEvent.time - this.startTime);
+				table.addCell((long) tcpEvents.getTime(i));
 				// Direction
-				table.addCell(curEvent.dirUp ? "^" : null);
+				table.addCell(tcpEvents.isSet(i, TcpEventRing.FLAG_DIR_UP) ? "^" : null);
 				// Local sequence where absolute zero means that there was no
 				// ACK
-				table.addCell(curEvent.localSeq == 0 ? null : TcpUtils.tcpSequenceDiff(this.localSeqStart,
-						curEvent.localSeq));
+				long localSeq = tcpEvents.getLocalSeq(i);
+				table.addCell(localSeq == 0 ? null : TcpUtils.tcpSequenceDiff(this.localSeqStart, localSeq));
 				// Remote sequence where absolute zero means that there was no
 				// ACK
-				table.addCell(curEvent.remoteSeq == 0 ? null : TcpUtils.tcpSequenceDiff(this.remoteSeqStart,
-						curEvent.remoteSeq));
+				long remoteSeq = tcpEvents.getRemoteSeq(i);
+				table.addCell(remoteSeq == 0 ? null : TcpUtils.tcpSequenceDiff(this.remoteSeqStart, remoteSeq));
 				// Type
-				table.addCell(curEvent.getType());
+				table.addCell(type.name);
 
 				//
 				// Per type
 				//
-				if (curEvent instanceof TcpEventHttpRequest)
+				switch (type)
+				{
+				case HTTP_REQUEST:
 				{
-					// Properties
-					TcpEventHttpRequest request = (TcpEventHttpRequest) curEvent;
+					String hostName = tcpEvents.getText(i, 0);
+					String url = tcpEvents.getText(i, 1);
 					// Val 1 - host name
-					table.addCell(request.hostName);
+					table.addCell(hostName);
 					// Val 2 - URL
-					String displayUrl = request.url;
+					String displayUrl = url;
 					if (displayUrl.length() > MAX_DISPLAY_URL_CHARS)
 					{
 						displayUrl = displayUrl.substring(0, MAX_DISPLAY_URL_CHARS) + "...";
 					}
-					String link = (request.hostName == null || request.hostName.equals("")) ? null : "http://"
-							+ request.hostName + request.url;
+					String link = (hostName == null || hostName.equals("")) ? null : "http://" + hostName + url;
 					table.addCell(displayUrl, link);
-				} else if (curEvent instanceof TcpEventHttpResponse)
-				{
-					// Properties
-					TcpEventHttpResponse response = (TcpEventHttpResponse) curEvent;
-					table.addCell(response.responseCode);
-					table.addCell(response.contentLength);
-					table.addCell(response.headerLen);
-				} else if (curEvent instanceof TcpEventChunk)
-				{
-					// Properties
-					TcpEventChunk chunk = (TcpEventChunk) curEvent;
-					table.addCell(String.format("<code>%08x</code>", 0xffffffffL & chunk.signature), cmdChunkDetails
-							+ chunk.signature + "&" + paramLen + "=" + chunk.chunkLen);
-					// table.addCell(chunk.chunkLen);
-					table.addCell(chunk.matchExpected ? (chunk.chunkInFile ? "match+file" : "match")
-							: (chunk.chunkInFile ? "file" : null));
-					table.addCell(chunk.chunkLen);
-				} else if (curEvent instanceof TcpEventSndSign)
+					break;
+				}
+				case HTTP_RESPONSE:
+					// Response code
+					table.addCell(tcpEvents.getCount(i));
+					// Content length
+					table.addCell(tcpEvents.getValue(i, 0));
+					// Header length
+					table.addCell((int) tcpEvents.getValue(i, 1));
+					break;
+				case CHUNK:
 				{
-					TcpEventSndSign sign = (TcpEventSndSign) curEvent;
+					long signature = tcpEvents.getValue(i, 0);
+					int chunkLen = tcpEvents.getCount(i);
+					boolean chunkInFile = tcpEvents.isSet(i, TcpEventRing.FLAG_IN_FILE);
+					table.addCell(String.format("<code>%08x</code>", 0xffffffffL & signature), cmdChunkDetails
+							+ signature + "&" + paramLen + "=" + chunkLen);
+					table.addCell(tcpEvents.isSet(i, TcpEventRing.FLAG_MATCH) ? (chunkInFile ? "match+file"
+							: "match") : (chunkInFile ? "file" : null));
+					table.addCell(chunkLen);
+					break;
+				}
+				case SND_SIGN:
 					// Match?
-					table.addCell(sign.match ? "match" : "mismatch");
+					table.addCell(tcpEvents.isSet(i, TcpEventRing.FLAG_MATCH) ? "match" : "mismatch");
 					// Signature
-					table.addCell(String.format("<code>%08x</code>", 0xffffffffL & sign.signature));
+					table.addCell(String.format("<code>%08x</code>", 0xffffffffL & tcpEvents.getValue(i, 0)));
 					// Chunk length
-					table.addCell(sign.chunkLen);
-				} else if (curEvent instanceof TcpEventSndPredSkip)
-				{
-					TcpEventSndPredSkip skip = (TcpEventSndPredSkip) curEvent;
-					table.addCell(skip.missing);
-				} else if (curEvent instanceof TcpEventPredSent)
-				{
-					// Properties
-					TcpEventPred pred = (TcpEventPred) curEvent;
-					table.addCell(pred.chunks);
+					table.addCell(tcpEvents.getCount(i));
+					break;
+				case SND_PRED_SKIP:
+					// Missing bytes
+					table.addCell(tcpEvents.getCount(i));
+					break;
+				case PRED_SENT:
+				case PRED_OVERLAP:
+					// Chunks
+					table.addCell(tcpEvents.getCount(i));
 					// Prediction start, relative TCP sequence
-					table.addCell(pred.predSeqStartRel);
+					table.addCell(tcpEvents.getValue(i, 0));
 					// Prediction end, relative TCP sequence
-					table.addCell(pred.predSeqEndRel);
-				} else if (curEvent instanceof TcpEventPredOverlap)
-				{
-					// Properties
-					TcpEventPred pred = (TcpEventPred) curEvent;
-					table.addCell(pred.chunks);
+					table.addCell(tcpEvents.getValue(i, 1));
+					break;
+				case PRED_IN:
+					// Max sent, relative TCP sequence
+					table.addCell(tcpEvents.getValue(i, 2));
 					// Prediction start, relative TCP sequence
-					table.addCell(pred.predSeqStartRel);
+					table.addCell(tcpEvents.getValue(i, 0));
 					// Prediction end, relative TCP sequence
-					table.addCell(pred.predSeqEndRel);
-				} else if (curEvent instanceof TcpEventPredIn)
-				{
-					// Properties
-					TcpEventPredIn pred = (TcpEventPredIn) curEvent;
-					table.addCell(pred.localSeqMaxSentRel);
-					// Prediction start, relative TCP sequence
-					table.addCell(pred.predSeqStartRel);
-					// Prediction end, relative TCP sequence
-					table.addCell(pred.predSeqEndRel);
-				} else if (curEvent instanceof TcpEventClose)
-				{
-					// Properties
-					table.addCell(curEvent.toString());
+					table.addCell(tcpEvents.getValue(i, 1));
+					break;
+				case CLOSE:
+					table.addCell(tcpEvents.isSet(i, TcpEventRing.FLAG_FIN) ? "FIN" : "RST");
+					break;
+				default:
+					break;
 				}
 			}
 		}
@@ -443,8 +523,24 @@ public abstract class TcpConn
 		return table;
 	}
 
+	/**
+	 * Remove the connection if it had no packets for {@link RemoteMachineList#TTL_MILLIS}, or check again later.
+	 */
+	private void expireIdle(long now)
+	{
+		if (!machine.expireConnection(this, now))
+			machine.getTimers().schedule(idleTimer, lastPacketTime + RemoteMachineList.TTL_MILLIS);
+	}
+
 	public abstract DisplayTable webGuiDetails();
 
+	/**
+	 * Called once the connection is no longer tracked, to release what it holds.
+	 */
+	void removed()
+	{
+	}
+
 	/**
 	 * 
 	 * @return True if the SYN+ACK was detected already.
@@ -30,6 +30,11 @@ public class TcpConnRcv extends TcpConn
 	 * Connection buffer for traffic from sender to receiver.
 	 */
 	protected ConnBuffer buffer;
+	/**
+	 * True after an incoming FIN, when the buffer is released once the data up to {@link #remoteFinSeq} arrived.
+	 */
+	private boolean remoteFin;
+	private long remoteFinSeq;
 
 	//
 	// Prediction related
@@ -131,6 +136,16 @@ public class TcpConnRcv extends TcpConn
 			// Remember the event
 			addEventClose(dirOut, localSeq, remoteSeq, tcp.isSet(TCPPacket.MASK_FIN));
 
+			// No more incoming data, so the buffer can go back to the pool, but after a FIN only when retransmissions
+			// are not expected to fill holes before it
+			if (!dirOut && tcp.isSet(TCPPacket.MASK_FIN))
+			{
+				remoteFin = true;
+				remoteFinSeq = remoteSeq;
+			}
+			if (buffer != null && (tcp.isSet(TCPPacket.MASK_RST) || remoteFin && buffer.isCompleteTo(remoteFinSeq)))
+				buffer.release();
+
 			// Show statistics by role: sender out bytes or receiver in bytes
 			if (Main.debugLevel >= 4)
 				System.out.println(String.format("   %,d: RCV %,d end %s %s %,d known %,d cache, %,d/%,d lost/got", this.serial,
@@ -151,23 +166,28 @@ public class TcpConnRcv extends TcpConn
 			// It has to be true
 			if (ackLength != null)
 			{
-				// Check if actually sent such a prediction
+				// Check if actually sent such a prediction, with the content that was kept since, even if evicted
+				byte[] content = predSent.popContent(remoteSeq);
 				ChunkItem chunk = predSent.popChunk(remoteSeq);
+				// Not kept for long, so loaded again, from the store if needed
+				if (content == null && chunk != null)
+					content = Main.contents.get(chunk);
 
 				// Send the data internally to itself
-				if (chunk != null)
+				if (content != null)
 				{
 					// Statistics
 					statBytesPredAck += ackLength;
 					// Try to use the data internally, before it is being sent
-					handleMatchedPackAck(remoteSeq, chunk);
+					handleMatchedPackAck(remoteSeq, chunk, content);
 					// Send the data to the TCP stack so the application gets it
-					SpoofThread.sendAcknowledgedChunkIn(rawIpPacket, remoteSeq, chunk);
+					SpoofThread.sendAcknowledgedChunkIn(rawIpPacket, remoteSeq, content);
 				}
 
 				if (Main.debugLevel >= 4)
 					System.out.println(String.format("      %,d: RCV %,d pack ACK for %,d bytes, %s", this.serial,
-							relativeSeq, ackLength, chunk != null ? "match" : "no match !"));
+							relativeSeq, ackLength, content != null ? "match" : chunk != null ? "evicted !"
+									: "no match !"));
 			}
 			// Quit here since it cannot be used for anything else
 			return Verdict.NF_ACCEPT;
@@ -194,7 +214,14 @@ public class TcpConnRcv extends TcpConn
 			return Verdict.NF_ACCEPT;
 
 		// Incoming data
-		handleReceiverIncomingData(tcp, rawIpPacket);
+		handleReceiverIncomingData(tcp);
+
+		// Predictions before the data were not ACKed in time, so their content is not held any longer
+		predSent.releaseContentsBefore(remoteSeq);
+
+		// The last hole before the FIN was filled
+		if (remoteFin && buffer.isCompleteTo(remoteFinSeq))
+			buffer.release();
 
 		return Verdict.NF_ACCEPT;
 	}
@@ -206,15 +233,17 @@ public class TcpConnRcv extends TcpConn
 	 *            TCP sequence of the first byte of the chunk.
 	 * @param chunk
 	 *            The approved chunk itself.
+	 * @param content
+	 *            The chunk's content, as it was when the ACK arrived.
 	 */
-	private void handleMatchedPackAck(long tcpSeq, ChunkItem chunk)
+	private void handleMatchedPackAck(long tcpSeq, ChunkItem chunk, byte[] content)
 	{
 		synchronized (buffer)
 		{
 			// Normally there is no need to actually copy it
 			if (!buffer.handleMatchedPackAck(tcpSeq, chunk))
 			{
-				buffer.addData(chunk.getContent(), 0, chunk.getLength(), tcpSeq);
+				buffer.addData(content, 0, chunk.getLength(), tcpSeq);
 
 				return;
 			}
@@ -240,7 +269,7 @@ public class TcpConnRcv extends TcpConn
 		}
 	}
 
-	private void handleReceiverIncomingData(TCPPacket tcp, byte[] rawIpPacket)
+	private void handleReceiverIncomingData(TCPPacket tcp)
 	{
 		//
 		// Incoming data
@@ -250,8 +279,8 @@ public class TcpConnRcv extends TcpConn
 
 		synchronized (buffer)
 		{
-			buffer.addData(rawIpPacket, tcp.getCombinedHeaderByteLength(), tcp.getTCPDataByteLength(), tcp
-					.getSequenceNumber());
+			// The packet may be a view over the capture buffer, so take the payload from the packet itself
+			buffer.addData(tcp);
 
 			// Loop through all the anchors (usually there will be no more than one)
 			while (true)
@@ -288,9 +317,9 @@ public class TcpConnRcv extends TcpConn
 				// Count that stream
 				curChunk.incStatStreamCount();
 
-				// If the chunk is not part of a file already, then save the content in the chunk's buffer
-				if (curChunk.getFilesCount() == 0)
-					curChunk.setContent(buffer.getChunkDup());
+				// If the chunk is not part of a file already, then save the content in the cache
+				if (curChunk.getFilesCount() == 0 && !Main.contents.use(curChunk))
+					Main.contents.put(curChunk, buffer.getChunkDup());
 
 				// Expected chunk by its own memory
 				ChunkItem expectedChunk = null;
@@ -393,9 +422,15 @@ public class TcpConnRcv extends TcpConn
 						return;
 				} else
 				{
+					// The content is needed when the prediction is ACKed, so stop at a chunk that is not cached, and keep
+					// it with the prediction in case it is evicted before the ACK
+					byte[] content = Main.contents.get(predChunk);
+					if (content == null)
+						return;
+
 					added = true;
 					// Subsequent so just add
-					predOutbox.addPredChunk(tcpSeq, predChunk);
+					predOutbox.addPredChunk(tcpSeq, predChunk, content);
 					//				System.err.println("outbox " + predOutbox.size() + ": " + (tcpSeq - this.remoteSeqStart));
 				}
 
@@ -468,6 +503,13 @@ public class TcpConnRcv extends TcpConn
 		}
 	}
 
+	@Override
+	void removed()
+	{
+		if (buffer != null)
+			buffer.release();
+	}
+
 	public DisplayTable webGuiDetails()
 	{
 		DisplayTable table = new DisplayTable();
@@ -499,15 +541,9 @@ public class TcpConnRcv extends TcpConn
 	 * @param predSeqEndRel
 	 *            TCP sequence of the prediction's end, inclusive (relative offset to start).
 	 */
-	public TcpEventPred addEventPredSent(long localSeq, long remoteSeq, int chunks, long predSeqStartRel,
-			long predSeqEndRel)
+	public void addEventPredSent(long localSeq, long remoteSeq, int chunks, long predSeqStartRel, long predSeqEndRel)
 	{
-		TcpEventPredSent event = new TcpEventPredSent(localSeq, remoteSeq, chunks, predSeqStartRel, predSeqEndRel);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.PRED_SENT, true, 0, localSeq, remoteSeq, chunks, predSeqStartRel, predSeqEndRel, 0,
+				null, null);
 	}
 }
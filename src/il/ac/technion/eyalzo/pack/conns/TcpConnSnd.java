@@ -4,11 +4,13 @@ import il.ac.technion.eyalzo.NFQueue.Verdict;
 import il.ac.technion.eyalzo.net.TCPPacket;
 import il.ac.technion.eyalzo.pack.Main;
 import il.ac.technion.eyalzo.pack.PackUtils;
-import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.ShardTask;
+import il.ac.technion.eyalzo.pack.ShardWorker;
 import il.ac.technion.eyalzo.pack.TimeoutThread;
 import il.ac.technion.eyalzo.pack.pred.PredInChunk;
 import il.ac.technion.eyalzo.pack.pred.PredInList;
 import il.ac.technion.eyalzo.pack.spoof.SpoofThread;
+import il.ac.technion.eyalzo.util.TimerWheel;
 import il.ac.technion.eyalzo.webgui.DisplayTable;
 
 import java.nio.ByteBuffer;
@@ -29,7 +31,39 @@ public class TcpConnSnd extends TcpConn
 	 * When buffering started, to better understand retransmissions.
 	 */
 	private long curPredBufferingStartTime;
+	/**
+	 * Releases the buffered chunk if the receiver did not acknowledge it in time, see {@link #expireBuffer(long)}.
+	 * With shards, the connection's shard does it, after its earlier packets.
+	 */
+	private final TimerWheel.Timer bufferTimer = new TimerWheel.Timer()
+	{
+		@Override
+		protected void expire(long now)
+		{
+			if (ShardWorker.isEnabled())
+				ShardWorker.post(flowAddrs, flowPorts, bufferTask);
+			else
+				expireBuffer(now);
+		}
+	};
+	private final ShardTask bufferTask = new ShardTask()
+	{
+		@Override
+		protected void run(TCPPacket tcp)
+		{
+			expireBuffer(System.currentTimeMillis());
+		}
+	};
 	private byte[] rawIpPacketForSpoof;
+	/**
+	 * One MSS-sized segment of an outgoing GSO super-packet. Allocated on the first super-packet.
+	 */
+	private byte[] segmentBuf;
+	private TCPPacket segmentTcp;
+	/**
+	 * Verdict of each segment of the current super-packet, true if accepted. Grows to the most segments seen.
+	 */
+	private boolean[] segmentAccepted;
 	private Random randDebugSha1 = new Random();
 
 	//
@@ -127,7 +161,7 @@ public class TcpConnSnd extends TcpConn
 		Main.debugSha1 = 0;
 		if (Main.debugSha1 > 0 && dirOut && !noTcpPayload && (Main.debugSha1 >= 100 || Main.debugSha1 > randDebugSha1.nextInt(100)))
 		{
-			RabinUtils.calculateSha1(rawIpPacket, tcp.getCombinedHeaderByteLength(), tcpPayloadSize);
+			Main.signature.sign(rawIpPacket, tcp.getCombinedHeaderByteLength(), tcpPayloadSize);
 
 			return Verdict.NF_ACCEPT;
 		}
@@ -136,7 +170,11 @@ public class TcpConnSnd extends TcpConn
 		// Sender: Outgoing payload packets - possibly a match with incoming predictions
 		//
 		if (dirOut && !noTcpPayload && !predInbox.isEmpty())
+		{
+			if (tcpPayloadSize > getSegmentPayloadSize(rawIpPacket))
+				return handlePacketOutSuperData(rawIpPacket, localSeq, remoteSeq, tcpPayloadSize);
 			return handlePacketOutData(tcp, rawIpPacket, localSeq, remoteSeq, relativeSeq, tcpPayloadSize);
+		}
 
 		//
 		// Sender: Incoming PRED ?
@@ -274,6 +312,7 @@ public class TcpConnSnd extends TcpConn
 			// Remember the current chunk, to continue with buffer or skip
 			curPredBuffering = chunk;
 			curPredBufferingStartTime = System.currentTimeMillis();
+			armBufferTimer();
 
 			// Save a raw IP packet just once, for safer and simpler spoofing of data (if needed)
 			if (rawIpPacketForSpoof == null)
@@ -363,6 +402,7 @@ public class TcpConnSnd extends TcpConn
 			// Move to the second chunk from now on
 			curPredBuffering = chunk;
 			curPredBufferingStartTime = System.currentTimeMillis();
+			armBufferTimer();
 
 			// Add the relevant outgoing data to it
 			bufferedBytes = chunk.addOutData(rawIpPacket);
@@ -409,6 +449,90 @@ public class TcpConnSnd extends TcpConn
 		return verdict;
 	}
 
+	/**
+	 * Handle sender's outgoing GSO super-packet, bigger than the MSS and possibly bigger than chunks. It is cut to the
+	 * segments it would become on the wire, and each one goes through
+	 * {@link #handlePacketOutData(TCPPacket, byte[], long, long, long, int)}. If none was dropped the super-packet is
+	 * accepted as is, and otherwise it is dropped and the accepted segments are sent instead.
+	 */
+	private synchronized Verdict handlePacketOutSuperData(byte[] rawIpPacket, long localSeq, long remoteSeq,
+			int tcpPayloadSize)
+	{
+		int headersLen = TcpUtils.getCombinedHeadersLen(rawIpPacket);
+		int segmentPayloadSize = getSegmentPayloadSize(rawIpPacket);
+		int segments = (tcpPayloadSize + segmentPayloadSize - 1) / segmentPayloadSize;
+
+		if (segmentBuf == null || segmentBuf.length < headersLen + segmentPayloadSize)
+		{
+			segmentBuf = new byte[headersLen + segmentPayloadSize];
+			segmentTcp = new TCPPacket(segmentBuf.length);
+		}
+		if (segmentAccepted == null || segmentAccepted.length < segments)
+			segmentAccepted = new boolean[segments];
+		boolean[] accepted = segmentAccepted;
+		boolean dropped = false;
+
+		for (int i = 0; i < segments; i++)
+		{
+			int offset = i * segmentPayloadSize;
+			int length = Math.min(segmentPayloadSize, tcpPayloadSize - offset);
+			long segmentSeq = TcpUtils.tcpSequenceAdd(localSeq, offset);
+
+			fillSegment(rawIpPacket, headersLen, offset, length, segmentSeq);
+			segmentTcp.setData(segmentBuf, false);
+
+			Verdict verdict = handlePacketOutData(segmentTcp, segmentBuf, segmentSeq, remoteSeq, TcpUtils
+					.tcpSequenceDiff(this.localSeqStart, segmentSeq), length);
+			accepted[i] = verdict == Verdict.NF_ACCEPT;
+			dropped |= !accepted[i];
+		}
+
+		if (!dropped)
+			return Verdict.NF_ACCEPT;
+
+		// The super-packet is dropped, so send the segments that should have passed
+		for (int i = 0; i < segments; i++)
+		{
+			if (!accepted[i])
+				continue;
+
+			int offset = i * segmentPayloadSize;
+			int length = Math.min(segmentPayloadSize, tcpPayloadSize - offset);
+			fillSegment(rawIpPacket, headersLen, offset, length, TcpUtils.tcpSequenceAdd(localSeq, offset));
+			SpoofThread.sendShorter(segmentBuf, length);
+		}
+
+		if (Main.debugLevel >= 5)
+			System.out.println(String.format("      %,d: SND %,d super-packet of %,d bytes in %,d segments", this.serial,
+					TcpUtils.tcpSequenceDiff(this.localSeqStart, localSeq), tcpPayloadSize, segments));
+
+		return Verdict.NF_DROP;
+	}
+
+	/**
+	 * @return Payload bytes per segment that the given outgoing packet is cut to on the wire, which is the remote's MSS
+	 *         less the TCP options, like the kernel's gso_size. By {@link TcpUtils#PACKET_SIZE} if no MSS was seen.
+	 */
+	private int getSegmentPayloadSize(byte[] rawIpPacket)
+	{
+		if (remoteMss <= 0)
+			return TcpUtils.PACKET_SIZE - TcpUtils.getCombinedHeadersLen(rawIpPacket);
+
+		int optionsLen = TcpUtils.getTcpHeaderBytesLen(rawIpPacket) - TcpUtils.MIN_TCP_HEADER_LEN_BYTES;
+		return Math.max(1, remoteMss - optionsLen);
+	}
+
+	/**
+	 * Copy the headers of the given packet and a part of its payload to {@link #segmentBuf}.
+	 */
+	private void fillSegment(byte[] rawIpPacket, int headersLen, int payloadOffset, int payloadLength, long tcpSeq)
+	{
+		System.arraycopy(rawIpPacket, 0, segmentBuf, 0, headersLen);
+		System.arraycopy(rawIpPacket, headersLen + payloadOffset, segmentBuf, headersLen, payloadLength);
+		TcpUtils.setIpTotalLen(segmentBuf, headersLen + payloadLength);
+		TcpUtils.setTcpSeq(segmentBuf, tcpSeq);
+	}
+
 	public synchronized void releaseCurrentBuffer()
 	{
 		if (Main.debugLevel >= 5)
@@ -455,17 +579,11 @@ public class TcpConnSnd extends TcpConn
 	 * @param predSeqEndRel
 	 *            TCP sequence of the prediction's end, inclusive (relative offset to start).
 	 */
-	public TcpEventPred addEventPredIn(long localSeq, long remoteSeq, long localSeqMaxSentRel, int chunks,
+	public void addEventPredIn(long localSeq, long remoteSeq, long localSeqMaxSentRel, int chunks,
 			long predSeqStartRel, long predSeqEndRel)
 	{
-		TcpEventPredIn event = new TcpEventPredIn(localSeq, remoteSeq, localSeqMaxSentRel, chunks, predSeqStartRel,
-				predSeqEndRel);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.PRED_IN, false, 0, localSeq, remoteSeq, chunks, predSeqStartRel, predSeqEndRel,
+				localSeqMaxSentRel, null, null);
 	}
 
 	/**
@@ -476,61 +594,39 @@ public class TcpConnSnd extends TcpConn
 	 * @param predSeqEndRel
 	 *            TCP sequence of the last byte in the overlapping chunk, inclusive (relative offset to start).
 	 */
-	public TcpEventPred addEventPredOverlap(long localSeq, long remoteSeq, int chunks, long predSeqStartRel,
+	public void addEventPredOverlap(long localSeq, long remoteSeq, int chunks, long predSeqStartRel,
 			long predSeqEndRel)
 	{
-		TcpEventPredOverlap event = new TcpEventPredOverlap(localSeq, remoteSeq, chunks, predSeqStartRel, predSeqEndRel);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.PRED_OVERLAP, true, 0, localSeq, remoteSeq, chunks, predSeqStartRel, predSeqEndRel, 0,
+				null, null);
 	}
 
 	/**
 	 * @param match
 	 *            True if signed and matched the prediction.
 	 */
-	public TcpEventSndSign addEventSndSign(long localSeq, long remoteSeq, boolean match, int signature, int chunkLen)
+	public void addEventSndSign(long localSeq, long remoteSeq, boolean match, int signature, int chunkLen)
 	{
-		TcpEventSndSign event = new TcpEventSndSign(localSeq, remoteSeq, match, signature, chunkLen);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.SND_SIGN, true, match ? TcpEventRing.FLAG_MATCH : 0, localSeq, remoteSeq, chunkLen,
+				signature, 0, 0, null, null);
 	}
 
 	/**
 	 * @param missing
 	 *            Number of missing bytes (already sent) to be able to fill the buffer and sign.
 	 */
-	public TcpEventSndPredSkip addEventSndPredSkip(long localSeq, long remoteSeq, int missing)
+	public void addEventSndPredSkip(long localSeq, long remoteSeq, int missing)
 	{
-		TcpEventSndPredSkip event = new TcpEventSndPredSkip(localSeq, remoteSeq, missing);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.SND_PRED_SKIP, true, 0, localSeq, remoteSeq, missing, 0, 0, 0, null, null);
 	}
 
 	/**
 	 * @param ackLength
 	 *            Length of acknowledged block (usually a single chunk).
 	 */
-	private TcpEventSndPredAck addEventSndPredAck(long localSeq, long remoteSeq, long ackLength)
+	private void addEventSndPredAck(long localSeq, long remoteSeq, long ackLength)
 	{
-		TcpEventSndPredAck event = new TcpEventSndPredAck(localSeq, remoteSeq, ackLength);
-		synchronized (tcpEvents)
-		{
-			tcpEvents.add(event);
-		}
-
-		return event;
+		addEvent(TcpEventType.SND_PRED_ACK, true, 0, localSeq, remoteSeq, 0, ackLength, 0, 0, null, null);
 	}
 
 	public boolean isBufferingBefore(long timeMillis)
@@ -538,6 +634,35 @@ public class TcpConnSnd extends TcpConn
 		return curPredBuffering != null && curPredBufferingStartTime < timeMillis;
 	}
 
+	/**
+	 * Make sure that {@link #expireBuffer(long)} is called when the current buffer times out.
+	 */
+	private void armBufferTimer()
+	{
+		if (machine != null)
+			machine.getTimers().schedule(bufferTimer,
+					curPredBufferingStartTime + TimeoutThread.getSndChunkTimeoutMillis() + 1);
+	}
+
+	/**
+	 * Release the current buffer if it was buffered for too long, or wait for it to time out, when it started after
+	 * the timer was set.
+	 */
+	synchronized void expireBuffer(long now)
+	{
+		if (curPredBuffering == null)
+			return;
+
+		if (!isBufferingBefore(now - TimeoutThread.getSndChunkTimeoutMillis()))
+		{
+			armBufferTimer();
+			return;
+		}
+
+		// Release the buffer and data
+		releaseCurrentBuffer();
+	}
+
 	/**
 	 * Use sender's outgoing data packet to generate a prediction-acknowledgment.
 	 */
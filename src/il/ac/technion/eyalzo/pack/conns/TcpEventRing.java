@@ -0,0 +1,258 @@
+package il.ac.technion.eyalzo.pack.conns;
+
+/**
+ * Recent events of a connection, in a ring of primitive columns, one slot per event, so memory is bounded by the depth
+ * and recording allocates nothing once the ring is full.
+ * <p>
+ * The columns grow on demand up to the depth, so quiet connections stay small. Frequent events of the data itself (see
+ * {@link TcpEventType#sampled}) may be sampled, one of each N, and the rare ones are always kept. The full history can
+ * go to the global {@link TcpEventTrace}.
+ * <p>
+ * The meaning of the generic columns depends on the type, see the add methods of {@link TcpConn}. Synchronized on
+ * itself, and readers should hold its lock while iterating, from the oldest event at 0 up to {@link #size()}.
+ */
+class TcpEventRing
+{
+	private static final int INITIAL_CAPACITY = 16;
+	static final int FLAG_DIR_UP = 1;
+	/**
+	 * Chunk matched the expected next chunk by a chain, or the signed block matched the prediction.
+	 */
+	static final int FLAG_MATCH = 2;
+	/**
+	 * Chunk was also found in a file.
+	 */
+	static final int FLAG_IN_FILE = 4;
+	/**
+	 * Closed by FIN and not RST.
+	 */
+	static final int FLAG_FIN = 8;
+	private static final int VALUES_PER_EVENT = 3;
+	private static final int TEXTS_PER_EVENT = 2;
+
+	/**
+	 * Max number of events kept.
+	 */
+	private final int depth;
+	/**
+	 * Keep one of each that many sampled events.
+	 */
+	private final int sampling;
+	private byte[] types;
+	private byte[] flags;
+	/**
+	 * Millis since the connection's start.
+	 */
+	private int[] times;
+	/**
+	 * TCP sequences, 32-bit.
+	 */
+	private int[] localSeqs;
+	private int[] remoteSeqs;
+	private int[] counts;
+	private long[] values;
+	/**
+	 * Allocated on the first event with text, as most connections carry no HTTP.
+	 */
+	private String[] texts;
+	/**
+	 * Slot of the next event.
+	 */
+	private int next;
+	private int size;
+	/**
+	 * Sampled events seen, kept or not.
+	 */
+	private long sampledSeen;
+
+	//
+	// Statistics
+	//
+	private long statEvents;
+
+	/**
+	 * @param depth
+	 *            Max number of events kept, or 0 to keep none.
+	 * @param sampling
+	 *            Keep one of each that many sampled events, or 1 to keep all.
+	 */
+	TcpEventRing(int depth, int sampling)
+	{
+		this.depth = Math.max(0, depth);
+		this.sampling = Math.max(1, sampling);
+	}
+
+	/**
+	 * Record an event, overwriting the oldest one if the ring is full.
+	 *
+	 * @param time
+	 *            Millis since the connection's start.
+	 * @param text0
+	 *            Optional text, or null.
+	 * @param text1
+	 *            Optional text, or null.
+	 * @return True if kept, false if dropped by sampling or with no depth.
+	 */
+	synchronized boolean add(TcpEventType type, int eventFlags, int time, long localSeq, long remoteSeq, int count,
+			long value0, long value1, long value2, String text0, String text1)
+	{
+		statEvents++;
+		if (depth == 0)
+			return false;
+		if (type.sampled && sampledSeen++ % sampling != 0)
+			return false;
+
+		if (types == null || (size == types.length && size < depth))
+			grow();
+
+		int slot = next;
+		types[slot] = (byte) type.ordinal();
+		flags[slot] = (byte) eventFlags;
+		times[slot] = time;
+		localSeqs[slot] = (int) localSeq;
+		remoteSeqs[slot] = (int) remoteSeq;
+		counts[slot] = count;
+		values[slot * VALUES_PER_EVENT] = value0;
+		values[slot * VALUES_PER_EVENT + 1] = value1;
+		values[slot * VALUES_PER_EVENT + 2] = value2;
+		if (text0 != null || text1 != null)
+		{
+			if (texts == null)
+				texts = new String[types.length * TEXTS_PER_EVENT];
+			texts[slot * TEXTS_PER_EVENT] = text0;
+			texts[slot * TEXTS_PER_EVENT + 1] = text1;
+		} else if (texts != null)
+		{
+			texts[slot * TEXTS_PER_EVENT] = null;
+			texts[slot * TEXTS_PER_EVENT + 1] = null;
+		}
+
+		next = (slot + 1) % types.length;
+		if (size < types.length)
+			size++;
+		return true;
+	}
+
+	/**
+	 * Double the columns, up to the depth. Called only before the first wrap, so the events stay in order.
+	 */
+	private void grow()
+	{
+		int capacity = types == null ? Math.min(INITIAL_CAPACITY, depth) : Math.min(types.length * 2, depth);
+		types = copyOf(types, capacity);
+		flags = copyOf(flags, capacity);
+		times = copyOf(times, capacity);
+		localSeqs = copyOf(localSeqs, capacity);
+		remoteSeqs = copyOf(remoteSeqs, capacity);
+		counts = copyOf(counts, capacity);
+		long[] newValues = new long[capacity * VALUES_PER_EVENT];
+		if (values != null)
+			System.arraycopy(values, 0, newValues, 0, values.length);
+		values = newValues;
+		if (texts != null)
+		{
+			String[] newTexts = new String[capacity * TEXTS_PER_EVENT];
+			System.arraycopy(texts, 0, newTexts, 0, texts.length);
+			texts = newTexts;
+		}
+		next = size;
+	}
+
+	private static byte[] copyOf(byte[] array, int capacity)
+	{
+		byte[] result = new byte[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static int[] copyOf(int[] array, int capacity)
+	{
+		int[] result = new int[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * @return Slot of the i'th kept event, oldest first.
+	 */
+	private int slot(int i)
+	{
+		return size < types.length ? i : (next + i) % types.length;
+	}
+
+	/**
+	 * @return Number of events kept.
+	 */
+	synchronized int size()
+	{
+		return size;
+	}
+
+	TcpEventType getType(int i)
+	{
+		return TcpEventType.valueOf(types[slot(i)]);
+	}
+
+	boolean isSet(int i, int flag)
+	{
+		return (flags[slot(i)] & flag) != 0;
+	}
+
+	/**
+	 * @return Millis since the connection's start.
+	 */
+	int getTime(int i)
+	{
+		return times[slot(i)];
+	}
+
+	/**
+	 * @return TCP sequence, 32-bit.
+	 */
+	long getLocalSeq(int i)
+	{
+		return localSeqs[slot(i)] & 0xffffffffL;
+	}
+
+	/**
+	 * @return TCP sequence, 32-bit.
+	 */
+	long getRemoteSeq(int i)
+	{
+		return remoteSeqs[slot(i)] & 0xffffffffL;
+	}
+
+	int getCount(int i)
+	{
+		return counts[slot(i)];
+	}
+
+	/**
+	 * @param index
+	 *            0 to 2.
+	 */
+	long getValue(int i, int index)
+	{
+		return values[slot(i) * VALUES_PER_EVENT + index];
+	}
+
+	/**
+	 * @param index
+	 *            0 or 1.
+	 * @return The text, or null.
+	 */
+	String getText(int i, int index)
+	{
+		return texts == null ? null : texts[slot(i) * TEXTS_PER_EVENT + index];
+	}
+
+	/**
+	 * @return Number of events so far, including those that were dropped or overwritten.
+	 */
+	synchronized long getStatEvents()
+	{
+		return statEvents;
+	}
+}
@@ -0,0 +1,187 @@
+package il.ac.technion.eyalzo.pack.conns;
+
+import il.ac.technion.eyalzo.pack.files.MappedFileReader;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Optional global trace of all the connection events, before sampling, for offline analysis of what the bounded
+ * {@link TcpEventRing} of each connection no longer holds.
+ * <p>
+ * Each event is appended as a fixed record of [8:connection serial] [1:type] [1:flags] [8:time] [4:local seq]
+ * [4:remote seq] [4:count] [8:value 0] [8:value 1] [8:value 2], with the columns of the ring, and the absolute time in
+ * millis. Texts, like HTTP URLs, are kept in the rings only. Records are buffered and written when the buffer is full
+ * and by {@link #flush()}.
+ * <p>
+ * Usage, to print a trace: <code>TcpEventTrace file</code>
+ */
+public class TcpEventTrace
+{
+	private static final int RECORD_LEN = 54;
+	/**
+	 * Records are buffered up to that size.
+	 */
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	/**
+	 * The trace, or null if there is none.
+	 */
+	private static volatile TcpEventTrace trace;
+
+	private final String fileName;
+	private FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+
+	//
+	// Statistics
+	//
+	private long statRecords;
+	private long statErrors;
+
+	private TcpEventTrace(String fileName) throws IOException
+	{
+		this.fileName = fileName;
+		channel = new FileOutputStream(fileName, true).getChannel();
+	}
+
+	/**
+	 * Start appending the events of all connections to the file.
+	 */
+	public static synchronized void open(String fileName) throws IOException
+	{
+		if (trace == null)
+			trace = new TcpEventTrace(fileName);
+	}
+
+	/**
+	 * @return The trace, or null if there is none.
+	 */
+	public static TcpEventTrace getTrace()
+	{
+		return trace;
+	}
+
+	synchronized void write(long serial, TcpEventType type, int flags, long time, long localSeq, long remoteSeq,
+			int count, long value0, long value1, long value2)
+	{
+		if (channel == null)
+			return;
+
+		if (buffer.remaining() < RECORD_LEN)
+			writeBuffer();
+
+		buffer.putLong(serial);
+		buffer.put((byte) type.ordinal());
+		buffer.put((byte) flags);
+		buffer.putLong(time);
+		buffer.putInt((int) localSeq);
+		buffer.putInt((int) remoteSeq);
+		buffer.putInt(count);
+		buffer.putLong(value0);
+		buffer.putLong(value1);
+		buffer.putLong(value2);
+		statRecords++;
+	}
+
+	private void writeBuffer()
+	{
+		buffer.flip();
+		try
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} catch (IOException e)
+		{
+			// Records are lost, but the connections go on
+			statErrors++;
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Write the buffered records.
+	 */
+	public synchronized void flush()
+	{
+		if (channel != null && buffer.position() > 0)
+			writeBuffer();
+	}
+
+	/**
+	 * Write the buffered records and stop tracing.
+	 */
+	public static synchronized void close()
+	{
+		TcpEventTrace result = trace;
+		if (result == null)
+			return;
+		trace = null;
+
+		synchronized (result)
+		{
+			result.flush();
+			try
+			{
+				result.channel.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			result.channel = null;
+		}
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	public synchronized long getStatRecords()
+	{
+		return statRecords;
+	}
+
+	public synchronized long getStatErrors()
+	{
+		return statErrors;
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: TcpEventTrace file");
+			System.exit(1);
+		}
+
+		ByteBuffer records = MappedFileReader.mapFile(args[0]);
+		if (records == null)
+		{
+			System.err.println("Failed to read " + args[0]);
+			System.exit(1);
+		}
+
+		System.out.println(String.format("%8s %14s %-14s %3s %10s %10s %8s %18s %12s %12s", "Conn", "Time", "Type",
+				"Dir", "Local seq", "Remote seq", "Count", "Value 0", "Value 1", "Value 2"));
+		while (records.remaining() >= RECORD_LEN)
+		{
+			long serial = records.getLong();
+			int type = records.get();
+			int flags = records.get();
+			long time = records.getLong();
+			long localSeq = records.getInt() & 0xffffffffL;
+			long remoteSeq = records.getInt() & 0xffffffffL;
+			int count = records.getInt();
+			long value0 = records.getLong();
+			long value1 = records.getLong();
+			long value2 = records.getLong();
+
+			System.out.println(String.format("%8d %14d %-14s %3s %10d %10d %8d %18x %12d %12d", serial, time,
+					TcpEventType.valueOf((byte) type).name, (flags & TcpEventRing.FLAG_DIR_UP) != 0 ? "^" : "",
+					localSeq, remoteSeq, count, value0, value1, value2));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package il.ac.technion.eyalzo.pack.conns;
+
+/**
+ * Kinds of events recorded per connection in its {@link TcpEventRing}, with their display in the event table.
+ */
+enum TcpEventType
+{
+	HTTP_REQUEST("HTTP request", "#CC9900", false), //
+	HTTP_RESPONSE("HTTP response", "#CCFF99", false), //
+	FIRST_ANCHOR("First anchor", "#0066CC", false), //
+	CLOSE("Close", "#dd0000", false), //
+	/**
+	 * Anchor was detected and it completes a chunk with a previously detected anchor.
+	 */
+	CHUNK("Chunk", "#00FFFF", true),
+	/**
+	 * Prediction sent in a single packet. Receiver side.
+	 */
+	PRED_SENT("Pred sent", "pink", true),
+	/**
+	 * Prediction received in a single packet. Sender side.
+	 */
+	PRED_IN("Pred in", "yellow", true),
+	/**
+	 * Sent bytes from sender overlap ranges in the predictions inbox.
+	 */
+	PRED_OVERLAP("Pred overlap", "#aa55cc", true),
+	/**
+	 * Sender signed a delayed block (chunk in practice) on its way out.
+	 */
+	SND_SIGN("Sign check", "lightgreen", true),
+	SND_PRED_SKIP("Sign missing", "#900000", true),
+	/**
+	 * Sender ACK for prediction.
+	 */
+	SND_PRED_ACK("Ack", "#00d010", true);
+
+	private static final TcpEventType[] VALUES = values();
+
+	/**
+	 * Name of type, for display in event table.
+	 */
+	final String name;
+	/**
+	 * Color for HTML, for display in event table.
+	 */
+	final String color;
+	/**
+	 * True for the frequent events of the data itself, that are subject to sampling. The rare ones are always kept.
+	 */
+	final boolean sampled;
+
+	private TcpEventType(String name, String color, boolean sampled)
+	{
+		this.name = name;
+		this.color = color;
+		this.sampled = sampled;
+	}
+
+	static TcpEventType valueOf(byte ordinal)
+	{
+		return VALUES[ordinal];
+	}
+}
@@ -26,6 +26,10 @@ public class TcpUtils {
 	 * prevent packet loss due to large packets that do not fit into the
 	 * Netfilter Queue buffer size (4KB). It was especially added for the lo
 	 * interface that uses 16KB on default.
+	 * <p>
+	 * Packets captured with GSO/GRO may still be up to 64KB. The sender cuts
+	 * them by the remote's MSS when it spoofs parts of them, or to this size
+	 * when the MSS is not known.
 	 */
 	public static final int PACKET_SIZE = 1500;
 	/**
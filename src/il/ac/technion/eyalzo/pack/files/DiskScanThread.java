@@ -7,10 +7,9 @@ import il.ac.technion.eyalzo.pack.RabinUtils;
 
 public class DiskScanThread extends Thread {
 	private boolean active = false;
-	private static final int RUN_TIME_BEFORE_SUSPEND = 200;
 	/**
-	 * Suspend every {@link #RUN_TIME_BEFORE_SUSPEND} (approximately) to relief
-	 * the CPU.
+	 * Wait between directories. The indexing itself is limited by the
+	 * {@link FileIndexer} budget.
 	 */
 	private static final int SUSPEND_MILLIS = 200;
 	public static final long MIN_FILE_SIZE = 10L * RabinUtils
@@ -111,8 +110,7 @@ public class DiskScanThread extends Thread {
 		// Load ready signatures from disk
 		fileList.loadMeta(debug, Main.chunks);
 
-		statStampsTime += fileList.calculateMissingStamps(
-				RUN_TIME_BEFORE_SUSPEND, SUSPEND_MILLIS, Main.chunks, false);
+		statStampsTime += fileList.calculateMissingStamps(Main.chunks, false);
 
 		fileList.saveMeta();
 
@@ -175,9 +173,18 @@ public class DiskScanThread extends Thread {
 	}
 
 	public String getStatusLine() {
+		String indexed = String.format(
+				" Indexed %,d files, %,d MB with %d threads, %,d split to %,d segments, %,d MB stitched, %,d ms throttled.",
+				FileIndexer.getStatFiles(),
+				FileIndexer.getStatBytes() / 1000000,
+				FileIndexer.getThreads(), FileIndexer.getStatFilesSplit(),
+				FileIndexer.getStatSegments(),
+				FileIndexer.getStatStitchBytes() / 1000000,
+				FileIndexer.getStatThrottleMillis());
+
 		if (!active)
-			return "Idle.";
+			return "Idle." + indexed;
 
-		return "Scanning " + curDirName + " ...";
+		return "Scanning " + curDirName + " ..." + indexed;
 	}
 }
@@ -0,0 +1,90 @@
+package il.ac.technion.eyalzo.pack.files;
+
+import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
+import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Chunks of a file range, held as end offsets and stamps, before they are
+ * added to the global chunk list. Ranges that were chunked separately can be
+ * stitched where their chunk ends meet.
+ */
+public class FileChunkList {
+	/**
+	 * File offset where the first chunk starts.
+	 */
+	private final long startOffset;
+	/**
+	 * Exclusive file offset of each chunk's end, ascending.
+	 */
+	private long[] ends = new long[64];
+	private int[] stamps = new int[64];
+	private int count;
+
+	public FileChunkList(long startOffset) {
+		this.startOffset = startOffset;
+	}
+
+	public void add(long end, int stamp) {
+		if (count == ends.length) {
+			ends = Arrays.copyOf(ends, count * 2);
+			stamps = Arrays.copyOf(stamps, count * 2);
+		}
+
+		ends[count] = end;
+		stamps[count] = stamp;
+		count++;
+	}
+
+	/**
+	 * Append chunks of another list, that must start right where this list
+	 * ends.
+	 * 
+	 * @param fromIndex
+	 *            Index of the first chunk to append.
+	 */
+	public void addAll(FileChunkList other, int fromIndex) {
+		for (int i = fromIndex; i < other.count; i++)
+			add(other.ends[i], other.stamps[i]);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return End of the last chunk, or the start offset if there are no
+	 *         chunks.
+	 */
+	public long getLastEnd() {
+		return count == 0 ? startOffset : ends[count - 1];
+	}
+
+	/**
+	 * @return Index of the chunk that ends at the given offset, or -1 if none.
+	 */
+	public int indexOfEnd(long end) {
+		int index = Arrays.binarySearch(ends, 0, count, end);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * Get or add each chunk in the global list.
+	 * 
+	 * @return Chunks in file order.
+	 */
+	public LinkedList<ChunkItem> toChunkItems(GlobalChunkList globalChunkList) {
+		LinkedList<ChunkItem> result = new LinkedList<ChunkItem>();
+
+		long prevEnd = startOffset;
+		for (int i = 0; i < count; i++) {
+			result.add(globalChunkList.getChunkOrAddNew(stamps[i],
+					(int) (ends[i] - prevEnd)));
+			prevEnd = ends[i];
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,351 @@
+package il.ac.technion.eyalzo.pack.files;
+
+import il.ac.technion.eyalzo.pack.CaptureThread;
+import il.ac.technion.eyalzo.pack.Chunker;
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Signature;
+import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
+import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel file chunking on a work-stealing pool.
+ * <p>
+ * Files of a directory are chunked concurrently. Large files are split into
+ * segments that are chunked concurrently, each as if a chunk starts at the
+ * segment's start, and then stitched: the chunks of the previous segments go
+ * on into the segment until one ends where a chunk of the segment ends, and
+ * from there on the segment's chunks are exactly those of sequential
+ * chunking.
+ * <p>
+ * The budget is the number of threads, that run at the lowest priority, an
+ * optional read rate, and a pause while the capture threads shed load.
+ */
+public class FileIndexer {
+	/**
+	 * Files are split into segments of this size, if they have at least two.
+	 */
+	private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+	/**
+	 * How long to wait when the capture threads are overloaded.
+	 */
+	private static final int OVERLOAD_PAUSE_MILLIS = 100;
+	/**
+	 * Max time to wait for the capture threads to leave overload, before a read
+	 * goes on anyway.
+	 */
+	private static final int MAX_OVERLOAD_WAIT_MILLIS = 10000;
+
+	private static ForkJoinPool pool;
+	/**
+	 * Time when the read budget allows the next read, in nanos.
+	 */
+	private static long budgetNanos;
+	private static final Object budgetLock = new Object();
+
+	//
+	// Statistics
+	//
+	private static final AtomicLong statFiles = new AtomicLong();
+	private static final AtomicLong statBytes = new AtomicLong();
+	/**
+	 * Files that were split into segments.
+	 */
+	private static final AtomicLong statFilesSplit = new AtomicLong();
+	private static final AtomicLong statSegments = new AtomicLong();
+	/**
+	 * Bytes chunked again when stitching, until reaching a chunk end of the
+	 * segment.
+	 */
+	private static final AtomicLong statStitchBytes = new AtomicLong();
+	private static final AtomicLong statThrottleMillis = new AtomicLong();
+
+	/**
+	 * @return The pool, created with {@link Main#indexThreads} on first use.
+	 */
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Math.max(1, Main.indexThreads),
+					new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+						public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+							ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+									.newThread(pool);
+							thread.setName("FileIndexer-" + thread.getPoolIndex());
+							// Indexing gives way to packet handling
+							thread.setPriority(Thread.MIN_PRIORITY);
+							return thread;
+						}
+					}, null, false);
+		}
+
+		return pool;
+	}
+
+	private static <T> T invoke(ForkJoinTask<T> task) {
+		if (ForkJoinTask.inForkJoinPool())
+			return task.invoke();
+		return getPool().invoke(task);
+	}
+
+	/**
+	 * Calculate the chunks of files concurrently, see
+	 * {@link FileItem#calculateStamps(String, GlobalChunkList)}.
+	 * 
+	 * @param files
+	 *            Files by their full paths.
+	 */
+	public static void calculateStamps(final Map<String, FileItem> files,
+			final GlobalChunkList globalChunkList, final boolean debug) {
+		invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				LinkedList<RecursiveAction> tasks = new LinkedList<RecursiveAction>();
+				for (final Entry<String, FileItem> entry : files.entrySet()) {
+					tasks.add(new RecursiveAction() {
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						protected void compute() {
+							FileItem curFile = entry.getValue();
+							curFile.calculateStamps(entry.getKey(),
+									globalChunkList);
+
+							if (debug)
+								System.out.println(String.format(
+										"    %s: %,d chunks", entry.getKey(),
+										curFile.getChunkCount()));
+						}
+					});
+				}
+
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**
+	 * Same as
+	 * {@link RabinUtils#calcFileChunks(Chunker, Signature, long, GlobalChunkList, String)}
+	 * , with the same result, but large files are chunked in parallel
+	 * segments.
+	 * 
+	 * @return Null if failed to read the entire file or even one block.
+	 */
+	public static LinkedList<ChunkItem> calcFileChunks(Chunker chunker,
+			Signature signature, long totalSize,
+			GlobalChunkList globalChunkList, String fileName) {
+		if (totalSize <= 0)
+			return null;
+
+		statFiles.incrementAndGet();
+		statBytes.addAndGet(totalSize);
+
+		FileChunkList result;
+		if (totalSize < 2 * SEGMENT_BYTES) {
+			throttle(totalSize);
+			result = new FileChunkList(0);
+			if (!RabinUtils.calcFileChunks(chunker, signature, fileName,
+					totalSize, 0, totalSize, null, result))
+				return null;
+		} else {
+			result = invoke(new SplitFileTask(chunker, signature, fileName,
+					totalSize));
+			if (result == null)
+				return null;
+		}
+
+		return result.toChunkItems(globalChunkList);
+	}
+
+	/**
+	 * Chunks a large file in segments and stitches them.
+	 */
+	private static class SplitFileTask extends RecursiveTask<FileChunkList> {
+		private static final long serialVersionUID = 1L;
+		private final Chunker chunker;
+		private final Signature signature;
+		private final String fileName;
+		private final long totalSize;
+
+		SplitFileTask(Chunker chunker, Signature signature, String fileName,
+				long totalSize) {
+			this.chunker = chunker;
+			this.signature = signature;
+			this.fileName = fileName;
+			this.totalSize = totalSize;
+		}
+
+		private long getSegmentStart(int index) {
+			return Math.min(totalSize, index * SEGMENT_BYTES);
+		}
+
+		@Override
+		protected FileChunkList compute() {
+			int segmentsCount = (int) (totalSize / SEGMENT_BYTES);
+			statFilesSplit.incrementAndGet();
+			statSegments.addAndGet(segmentsCount);
+
+			// The last segment takes the remainder
+			LinkedList<SegmentTask> segments = new LinkedList<SegmentTask>();
+			for (int i = 0; i < segmentsCount; i++) {
+				long stop = i == segmentsCount - 1 ? totalSize
+						: getSegmentStart(i + 1);
+				segments.add(new SegmentTask(this, getSegmentStart(i), stop));
+			}
+			invokeAll(segments);
+
+			FileChunkList result = null;
+			int index = 0;
+			for (SegmentTask curSegment : segments) {
+				FileChunkList segmentChunks = curSegment.join();
+				if (segmentChunks == null)
+					return null;
+
+				// The first segment really starts with a chunk
+				if (result == null) {
+					result = segmentChunks;
+					index++;
+					continue;
+				}
+
+				long segmentStart = getSegmentStart(index);
+				long segmentStop = index == segmentsCount - 1 ? totalSize
+						: getSegmentStart(index + 1);
+				index++;
+
+				long lastEnd = result.getLastEnd();
+				int syncIndex = lastEnd == segmentStart ? -1 : segmentChunks
+						.indexOfEnd(lastEnd);
+				if (lastEnd != segmentStart && syncIndex < 0) {
+					// Go on until reaching one of the segment's chunk ends
+					if (!RabinUtils.calcFileChunks(chunker, signature,
+							fileName, totalSize, lastEnd, segmentStop,
+							segmentChunks, result))
+						return null;
+
+					statStitchBytes.addAndGet(result.getLastEnd() - lastEnd);
+
+					syncIndex = segmentChunks.indexOfEnd(result.getLastEnd());
+					// The segment ended before they met
+					if (syncIndex < 0)
+						continue;
+				}
+
+				result.addAll(segmentChunks, syncIndex + 1);
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Chunks a segment as if a chunk starts at its start.
+	 */
+	private static class SegmentTask extends RecursiveTask<FileChunkList> {
+		private static final long serialVersionUID = 1L;
+		private final SplitFileTask file;
+		private final long start;
+		private final long stop;
+
+		SegmentTask(SplitFileTask file, long start, long stop) {
+			this.file = file;
+			this.start = start;
+			this.stop = stop;
+		}
+
+		@Override
+		protected FileChunkList compute() {
+			throttle(stop - start);
+
+			FileChunkList result = new FileChunkList(start);
+			if (!RabinUtils.calcFileChunks(file.chunker, file.signature,
+					file.fileName, file.totalSize, start, stop, null, result))
+				return null;
+			return result;
+		}
+	}
+
+	/**
+	 * Wait until the given bytes can be read within
+	 * {@link Main#indexReadMBps}, and while the capture threads shed load, up
+	 * to {@link #MAX_OVERLOAD_WAIT_MILLIS}.
+	 */
+	private static void throttle(long bytes) {
+		long before = System.currentTimeMillis();
+
+		while (CaptureThread.isShedding()
+				&& System.currentTimeMillis() - before < MAX_OVERLOAD_WAIT_MILLIS) {
+			try {
+				Thread.sleep(OVERLOAD_PAUSE_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+
+		if (Main.indexReadMBps > 0) {
+			long costNanos = bytes * 1000L / Main.indexReadMBps;
+			long now = System.nanoTime();
+			long start;
+			synchronized (budgetLock) {
+				start = Math.max(now, budgetNanos);
+				budgetNanos = start + costNanos;
+			}
+
+			if (start > now) {
+				try {
+					Thread.sleep((start - now) / 1000000,
+							(int) ((start - now) % 1000000));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		statThrottleMillis.addAndGet(System.currentTimeMillis() - before);
+	}
+
+	/**
+	 * @return Number of indexing threads, zero before first use.
+	 */
+	public static int getThreads() {
+		synchronized (FileIndexer.class) {
+			return pool == null ? 0 : pool.getParallelism();
+		}
+	}
+
+	public static long getStatFiles() {
+		return statFiles.get();
+	}
+
+	public static long getStatBytes() {
+		return statBytes.get();
+	}
+
+	public static long getStatFilesSplit() {
+		return statFilesSplit.get();
+	}
+
+	public static long getStatSegments() {
+		return statSegments.get();
+	}
+
+	public static long getStatStitchBytes() {
+		return statStitchBytes.get();
+	}
+
+	public static long getStatThrottleMillis() {
+		return statThrottleMillis.get();
+	}
+}
@@ -1,6 +1,6 @@
 package il.ac.technion.eyalzo.pack.files;
 
-import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Main;
 import il.ac.technion.eyalzo.pack.stamps.ChainItem;
 import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
 import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
@@ -12,6 +12,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 
 public class FileItem implements Comparable<FileItem>
 {
@@ -219,8 +220,9 @@ public class FileItem implements Comparable<FileItem>
 	 */
 	public void calculateStamps(String fullPath, GlobalChunkList globalChunkList)
 	{
-		LinkedList<ChunkItem> calcChunks = RabinUtils.calcFileChunks(fileSize,
-				globalChunkList, fullPath);
+		LinkedList<ChunkItem> calcChunks = FileIndexer.calcFileChunks(
+				Main.fileChunker, Main.signature, fileSize, globalChunkList,
+				fullPath);
 
 		// Chunk were already added to the global list
 
@@ -261,10 +263,10 @@ public class FileItem implements Comparable<FileItem>
 		return chain.getOverlapChunksCount(otherFileItem.chain);
 	}
 
-	public String webGuiOverlapChunksVisual(
-			LinkedList<ChunkItem> otherChainChunks, int bytesPerPixel)
+	public String webGuiOverlapChunksVisual(ChainItem otherChain,
+			int bytesPerPixel)
 	{
-		return chain.webGuiOverlapChunksVisual(otherChainChunks, bytesPerPixel);
+		return chain.webGuiOverlapChunksVisual(otherChain, bytesPerPixel);
 	}
 
 	public DisplayTable webGuiChainFiles(String fileDetailsLink,
@@ -311,9 +313,9 @@ public class FileItem implements Comparable<FileItem>
 	}
 
 	/**
-	 * @return The internal chunk list (need to synchronize).
+	 * @return The chunks, as they are now, by their order in the file.
 	 */
-	public LinkedList<ChunkItem> getChunks()
+	public List<ChunkItem> getChunks()
 	{
 		return chain.getChunks();
 	}
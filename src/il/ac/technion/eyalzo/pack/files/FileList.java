@@ -1,5 +1,7 @@
 package il.ac.technion.eyalzo.pack.files;
 
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinChunker;
 import il.ac.technion.eyalzo.pack.RabinUtils;
 import il.ac.technion.eyalzo.pack.SimuResult;
 import il.ac.technion.eyalzo.pack.stamps.ChainItem;
@@ -10,7 +12,6 @@ import il.ac.technion.eyalzo.webgui.DisplayTable;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -143,14 +144,28 @@ public class FileList {
 		if (fileList.isEmpty())
 			return;
 
-		// Load from file
-		ByteBuffer buffer = FileUtils.readBlock(backupFile.getAbsolutePath(),
-				0L, (int) backupFile.length(), ByteOrder.BIG_ENDIAN, null);
+		// Load from file, mapped for read only
+		ByteBuffer buffer = MappedFileReader.mapFile(backupFile
+				.getAbsolutePath());
 		if (buffer == null)
 			return;
 
 		long beforeLoadTime = System.currentTimeMillis();
 
+		// Chunks of another chunker or signature are useless, so all will be
+		// calculated again (older files without a header were all chunked by
+		// Rabin and signed with SHA-1)
+		int metaId = RabinUtils.getMetaHeader(buffer, RabinChunker.ID);
+		int expectedMetaId = RabinUtils.getMetaId(Main.fileChunker,
+				Main.signature);
+		if (metaId != expectedMetaId) {
+			if (debug)
+				System.out.println("   Meta chunked by "
+						+ RabinUtils.getMetaName(metaId) + ", not by "
+						+ RabinUtils.getMetaName(expectedMetaId));
+			return;
+		}
+
 		while (buffer.hasRemaining()) {
 			//
 			// File name
@@ -215,19 +230,17 @@ public class FileList {
 	}
 
 	/**
+	 * Calculate the chunks of all the files that did not have meta, in
+	 * parallel, see {@link FileIndexer}.
 	 * 
-	 * @param runMillisBeforeSuspend
-	 *            How much time to run before suspending.
-	 * @param suspendMillis
-	 *            Suspend time to relief the CPU load.
-	 * @return Time spent (mSec) in calculations meaning the overall time minus
-	 *         the suspension time.
+	 * @return Time spent (mSec) in calculations, including waits for the
+	 *         indexing budget.
 	 */
-	public long calculateMissingStamps(long runMillisBeforeSuspend,
-			long suspendMillis, GlobalChunkList globalChunkList, boolean debug) {
-		long result = 0;
+	public long calculateMissingStamps(GlobalChunkList globalChunkList,
+			boolean debug) {
 		long before = System.currentTimeMillis();
 
+		HashMap<String, FileItem> missing = new HashMap<String, FileItem>();
 		Iterator<Entry<String, FileItem>> it = fileList.entrySet().iterator();
 		while (it.hasNext()) {
 			Entry<String, FileItem> entry = it.next();
@@ -237,33 +250,13 @@ public class FileList {
 			if (curFile.isLoadedMetaChunks())
 				continue;
 
-			String fileName = entry.getKey();
-
-			if (debug)
-				System.out.print("    " + fileName + " ... ");
-
-			curFile.calculateStamps(dirName + File.separator + fileName,
-					globalChunkList);
-
-			if (debug)
-				System.out.println(String.format("%,d chunks", curFile
-						.getChunkCount()));
-
-			long timePassed = System.currentTimeMillis() - before;
-			if (timePassed >= runMillisBeforeSuspend) {
-				result += timePassed;
-
-				// Delay between calculations
-				try {
-					Thread.sleep(suspendMillis);
-				} catch (InterruptedException e) {
-				}
-
-				before = System.currentTimeMillis();
-			}
+			missing.put(dirName + File.separator + entry.getKey(), curFile);
 		}
 
-		result += (System.currentTimeMillis() - before);
+		if (!missing.isEmpty())
+			FileIndexer.calculateStamps(missing, globalChunkList, debug);
+
+		long result = System.currentTimeMillis() - before;
 
 		statStampTime += result;
 
@@ -283,6 +276,8 @@ public class FileList {
 		// TODO flexible size
 		ByteBuffer buffer = ByteBuffer.allocate(4000000);
 
+		RabinUtils.putMetaHeader(buffer, Main.fileChunker, Main.signature);
+
 		Iterator<Entry<String, FileItem>> it = fileList.entrySet().iterator();
 		while (it.hasNext()) {
 			Entry<String, FileItem> entry = it.next();
@@ -331,7 +326,7 @@ public class FileList {
 	}
 
 	public DisplayTable webGuiFileList(String fileDetailsLink) {
-		long avgChunk = RabinUtils.getAverageChunkLen();
+		long avgChunk = Main.fileChunker.getAvgChunkLen();
 		long lowChunk = avgChunk / 2;
 		long highChunk = avgChunk * 2;
 
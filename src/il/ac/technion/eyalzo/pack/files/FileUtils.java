@@ -150,7 +150,8 @@ public class FileUtils
 	}
 
 	/**
-	 * Read one block from data file.
+	 * Read one block from data file, into a new buffer. To read many blocks of
+	 * the same file see {@link MappedFileReader}.
 	 * 
 	 * @param fileName
 	 * @param startOffset
@@ -196,7 +197,7 @@ public class FileUtils
 		try
 		{
 			// It can fail if file does not exist or there is a security problem
-			randomAccessFile = new RandomAccessFile(file, "rw");
+			randomAccessFile = new RandomAccessFile(file, "r");
 		} catch (Exception e)
 		{
 			if (log != null)
@@ -0,0 +1,123 @@
+package il.ac.technion.eyalzo.pack.files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through a read-only memory mapping, opened once for the whole
+ * read. Blocks are copied straight from the page cache into the caller's
+ * array, without a read system call or a new buffer per block.
+ * <p>
+ * Files are mapped in large regions, so files of any size can be read. A
+ * region is replaced only when a block does not fit in it.
+ */
+public class MappedFileReader implements Closeable {
+	/**
+	 * Max bytes mapped at once.
+	 */
+	private static final long REGION_BYTES = 256L * 1024 * 1024;
+	/**
+	 * Regions start on a page boundary.
+	 */
+	private static final long PAGE_BYTES = 4096;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long regionEnd;
+
+	/**
+	 * Open a file for read only.
+	 *
+	 * @throws IOException
+	 *             If the file does not exist or cannot be read.
+	 */
+	public MappedFileReader(String fileName) throws IOException {
+		file = new RandomAccessFile(new File(fileName), "r");
+		channel = file.getChannel();
+		size = channel.size();
+	}
+
+	/**
+	 * @return File size, when it was opened.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Copy a block of the file to an array.
+	 *
+	 * @param offset
+	 *            0-based start position in file, inclusive.
+	 * @param dest
+	 *            Where to copy the block.
+	 * @param destOffset
+	 *            Where in the array to copy the block.
+	 * @param length
+	 *            Block length, up to the end of the file.
+	 * @throws IOException
+	 *             If the block is out of the file or failed to map it.
+	 */
+	public void read(long offset, byte[] dest, int destOffset, int length)
+			throws IOException {
+		if (offset < 0 || offset + length > size)
+			throw new IOException("Block at " + offset + " of " + length
+					+ " bytes is out of file size " + size);
+
+		if (region == null || offset < regionStart
+				|| offset + length > regionEnd)
+			map(offset, length);
+
+		region.position((int) (offset - regionStart));
+		region.get(dest, destOffset, length);
+	}
+
+	private void map(long offset, int length) throws IOException {
+		regionStart = offset - offset % PAGE_BYTES;
+		regionEnd = Math.min(size,
+				Math.max(regionStart + REGION_BYTES, offset + length));
+		region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+				regionEnd - regionStart);
+	}
+
+	/**
+	 * Map an entire file for read only. The mapping stays valid after the file
+	 * is closed.
+	 *
+	 * @return The whole file, from position 0, or null if the file does not
+	 *         exist, cannot be read or is too big for a single buffer.
+	 */
+	public static MappedByteBuffer mapFile(String fileName) {
+		MappedFileReader reader = null;
+		try {
+			reader = new MappedFileReader(fileName);
+			if (reader.size > Integer.MAX_VALUE)
+				return null;
+			return reader.channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					reader.size);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null)
+				reader.close();
+		}
+	}
+
+	/**
+	 * Close the file. The last region is unmapped when collected.
+	 */
+	public void close() {
+		region = null;
+		try {
+			file.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -1,6 +1,6 @@
 package il.ac.technion.eyalzo.pack.pred;
 
-import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.Main;
 import il.ac.technion.eyalzo.pack.conns.TcpUtils;
 
 /**
@@ -219,7 +219,7 @@ public class PredInChunk
 		if (!isOutBufReadyForSignature())
 			return 0;
 
-		return RabinUtils.calculateSha1(outBuf, 0, outBuf.length);
+		return Main.signature.sign(outBuf, 0, outBuf.length);
 	}
 	
 	public byte[] getOutBuffer()
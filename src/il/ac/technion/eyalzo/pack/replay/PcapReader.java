@@ -0,0 +1,206 @@
+package il.ac.technion.eyalzo.pack.replay;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reader of classic libpcap files (not pcapng), that returns the IPv4 packets only, without the link layer header.
+ * <p>
+ * Supports both byte orders, microsecond and nanosecond timestamps, and the link types Ethernet (with an optional
+ * 802.1Q tag), raw IP, Linux cooked capture and BSD loopback.
+ */
+public class PcapReader implements Closeable
+{
+	private static final int MAGIC_MICROS = 0xa1b2c3d4;
+	private static final int MAGIC_NANOS = 0xa1b23c4d;
+	private static final int LINKTYPE_NULL = 0;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int LINKTYPE_RAW = 101;
+	/**
+	 * Raw IP as written by some BSDs, see DLT_RAW.
+	 */
+	private static final int DLT_RAW_BSD = 12;
+	private static final int DLT_RAW_OPENBSD = 14;
+	private static final int LINKTYPE_LINUX_SLL = 113;
+	private static final int ETHERTYPE_IP = 0x0800;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	/**
+	 * Largest record accepted, to avoid allocating garbage on a corrupt file.
+	 */
+	private static final int MAX_RECORD_LEN = 256 * 1024;
+
+	private final DataInputStream in;
+	private final boolean swapped;
+	private final boolean nanos;
+	private final int linkType;
+	/**
+	 * Whole record, including the link layer header.
+	 */
+	private byte[] record = new byte[65536];
+	private long timestampMicros;
+
+	//
+	// Statistics
+	//
+	private long statRecords;
+	/**
+	 * Records that are not IPv4.
+	 */
+	private long statSkippedNotIp;
+	/**
+	 * Records that were cut by the capture snap length, or do not fit the caller's buffer.
+	 */
+	private long statSkippedTruncated;
+
+	public PcapReader(String fileName) throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1024 * 1024));
+
+		int magic = in.readInt();
+		if (magic == MAGIC_MICROS || magic == MAGIC_NANOS)
+		{
+			swapped = false;
+		} else if (Integer.reverseBytes(magic) == MAGIC_MICROS || Integer.reverseBytes(magic) == MAGIC_NANOS)
+		{
+			swapped = true;
+			magic = Integer.reverseBytes(magic);
+		} else
+		{
+			in.close();
+			throw new IOException(String.format("Not a classic pcap file, magic 0x%08x: %s", magic, fileName));
+		}
+		nanos = magic == MAGIC_NANOS;
+
+		// Version, time zone, sigfigs and snap length are not needed
+		in.readFully(new byte[16]);
+		linkType = readInt();
+
+		if (linkType != LINKTYPE_NULL && linkType != LINKTYPE_ETHERNET && linkType != LINKTYPE_RAW
+				&& linkType != DLT_RAW_BSD && linkType != DLT_RAW_OPENBSD && linkType != LINKTYPE_LINUX_SLL)
+		{
+			in.close();
+			throw new IOException("Unsupported pcap link type " + linkType + ": " + fileName);
+		}
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = in.readInt();
+		return swapped ? Integer.reverseBytes(value) : value;
+	}
+
+	/**
+	 * Read the next record.
+	 * 
+	 * @param ipPacket
+	 *            Buffer for the IP packet.
+	 * @return Number of bytes of the IPv4 packet that was copied to the buffer, 0 if the record was skipped (see
+	 *         {@link #getStatSkippedNotIp()} and {@link #getStatSkippedTruncated()}), or -1 at end of file.
+	 */
+	public int readPacket(byte[] ipPacket) throws IOException
+	{
+		long seconds;
+		try
+		{
+			seconds = readInt() & 0xffffffffL;
+		} catch (EOFException e)
+		{
+			return -1;
+		}
+		long fraction = readInt() & 0xffffffffL;
+		int capturedLen = readInt();
+		int originalLen = readInt();
+
+		if (capturedLen < 0 || capturedLen > MAX_RECORD_LEN)
+			throw new IOException("Corrupt pcap record length " + capturedLen);
+
+		if (capturedLen > record.length)
+			record = new byte[capturedLen];
+		in.readFully(record, 0, capturedLen);
+
+		statRecords++;
+		timestampMicros = seconds * 1000000 + (nanos ? fraction / 1000 : fraction);
+
+		int ipOffset = getIpOffset(capturedLen);
+		if (ipOffset < 0 || capturedLen - ipOffset < 20 || (record[ipOffset] & 0xf0) != 0x40)
+		{
+			statSkippedNotIp++;
+			return 0;
+		}
+
+		// Ethernet padding may follow short packets, so trust the IP total length
+		int ipTotalLen = ((record[ipOffset + 2] & 0xff) << 8) | (record[ipOffset + 3] & 0xff);
+		if (capturedLen < originalLen || ipOffset + ipTotalLen > capturedLen || ipTotalLen > ipPacket.length)
+		{
+			statSkippedTruncated++;
+			return 0;
+		}
+
+		System.arraycopy(record, ipOffset, ipPacket, 0, ipTotalLen);
+		return ipTotalLen;
+	}
+
+	/**
+	 * @return Offset of the IPv4 header in the current record, or -1 if this is not an IPv4 record.
+	 */
+	private int getIpOffset(int capturedLen)
+	{
+		switch (linkType)
+		{
+		case LINKTYPE_ETHERNET:
+			if (capturedLen < 14)
+				return -1;
+			int etherType = ((record[12] & 0xff) << 8) | (record[13] & 0xff);
+			if (etherType == ETHERTYPE_VLAN && capturedLen >= 18)
+			{
+				etherType = ((record[16] & 0xff) << 8) | (record[17] & 0xff);
+				return etherType == ETHERTYPE_IP ? 18 : -1;
+			}
+			return etherType == ETHERTYPE_IP ? 14 : -1;
+		case LINKTYPE_LINUX_SLL:
+			if (capturedLen < 16)
+				return -1;
+			return (((record[14] & 0xff) << 8) | (record[15] & 0xff)) == ETHERTYPE_IP ? 16 : -1;
+		case LINKTYPE_NULL:
+			// Address family in the byte order of the capturing host, 2 is AF_INET
+			if (capturedLen < 4)
+				return -1;
+			return record[0] == 2 || record[3] == 2 ? 4 : -1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return Timestamp of the last record read, in microseconds since the epoch.
+	 */
+	public long getTimestampMicros()
+	{
+		return timestampMicros;
+	}
+
+	public long getStatRecords()
+	{
+		return statRecords;
+	}
+
+	public long getStatSkippedNotIp()
+	{
+		return statSkippedNotIp;
+	}
+
+	public long getStatSkippedTruncated()
+	{
+		return statSkippedTruncated;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
@@ -0,0 +1,433 @@
+package il.ac.technion.eyalzo.pack.replay;
+
+import il.ac.technion.eyalzo.NFQueue.Verdict;
+import il.ac.technion.eyalzo.pack.CaptureThread;
+import il.ac.technion.eyalzo.pack.Chunker;
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.QueueNum;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.ShardBatch;
+import il.ac.technion.eyalzo.pack.ShardWorker;
+import il.ac.technion.eyalzo.pack.Signature;
+import il.ac.technion.eyalzo.pack.TimeoutThread;
+import il.ac.technion.eyalzo.pack.conns.RemoteMachineList;
+import il.ac.technion.eyalzo.pack.conns.TcpEventTrace;
+import il.ac.technion.eyalzo.pack.conns.TcpUtils;
+import il.ac.technion.eyalzo.pack.spoof.SpoofRecorder;
+import il.ac.technion.eyalzo.pack.spoof.SpoofThread;
+import il.ac.technion.eyalzo.pack.stamps.ChunkContentCache;
+import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
+import il.ac.technion.eyalzo.pack.stamps.StreamsChainList;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Offline packet source that replays a classic pcap file through the capture threads of one side, instead of the
+ * kernel NFQUEUE. No root, raw sockets or libnetfilter_queue are needed.
+ * <p>
+ * Every TCP/IPv4 packet is given to {@link CaptureThread#onPacketReceived(byte[], int)} of the thread that matches its
+ * direction relative to the local address, either at full speed or at the recorded timing. The verdicts and the
+ * packets that {@link SpoofThread} would have sent are recorded, so runs of different builds on the same trace can be
+ * compared.
+ * <p>
+ * With shards, packets are handed in batches to the threads that own their connections (see {@link ShardWorker}), like
+ * batches from the kernel queue, and the spoofed packets of a batch carry the timestamp of its last record.
+ * <p>
+ * Usage: <code>PcapReplay file.pcap [side=rcv|snd] [local=a.b.c.d] [recorded] [out=prefix] [restorechains]
+ * [chunker=pack|rabin|gear] [signature=sha1|xxh64] [shards=n] [eventtrace=file] [debug=n]</code>
+ * <ul>
+ * <li>side: local machine is the receiver (default) or the sender.</li>
+ * <li>local: address of the local machine in the trace. Default is the client of the first SYN for the receiver and
+ * the server for the sender.</li>
+ * <li>recorded: keep the recorded inter-packet timing, and run the sender's buffer timeouts. Default is full speed,
+ * with no timeouts, so the results depend only on the trace.</li>
+ * <li>out: write the verdicts to <code>prefix.verdicts</code>, one line per pcap record, and the spoofed packets to
+ * <code>prefix.spoof.pcap</code>.</li>
+ * <li>chunker: where the receiver cuts chunks in streams. Default is PACK.</li>
+ * <li>signature: how both sides sign chunks. Default is SHA-1.</li>
+ * <li>eventtrace: append all the connection events to the file, see {@link TcpEventTrace}.</li>
+ * <li>shards: number of threads that own the connections. Default is 0, to handle them in the capture threads.</li>
+ * </ul>
+ */
+public class PcapReplay implements SpoofRecorder
+{
+	private static final int TCP_PROTOCOL = 6;
+	/**
+	 * Packets per batch with shards, a bit more than the kernel queue's typical batch.
+	 */
+	private static final int SHARD_BATCH_SIZE = 64;
+
+	private final PcapReader reader;
+	private final boolean sideSender;
+	private final boolean recordedTiming;
+	/**
+	 * Local address in network order, or null until guessed by the first SYN.
+	 */
+	private byte[] localAddr;
+	private final CaptureThread threadIn;
+	private final CaptureThread threadOut;
+	private final RemoteMachineList machineList;
+	private PrintWriter verdictsOut;
+	private PcapWriter spoofOut;
+	private final byte[] rawIpPacket = new byte[CaptureThread.MAX_PACKET_BYTES];
+	/**
+	 * Packets waiting for the shards, or null without shards.
+	 */
+	private final ShardBatch batch;
+	/**
+	 * Pcap record number of each packet in {@link #batch}.
+	 */
+	private final long[] batchRecords = new long[SHARD_BATCH_SIZE];
+
+	//
+	// Statistics
+	//
+	private long statPackets;
+	/**
+	 * Packets that are not TCP or do not belong to the local address.
+	 */
+	private long statSkipped;
+	private long statBytesOut;
+	/**
+	 * Outgoing bytes that were accepted, meaning that would have been sent as is.
+	 */
+	private long statBytesOutAccepted;
+	private long statSpoofedSelf;
+	private long statSpoofedOther;
+	private long statBytesSpoofedSelf;
+	private long statBytesSpoofedOther;
+
+	private PcapReplay(String fileName, boolean sideSender, byte[] localAddr, boolean recordedTiming) throws IOException
+	{
+		this.reader = new PcapReader(fileName);
+		this.sideSender = sideSender;
+		this.localAddr = localAddr;
+		this.recordedTiming = recordedTiming;
+
+		// Machine list is reversed because it holds the list of the remote
+		machineList = new RemoteMachineList(!sideSender);
+		threadIn = new CaptureThread(sideSender ? QueueNum.SenderIn : QueueNum.ReceiverIn, machineList);
+		threadOut = new CaptureThread(sideSender ? QueueNum.SenderOut : QueueNum.ReceiverOut, machineList);
+		batch = ShardWorker.isEnabled() ? new ShardBatch(SHARD_BATCH_SIZE) : null;
+	}
+
+	private void openOutput(String prefix) throws IOException
+	{
+		verdictsOut = new PrintWriter(new BufferedWriter(new FileWriter(prefix + ".verdicts")));
+		spoofOut = new PcapWriter(prefix + ".spoof.pcap");
+	}
+
+	private void closeOutput() throws IOException
+	{
+		if (verdictsOut != null)
+			verdictsOut.close();
+		if (spoofOut != null)
+			spoofOut.close();
+	}
+
+	/**
+	 * Synchronized as the shards spoof concurrently.
+	 */
+	@Override
+	public synchronized void onSpoofedPacket(boolean self, byte[] rawIpPacket, int length)
+	{
+		if (self)
+		{
+			statSpoofedSelf++;
+			statBytesSpoofedSelf += length;
+		} else
+		{
+			statSpoofedOther++;
+			statBytesSpoofedOther += length;
+		}
+
+		if (spoofOut == null)
+			return;
+
+		try
+		{
+			spoofOut.writePacket(reader.getTimestampMicros(), rawIpPacket, length);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return Nanoseconds spent in the capture threads.
+	 */
+	private long replay() throws IOException
+	{
+		long firstTimestamp = -1;
+		long startTime = System.nanoTime();
+		long processTime = 0;
+
+		while (true)
+		{
+			int length = reader.readPacket(rawIpPacket);
+			if (length < 0)
+				break;
+
+			CaptureThread captureThread = length == 0 ? null : getCaptureThread();
+			if (captureThread == null)
+			{
+				statSkipped++;
+				continue;
+			}
+
+			if (recordedTiming)
+			{
+				// Packets before the wait are not held back by it
+				if (batch != null)
+					processTime += flushBatch();
+
+				if (firstTimestamp < 0)
+					firstTimestamp = reader.getTimestampMicros();
+				long waitMicros = reader.getTimestampMicros() - firstTimestamp - (System.nanoTime() - startTime)
+						/ 1000;
+				if (waitMicros >= 1000)
+				{
+					try
+					{
+						Thread.sleep(waitMicros / 1000);
+					} catch (InterruptedException e)
+					{
+					}
+				}
+			}
+
+			statPackets++;
+			if (batch != null)
+			{
+				batchRecords[batch.size()] = reader.getStatRecords();
+				long before = System.nanoTime();
+				captureThread.submitPacket(batch, rawIpPacket, length);
+				processTime += System.nanoTime() - before;
+				if (batch.isFull())
+					processTime += flushBatch();
+				continue;
+			}
+
+			long before = System.nanoTime();
+			Verdict verdict = captureThread.onPacketReceived(rawIpPacket, length);
+			processTime += System.nanoTime() - before;
+
+			countVerdict(captureThread, verdict, length, reader.getStatRecords());
+		}
+
+		if (batch != null)
+			processTime += flushBatch();
+
+		return processTime;
+	}
+
+	/**
+	 * Wait for the verdicts of the batch, and count them in record order.
+	 * 
+	 * @return Nanoseconds spent waiting.
+	 */
+	private long flushBatch()
+	{
+		if (batch.size() == 0)
+			return 0;
+
+		long before = System.nanoTime();
+		batch.await();
+		long result = System.nanoTime() - before;
+
+		for (int i = 0; i < batch.size(); i++)
+			countVerdict(batch.getThread(i), batch.getVerdict(i), batch.getLength(i), batchRecords[i]);
+		batch.clear();
+
+		return result;
+	}
+
+	private void countVerdict(CaptureThread captureThread, Verdict verdict, int length, long record)
+	{
+		if (captureThread == threadOut)
+		{
+			statBytesOut += length;
+			if (verdict == Verdict.NF_ACCEPT)
+				statBytesOutAccepted += length;
+		}
+
+		if (verdictsOut != null)
+			verdictsOut.println(record + " " + verdict.name());
+	}
+
+	/**
+	 * @return Capture thread by the direction of the packet in {@link #rawIpPacket}, or null if it should be skipped.
+	 */
+	private CaptureThread getCaptureThread()
+	{
+		if (rawIpPacket[9] != TCP_PROTOCOL)
+			return null;
+
+		byte[] src = Arrays.copyOfRange(rawIpPacket, 12, 16);
+		byte[] dst = Arrays.copyOfRange(rawIpPacket, 16, 20);
+
+		if (localAddr == null)
+		{
+			// SYN without ACK tells who is the client
+			int flags = rawIpPacket[TcpUtils.getIpHeaderBytesLen(rawIpPacket) + 13] & 0x12;
+			if (flags != 0x02)
+				return null;
+			localAddr = sideSender ? dst : src;
+			System.out.println("Local address: " + addrToString(localAddr));
+		}
+
+		if (Arrays.equals(src, localAddr))
+			return threadOut;
+		if (Arrays.equals(dst, localAddr))
+			return threadIn;
+		return null;
+	}
+
+	private static String addrToString(byte[] addr)
+	{
+		return (addr[0] & 0xff) + "." + (addr[1] & 0xff) + "." + (addr[2] & 0xff) + "." + (addr[3] & 0xff);
+	}
+
+	private static byte[] parseAddr(String addr)
+	{
+		String[] parts = addr.split("\\.");
+		if (parts.length != 4)
+			throw new IllegalArgumentException("Bad IPv4 address: " + addr);
+		byte[] result = new byte[4];
+		for (int i = 0; i < 4; i++)
+			result[i] = (byte) Integer.parseInt(parts[i]);
+		return result;
+	}
+
+	private void printResults(long processTime, long elapsedTime)
+	{
+		System.out.println(String.format("Records %,d, replayed %,d, skipped %,d (not IPv4 %,d, truncated %,d)",
+				reader.getStatRecords(), statPackets, statSkipped, reader.getStatSkippedNotIp(),
+				reader.getStatSkippedTruncated()));
+		System.out.println(String.format("Elapsed %,d ms, in capture threads %,d ms, %,.0f packets/sec",
+				elapsedTime / 1000000, processTime / 1000000, statPackets * 1e9 / Math.max(1, processTime)));
+
+		System.out.println(String.format("%-12s %10s %10s %10s %14s %14s %14s %14s %14s %14s", "Queue", "Packets",
+				"Drops", "Dup", "Raw IP", "TCP Payload", "Known", "Pred sent", "Pred match", "Pred ACK"));
+		for (CaptureThread curThread : new CaptureThread[] { threadIn, threadOut })
+		{
+			System.out.println(String.format("%-12s %,10d %,10d %,10d %,14d %,14d %,14d %,14d %,14d %,14d", curThread
+					.getQueueKind().name(), curThread.getStatPackets(), curThread.getStatPacketsDropped(), curThread
+					.getStatPacketsDupElim(), curThread.getStatBytesRawIp(), curThread.getStatBytesTcpPayload(),
+					curThread.getStatBytesKnown(), curThread.getStatBytesPredSent(),
+					curThread.getStatBytesPredMatch(), curThread.getStatBytesPredAck()));
+		}
+
+		System.out.println(String.format("Spoofed to self %,d packets %,d bytes, to other %,d packets %,d bytes",
+				statSpoofedSelf, statBytesSpoofedSelf, statSpoofedOther, statBytesSpoofedOther));
+
+		// What this machine puts on the wire, compared to the trace
+		long wireOut = statBytesOutAccepted + statBytesSpoofedOther;
+		System.out.println(String.format("Wire out %,d bytes of %,d in trace, savings %,.2f%%", wireOut,
+				statBytesOut, statBytesOut == 0 ? 0.0 : (statBytesOut - wireOut) * 100.0 / statBytesOut));
+	}
+
+	public static void main(String[] args)
+	{
+		String fileName = null;
+		boolean sideSender = false;
+		byte[] localAddr = null;
+		boolean recordedTiming = false;
+		boolean restoreChains = false;
+		String outPrefix = null;
+		Chunker chunker = Main.streamChunker;
+		Signature signature = Main.signature;
+		Main.debugLevel = 0;
+
+		for (String curArg : args)
+		{
+			if (curArg.startsWith("side="))
+				sideSender = curArg.split("=")[1].toLowerCase().startsWith("s");
+			else if (curArg.startsWith("local="))
+				localAddr = parseAddr(curArg.split("=")[1]);
+			else if ("recorded".equalsIgnoreCase(curArg))
+				recordedTiming = true;
+			else if ("restorechains".equalsIgnoreCase(curArg))
+				restoreChains = true;
+			else if (curArg.startsWith("out="))
+				outPrefix = curArg.split("=")[1];
+			else if (curArg.startsWith("debug="))
+				Main.debugLevel = Integer.parseInt(curArg.split("=")[1]);
+			else if (curArg.startsWith("chunker="))
+				chunker = RabinUtils.getChunker(curArg.split("=")[1]);
+			else if (curArg.startsWith("signature="))
+				signature = Signature.getByName(curArg.split("=")[1]);
+			else if (curArg.startsWith("cachemb="))
+				Main.contentCacheMB = Math.max(1, Integer.parseInt(curArg.split("=")[1]));
+			else if (curArg.startsWith("store="))
+				Main.contentStoreDir = curArg.split("=")[1];
+			else if (curArg.startsWith("eventtrace="))
+				Main.connEventsTraceFile = curArg.split("=")[1];
+			else if (curArg.startsWith("shards="))
+				Main.shards = Math.max(0, Integer.parseInt(curArg.split("=")[1]));
+			else
+				fileName = curArg;
+		}
+
+		if (fileName == null || chunker == null || signature == null)
+		{
+			System.err.println("Usage: PcapReplay file.pcap [side=rcv|snd] [local=a.b.c.d] [recorded] [out=prefix] "
+					+ "[restorechains] [chunker=pack|rabin|gear] [signature=sha1|xxh64] [cachemb=n] [store=dir] [shards=n] [eventtrace=file] [debug=n]");
+			System.exit(1);
+		}
+
+		Main.streamChunker = chunker;
+		Main.fileChunker = chunker;
+		Main.signature = signature;
+		Main.chunks = new GlobalChunkList();
+		// Chains are kept for the next replay only if restored from the former one
+		Main.chains = new StreamsChainList(restoreChains, restoreChains);
+		Main.store = Main.openContentStore();
+		Main.contents = new ChunkContentCache((long) Main.contentCacheMB << 20, Main.store);
+
+		ShardWorker.startShards(Main.shards);
+
+		try
+		{
+			if (Main.connEventsTraceFile != null)
+				TcpEventTrace.open(Main.connEventsTraceFile);
+			PcapReplay replay = new PcapReplay(fileName, sideSender, localAddr, recordedTiming);
+			SpoofThread.initRecorder(replay);
+			if (outPrefix != null)
+				replay.openOutput(outPrefix);
+
+			// Sender buffers are released by wall clock, which makes sense only in real time
+			if (recordedTiming && sideSender)
+			{
+				TimeoutThread timeoutThread = new TimeoutThread(replay.machineList);
+				timeoutThread.setDaemon(true);
+				timeoutThread.start();
+			}
+
+			System.out.println("Replay " + fileName + " as " + (sideSender ? "sender" : "receiver")
+					+ (recordedTiming ? " at recorded timing" : " at full speed"));
+
+			long startTime = System.nanoTime();
+			long processTime = replay.replay();
+			long elapsedTime = System.nanoTime() - startTime;
+
+			replay.reader.close();
+			replay.closeOutput();
+			replay.printResults(processTime, elapsedTime);
+			if (Main.store != null)
+				Main.store.close();
+			Main.chains.close();
+			TcpEventTrace.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,57 @@
+package il.ac.technion.eyalzo.pack.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writer of classic libpcap files with raw IP link type, readable by tcpdump and wireshark.
+ */
+public class PcapWriter implements Closeable
+{
+	private static final int MAGIC_MICROS = 0xa1b2c3d4;
+	private static final int LINKTYPE_RAW = 101;
+	private static final int SNAP_LEN = 65535;
+
+	private final DataOutputStream out;
+
+	public PcapWriter(String fileName) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1024 * 1024));
+
+		out.writeInt(MAGIC_MICROS);
+		// Version 2.4
+		out.writeShort(2);
+		out.writeShort(4);
+		// Time zone and sigfigs
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(SNAP_LEN);
+		out.writeInt(LINKTYPE_RAW);
+	}
+
+	/**
+	 * @param timestampMicros
+	 *            Microseconds since the epoch.
+	 * @param ipPacket
+	 *            Raw IP packet.
+	 * @param length
+	 *            Number of bytes to write.
+	 */
+	public void writePacket(long timestampMicros, byte[] ipPacket, int length) throws IOException
+	{
+		out.writeInt((int) (timestampMicros / 1000000));
+		out.writeInt((int) (timestampMicros % 1000000));
+		out.writeInt(length);
+		out.writeInt(length);
+		out.write(ipPacket, 0, length);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		out.close();
+	}
+}
@@ -0,0 +1,19 @@
+package il.ac.technion.eyalzo.pack.spoof;
+
+/**
+ * Receives the packets that {@link SpoofThread} would have written to its raw
+ * sockets, when installed with {@link SpoofThread#initRecorder(SpoofRecorder)}.
+ */
+public interface SpoofRecorder {
+	/**
+	 * @param self
+	 *            True if the packet was meant for the "self socket" on device
+	 *            "lo", false if for the remote side.
+	 * @param rawIpPacket
+	 *            Ready packet, with IP and TCP headers and valid checksum. The
+	 *            buffer is reused right after the call.
+	 * @param length
+	 *            Packet length in bytes.
+	 */
+	public void onSpoofedPacket(boolean self, byte[] rawIpPacket, int length);
+}
@@ -4,7 +4,6 @@ import il.ac.technion.eyalzo.net.TCPPacket;
 import il.ac.technion.eyalzo.pack.PackUtils;
 import il.ac.technion.eyalzo.pack.conns.TcpUtils;
 import il.ac.technion.eyalzo.pack.pred.PredInChunk;
-import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -33,6 +32,11 @@ public class SpoofThread {
 
 	private static RawSocket socketOther;
 	private static RawSocket socketSelf;
+	/**
+	 * When set, spoofed packets are handed to it instead of being written to
+	 * the raw sockets, which are then not opened at all.
+	 */
+	private static SpoofRecorder recorder;
 
 	//
 	// Configuration
@@ -44,6 +48,14 @@ public class SpoofThread {
 		socketSelf = initSocket("lo");
 	}
 
+	/**
+	 * Record spoofed packets instead of sending them, for offline replay
+	 * without raw sockets.
+	 */
+	public static void initRecorder(SpoofRecorder spoofRecorder) {
+		recorder = spoofRecorder;
+	}
+
 	private static RawSocket initSocket(String deviceName) throws IOException {
 		if (!verifyDevice(deviceName)) {
 			System.out
@@ -144,7 +156,7 @@ public class SpoofThread {
 	 */
 	public static void sendBufferedChunkOut(byte[] rawIpPacket,
 			PredInChunk chunk) {
-		sendBuffer(socketOther, rawIpPacket, chunk.getOutBuffer(), chunk
+		sendBuffer(false, rawIpPacket, chunk.getOutBuffer(), chunk
 				.getTcpSeq(), chunk.getOutBufFilledBytes());
 	}
 
@@ -154,13 +166,12 @@ public class SpoofThread {
 	 * @param rawIpPacket
 	 *            Raw IP packet just as source for several IP and TCP header
 	 *            fields. Other fields will be overridden in the copy.
-	 * @param chunk
-	 *            Chunk to send, probably because of a mismatch.
+	 * @param content
+	 *            Content of the acknowledged chunk.
 	 */
 	public static void sendAcknowledgedChunkIn(byte[] rawIpPacket, long tcpSeq,
-			ChunkItem chunk) {
-		sendBuffer(socketSelf, rawIpPacket, chunk.getContent(), tcpSeq, chunk
-				.getLength());
+			byte[] content) {
+		sendBuffer(true, rawIpPacket, content, tcpSeq, content.length);
 	}
 
 	/**
@@ -172,7 +183,7 @@ public class SpoofThread {
 	 * @param chunk
 	 *            Chunk to send, probably because of a mismatch.
 	 */
-	private static void sendBuffer(RawSocket socket, byte[] rawIpPacket,
+	private static void sendBuffer(boolean self, byte[] rawIpPacket,
 			byte[] chunkData, long tcpSeq, int len) {
 		synchronized (interBuf) {
 			System.arraycopy(rawIpPacket, 0, interBuf, 0,
@@ -184,7 +195,7 @@ public class SpoofThread {
 			// Remove flags and ACK to bypass iptables (PSH for self packets,
 			// for easier debug and bypass)
 			TcpUtils.setTcpFlagsOveride(interBuf,
-					socket == socketSelf ? TcpUtils.FLAG_PSH : 0);
+					self ? TcpUtils.FLAG_PSH : 0);
 			TcpUtils.setTcpAck(interBuf, 0);
 
 			byte[] addrBytes = TcpUtils.getIpDestinationAddr(interBuf);
@@ -199,7 +210,7 @@ public class SpoofThread {
 
 			while (true) {
 				// Send and get next offset
-				nextOffset = sendChunkPart(socket, addr, chunkData, len,
+				nextOffset = sendChunkPart(self, addr, chunkData, len,
 						nextOffset, tcpSeq);
 
 				// Zero when finish or error
@@ -215,9 +226,9 @@ public class SpoofThread {
 	 * Destination address is taken from the ready buffer itself. Also computes
 	 * the checksum.
 	 * 
-	 * @param socket
-	 *            The raw socket which is common to all traffic over a specific
-	 *            NIC.
+	 * @param self
+	 *            True for the "self socket" on device "lo", false for the
+	 *            socket which is common to all traffic over the NIC.
 	 * @param sendBuffer
 	 *            Buffer ready with IP and TCP headers only. Checksum does not
 	 *            have to be correct. Length is according to IP total length in
@@ -225,7 +236,7 @@ public class SpoofThread {
 	 * @return True if nothing went wrong, although it does not mean that the
 	 *         data was sent or reached the destination.
 	 */
-	private static boolean sendSegment(RawSocket socket, byte[] sendBuffer) {
+	private static boolean sendSegment(boolean self, byte[] sendBuffer) {
 		// System.out.println("===== Spoof: " + bufferLen);
 
 		// Get the destination address from the IP header part in the buffer
@@ -248,31 +259,46 @@ public class SpoofThread {
 		// Get packet length from the IP header
 		int packetLen = TcpUtils.getIpTotalLen(sendBuffer);
 
-		synchronized (socket) {
-			try {
-				socket.write(dstIp, sendBuffer, 0, packetLen);
-			} catch (IllegalArgumentException ae) {
-				System.err.println("Server reset illegal argument: "
-						+ ae.toString());
-				return false;
-			} catch (InterruptedIOException te) {
-				System.err.println("Server reset timeout to "
-						+ dstIp.toString() + ": " + te.toString());
-				return false;
-			} catch (IOException ioe) {
-				System.err.println("Server reset I/O error to "
-						+ dstIp.toString() + ": " + ioe.toString());
-				return false;
-			}
+		try {
+			write(self, dstIp, sendBuffer, packetLen);
+		} catch (IllegalArgumentException ae) {
+			System.err.println("Server reset illegal argument: "
+					+ ae.toString());
+			return false;
+		} catch (InterruptedIOException te) {
+			System.err.println("Server reset timeout to "
+					+ dstIp.toString() + ": " + te.toString());
+			return false;
+		} catch (IOException ioe) {
+			System.err.println("Server reset I/O error to "
+					+ dstIp.toString() + ": " + ioe.toString());
+			return false;
 		}
 
 		return true;
 	}
 
+	/**
+	 * Write a ready packet to the raw socket, or hand it to the recorder when
+	 * replaying offline.
+	 */
+	private static void write(boolean self, InetAddress addr, byte[] buffer,
+			int length) throws IOException {
+		if (recorder != null) {
+			recorder.onSpoofedPacket(self, buffer, length);
+			return;
+		}
+
+		RawSocket socket = self ? socketSelf : socketOther;
+		synchronized (socket) {
+			socket.write(addr, buffer, 0, length);
+		}
+	}
+
 	/**
 	 * @return Next offset to use.
 	 */
-	private static int sendChunkPart(RawSocket socket, InetAddress addr,
+	private static int sendChunkPart(boolean self, InetAddress addr,
 			byte[] chunkBuffer, int chunkBufferedBytes, int offset,
 			long chunkSeq) {
 		// How many bytes to put in this packet
@@ -303,7 +329,7 @@ public class SpoofThread {
 			}
 
 			try {
-				socket.write(addr, interBuf, 0, length
+				write(self, addr, interBuf, length
 						+ TcpUtils.COMBINED_HEADERS_LEN);
 			} catch (Exception ae) {
 				ae.printStackTrace();
@@ -333,7 +359,7 @@ public class SpoofThread {
 		TcpUtils.setTcpFlagsOveride(rawIpPacket, 0);
 		TcpUtils.setTcpAck(rawIpPacket, 0);
 
-		return sendSegment(socketOther, rawIpPacket);
+		return sendSegment(false, rawIpPacket);
 	}
 
 	/**
@@ -350,7 +376,7 @@ public class SpoofThread {
 		TcpUtils
 				.setIpTotalLen(rawIpPacketSender, TcpUtils.COMBINED_HEADERS_LEN);
 
-		return sendSegment(socketSelf, rawIpPacketSender);
+		return sendSegment(true, rawIpPacketSender);
 	}
 
 	/**
@@ -389,7 +415,7 @@ public class SpoofThread {
 			TcpUtils.setTcpFlagsOveride(interBuf, 0);
 			TcpUtils.setTcpAck(interBuf, 0);
 
-			return sendSegment(socketOther, interBuf);
+			return sendSegment(false, interBuf);
 		}
 	}
 
@@ -413,7 +439,7 @@ public class SpoofThread {
 			if (tcpSeq >= 0)
 				TcpUtils.setTcpSeq(interBuf, tcpSeq);
 
-			return sendSegment(socketOther, interBuf);
+			return sendSegment(false, interBuf);
 		}
 	}
 
@@ -434,7 +460,7 @@ public class SpoofThread {
 			// Set TCP option for "PACK permitted"
 			PackUtils.setPackPermitted(interBuf);
 
-			return sendSegment(socketOther, interBuf);
+			return sendSegment(false, interBuf);
 		}
 	}
 }
@@ -2,23 +2,46 @@ package il.ac.technion.eyalzo.pack.stamps;
 
 import il.ac.technion.eyalzo.pack.Main;
 import il.ac.technion.eyalzo.pack.files.FileItem;
+import il.ac.technion.eyalzo.util.LongIntHashMap;
 import il.ac.technion.eyalzo.webgui.DisplayTable;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Local chunk list for files and streams.
+ * <p>
+ * Chunks are kept in an array, for direct access by position, and chains
+ * that are searched get an index from each chunk to its first position, so
+ * lookups do not walk the chain.
  */
 public class ChainItem
 {
 	/**
-	 * Chunks by their order in the file/stream.
+	 * Chains shorter than that are searched without an index.
 	 */
-	private LinkedList<ChunkItem> chunks = new LinkedList<ChunkItem>();
+	private static final int INDEX_MIN_SIZE = 16;
+
+	/**
+	 * Chunks by their order in the file/stream, up to {@link #size}.
+	 */
+	private ChunkItem[] chunks = new ChunkItem[INDEX_MIN_SIZE];
+	private int size;
+	/**
+	 * Key is the chunk's stamp+length, and the value is its first position in
+	 * the chain. Built on the first search of a long chain, and kept up to
+	 * date from then on. Null if not built yet.
+	 */
+	private LongIntHashMap index;
+	/**
+	 * Where added chunks are recorded, for stream chains. Null if none.
+	 */
+	private ChainJournal journal;
 	private static int globalSerial = 1;
 	private final int serial;
 
@@ -42,6 +65,23 @@ public class ChainItem
 			this.serial = globalSerial++;
 	}
 
+	/**
+	 * Make sure that new chains get higher serials than a restored one.
+	 */
+	static synchronized void reserveSerial(int serial)
+	{
+		if (globalSerial <= serial)
+			globalSerial = serial + 1;
+	}
+
+	/**
+	 * Record the chunks that are added from now on.
+	 */
+	synchronized void setJournal(ChainJournal journal)
+	{
+		this.journal = journal;
+	}
+
 	/**
 	 * Load file/stream chunks from buffer that was previously read from local
 	 * backup file. Also adds the loaded chunks to the global list.
@@ -71,17 +111,8 @@ public class ChainItem
 					chunkLen);
 
 			// Add to local chain
-			synchronized (chunks)
-			{
-				// Point from the previous last to the new last
-				if (!chunks.isEmpty())
-				{
-					ChunkItem lastChunk = chunks.getLast();
-					lastChunk.setNextChunk(curChunk);
-				}
-				// Add the new last
-				chunks.add(curChunk);
-			}
+			addChunk(curChunk);
+			result++;
 		}
 	}
 
@@ -94,26 +125,24 @@ public class ChainItem
 	 * @return False if there is not enough room in the buffer to save all the
 	 *         chunks.
 	 */
-	public boolean saveChunks(ByteBuffer buffer)
+	public synchronized boolean saveChunks(ByteBuffer buffer)
 	{
-		synchronized (chunks)
-		{
-			// It needs 6 bytes per chunk plus null terminator
-			if (buffer.remaining() < (chunks.size() * 6) + 2)
-				return false;
-
-			for (ChunkItem curChunk : chunks)
-			{
-				// Length
-				buffer.putShort((short) curChunk.length);
-				// Stamp
-				buffer.putInt(curChunk.stamp);
-			}
+		// It needs 6 bytes per chunk plus null terminator
+		if (buffer.remaining() < (size * 6) + 2)
+			return false;
 
-			// Chains separator
-			buffer.putShort((short) 0);
+		for (int i = 0; i < size; i++)
+		{
+			ChunkItem curChunk = chunks[i];
+			// Length
+			buffer.putShort((short) curChunk.length);
+			// Stamp
+			buffer.putInt(curChunk.stamp);
 		}
 
+		// Chains separator
+		buffer.putShort((short) 0);
+
 		return true;
 	}
 
@@ -121,12 +150,9 @@ public class ChainItem
 	 * 
 	 * @return Number of chunks in that chain.
 	 */
-	public int size()
+	public synchronized int size()
 	{
-		synchronized (chunks)
-		{
-			return chunks.size();
-		}
+		return size;
 	}
 
 	/**
@@ -159,22 +185,17 @@ public class ChainItem
 					+ "</font>", curFile.getName());
 		}
 
-		int serial = 0;
 		// Expected chunk by chain
 		ChunkItem expectedChunk = null;
 
-		synchronized (chunks)
+		synchronized (this)
 		{
-			for (ChunkItem curChunk : chunks)
-			{
-				serial++;
+			int from = Math.max(1, fromSerial);
+			int to = Math.min(size, toSerial);
 
-				// Range - from
-				if (serial < fromSerial)
-					continue;
-				// Range - to
-				if (serial > toSerial)
-					break;
+			for (int serial = from; serial <= to; serial++)
+			{
+				ChunkItem curChunk = chunks[serial - 1];
 
 				boolean isBreak = expectedChunk != null
 						&& expectedChunk != curChunk;
@@ -201,13 +222,12 @@ public class ChainItem
 		return table;
 	}
 
-	public void setChunks(LinkedList<ChunkItem> calcChunks)
+	public synchronized void setChunks(Collection<ChunkItem> calcChunks)
 	{
-		synchronized (chunks)
-		{
-			chunks.clear();
-			chunks.addAll(calcChunks);
-		}
+		chunks = calcChunks.toArray(new ChunkItem[Math.max(INDEX_MIN_SIZE,
+				calcChunks.size())]);
+		size = calcChunks.size();
+		index = null;
 	}
 
 	/**
@@ -218,11 +238,11 @@ public class ChainItem
 	{
 		HashSet<FileItem> result = new HashSet<FileItem>();
 
-		synchronized (chunks)
+		synchronized (this)
 		{
-			for (ChunkItem curChunk : chunks)
+			for (int i = 0; i < size; i++)
 			{
-				Collection<FileItem> curFiles = curChunk.getFiles();
+				Collection<FileItem> curFiles = chunks[i].getFiles();
 				if (curFiles == null)
 					continue;
 
@@ -235,27 +255,28 @@ public class ChainItem
 
 	/**
 	 * 
-	 * @param otherChainChunks
-	 *            Stamp list to compare with.
-	 * @return Number of file stamps that are also found in the given list.
+	 * @param otherChain
+	 *            Chain to compare with.
+	 * @return Number of file stamps that are also found in the given chain.
 	 */
-	public String webGuiOverlapChunksVisual(
-			LinkedList<ChunkItem> otherChainChunks, int bytesPerPixel)
+	public String webGuiOverlapChunksVisual(ChainItem otherChain,
+			int bytesPerPixel)
 	{
-		StringBuffer buffer = new StringBuffer(chunks.size() * 50);
+		StringBuffer buffer = new StringBuffer(size() * 50);
 
 		buffer.append("<table width=100% border=0 cellSpacing=0 cellPadding=0>"
 				+ "<tr align=center bgcolor=white>");
 
-		synchronized (chunks)
+		synchronized (this)
 		{
 			boolean light = true;
 
-			for (ChunkItem curStamp : chunks)
+			for (int i = 0; i < size; i++)
 			{
+				ChunkItem curStamp = chunks[i];
 				int pixels = Math.max(1, curStamp.getLength() / bytesPerPixel);
 
-				int chunkIndex = otherChainChunks.indexOf(curStamp);
+				int chunkIndex = otherChain.indexOf(curStamp);
 
 				buffer.append("<td bgcolor=");
 				// If found in chain
@@ -288,11 +309,11 @@ public class ChainItem
 	{
 		int result = 0;
 
-		synchronized (chunks)
+		synchronized (this)
 		{
-			for (ChunkItem curChunk : chunks)
+			for (int i = 0; i < size; i++)
 			{
-				if (otherChain.contains(curChunk))
+				if (otherChain.contains(chunks[i]))
 				{
 					result++;
 				}
@@ -321,10 +342,11 @@ public class ChainItem
 		int otherIndex = 0;
 		int curSeries = 0;
 
-		synchronized (chunks)
+		synchronized (this)
 		{
-			for (ChunkItem curChunk : chunks)
+			for (int i = 0; i < size; i++)
 			{
+				ChunkItem curChunk = chunks[i];
 				if (otherIndex >= 0)
 				{
 					ChunkItem otherChunk = otherChain.getChunk(otherIndex);
@@ -368,22 +390,20 @@ public class ChainItem
 
 	private boolean contains(ChunkItem curChunk)
 	{
-		synchronized (chunks)
-		{
-			return chunks.contains(curChunk);
-		}
+		return indexOf(curChunk) >= 0;
 	}
 
 	/**
 	 * @return Index of the given chunk if found in the chain (0-based), or -1
 	 *         if not found.
 	 */
-	private int indexOf(ChunkItem chunkItem)
+	private synchronized int indexOf(ChunkItem chunkItem)
 	{
-		synchronized (chunks)
-		{
-			return chunks.indexOf(chunkItem);
-		}
+		int result = indexOf(chunkItem.getStamp(), chunkItem.getLength());
+		// A chunk of another chunk list, with the same stamp and length
+		if (result >= 0 && chunks[result] != chunkItem)
+			return -1;
+		return result;
 	}
 
 	public DisplayTable webGuiChainFiles(String fileDetailsLink,
@@ -439,7 +459,7 @@ public class ChainItem
 			// Visual
 			if (withVisual)
 			{
-				table.addCell(curFile.webGuiOverlapChunksVisual(this.chunks,
+				table.addCell(curFile.webGuiOverlapChunksVisual(this,
 						bytesPerPixel));
 			}
 		}
@@ -447,49 +467,46 @@ public class ChainItem
 		return table;
 	}
 
-	public void addFileToChunks(FileItem file)
+	public synchronized void addFileToChunks(FileItem file)
 	{
-		synchronized (chunks)
+		for (int i = 0; i < size; i++)
 		{
-			for (ChunkItem curChunk : chunks)
-			{
-				curChunk.addFile(file);
-			}
+			chunks[i].addFile(file);
 		}
 	}
 
 	public boolean hasChunk(ChunkItem curChunk)
 	{
-		synchronized (chunks)
-		{
-			return chunks.contains(curChunk);
-		}
+		return contains(curChunk);
 	}
 
-	public void addChunk(ChunkItem newChunk)
+	public synchronized void addChunk(ChunkItem newChunk)
 	{
-		synchronized (chunks)
+		// Point from the previous last to the new last
+		if (size > 0)
 		{
-			// Point from the previous last to the new last
-			if (!chunks.isEmpty())
-			{
-				ChunkItem lastChunk = chunks.getLast();
-				lastChunk.setNextChunk(newChunk);
-			}
-			// Add the new last
-			chunks.add(newChunk);
+			ChunkItem lastChunk = chunks[size - 1];
+			lastChunk.setNextChunk(newChunk);
 		}
+		// Add the new last
+		if (size == chunks.length)
+			chunks = Arrays.copyOf(chunks, size * 2);
+		chunks[size] = newChunk;
+		if (index != null && index.get(newChunk.getLongForHashCode()) == LongIntHashMap.NO_VALUE)
+			index.put(newChunk.getLongForHashCode(), size);
+		if (journal != null)
+			journal.append(serial, size, newChunk);
+		size++;
 	}
 
-	public ChunkItem getChainLastChunk()
+	public synchronized ChunkItem getChainFirstChunk()
 	{
-		synchronized (chunks)
-		{
-			if (chunks.isEmpty())
-				return null;
+		return size == 0 ? null : chunks[0];
+	}
 
-			return chunks.getLast();
-		}
+	public synchronized ChunkItem getChainLastChunk()
+	{
+		return size == 0 ? null : chunks[size - 1];
 	}
 
 	/**
@@ -499,55 +516,68 @@ public class ChainItem
 	 * @return Null if index is not in range, or the chunk matching the given
 	 *         index.
 	 */
-	private ChunkItem getChunk(int index)
+	private synchronized ChunkItem getChunk(int index)
 	{
-		synchronized (chunks)
-		{
-			if (index >= chunks.size())
-				return null;
+		if (index < 0 || index >= size)
+			return null;
 
-			return chunks.get(index);
-		}
+		return chunks[index];
 	}
 
 	/**
 	 * @return Number of distinct chunks in chain. Cannot be greater than
 	 *         {@link #size()}.
 	 */
-	public int getChunkCountDistinct()
+	public synchronized int getChunkCountDistinct()
 	{
-		synchronized (chunks)
-		{
-			HashSet<ChunkItem> chunksSet = new HashSet<ChunkItem>(chunks);
-			return chunksSet.size();
-		}
+		HashSet<ChunkItem> chunksSet = new HashSet<ChunkItem>(getChunks());
+		return chunksSet.size();
+	}
+
+	/**
+	 * @return The chunks, as they are now, by their order in the chain.
+	 */
+	public synchronized List<ChunkItem> getChunks()
+	{
+		return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(
+				chunks, size)));
 	}
 
 	/**
-	 * @return The internal chunk list (need to synchronize).
+	 * Index the chain on the first search, if it is long enough to need it.
+	 * 
+	 * @return The index, or null if the chain should be scanned.
 	 */
-	public LinkedList<ChunkItem> getChunks()
+	private LongIntHashMap getIndex()
 	{
-		return chunks;
+		if (index != null || size < INDEX_MIN_SIZE)
+			return index;
+
+		index = new LongIntHashMap(size);
+		for (int i = 0; i < size; i++)
+		{
+			long key = chunks[i].getLongForHashCode();
+			if (index.get(key) == LongIntHashMap.NO_VALUE)
+				index.put(key, i);
+		}
+		return index;
 	}
 
 	/**
 	 * @return 0-based index of first instance of such a chunk in the chain, or
 	 *         -1 if not found.
 	 */
-	public int indexOf(int stamp, int length)
+	public synchronized int indexOf(int stamp, int length)
 	{
-		int index = 0;
-		synchronized (chunks)
-		{
-			for (ChunkItem curChunk : chunks)
-			{
-				if (curChunk.getLength() == length
-						&& curChunk.getStamp() == stamp)
-					return index;
+		LongIntHashMap curIndex = getIndex();
+		if (curIndex != null)
+			return curIndex.get(ChunkItem.getLongForHashCode(stamp, length));
 
-				index++;
-			}
+		for (int i = 0; i < size; i++)
+		{
+			ChunkItem curChunk = chunks[i];
+			if (curChunk.length == length && curChunk.stamp == stamp)
+				return i;
 		}
 
 		return -1;
@@ -561,63 +591,54 @@ public class ChainItem
 	 * @return -1 for no match or 0-based offset of the chunk if found in the
 	 *         given range.
 	 */
-	public int indexOf(int stampVal, int chunkLength, int startOffset,
-			int searchLength)
+	public synchronized int indexOf(int stampVal, int chunkLength,
+			int startOffset, int searchLength)
 	{
 		// Sanity check
-		if (startOffset >= this.size() || searchLength <= 0)
+		if (startOffset >= size || searchLength <= 0)
 			return -1;
 
-		int index = 0;
-		int maxIndex = startOffset + searchLength - 1;
-		synchronized (chunks)
-		{
-			for (ChunkItem curChunk : chunks)
-			{
-				if (index < startOffset)
-				{
-					index++;
-					continue;
-				}
-
-				// Match?
-				if (curChunk.stamp == stampVal
-						&& curChunk.length == chunkLength)
-					return index;
+		int maxIndex = (int) Math.min(size - 1L, (long) startOffset
+				+ searchLength - 1);
+		startOffset = Math.max(0, startOffset);
 
-				// Next index
-				index++;
+		// The first instance tells if it is in the chain at all, and if it
+		// is in the range already
+		int first = indexOf(stampVal, chunkLength);
+		if (first < 0 || first > maxIndex)
+			return -1;
+		if (first >= startOffset)
+			return first;
 
-				// End of search?
-				if (index > maxIndex)
-					return -1;
-			}
+		// A repeated chunk, so scan the range itself
+		for (int i = startOffset; i <= maxIndex; i++)
+		{
+			ChunkItem curChunk = chunks[i];
+			if (curChunk.stamp == stampVal && curChunk.length == chunkLength)
+				return i;
 		}
 
 		return -1;
 	}
 
 	@Override
-	public String toString()
+	public synchronized String toString()
 	{
-		synchronized (chunks)
-		{
-			if (chunks.isEmpty())
-				return serial + ": (empty)";
-
-			StringBuffer buffer = new StringBuffer(chunks.size() * 9);
+		if (size == 0)
+			return serial + ": (empty)";
 
-			buffer.append(serial);
-			buffer.append(":");
+		StringBuffer buffer = new StringBuffer(size * 9);
 
-			for (ChunkItem curChunk : chunks)
-			{
-				buffer.append(" ");
-				buffer.append(curChunk.toString());
-			}
+		buffer.append(serial);
+		buffer.append(":");
 
-			return buffer.toString();
+		for (int i = 0; i < size; i++)
+		{
+			buffer.append(" ");
+			buffer.append(chunks[i].toString());
 		}
+
+		return buffer.toString();
 	}
 
 	/**
@@ -0,0 +1,445 @@
+package il.ac.technion.eyalzo.pack.stamps;
+
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.files.MappedFileReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Persistence of the stream chains: a checkpoint with all the chains, and a journal of the chunks added since.
+ * <p>
+ * Each chunk added to a chain is appended to the journal as a record of [4:chain serial] [4:position] [4:stamp]
+ * [2:length] [2:check], so the cost is proportional to the traffic. Records are buffered and written by
+ * {@link #flush()}. On restore, records of positions that are already in the checkpoint are skipped, and the journal is
+ * cut at the first torn or corrupt record.
+ * <p>
+ * {@link #checkpoint(StreamsChainList)} compacts: it writes all the chains to a temporary checkpoint, renames it over
+ * the former one, and then cuts from the journal the records that are in the new checkpoint. It is done when the
+ * journal grows bigger than the checkpoint, so the amortized cost is still proportional to the traffic.
+ * <p>
+ * The checkpoint starts with a header of the stream chunker and signature (see
+ * {@link RabinUtils#putMetaHeader(ByteBuffer, il.ac.technion.eyalzo.pack.Chunker, il.ac.technion.eyalzo.pack.Signature)}
+ * ), and then each chain as [4:serial] followed by its chunks, see {@link ChainItem#saveChunks(ByteBuffer)}.
+ */
+public class ChainJournal
+{
+	private static final String CHECKPOINT_FILE_NAME = "pack.chains.checkpoint";
+	private static final String JOURNAL_FILE_NAME = "pack.chains.journal";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int RECORD_LEN = 16;
+	/**
+	 * Records are buffered up to that size.
+	 */
+	private static final int BUFFER_BYTES = 64 * 1024;
+	/**
+	 * Journals smaller than that are not compacted, even if the checkpoint is smaller.
+	 */
+	private static final long COMPACT_MIN_BYTES = 16L * 1024 * 1024;
+
+	private final File checkpointFile;
+	private final File journalFile;
+	private FileChannel journal;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	/**
+	 * Bytes written to the current journal, including those in the buffer.
+	 */
+	private long journalBytes;
+	private long checkpointBytes;
+	/**
+	 * Bytes of the journal's records that were restored, before its torn tail if any.
+	 */
+	private long validBytes;
+
+	//
+	// Statistics
+	//
+	private long statRecords;
+	private long statCheckpoints;
+	/**
+	 * Bytes cut from the journal's tail on restore.
+	 */
+	private long statTruncatedBytes;
+
+	/**
+	 * @param dir
+	 *            Directory of the checkpoint and the journal.
+	 */
+	public ChainJournal(File dir)
+	{
+		checkpointFile = new File(dir, CHECKPOINT_FILE_NAME);
+		journalFile = new File(dir, JOURNAL_FILE_NAME);
+	}
+
+	/**
+	 * @return True if there is a checkpoint or a journal, from a former run.
+	 */
+	public boolean exists()
+	{
+		return checkpointFile.exists() || journalFile.exists();
+	}
+
+	private static int check(int serial, int position, int stamp, int length)
+	{
+		int h = serial * 0x9E3779B9 + position * 0x85EBCA6B + stamp * 0xC2B2AE35 + length;
+		return (h ^ (h >>> 16)) & 0xffff;
+	}
+
+	/**
+	 * Load the checkpoint and replay the journal on it.
+	 *
+	 * @param chunks
+	 *            Where the chunks of the chains are added.
+	 * @return The chains, newest first, or null if there is no checkpoint or it belongs to another chunker or
+	 *         signature.
+	 */
+	public LinkedList<ChainItem> restore(GlobalChunkList chunks)
+	{
+		if (!checkpointFile.exists())
+			return null;
+
+		ByteBuffer checkpoint = MappedFileReader.mapFile(checkpointFile.getAbsolutePath());
+		if (checkpoint == null)
+			return null;
+
+		int metaId = RabinUtils.getMetaHeader(checkpoint, -1);
+		if (metaId != RabinUtils.getMetaId(Main.streamChunker, Main.signature))
+		{
+			System.out.println(String.format("Skipped chains of %s in file %s", metaId < 0 ? "unknown" : RabinUtils
+					.getMetaName(metaId), checkpointFile));
+			return null;
+		}
+
+		// The checkpoint is newest first, like the chain list
+		LinkedList<ChainItem> result = new LinkedList<ChainItem>();
+		HashMap<Integer, ChainItem> chainsBySerial = new HashMap<Integer, ChainItem>();
+		while (checkpoint.remaining() >= 4)
+		{
+			int serial = checkpoint.getInt();
+			ChainItem.reserveSerial(serial);
+			ChainItem curChain = new ChainItem(serial);
+			curChain.loadChunks(checkpoint, chunks);
+			result.add(curChain);
+			chainsBySerial.put(curChain.getSerial(), curChain);
+		}
+
+		replayJournal(chunks, result, chainsBySerial);
+
+		return result;
+	}
+
+	private void replayJournal(GlobalChunkList chunks, LinkedList<ChainItem> result,
+			HashMap<Integer, ChainItem> chainsBySerial)
+	{
+		if (!journalFile.exists())
+			return;
+
+		ByteBuffer records = MappedFileReader.mapFile(journalFile.getAbsolutePath());
+		if (records == null)
+			return;
+
+		long validBytes = 0;
+		while (records.remaining() >= RECORD_LEN)
+		{
+			int serial = records.getInt();
+			int position = records.getInt();
+			int stamp = records.getInt();
+			int length = records.getShort() & 0xffff;
+			int check = records.getShort() & 0xffff;
+			if (serial <= 0 || length == 0 || check != check(serial, position, stamp, length))
+				break;
+
+			ChainItem chain = chainsBySerial.get(serial);
+			if (chain == null && position == 0)
+			{
+				ChainItem.reserveSerial(serial);
+				chain = new ChainItem(serial);
+				result.addFirst(chain);
+				chainsBySerial.put(serial, chain);
+			}
+
+			// Positions that are in the checkpoint already are skipped, and a gap means a lost record
+			if (chain == null || position > chain.size())
+				break;
+			if (position == chain.size())
+				chain.addChunk(chunks.getChunkOrAddNew(stamp, length));
+
+			validBytes += RECORD_LEN;
+		}
+
+		this.validBytes = validBytes;
+		long fileSize = journalFile.length();
+		if (validBytes < fileSize)
+		{
+			statTruncatedBytes += fileSize - validBytes;
+			System.out.println(String.format("Cut %,d bytes of torn or corrupt records from %s", fileSize
+					- validBytes, journalFile));
+		}
+	}
+
+	/**
+	 * Record a chunk that was added to a chain. Called with the chain's lock held, so its records are in order.
+	 *
+	 * @param position
+	 *            0-based position of the chunk in the chain.
+	 */
+	synchronized void append(int chainSerial, int position, ChunkItem chunk)
+	{
+		if (journal == null)
+			return;
+
+		if (buffer.remaining() < RECORD_LEN)
+			flush();
+
+		int stamp = chunk.getStamp();
+		int length = chunk.getLength();
+		buffer.putInt(chainSerial);
+		buffer.putInt(position);
+		buffer.putInt(stamp);
+		buffer.putShort((short) length);
+		buffer.putShort((short) check(chainSerial, position, stamp, length));
+		journalBytes += RECORD_LEN;
+		statRecords++;
+	}
+
+	/**
+	 * Write the buffered records to the journal.
+	 */
+	public synchronized void flush()
+	{
+		if (journal == null || buffer.position() == 0)
+			return;
+
+		buffer.flip();
+		try
+		{
+			while (buffer.hasRemaining())
+				journal.write(buffer);
+		} catch (IOException e)
+		{
+			System.err.println("Failed to write chain journal " + journalFile + ": " + e);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * @return True if the journal is big enough to be compacted into a checkpoint.
+	 */
+	public synchronized boolean needsCheckpoint()
+	{
+		return journalBytes >= COMPACT_MIN_BYTES && journalBytes >= checkpointBytes;
+	}
+
+	/**
+	 * Write all the chains to a new checkpoint, and keep in the journal only the records that were added meanwhile,
+	 * which may be in the checkpoint as well, as the restore handles. The files are replaced by renames, so a crash at
+	 * any point leaves a checkpoint and a journal that restore the chains.
+	 *
+	 * @param chainList
+	 *            All the chains. They are saved one by one with their own lock, so the caller should not lock them.
+	 * @return False if failed, when the former checkpoint and journal are kept.
+	 */
+	public boolean checkpoint(StreamsChainList chainList)
+	{
+		File tempCheckpointFile = new File(checkpointFile.getPath() + TEMP_SUFFIX);
+
+		// Records up to here are in the chains already
+		long journalOffset;
+		synchronized (this)
+		{
+			flush();
+			journalOffset = journalBytes;
+		}
+		// Chains that are created from now on have all their records after the offset
+		Collection<ChainItem> chains = chainList.getChains();
+
+		long bytes = 0;
+		try
+		{
+			FileOutputStream out = new FileOutputStream(tempCheckpointFile);
+			try
+			{
+				FileChannel channel = out.getChannel();
+				ByteBuffer chainBuffer = ByteBuffer.allocate(BUFFER_BYTES);
+				RabinUtils.putMetaHeader(chainBuffer, Main.streamChunker, Main.signature);
+				for (ChainItem curChain : chains)
+				{
+					while (true)
+					{
+						int chainStart = chainBuffer.position();
+						chainBuffer.putInt(curChain.getSerial());
+						if (curChain.saveChunks(chainBuffer))
+							break;
+
+						// Write what is in the buffer, and make room for the chain
+						chainBuffer.position(chainStart);
+						chainBuffer.flip();
+						bytes += write(channel, chainBuffer);
+						chainBuffer.clear();
+						if (chainBuffer.capacity() < curChain.size() * 6 + 6)
+							chainBuffer = ByteBuffer.allocate(curChain.size() * 12 + 6);
+					}
+				}
+				chainBuffer.flip();
+				bytes += write(channel, chainBuffer);
+				channel.force(true);
+			} finally
+			{
+				out.close();
+			}
+		} catch (IOException e)
+		{
+			System.err.println("Failed to write chain checkpoint " + tempCheckpointFile + ": " + e);
+			tempCheckpointFile.delete();
+			return false;
+		}
+
+		synchronized (this)
+		{
+			if (!replace(tempCheckpointFile, checkpointFile))
+				return false;
+			checkpointBytes = bytes;
+			statCheckpoints++;
+
+			// With the new checkpoint in place, the journal is needed only from where the checkpoint started
+			if (journal != null)
+				compactJournal(journalOffset);
+		}
+
+		return true;
+	}
+
+	private static long write(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		long result = buffer.remaining();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		return result;
+	}
+
+	/**
+	 * Rename a file over another, where the platform does not do it atomically.
+	 */
+	private static boolean replace(File from, File to)
+	{
+		if (from.renameTo(to) || (to.delete() && from.renameTo(to)))
+			return true;
+
+		System.err.println("Failed to rename " + from + " to " + to);
+		return false;
+	}
+
+	/**
+	 * Copy the journal's records from the given offset to a new journal, that replaces it.
+	 */
+	private void compactJournal(long offset)
+	{
+		flush();
+		File tempJournalFile = new File(journalFile.getPath() + TEMP_SUFFIX);
+		try
+		{
+			FileChannel newJournal = new RandomAccessFile(tempJournalFile, "rw").getChannel();
+			newJournal.truncate(0);
+			long tail = journalBytes - offset;
+			long copied = 0;
+			while (copied < tail)
+				copied += journal.transferTo(offset + copied, tail - copied, newJournal);
+			newJournal.force(true);
+
+			if (!replace(tempJournalFile, journalFile))
+			{
+				newJournal.close();
+				return;
+			}
+			journal.close();
+			journal = newJournal;
+			journalBytes = tail;
+		} catch (IOException e)
+		{
+			System.err.println("Failed to compact chain journal " + journalFile + ": " + e);
+		}
+	}
+
+	/**
+	 * Start to record, after {@link #restore(GlobalChunkList)} if any.
+	 *
+	 * @param restored
+	 *            True if the chains were restored from the checkpoint and journal, so the journal's valid records are
+	 *            kept. Otherwise the journal is emptied and a new checkpoint is written.
+	 * @return False if failed to open the journal, when nothing is recorded.
+	 */
+	public boolean open(StreamsChainList chainList, boolean restored)
+	{
+		synchronized (this)
+		{
+			try
+			{
+				journal = new RandomAccessFile(journalFile, "rw").getChannel();
+				// Cut the torn tail, if any
+				journal.truncate(restored ? validBytes : 0);
+				journal.position(journal.size());
+				journalBytes = journal.size();
+			} catch (IOException e)
+			{
+				System.err.println("Failed to open chain journal " + journalFile + ": " + e);
+				journal = null;
+				return false;
+			}
+		}
+
+		if (!restored)
+			return checkpoint(chainList);
+
+		checkpointBytes = checkpointFile.length();
+		return true;
+	}
+
+	/**
+	 * Flush and close the journal. Chunks added afterwards are not recorded.
+	 */
+	public synchronized void close()
+	{
+		flush();
+		try
+		{
+			if (journal != null)
+				journal.close();
+		} catch (IOException e)
+		{
+		}
+		journal = null;
+	}
+
+	public synchronized long getJournalBytes()
+	{
+		return journalBytes;
+	}
+
+	public synchronized long getCheckpointBytes()
+	{
+		return checkpointBytes;
+	}
+
+	public synchronized long getStatRecords()
+	{
+		return statRecords;
+	}
+
+	public synchronized long getStatCheckpoints()
+	{
+		return statCheckpoints;
+	}
+
+	public synchronized long getStatTruncatedBytes()
+	{
+		return statTruncatedBytes;
+	}
+}
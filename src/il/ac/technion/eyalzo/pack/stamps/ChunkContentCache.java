@@ -0,0 +1,271 @@
+package il.ac.technion.eyalzo.pack.stamps;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Content of stream chunks, that the receiver needs for predictions, kept within a byte budget.
+ * <p>
+ * Eviction follows W-TinyLFU, with the chunk's stream count ({@link ChunkItem#getStatStreamCount()}) as the frequency:
+ * <ol>
+ * <li>New content enters a small LRU window, so a burst of new chunks is kept for a while.</li>
+ * <li>The window's oldest is admitted to the main area only if it was seen in streams more times than the main area's
+ * victim, so a long one-time transfer cannot flush the chunks that repeat.</li>
+ * <li>The main area is segmented LRU: chunks start in probation and move to protected when used again.</li>
+ * </ol>
+ * Evicted chunks stay in the chunk list, without content, and can be cached again when they show up in a stream, or
+ * loaded from the {@link ChunkContentStore} on disk, if any.
+ */
+public class ChunkContentCache
+{
+	/**
+	 * Part of the budget, in percents, for the window.
+	 */
+	private static final int WINDOW_PERCENT = 1;
+	/**
+	 * Part of the main area, in percents, for chunks that were used again.
+	 */
+	private static final int PROTECTED_PERCENT = 80;
+
+	private final long maxBytes;
+	private final long windowMaxBytes;
+	private final long protectedMaxBytes;
+	/**
+	 * Where all the content is written, and read from when not cached. Null if none.
+	 */
+	private final ChunkContentStore store;
+
+	/**
+	 * Each area is in LRU order, from the oldest. Values are not used.
+	 */
+	private final LinkedHashMap<ChunkItem, Boolean> window = new LinkedHashMap<ChunkItem, Boolean>(16, 0.75f, true);
+	private final LinkedHashMap<ChunkItem, Boolean> probation = new LinkedHashMap<ChunkItem, Boolean>(16, 0.75f, true);
+	private final LinkedHashMap<ChunkItem, Boolean> protect = new LinkedHashMap<ChunkItem, Boolean>(16, 0.75f, true);
+	private long windowBytes;
+	private long probationBytes;
+	private long protectedBytes;
+
+	//
+	// Statistics
+	//
+	/**
+	 * Content asked for and found.
+	 */
+	private long statHits;
+	/**
+	 * Content asked for and loaded from the store.
+	 */
+	private long statLoads;
+	/**
+	 * Content asked for but not available, either evicted or never cached.
+	 */
+	private long statMisses;
+	/**
+	 * Content that was dropped, including new content that was not admitted.
+	 */
+	private long statEvictions;
+
+	/**
+	 * @param maxBytes
+	 *            Budget for the content itself.
+	 * @param store
+	 *            Where to keep all the content on disk, or null for none.
+	 */
+	public ChunkContentCache(long maxBytes, ChunkContentStore store)
+	{
+		this.maxBytes = maxBytes;
+		this.store = store;
+		windowMaxBytes = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+		protectedMaxBytes = (maxBytes - windowMaxBytes) * PROTECTED_PERCENT / 100;
+	}
+
+	/**
+	 * Keep the chunk's content, if it is not cached already, and evict as needed. The content is also stored.
+	 *
+	 * @param content
+	 *            The chunk's content, that must not be changed later.
+	 */
+	public synchronized void put(ChunkItem chunk, byte[] content)
+	{
+		if (chunk.getContent() != null)
+			return;
+
+		if (store != null)
+			store.append(chunk, content);
+		insert(chunk, content);
+	}
+
+	private void insert(ChunkItem chunk, byte[] content)
+	{
+		if (content.length > maxBytes)
+		{
+			statEvictions++;
+			return;
+		}
+
+		chunk.setContent(content);
+		window.put(chunk, Boolean.TRUE);
+		windowBytes += content.length;
+
+		// Move the window's oldest to the main area, if they win over its victims
+		while (windowBytes > windowMaxBytes)
+		{
+			Iterator<ChunkItem> it = window.keySet().iterator();
+			ChunkItem candidate = it.next();
+			it.remove();
+			windowBytes -= candidate.getLength();
+			admit(candidate);
+		}
+	}
+
+	/**
+	 * @return The chunk's content, from the cache or loaded to it from the store, or null if not available.
+	 */
+	public synchronized byte[] get(ChunkItem chunk)
+	{
+		if (!touch(chunk))
+		{
+			byte[] content = store == null ? null : store.read(chunk);
+			if (content == null)
+			{
+				statMisses++;
+				return null;
+			}
+
+			statLoads++;
+			insert(chunk, content);
+			return content;
+		}
+
+		statHits++;
+		return chunk.getContent();
+	}
+
+	/**
+	 * Mark the chunk as used, like when it is seen again in a stream, without counting a hit or a miss.
+	 *
+	 * @return True if the chunk is cached.
+	 */
+	public synchronized boolean use(ChunkItem chunk)
+	{
+		return touch(chunk);
+	}
+
+	/**
+	 * Mark the chunk as used, and promote it from probation to protected.
+	 *
+	 * @return True if the chunk is cached.
+	 */
+	private boolean touch(ChunkItem chunk)
+	{
+		if (chunk.getContent() == null)
+			return false;
+
+		// Access order is updated by the get
+		if (window.get(chunk) != null || protect.get(chunk) != null)
+			return true;
+
+		if (probation.remove(chunk) == null)
+			return false;
+		probationBytes -= chunk.getLength();
+		protect.put(chunk, Boolean.TRUE);
+		protectedBytes += chunk.getLength();
+
+		// Demote the protected oldest to probation, where they get another chance
+		while (protectedBytes > protectedMaxBytes)
+		{
+			Iterator<ChunkItem> it = protect.keySet().iterator();
+			ChunkItem demoted = it.next();
+			it.remove();
+			protectedBytes -= demoted.getLength();
+			probation.put(demoted, Boolean.TRUE);
+			probationBytes += demoted.getLength();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Put the window's candidate in probation, if there is room or it is more popular than the main area's victims.
+	 */
+	private void admit(ChunkItem candidate)
+	{
+		long mainMaxBytes = maxBytes - windowMaxBytes;
+		if (candidate.getLength() > mainMaxBytes)
+		{
+			evict(candidate);
+			return;
+		}
+
+		while (probationBytes + protectedBytes + candidate.getLength() > mainMaxBytes)
+		{
+			LinkedHashMap<ChunkItem, Boolean> area = probation.isEmpty() ? protect : probation;
+			Iterator<ChunkItem> it = area.keySet().iterator();
+			ChunkItem victim = it.next();
+
+			// Ties go to the victim, so one-time chunks do not replace each other in turn
+			if (candidate.getStatStreamCount() <= victim.getStatStreamCount())
+			{
+				evict(candidate);
+				return;
+			}
+
+			it.remove();
+			if (area == probation)
+				probationBytes -= victim.getLength();
+			else
+				protectedBytes -= victim.getLength();
+			evict(victim);
+		}
+
+		probation.put(candidate, Boolean.TRUE);
+		probationBytes += candidate.getLength();
+	}
+
+	private void evict(ChunkItem chunk)
+	{
+		chunk.setContent(null);
+		statEvictions++;
+	}
+
+	/**
+	 * @return Number of chunks with cached content.
+	 */
+	public synchronized int getChunksCount()
+	{
+		return window.size() + probation.size() + protect.size();
+	}
+
+	/**
+	 * @return Total bytes of cached content.
+	 */
+	public synchronized long getBytes()
+	{
+		return windowBytes + probationBytes + protectedBytes;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized long getStatHits()
+	{
+		return statHits;
+	}
+
+	public synchronized long getStatLoads()
+	{
+		return statLoads;
+	}
+
+	public synchronized long getStatMisses()
+	{
+		return statMisses;
+	}
+
+	public synchronized long getStatEvictions()
+	{
+		return statEvictions;
+	}
+}
@@ -0,0 +1,525 @@
+package il.ac.technion.eyalzo.pack.stamps;
+
+import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Content of stream chunks on disk, kept across restarts, so the receiver can predict chunks it saw long ago without
+ * keeping their content in the heap.
+ * <p>
+ * The content is appended to a log of segment files, each starting with a header of the signature (see
+ * {@link RabinUtils#putMetaHeader(java.nio.ByteBuffer, il.ac.technion.eyalzo.pack.Chunker, il.ac.technion.eyalzo.pack.Signature)}
+ * ), followed by records of [4:length] [4:stamp] [length:content]. Segments are memory-mapped, so appends and reads do
+ * not make system calls, and the data reaches the disk even if the process is killed. The in-memory index is a single
+ * long per chunk ID, with the segment and the offset of its record, and is rebuilt from the segments on startup.
+ * <p>
+ * A record becomes garbage when its chunk is written again, like when a chunk in an old segment is read and moved to
+ * the log's head. {@link #maintain()} drops the oldest segments when the log is over its budget, and compacts segments
+ * that are mostly garbage by moving their live records to the head.
+ */
+public class ChunkContentStore
+{
+	/**
+	 * Default segment size.
+	 */
+	public static final int SEGMENT_BYTES = 128 * 1024 * 1024;
+	/**
+	 * Segments with less live data than that, in percents, are compacted.
+	 */
+	private static final int COMPACT_LIVE_PERCENT = 50;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int HEADER_LEN = 4;
+	private static final int RECORD_HEADER_LEN = 8;
+
+	private final File dir;
+	private final long maxBytes;
+	private final int segmentBytes;
+	private final GlobalChunkList chunks;
+
+	/**
+	 * Segments by number, from the oldest. The last is {@link #active}.
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+	/**
+	 * Location of each chunk's record by chunk ID, see {@link #location(Segment, int)}, or zero if not stored.
+	 */
+	private long[] locations = new long[1024];
+	/**
+	 * Bytes in all the segments, live or not.
+	 */
+	private long totalBytes;
+	/**
+	 * Set by {@link #close()}, after which appends and reads do nothing.
+	 */
+	private boolean closed;
+
+	//
+	// Statistics
+	//
+	private long statAppends;
+	private long statReads;
+	/**
+	 * Records moved to the head, when read or when their segment was compacted.
+	 */
+	private long statMoved;
+	/**
+	 * Records that were dropped with the oldest segments, or failed to move.
+	 */
+	private long statDropped;
+
+	/**
+	 * One file of the log.
+	 */
+	private static class Segment
+	{
+		final int num;
+		final File file;
+		/**
+		 * Open only while the segment is appended to.
+		 */
+		RandomAccessFile raf;
+		MappedByteBuffer buffer;
+		/**
+		 * Bytes used, including the header.
+		 */
+		int size;
+		/**
+		 * Bytes of records that are still in the index.
+		 */
+		long liveBytes;
+
+		Segment(File dir, int num)
+		{
+			this.num = num;
+			file = new File(dir, String.format("%08d%s", num, SEGMENT_SUFFIX));
+		}
+	}
+
+	/**
+	 * Open the store, and index the chunks of existing segments.
+	 *
+	 * @param dir
+	 *            Directory of the segments, created if needed.
+	 * @param maxBytes
+	 *            Disk budget, kept by {@link #maintain()}.
+	 * @param segmentBytes
+	 *            Size of each segment, see {@link #SEGMENT_BYTES}.
+	 * @param chunks
+	 *            Where stored chunks are added on startup.
+	 * @throws IOException
+	 *             If the directory or a segment could not be opened.
+	 */
+	public ChunkContentStore(File dir, long maxBytes, int segmentBytes, GlobalChunkList chunks) throws IOException
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.segmentBytes = segmentBytes;
+		this.chunks = chunks;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Failed to create directory " + dir);
+
+		LinkedList<Integer> nums = new LinkedList<Integer>();
+		File[] files = dir.listFiles();
+		if (files != null)
+		{
+			for (File curFile : files)
+			{
+				String name = curFile.getName();
+				if (!name.endsWith(SEGMENT_SUFFIX))
+					continue;
+				try
+				{
+					nums.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e)
+				{
+				}
+			}
+		}
+
+		int lastNum = 0;
+		for (Integer num : nums)
+			lastNum = Math.max(lastNum, num);
+
+		// Load from the oldest, so a chunk that was written twice gets its newer record
+		Integer[] sorted = nums.toArray(new Integer[nums.size()]);
+		Arrays.sort(sorted);
+		for (int num : sorted)
+			load(num);
+
+		roll(lastNum + 1);
+	}
+
+	/**
+	 * Index the records of an existing segment, and cut off a partial record left by a crash.
+	 */
+	private void load(int num) throws IOException
+	{
+		Segment segment = new Segment(dir, num);
+		RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			int fileSize = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+			segment.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+			// Stamps of another signature would never match
+			int metaId = RabinUtils.getMetaHeader(segment.buffer, -1);
+			if ((metaId >>> 8) != Main.signature.id)
+			{
+				System.out.println(String.format("Skipped content of %s in file %s", metaId < 0 ? "unknown"
+						: RabinUtils.getMetaName(metaId), segment.file));
+				return;
+			}
+
+			// Records up to the first zero length, where the segment was not filled, or a partial record
+			segments.put(num, segment);
+			int offset = HEADER_LEN;
+			while (offset + RECORD_HEADER_LEN <= fileSize)
+			{
+				int length = segment.buffer.getInt(offset);
+				if (length <= 0 || length > fileSize - offset - RECORD_HEADER_LEN)
+					break;
+				int stamp = segment.buffer.getInt(offset + 4);
+
+				ChunkItem chunk = chunks.getChunkOrAddNew(stamp, length);
+				setLocation(chunk, location(segment, offset), RECORD_HEADER_LEN + length);
+				segment.liveBytes += RECORD_HEADER_LEN + length;
+
+				offset += RECORD_HEADER_LEN + length;
+			}
+
+			// Nothing was written before the restart
+			if (offset == HEADER_LEN)
+			{
+				segments.remove(num);
+				raf.close();
+				if (!segment.file.delete())
+					System.err.println("Failed to delete content segment " + segment.file);
+				return;
+			}
+
+			if (offset < fileSize)
+			{
+				raf.setLength(offset);
+				segment.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+			}
+			segment.size = offset;
+			totalBytes += segment.size;
+		} finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Seal the active segment, if any, and start a new one.
+	 */
+	private void roll(int num) throws IOException
+	{
+		if (active != null)
+		{
+			active.buffer.force();
+			active.raf.setLength(active.size);
+			active.raf.close();
+			active.raf = null;
+		}
+
+		Segment segment = new Segment(dir, num);
+		segment.raf = new RandomAccessFile(segment.file, "rw");
+		segment.raf.setLength(segmentBytes);
+		segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		RabinUtils.putMetaHeader(segment.buffer, Main.streamChunker, Main.signature);
+		segment.size = HEADER_LEN;
+
+		segments.put(num, segment);
+		totalBytes += segment.size;
+		active = segment;
+	}
+
+	/**
+	 * @return Segment number and the record's offset in it, never zero.
+	 */
+	private static long location(Segment segment, int offset)
+	{
+		return ((long) (segment.num + 1) << 32) | offset;
+	}
+
+	private Segment segmentOf(long location)
+	{
+		return segments.get((int) (location >>> 32) - 1);
+	}
+
+	/**
+	 * Point the chunk to a new record, and count the former one as garbage.
+	 */
+	private void setLocation(ChunkItem chunk, long location, int recordLen)
+	{
+		int id = chunk.getId();
+		if (id >= locations.length)
+			locations = Arrays.copyOf(locations, Math.max(id + 1, locations.length * 2));
+
+		long former = locations[id];
+		if (former != 0)
+		{
+			Segment segment = segmentOf(former);
+			if (segment != null)
+				segment.liveBytes -= recordLen;
+		}
+		locations[id] = location;
+	}
+
+	private long getLocation(ChunkItem chunk)
+	{
+		int id = chunk.getId();
+		return id < locations.length ? locations[id] : 0;
+	}
+
+	/**
+	 * @return True if the chunk's content is stored.
+	 */
+	public synchronized boolean contains(ChunkItem chunk)
+	{
+		return getLocation(chunk) != 0;
+	}
+
+	/**
+	 * Store the chunk's content at the log's head, if not stored already.
+	 *
+	 * @return False if failed to start a new segment, or the store is closed.
+	 */
+	public synchronized boolean append(ChunkItem chunk, byte[] content)
+	{
+		if (closed)
+			return false;
+		if (getLocation(chunk) != 0)
+			return true;
+
+		if (!write(chunk, content))
+			return false;
+		statAppends++;
+		return true;
+	}
+
+	private boolean write(ChunkItem chunk, byte[] content)
+	{
+		int recordLen = RECORD_HEADER_LEN + content.length;
+		if (HEADER_LEN + recordLen > segmentBytes)
+			return false;
+
+		if (active.size + recordLen > segmentBytes)
+		{
+			try
+			{
+				roll(active.num + 1);
+			} catch (IOException e)
+			{
+				System.err.println("Failed to start content segment " + (active.num + 1) + ": " + e);
+				return false;
+			}
+		}
+
+		MappedByteBuffer buffer = active.buffer;
+		int offset = active.size;
+		buffer.position(offset + RECORD_HEADER_LEN);
+		buffer.put(content);
+		buffer.putInt(offset + 4, chunk.getStamp());
+		// Length last, as a zero length marks the end of the records
+		buffer.putInt(offset, content.length);
+
+		setLocation(chunk, location(active, offset), recordLen);
+		active.size += recordLen;
+		active.liveBytes += recordLen;
+		totalBytes += recordLen;
+		return true;
+	}
+
+	/**
+	 * Copy the chunk's content from its mapped segment. A chunk in the oldest quarter of the log is moved to the head,
+	 * so it is not dropped with its segment.
+	 *
+	 * @return The content, or null if not stored or the store is closed.
+	 */
+	public synchronized byte[] read(ChunkItem chunk)
+	{
+		long location = getLocation(chunk);
+		if (closed || location == 0)
+			return null;
+
+		Segment segment = segmentOf(location);
+		int offset = (int) location;
+		byte[] result = new byte[chunk.getLength()];
+		segment.buffer.position(offset + RECORD_HEADER_LEN);
+		segment.buffer.get(result);
+		statReads++;
+
+		int oldest = segments.firstKey();
+		if (segment != active && segment.num - oldest < (active.num - oldest + 3) / 4 && write(chunk, result))
+			statMoved++;
+
+		return result;
+	}
+
+	/**
+	 * Drop the oldest segments while the log is over budget, and compact segments that are mostly garbage. Records are
+	 * handled one at a time, so appends and reads are not held for long.
+	 */
+	public void maintain()
+	{
+		while (true)
+		{
+			Segment oldest;
+			synchronized (this)
+			{
+				if (closed)
+					return;
+				oldest = segments.firstEntry().getValue();
+				if (totalBytes <= maxBytes || oldest == active)
+					break;
+			}
+			release(oldest, false);
+		}
+
+		LinkedList<Segment> sparse = new LinkedList<Segment>();
+		synchronized (this)
+		{
+			for (Segment curSegment : segments.values())
+			{
+				if (curSegment != active && curSegment.liveBytes * 100 < curSegment.size * COMPACT_LIVE_PERCENT)
+					sparse.add(curSegment);
+			}
+		}
+		for (Segment curSegment : sparse)
+			release(curSegment, true);
+	}
+
+	/**
+	 * Remove a sealed segment, after its live records were moved to the head or dropped from the index.
+	 */
+	private void release(Segment segment, boolean move)
+	{
+		int offset = HEADER_LEN;
+		while (offset < segment.size)
+		{
+			synchronized (this)
+			{
+				// Its mapping was released
+				if (closed)
+					return;
+				int length = segment.buffer.getInt(offset);
+				int stamp = segment.buffer.getInt(offset + 4);
+				ChunkItem chunk = chunks.getChunkItem(stamp, length);
+				if (chunk != null && getLocation(chunk) == location(segment, offset))
+				{
+					if (move)
+					{
+						byte[] content = new byte[length];
+						segment.buffer.position(offset + RECORD_HEADER_LEN);
+						segment.buffer.get(content);
+						move = write(chunk, content);
+					}
+					if (move)
+					{
+						statMoved++;
+					} else
+					{
+						locations[chunk.getId()] = 0;
+						statDropped++;
+					}
+				}
+				offset += RECORD_HEADER_LEN + length;
+			}
+		}
+
+		synchronized (this)
+		{
+			segments.remove(segment.num);
+			totalBytes -= segment.size;
+		}
+		// The mapping stays valid until collected, while the file is gone
+		if (!segment.file.delete())
+			System.err.println("Failed to delete content segment " + segment.file);
+	}
+
+	/**
+	 * Flush the active segment and close it, and release the mappings of all the segments. Appends and reads do
+	 * nothing afterwards.
+	 */
+	public synchronized void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+
+		try
+		{
+			active.buffer.force();
+			active.raf.setLength(active.size);
+			active.raf.close();
+		} catch (IOException e)
+		{
+			System.err.println("Failed to close content segment " + active.file + ": " + e);
+		}
+		active.raf = null;
+
+		// The mappings are unmapped when collected, once no segment refers to them
+		for (Segment curSegment : segments.values())
+			curSegment.buffer = null;
+		segments.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * @return Bytes in all the segments, live or not.
+	 */
+	public synchronized long getBytes()
+	{
+		return totalBytes;
+	}
+
+	/**
+	 * @return Bytes of records that are still in the index.
+	 */
+	public synchronized long getLiveBytes()
+	{
+		long result = 0;
+		for (Segment curSegment : segments.values())
+			result += curSegment.liveBytes;
+		return result;
+	}
+
+	public synchronized int getSegmentsCount()
+	{
+		return segments.size();
+	}
+
+	public synchronized long getStatAppends()
+	{
+		return statAppends;
+	}
+
+	public synchronized long getStatReads()
+	{
+		return statReads;
+	}
+
+	public synchronized long getStatMoved()
+	{
+		return statMoved;
+	}
+
+	public synchronized long getStatDropped()
+	{
+		return statDropped;
+	}
+}
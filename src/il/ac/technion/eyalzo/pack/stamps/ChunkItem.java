@@ -4,11 +4,15 @@ import il.ac.technion.eyalzo.pack.files.FileItem;
 import il.ac.technion.eyalzo.webgui.WebContext;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 
 public class ChunkItem implements Comparable<ChunkItem>
 {
+	/**
+	 * Index in the chunk list, see {@link GlobalChunkList#getChunkById(int)}.
+	 */
+	private final int id;
 	/**
 	 * The chunk's stamp.
 	 */
@@ -20,17 +24,24 @@ public class ChunkItem implements Comparable<ChunkItem>
 	/**
 	 * The chunk's content, that is needed when the chunk is not part of a file
 	 * and we wish to use it locally for prediction. Null if content was not
-	 * saved here due to lack of space, reference to file, etc.
+	 * saved here due to lack of space, reference to file, etc. Set only by
+	 * {@link ChunkContentCache}.
 	 */
-	private byte[] chunkContent;
+	private volatile byte[] chunkContent;
 	/**
-	 * Local disk files that have this chunk.
+	 * The first local disk file that has this chunk, as most chunks are in a
+	 * single file. Null if none.
 	 */
-	private HashSet<FileItem> files = new HashSet<FileItem>();
+	private FileItem file;
 	/**
-	 * Local chains that have this chunk, ordered by adding time.
+	 * Local disk files that have this chunk, including {@link #file}, only if
+	 * there are more than one.
 	 */
-	private LinkedList<ChainItem> chains = new LinkedList<ChainItem>();
+	private HashSet<FileItem> files;
+	/**
+	 * The local chain that was the last to have this chunk. Null if none.
+	 */
+	private ChainItem lastChain;
 	/**
 	 * Number of times found in traffic stream since start.
 	 */
@@ -55,18 +66,29 @@ public class ChunkItem implements Comparable<ChunkItem>
 	/**
 	 * When the length and stamp are known.
 	 */
-	public ChunkItem(int stamp, int length)
+	ChunkItem(int stamp, int length, int id)
 	{
 		this.stamp = stamp;
 		this.length = length;
+		this.id = id;
 	}
 
-	public void addFile(FileItem fileItem)
+	public synchronized void addFile(FileItem fileItem)
 	{
-		synchronized (files)
+		if (file == null)
 		{
-			files.add(fileItem);
+			file = fileItem;
+			return;
 		}
+
+		if (files == null)
+		{
+			if (file.equals(fileItem))
+				return;
+			files = new HashSet<FileItem>();
+			files.add(file);
+		}
+		files.add(fileItem);
 	}
 
 	@Override
@@ -79,12 +101,11 @@ public class ChunkItem implements Comparable<ChunkItem>
 		return String.format("%08x/%,d", this.stamp, this.length);
 	}
 
-	public int getFilesCount()
+	public synchronized int getFilesCount()
 	{
-		synchronized (files)
-		{
+		if (files != null)
 			return files.size();
-		}
+		return file == null ? 0 : 1;
 	}
 
 	public static String toString(int stamp)
@@ -107,9 +128,22 @@ public class ChunkItem implements Comparable<ChunkItem>
 		return length;
 	}
 
-	public Collection<FileItem> getFiles()
+	public synchronized Collection<FileItem> getFiles()
 	{
-		return files;
+		if (files != null)
+			return files;
+		if (file != null)
+			return Collections.singleton(file);
+		return Collections.emptySet();
+	}
+
+	/**
+	 * @return Index in the chunk list, see
+	 *         {@link GlobalChunkList#getChunkById(int)}.
+	 */
+	public int getId()
+	{
+		return id;
 	}
 
 	public int getStatStreamCount()
@@ -154,18 +188,11 @@ public class ChunkItem implements Comparable<ChunkItem>
 	/**
 	 * Save a reference to that chain for later retrieval by receiver.
 	 * <p>
-	 * Preserves order in a way that guarantees that the last added is the last
-	 * on the list.
+	 * Only the last added is kept, as it is the only one ever retrieved.
 	 */
-	public void addChain(ChainItem chainItem)
+	public synchronized void addChain(ChainItem chainItem)
 	{
-		synchronized (chains)
-		{
-			// For the rare case when a chunk is already found in that chain so
-			// it may register the chain again
-			chains.remove(chainItem);
-			chains.add(chainItem);
-		}
+		lastChain = chainItem;
 	}
 
 	/**
@@ -173,22 +200,20 @@ public class ChunkItem implements Comparable<ChunkItem>
 	 * @return Null if there are no chains for this chunk (because the reference
 	 *         is voluntary), or the last added (or "added" again).
 	 */
-	public ChainItem getChainLast()
+	public synchronized ChainItem getChainLast()
 	{
-		synchronized (chains)
-		{
-			return chains.getLast();
-		}
+		return lastChain;
 	}
 
-	public void setContent(byte[] chunkContent)
+	void setContent(byte[] chunkContent)
 	{
 		this.chunkContent = chunkContent;
 	}
 
 	/**
 	 * 
-	 * @return Null if the chunk's content was not saved.
+	 * @return Null if the chunk's content was not saved, or was evicted.
+	 *         Does not count as a use, see {@link ChunkContentCache#get}.
 	 */
 	public byte[] getContent()
 	{
@@ -1,53 +1,153 @@
 package il.ac.technion.eyalzo.pack.stamps;
 
-import java.util.HashMap;
+import il.ac.technion.eyalzo.util.LongIntHashMap;
 
+import java.util.Arrays;
+
+/**
+ * All the known chunks, by stamp and length, shared by the capture threads, the disk scanner and the chains.
+ * <p>
+ * The chunks are split to stripes by key, each with its own lock, index and statistics, so threads rarely wait for each
+ * other, and the disk scanner can add a file's chunks while packets are processed.
+ */
 public class GlobalChunkList
 {
 	/**
-	 * Key is stamp+length, and the value is the chunk itself where pointers to files are held.
+	 * Default number of stripes, as a power of 2 well above the number of threads.
 	 */
-	private HashMap<Long, ChunkItem> chunks = new HashMap<Long, ChunkItem>();
+	public static final int DEFAULT_STRIPE_BITS = 6;
+	private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+	private final int stripeBits;
+	private final Stripe[] stripes;
 
-	//
-	// Statistics
-	//
-	/**
-	 * Completely new.
-	 */
-	protected static long statChunksUnknown;
 	/**
-	 * Known stamps meaning not {@link #statChunksUnknown}.
+	 * Chunks of keys that fall in the same stripe. The stripe itself is the lock.
 	 */
-	protected static long statChunksKnown;
+	private static class Stripe
+	{
+		/**
+		 * Key is stamp+length, and the value is the chunk's index in {@link #chunks}.
+		 */
+		final LongIntHashMap index = new LongIntHashMap(INITIAL_STRIPE_CAPACITY);
+		/**
+		 * Chunks by index, where pointers to files are held.
+		 */
+		ChunkItem[] chunks = new ChunkItem[INITIAL_STRIPE_CAPACITY];
+
+		//
+		// Statistics, updated under the stripe's lock
+		//
+		/**
+		 * Completely new.
+		 */
+		long statChunksUnknown;
+		/**
+		 * Known stamps meaning not {@link #statChunksUnknown}.
+		 */
+		long statChunksKnown;
+	}
 
 	public GlobalChunkList()
 	{
+		this(DEFAULT_STRIPE_BITS);
+
 		// TODO revive
 		// restoreChains();
 	}
 
+	/**
+	 * @param stripeBits
+	 *            Number of stripes as a power of 2, from 0 for a single lock.
+	 */
+	public GlobalChunkList(int stripeBits)
+	{
+		this.stripeBits = stripeBits;
+		stripes = new Stripe[1 << stripeBits];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * @return Stripe of the key, from bits that the stripe's index does not rely on.
+	 */
+	private int stripeOf(long key)
+	{
+		if (stripeBits == 0)
+			return 0;
+		return (int) ((key * 0xC2B2AE3D27D4EB4FL) >>> (Long.SIZE - stripeBits));
+	}
+
 	public int getChunksCount()
 	{
-		synchronized (chunks)
+		int result = 0;
+		for (Stripe stripe : stripes)
 		{
-			return chunks.size();
+			synchronized (stripe)
+			{
+				result += stripe.index.size();
+			}
 		}
+		return result;
 	}
 
 	public long getStatChunksUnknown()
 	{
-		return statChunksUnknown;
+		long result = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				result += stripe.statChunksUnknown;
+			}
+		}
+		return result;
 	}
 
 	public long getStatChunksKnown()
 	{
-		return statChunksKnown;
+		long result = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				result += stripe.statChunksKnown;
+			}
+		}
+		return result;
 	}
 
+	/**
+	 * @return The chunk, or null if it is not known.
+	 */
 	public ChunkItem getChunkItem(int stampVal, int chunkLen)
 	{
-		return chunks.get(ChunkItem.getLongForHashCode(stampVal, chunkLen));
+		long keyValue = ChunkItem.getLongForHashCode(stampVal, chunkLen);
+		Stripe stripe = stripes[stripeOf(keyValue)];
+		synchronized (stripe)
+		{
+			int index = stripe.index.get(keyValue);
+			return index == LongIntHashMap.NO_VALUE ? null : stripe.chunks[index];
+		}
+	}
+
+	/**
+	 * @param id
+	 *            Chunk ID, see {@link ChunkItem#getId()}.
+	 * @return The chunk, or null if there is no such ID.
+	 */
+	public ChunkItem getChunkById(int id)
+	{
+		if (id < 0)
+			return null;
+
+		// The stripe is in the lower bits, so IDs stay compact as all the stripes grow together
+		Stripe stripe = stripes[id & (stripes.length - 1)];
+		int index = id >>> stripeBits;
+		synchronized (stripe)
+		{
+			return index < stripe.index.size() ? stripe.chunks[index] : null;
+		}
 	}
 
 	/**
@@ -55,22 +155,28 @@ public class GlobalChunkList
 	 */
 	public ChunkItem getChunkOrAddNew(int stampVal, int chunkLen)
 	{
-		synchronized (chunks)
+		long keyValue = ChunkItem.getLongForHashCode(stampVal, chunkLen);
+		int stripeNum = stripeOf(keyValue);
+		Stripe stripe = stripes[stripeNum];
+		synchronized (stripe)
 		{
-			long keyValue = ChunkItem.getLongForHashCode(stampVal, chunkLen);
-			ChunkItem stampItem = chunks.get(keyValue);
+			int index = stripe.index.get(keyValue);
 			// Need to create?
-			if (stampItem == null)
+			if (index == LongIntHashMap.NO_VALUE)
 			{
-				stampItem = new ChunkItem(stampVal, chunkLen);
-				chunks.put(keyValue, stampItem);
-				statChunksUnknown++;
-			} else
-			{
-				statChunksKnown++;
+				index = stripe.index.size();
+				if (index == stripe.chunks.length)
+					stripe.chunks = Arrays.copyOf(stripe.chunks, index * 2);
+
+				ChunkItem stampItem = new ChunkItem(stampVal, chunkLen, (index << stripeBits) | stripeNum);
+				stripe.chunks[index] = stampItem;
+				stripe.index.put(keyValue, index);
+				stripe.statChunksUnknown++;
+				return stampItem;
 			}
 
-			return stampItem;
+			stripe.statChunksKnown++;
+			return stripe.chunks[index];
 		}
 	}
 }
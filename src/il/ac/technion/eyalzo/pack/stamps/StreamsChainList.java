@@ -1,13 +1,15 @@
 package il.ac.technion.eyalzo.pack.stamps;
 
 import il.ac.technion.eyalzo.pack.Main;
-import il.ac.technion.eyalzo.pack.files.FileUtils;
+import il.ac.technion.eyalzo.pack.PackChunker;
+import il.ac.technion.eyalzo.pack.RabinUtils;
+import il.ac.technion.eyalzo.pack.files.MappedFileReader;
 import il.ac.technion.eyalzo.webgui.DisplayTable;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.LinkedList;
+import java.util.List;
 
 public class StreamsChainList
 {
@@ -16,13 +18,15 @@ public class StreamsChainList
 	 */
 	private LinkedList<ChainItem> chainList = new LinkedList<ChainItem>();
 	/**
-	 * Permanent stamps file.
+	 * Permanent stamps file of former versions, restored if there is no
+	 * checkpoint.
 	 */
 	private static final String STAMPS_FILE_NAME = "pack.chains";
 	/**
-	 * Maximum file size for {@link #STAMPS_FILE_NAME}.
+	 * Where chunks added to the chains are recorded. Null if the chains are
+	 * not kept.
 	 */
-	private static final int MAX_STAMPS_FILE_SIZE = 1024 * 1024 * 2;
+	private ChainJournal journal;
 
 	//
 	// Statistics
@@ -33,16 +37,45 @@ public class StreamsChainList
 	 */
 	private static long statChainsLoaded;
 
-	public StreamsChainList(boolean restoreChains)
+	/**
+	 * @param restoreChains
+	 *            True to start with the chains of the former run.
+	 * @param keepChains
+	 *            True to record the chains in the current directory, for
+	 *            the next run, see {@link ChainJournal}. Without restore, the
+	 *            former chains are overwritten.
+	 */
+	public StreamsChainList(boolean restoreChains, boolean keepChains)
 	{
-		if (restoreChains)
-			restoreChains();
+		journal = keepChains ? new ChainJournal(new File(".")) : null;
+
+		boolean restored = restoreChains && restoreChains();
+
+		// Chains that could not be restored, like those of another chunker,
+		// are overwritten only when restore was not asked for
+		if (journal != null && restoreChains && !restored && journal.exists())
+		{
+			System.out.println("Chains are not recorded, to keep those of the former run");
+			journal = null;
+		}
+
+		if (journal != null)
+		{
+			synchronized (chainList)
+			{
+				for (ChainItem curChain : chainList)
+					curChain.setJournal(journal);
+			}
+			journal.open(this, restored);
+		}
 	}
 
 	public void addChain(ChainItem newChain)
 	{
 		synchronized (chainList)
 		{
+			if (journal != null)
+				newChain.setJournal(journal);
 			chainList.addFirst(newChain);
 		}
 	}
@@ -52,63 +85,110 @@ public class StreamsChainList
 		synchronized (chainList)
 		{
 			ChainItem newChain = new ChainItem();
+			if (journal != null)
+				newChain.setJournal(journal);
 			chainList.addFirst(newChain);
 			return newChain;
 		}
 	}
 
 	/**
-	 * Save chunks that are part of chains (2 chunks and up). Each chain is
-	 * saved as [2:len] [4:stamp] for each chunk until a 2-bytes zero value
-	 * separator (zero "len").
+	 * Write the recorded chunks, and a new checkpoint when the journal grew
+	 * big enough. Called periodically by the cleanup thread.
 	 */
-	public boolean backupChains()
+	public void maintain()
 	{
-		File metaFile = new File(STAMPS_FILE_NAME);
+		if (journal == null)
+			return;
 
-		ByteBuffer buffer = ByteBuffer.allocate(MAX_STAMPS_FILE_SIZE);
+		journal.flush();
+		if (journal.needsCheckpoint())
+			journal.checkpoint(this);
+	}
+
+	/**
+	 * Write the recorded chunks and stop recording.
+	 */
+	public void close()
+	{
+		if (journal != null)
+			journal.close();
+	}
 
+	/**
+	 * @return Copy of the chains, newest first.
+	 */
+	List<ChainItem> getChains()
+	{
 		synchronized (chainList)
 		{
-			for (ChainItem curChain : chainList)
+			return new LinkedList<ChainItem>(chainList);
+		}
+	}
+
+	/**
+	 * Load stamps and chains from the last checkpoint and the journal, or
+	 * from the permanent file of former versions.
+	 * <p>
+	 * Also modifies {@link #statChainsLoaded} and {@link #statStampsLoaded}.
+	 * 
+	 * @return True if restored from the checkpoint and journal, so the journal
+	 *         can go on from where it stopped.
+	 */
+	public boolean restoreChains()
+	{
+		LinkedList<ChainItem> restoredChains = journal == null ? null
+				: journal.restore(Main.chunks);
+		if (restoredChains != null)
+		{
+			synchronized (chainList)
 			{
-				// Break when buffer is exhausted
-				if (!curChain.saveChunks(buffer))
-					break;
+				chainList.clear();
+				chainList.addAll(restoredChains);
 			}
+
+			// Statistics
+			statChainsLoaded = chainList.size();
+			statStampsLoaded = getChunksCount();
+
+			System.out.println(String.format(
+					"Loaded %,d chains with %,d stamps from checkpoint and journal",
+					statChainsLoaded, statStampsLoaded));
+			return true;
 		}
 
-		//
-		// Save the file
-		//
-		buffer.limit(buffer.position());
-		buffer.position(0);
-		// TODO delete in the write method itself?
-		metaFile.delete();
-		FileUtils.initDataFile(metaFile.getAbsolutePath(), buffer.remaining(),
-				true);
-		return FileUtils
-				.writeBlock(metaFile.getAbsolutePath(), 0, buffer, null);
+		restoreLegacyChains();
+		return false;
 	}
 
 	/**
-	 * Load stamps and chains from permanent file.
-	 * <p>
-	 * Also modifies {@link #statChainsLoaded} and {@link #statStampsLoaded}.
+	 * Load stamps and chains from the permanent file of former versions.
 	 */
-	public void restoreChains()
+	private void restoreLegacyChains()
 	{
 		File backupFile = new File(STAMPS_FILE_NAME);
 		// File may not exist, like in first run for example
 		if (!backupFile.exists())
 			return;
 
-		// Load from file
-		ByteBuffer buffer = FileUtils.readBlock(backupFile.getAbsolutePath(),
-				0L, (int) backupFile.length(), ByteOrder.BIG_ENDIAN, null);
+		// Load from file, mapped for read only
+		ByteBuffer buffer = MappedFileReader.mapFile(backupFile
+				.getAbsolutePath());
 		if (buffer == null)
 			return;
 
+		// Chains of another chunker or signature would never match (older
+		// files without a header were all chunked by PACK and signed with
+		// SHA-1)
+		int metaId = RabinUtils.getMetaHeader(buffer, PackChunker.ID);
+		if (metaId != RabinUtils.getMetaId(Main.streamChunker, Main.signature))
+		{
+			System.out.println(String.format(
+					"Skipped chains of %s in file %s",
+					RabinUtils.getMetaName(metaId), STAMPS_FILE_NAME));
+			return;
+		}
+
 		synchronized (chainList)
 		{
 			chainList.clear();
@@ -180,7 +260,7 @@ public class StreamsChainList
 				// Serial
 				table.addCell(curChain.getSerial());
 				// First chunk
-				ChunkItem firstChunk = curChain.getChunks().getFirst();
+				ChunkItem firstChunk = curChain.getChainFirstChunk();
 				table.addCell(firstChunk.toHtmlString(), chainDetailsLink
 						+ curChain.getSerial());
 				// Chunks
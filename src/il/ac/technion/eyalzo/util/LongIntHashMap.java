@@ -0,0 +1,150 @@
+package il.ac.technion.eyalzo.util;
+
+import java.util.Arrays;
+
+/**
+ * Map of primitive long keys to non-negative int values, with open addressing and linear probing. Takes 12 bytes per
+ * slot and no object per entry, so large maps cost a fraction of a {@link java.util.HashMap} with boxed keys, and
+ * lookups do not allocate.
+ * <p>
+ * Entries cannot be removed. Not thread-safe.
+ */
+public class LongIntHashMap
+{
+	/**
+	 * Returned by {@link #get(long)} when the key is not in the map.
+	 */
+	public static final int NO_VALUE = -1;
+	/**
+	 * Grow when more slots than that are used, out of 16.
+	 */
+	private static final int LOAD_SIXTEENTHS = 12;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private long[] keys;
+	/**
+	 * Value of each slot, or {@link #NO_VALUE} for a free slot.
+	 */
+	private int[] values;
+	private int mask;
+	private int size;
+	private int growAt;
+
+	/**
+	 * @param expectedSize
+	 *            Number of entries to hold without growing.
+	 */
+	public LongIntHashMap(int expectedSize)
+	{
+		int capacity = 16;
+		while (capacity < MAX_CAPACITY && (long) capacity * LOAD_SIXTEENTHS / 16 < expectedSize)
+			capacity <<= 1;
+		init(capacity);
+	}
+
+	private void init(int capacity)
+	{
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, NO_VALUE);
+		mask = capacity - 1;
+		growAt = capacity == MAX_CAPACITY ? capacity - 1 : capacity / 16 * LOAD_SIXTEENTHS;
+	}
+
+	/**
+	 * Spread the key bits over the slot bits, since stamps and lengths are not uniform in their low bits.
+	 */
+	private static int slot(long key, int mask)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * @return The value, or {@link #NO_VALUE} if the key is not in the map.
+	 */
+	public int get(long key)
+	{
+		for (int i = slot(key, mask);; i = (i + 1) & mask)
+		{
+			int value = values[i];
+			if (value == NO_VALUE || keys[i] == key)
+				return value;
+		}
+	}
+
+	/**
+	 * Add an entry, or replace the value of an existing key.
+	 *
+	 * @param value
+	 *            Non-negative value.
+	 * @return The former value, or {@link #NO_VALUE} if the key was not in the map.
+	 * @throws IllegalStateException
+	 *             If the map is full.
+	 */
+	public int put(long key, int value)
+	{
+		if (value < 0)
+			throw new IllegalArgumentException("Negative value " + value);
+
+		int i = slot(key, mask);
+		for (;; i = (i + 1) & mask)
+		{
+			int former = values[i];
+			if (former == NO_VALUE)
+				break;
+			if (keys[i] == key)
+			{
+				values[i] = value;
+				return former;
+			}
+		}
+
+		if (size >= growAt)
+		{
+			if (keys.length == MAX_CAPACITY)
+				throw new IllegalStateException("Map is full with " + size + " entries");
+			grow();
+			i = slot(key, mask);
+			while (values[i] != NO_VALUE)
+				i = (i + 1) & mask;
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		return NO_VALUE;
+	}
+
+	private void grow()
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		init(keys.length * 2);
+
+		for (int j = 0; j < oldKeys.length; j++)
+		{
+			if (oldValues[j] == NO_VALUE)
+				continue;
+
+			int i = slot(oldKeys[j], mask);
+			while (values[i] != NO_VALUE)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return Number of slots, used or not.
+	 */
+	public int capacity()
+	{
+		return keys.length;
+	}
+}
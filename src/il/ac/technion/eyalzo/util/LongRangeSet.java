@@ -0,0 +1,132 @@
+package il.ac.technion.eyalzo.util;
+
+/**
+ * Set of disjoint ranges of longs, like a {@link LongRange} list, in two sorted primitive arrays. Overlapping and
+ * adjacent ranges are merged on add, so there is no allocation once the arrays are large enough for the most ranges at
+ * a time.
+ * <p>
+ * Ranges are half-open, from start inclusive to end exclusive. Not thread-safe.
+ */
+public class LongRangeSet
+{
+	private static final int INITIAL_CAPACITY = 8;
+
+	private long[] starts = new long[INITIAL_CAPACITY];
+	private long[] ends = new long[INITIAL_CAPACITY];
+	private int size;
+
+	/**
+	 * Add a range, merged with those it overlaps or touches.
+	 *
+	 * @param start
+	 *            Inclusive.
+	 * @param end
+	 *            Exclusive.
+	 */
+	public void add(long start, long end)
+	{
+		if (end <= start)
+			return;
+
+		// First range that ends at or after the new start, and may merge with it
+		int first = 0;
+		int high = size;
+		while (first < high)
+		{
+			int mid = (first + high) >>> 1;
+			if (ends[mid] < start)
+				first = mid + 1;
+			else
+				high = mid;
+		}
+
+		// Ranges that start up to the new end merge too
+		int last = first;
+		while (last < size && starts[last] <= end)
+		{
+			start = Math.min(start, starts[last]);
+			end = Math.max(end, ends[last]);
+			last++;
+		}
+
+		int merged = last - first;
+		if (merged == 0)
+		{
+			if (size == starts.length)
+			{
+				starts = copyOf(starts, size * 2);
+				ends = copyOf(ends, size * 2);
+			}
+			System.arraycopy(starts, first, starts, first + 1, size - first);
+			System.arraycopy(ends, first, ends, first + 1, size - first);
+			size++;
+		} else if (merged > 1)
+		{
+			System.arraycopy(starts, last, starts, first + 1, size - last);
+			System.arraycopy(ends, last, ends, first + 1, size - last);
+			size -= merged - 1;
+		}
+
+		starts[first] = start;
+		ends[first] = end;
+	}
+
+	private static long[] copyOf(long[] array, int capacity)
+	{
+		long[] result = new long[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * @return Start of the lowest range. Valid only if not empty.
+	 */
+	public long getFirstStart()
+	{
+		return starts[0];
+	}
+
+	/**
+	 * @return End of the lowest range, exclusive. Valid only if not empty.
+	 */
+	public long getFirstEnd()
+	{
+		return ends[0];
+	}
+
+	/**
+	 * @return End of the highest range, exclusive. Valid only if not empty.
+	 */
+	public long getLastEnd()
+	{
+		return ends[size - 1];
+	}
+
+	/**
+	 * Remove the lowest range.
+	 */
+	public void removeFirst()
+	{
+		size--;
+		System.arraycopy(starts, 1, starts, 0, size);
+		System.arraycopy(ends, 1, ends, 0, size);
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @return Number of disjoint ranges.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+}
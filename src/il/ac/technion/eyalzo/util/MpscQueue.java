@@ -0,0 +1,106 @@
+package il.ac.technion.eyalzo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer, also good for a single producer.
+ * <p>
+ * Each cell has a sequence number that tells whose turn it is: producers claim a cell by advancing the tail with a CAS,
+ * write the element and then publish the cell's sequence, and the consumer takes the element only when it is published.
+ * There are no locks and no allocation per element.
+ */
+public class MpscQueue<E>
+{
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	/**
+	 * Per cell: equals the position when free for a producer, and the position + 1 when it holds an element.
+	 */
+	private final AtomicLongArray sequences;
+	/**
+	 * Next position to claim by a producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Next position to take, by the consumer only.
+	 */
+	private long head;
+
+	/**
+	 * @param capacity
+	 *            Max number of elements, rounded up to a power of 2.
+	 */
+	public MpscQueue(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		elements = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Add an element, by any thread.
+	 *
+	 * @return False if the queue is full.
+	 */
+	public boolean offer(E element)
+	{
+		while (true)
+		{
+			long pos = tail.get();
+			int cell = (int) pos & mask;
+			long seq = sequences.get(cell);
+			if (seq == pos)
+			{
+				if (!tail.compareAndSet(pos, pos + 1))
+					continue;
+				elements.lazySet(cell, element);
+				// A full fence, so a producer that checks if the consumer sleeps does it after publishing
+				sequences.set(cell, pos + 1);
+				return true;
+			}
+
+			// The consumer did not take the element from the last round yet
+			if (seq < pos)
+				return false;
+		}
+	}
+
+	/**
+	 * Take the oldest element, by the consumer thread only.
+	 *
+	 * @return The element, or null if the queue is empty or the next one is not published yet.
+	 */
+	public E poll()
+	{
+		int cell = (int) head & mask;
+		if (sequences.get(cell) != head + 1)
+			return null;
+
+		E result = elements.get(cell);
+		elements.lazySet(cell, null);
+		sequences.lazySet(cell, head + mask + 1);
+		head++;
+		return result;
+	}
+
+	/**
+	 * @return True if there are no elements, or the next one is not published yet. By the consumer thread only.
+	 */
+	public boolean isEmpty()
+	{
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	/**
+	 * @return Number of elements, approximately when called by a producer.
+	 */
+	public int size()
+	{
+		return (int) Math.max(0, tail.get() - head);
+	}
+}
@@ -0,0 +1,242 @@
+package il.ac.technion.eyalzo.util;
+
+import java.util.ArrayList;
+
+/**
+ * Hierarchical timing wheel, for many deadlines of which few expire at a time. Scheduling and canceling cost O(1), and
+ * {@link #advance(long)} costs in proportion to the timers that expire, plus a cascade of each upper level slot once
+ * per its period, instead of a scan of all the timers.
+ * <p>
+ * There are {@link #LEVELS} wheels of {@link #SLOTS} slots. A slot in the lowest level spans one tick, and each slot of
+ * an upper level spans a full turn of the level below, so the levels cover up to 64^4 ticks ahead. Farther deadlines
+ * wait in the top level and are placed again when it turns. Timers are intrusive doubly linked lists in the slots, so
+ * there is no allocation per schedule.
+ * <p>
+ * A timer may expire up to one tick late. Thread-safe, but {@link #advance(long)} should be called by a single thread,
+ * and timers expire in that thread, outside the wheel's lock, so they may schedule themselves again.
+ */
+public class TimerWheel
+{
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 4;
+
+	/**
+	 * Something to do at a deadline. Each timer can be scheduled once at a time.
+	 */
+	public static abstract class Timer
+	{
+		/**
+		 * Deadline in ticks.
+		 */
+		private long deadlineTick;
+		private Timer prev;
+		private Timer next;
+		/**
+		 * Slot that holds it, out of all the levels, or -1 if not scheduled.
+		 */
+		private int slot = -1;
+
+		/**
+		 * Called when the deadline passed, by the thread that advances the wheel, with no lock held.
+		 *
+		 * @param now
+		 *            Time in millis given to {@link TimerWheel#advance(long)}.
+		 */
+		protected abstract void expire(long now);
+	}
+
+	private final long tickMillis;
+	/**
+	 * Head of each slot's list, level after level.
+	 */
+	private final Timer[] slots = new Timer[LEVELS * SLOTS];
+	/**
+	 * Last tick that was processed.
+	 */
+	private long currentTick;
+	private int size;
+	/**
+	 * Timers that expired in the current {@link #advance(long)}, reused.
+	 */
+	private final ArrayList<Timer> expired = new ArrayList<Timer>();
+
+	//
+	// Statistics
+	//
+	private long statExpired;
+
+	/**
+	 * @param tickMillis
+	 *            Resolution of the deadlines.
+	 * @param now
+	 *            Current time in millis, where the wheel starts.
+	 */
+	public TimerWheel(long tickMillis, long now)
+	{
+		this.tickMillis = tickMillis;
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Make sure that the timer expires by the given time. If it is already scheduled earlier it stays as is, so a timer
+	 * that checks its own condition on expiry can be armed often at almost no cost.
+	 *
+	 * @param deadline
+	 *            Time in millis.
+	 */
+	public synchronized void schedule(Timer timer, long deadline)
+	{
+		// Ticks that were processed already are due on the next one
+		long deadlineTick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick + 1);
+		if (timer.slot >= 0)
+		{
+			if (timer.deadlineTick <= deadlineTick)
+				return;
+			unlink(timer);
+		} else
+		{
+			size++;
+		}
+
+		timer.deadlineTick = deadlineTick;
+		link(timer);
+	}
+
+	/**
+	 * @return True if the timer was scheduled.
+	 */
+	public synchronized boolean cancel(Timer timer)
+	{
+		if (timer.slot < 0)
+			return false;
+
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Put the timer in the lowest level that spans its deadline.
+	 */
+	private void link(Timer timer)
+	{
+		long delta = timer.deadlineTick - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+			level++;
+
+		// Beyond the top level, wait for its farthest slot
+		long slotTick = Math.min(timer.deadlineTick, currentTick + (1L << (SLOT_BITS * LEVELS)) - 1);
+		int slot = level * SLOTS + (int) ((slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = slots[slot];
+		if (timer.next != null)
+			timer.next.prev = timer;
+		slots[slot] = timer;
+	}
+
+	private void unlink(Timer timer)
+	{
+		if (timer.prev == null)
+			slots[timer.slot] = timer.next;
+		else
+			timer.prev.next = timer.next;
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+		timer.slot = -1;
+	}
+
+	/**
+	 * Detach all the timers of a slot.
+	 *
+	 * @return The first of the detached list, linked by next.
+	 */
+	private Timer takeSlot(int slot)
+	{
+		Timer result = slots[slot];
+		slots[slot] = null;
+		return result;
+	}
+
+	/**
+	 * Expire all the timers with deadlines up to the given time.
+	 *
+	 * @param now
+	 *            Time in millis.
+	 * @return Number of expired timers.
+	 */
+	public int advance(long now)
+	{
+		long targetTick = now / tickMillis;
+
+		synchronized (this)
+		{
+			while (currentTick < targetTick)
+			{
+				currentTick++;
+
+				// Move down the timers of the upper slots that start now, from the top
+				for (int level = LEVELS - 1; level > 0; level--)
+				{
+					if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+						continue;
+					int slot = level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+					for (Timer timer = takeSlot(slot); timer != null;)
+					{
+						Timer next = timer.next;
+						link(timer);
+						timer = next;
+					}
+				}
+
+				int slot = (int) (currentTick & (SLOTS - 1));
+				for (Timer timer = takeSlot(slot); timer != null;)
+				{
+					Timer next = timer.next;
+					if (timer.deadlineTick > currentTick)
+					{
+						// Was beyond the top level
+						link(timer);
+					} else
+					{
+						timer.prev = null;
+						timer.next = null;
+						timer.slot = -1;
+						size--;
+						expired.add(timer);
+					}
+					timer = next;
+				}
+			}
+		}
+
+		int result = expired.size();
+		statExpired += result;
+		for (int i = 0; i < result; i++)
+			expired.get(i).expire(now);
+		expired.clear();
+
+		return result;
+	}
+
+	/**
+	 * @return Number of scheduled timers.
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return Number of timers that expired so far.
+	 */
+	public long getStatExpired()
+	{
+		return statExpired;
+	}
+}
@@ -2,6 +2,7 @@ package il.ac.technion.eyalzo.webgui;
 
 import il.ac.technion.eyalzo.pack.CaptureThread;
 import il.ac.technion.eyalzo.pack.Main;
+import il.ac.technion.eyalzo.pack.QueueNum;
 import il.ac.technion.eyalzo.pack.SimuResult;
 import il.ac.technion.eyalzo.pack.conns.Machine;
 import il.ac.technion.eyalzo.pack.conns.RemoteMachineList;
@@ -207,7 +208,7 @@ public class WebGuiHandler implements HttpHandler
 			return;
 		}
 
-		webGui.appendField("First chunk", chainItem.getChunks().getFirst().toHtmlString());
+		webGui.appendField("First chunk", chainItem.getChainFirstChunk().toHtmlString());
 	}
 
 	private void handleChunkDetails(WebContext webGui)
@@ -748,6 +749,53 @@ public class WebGuiHandler implements HttpHandler
 		}
 
 		table.printHTMLTable(webGui, COLOR_SYSTEM, false);
+
+		//
+		// Capture threads
+		//
+		webGui.appendHeaderMinor("Capture");
+		table = new DisplayTable();
+
+		table.addCol("Name", "Internal thread name as used by Java", true);
+		table.addCol("Queue", "NFQueue number", true);
+		table.addCol("Packets", "Total number of packets", false);
+		table.addCol("Copy", "Max number of bytes copied from the kernel per packet", false);
+		table.addCol("Re-queued", "Packets that were cut by the copy range and sent to the full-copy queue", false);
+		table.addCol("Batches", "Number of packet batches passed from the native code", false);
+		table.addCol("Avg. batch", "Average number of packets per batch", false);
+		table.addCol("Usec/packet", "Moving average of the processing time per packet", false);
+		table.addCol("Overload", "Over the time budget, see the budget= argument", false);
+		table.addCol("Overloads", "Number of times the queue went over the time budget", false);
+		table.addCol("Shed", "Packets of new connections accepted untouched because of overload", false);
+		table.addCol("Overruns", "Netlink socket overflows, where the kernel had to let packets through", false);
+
+		for (CaptureThread curThread : Main.captureThreads)
+		{
+			table.addRow(null);
+
+			// Name
+			table.addCell(curThread.getName());
+			// Queue
+			table.addCell(curThread.getQueueNum());
+			// Packets
+			table.addCell(curThread.getStatPackets());
+			// Copy range
+			table.addCell(curThread.getCopyRange());
+			table.addCell(curThread.getStatPacketsRequeued());
+			// Batches
+			table.addCell(curThread.getStatBatches());
+			// Average batch size
+			table.addCell(String.format("%,.1f", curThread.getAverageBatchSize()));
+			// Processing time
+			table.addCell(String.format("%,.1f", curThread.getAvgPacketNanos() / 1000.0));
+			// Overload
+			table.addCell(curThread.isOverloaded() ? "Yes" : "No");
+			table.addCell(curThread.getStatOverloads());
+			table.addCell(curThread.getStatPacketsShed());
+			table.addCell(curThread.getStatOverruns());
+		}
+
+		table.printHTMLTable(webGui, COLOR_SYSTEM, false);
 	}
 
 	public void handleMain(WebContext webGui)
@@ -791,11 +839,89 @@ public class WebGuiHandler implements HttpHandler
 		table.addCol("Pred<br>match", "Real bytes in matched predictions", false);
 		table.addCol("Pred<br>ACK", "Real bytes in ACKs (sender-out and receiver-in)", false);
 
-		// Header
+		// One row per side and direction, summing all its queues
+		for (QueueNum curQueue : QueueNum.values())
+		{
+			long packets = 0;
+			long drops = 0;
+			long dup = 0;
+			long rawIp = 0;
+			long tcpPayload = 0;
+			// Machine list statistics are the same for all the queues of a side and direction
+			CaptureThread firstThread = null;
+			for (CaptureThread curThread : Main.captureThreads)
+			{
+				if (curThread.getQueueKind() != curQueue)
+					continue;
+
+				if (firstThread == null)
+					firstThread = curThread;
+				packets += curThread.getStatPackets();
+				drops += curThread.getStatPacketsDropped();
+				dup += curThread.getStatPacketsDupElim();
+				rawIp += curThread.getStatBytesRawIp();
+				tcpPayload += curThread.getStatBytesTcpPayload();
+			}
+
+			if (firstThread == null)
+				continue;
+
+			table.addRow(null);
+
+			//Side
+			table.addCell(curQueue.sideSender ? "SND" : "RCV");
+			// Direction
+			table.addCell(curQueue.dirOut ? "Out" : "In");
+			// Packets
+			table.addCell(packets);
+			// Drops
+			table.addCell(drops);
+			// Dup
+			table.addCell(dup);
+			// Raw IP
+			table.addCell(rawIp);
+			// TCP payload
+			table.addCell(tcpPayload);
+			// Known
+			table.addCell(firstThread.getStatBytesKnown());
+			// Pack pred
+			table.addCell(firstThread.getStatBytesPredSent());
+			// Pred overlap
+			table.addCell(firstThread.getStatBytesPredOverlap());
+			// Pred match
+			table.addCell(firstThread.getStatBytesPredMatch());
+			// Pred ACK
+			table.addCell(firstThread.getStatBytesPredAck());
+		}
+
+		table.printHTMLTable(webGui, "lightblue", false);
+
+		if (Main.queueFanout > 1)
+			appendQueuesTable(webGui);
+	}
+
+	/**
+	 * Per-queue statistics, when each side and direction is spread over several queues.
+	 */
+	private void appendQueuesTable(WebContext webGui)
+	{
+		DisplayTable table = new DisplayTable();
+
+		table.addCol("Queue", "NFQueue number", true);
+		table.addCol("Side", "Sender or Receiver", true);
+		table.addCol("Direction", "In or Out", true);
+		table.addCol("Packets", "Total number of packets, includes dropped, errors, duplicates, etc.", false);
+		table.addCol("Drops", "Dropped packets usually for altering", false);
+		table.addCol("Dup", "Duplicate elimination (skip processing of altered)", false);
+		table.addCol("Raw IP", "Raw IP bytes, with retransmissions", false);
+		table.addCol("TCP Payload", "TCP payload bytes (no out retransmissions)", false);
+
 		for (CaptureThread curThread : Main.captureThreads)
 		{
 			table.addRow(null);
 
+			// Queue
+			table.addCell(curThread.getQueueNum());
 			//Side
 			table.addCell(curThread.isSideSender() ? "SND" : "RCV");
 			// Direction
@@ -810,16 +936,6 @@ public class WebGuiHandler implements HttpHandler
 			table.addCell(curThread.getStatBytesRawIp());
 			// TCP payload
 			table.addCell(curThread.getStatBytesTcpPayload());
-			// Known
-			table.addCell(curThread.getStatBytesKnown());
-			// Pack pred
-			table.addCell(curThread.getStatBytesPredSent());
-			// Pred overlap
-			table.addCell(curThread.getStatBytesPredOverlap());
-			// Pred match
-			table.addCell(curThread.getStatBytesPredMatch());
-			// Pred ACK
-			table.addCell(curThread.getStatBytesPredAck());
 		}
 
 		table.printHTMLTable(webGui, "lightblue", false);
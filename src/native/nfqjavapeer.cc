@@ -18,6 +18,15 @@ using namespace std;
 #  define MIN(a,b)  ((a) < (b) ? (a) : (b))
 #endif
 
+//
+// Batch table layout, shared with the java code.
+//
+#define BATCH_OFFSET  il_ac_technion_eyalzo_NFQueue_BATCH_OFFSET
+#define BATCH_LENGTH  il_ac_technion_eyalzo_NFQueue_BATCH_LENGTH
+#define BATCH_ID      il_ac_technion_eyalzo_NFQueue_BATCH_ID
+#define BATCH_VERDICT il_ac_technion_eyalzo_NFQueue_BATCH_VERDICT
+#define BATCH_FIELDS  il_ac_technion_eyalzo_NFQueue_BATCH_FIELDS
+
 /**
  * An NFQueue java peer object.
  */
@@ -44,6 +53,49 @@ class NFQJavaPeer :
      */
     jmethodID m_javaCallbackMethod;
 
+    /**
+     * While inside the event loop, this is the method ID of the java batch
+     * callback method. NULL when not in the loop.
+     */
+    jmethodID m_javaBatchCallbackMethod;
+
+    /**
+     * Batch mode: java direct buffer for the packets payload. NULL when
+     * batch mode is off.
+     */
+    unsigned char *m_batchData;
+
+    /**
+     * Batch mode: size of the payload buffer in bytes.
+     */
+    u_int32_t m_batchDataSize;
+
+    /**
+     * Batch mode: java direct buffer for the per-packet table.
+     */
+    jint *m_batchTable;
+
+    /**
+     * Batch mode: max number of packets in the table.
+     */
+    u_int32_t m_batchMaxPackets;
+
+    /**
+     * Batch mode: number of packets in the table waiting for a verdict.
+     */
+    u_int32_t m_batchCount;
+
+    /**
+     * Batch mode: bytes already used in the payload buffer.
+     */
+    u_int32_t m_batchDataUsed;
+
+    /**
+     * Pass the collected packets to java in a single call, then send the
+     * verdicts.
+     */
+    int flushBatch(nfq_q_handle *queueHandle);
+
   public:
     /**
      * Create an NFQueue java peer object.
@@ -52,7 +104,14 @@ class NFQJavaPeer :
         NFQueue(queueNum, queueLen),
         m_javaEnv(NULL),
         m_javaObject(NULL),
-        m_javaCallbackMethod(NULL)
+        m_javaCallbackMethod(NULL),
+        m_javaBatchCallbackMethod(NULL),
+        m_batchData(NULL),
+        m_batchDataSize(0),
+        m_batchTable(NULL),
+        m_batchMaxPackets(0),
+        m_batchCount(0),
+        m_batchDataUsed(0)
     {
     }
     
@@ -68,6 +127,29 @@ class NFQJavaPeer :
                                  struct nfgenmsg *msg,
                                  nfq_data *pkt);
 
+    /**
+     * Send the verdicts of the batch collected so far.
+     */
+    virtual int onBatchEnd(nfq_q_handle *queueHandle)
+    {
+        return flushBatch(queueHandle);
+    }
+
+    /**
+     * Set the java direct buffers for batch mode, or NULL to turn it off.
+     */
+    void setBatchBuffers(unsigned char *data, u_int32_t dataSize,
+                         jint *table, u_int32_t maxPackets)
+    {
+        m_batchData = data;
+        m_batchDataSize = dataSize;
+        m_batchTable = table;
+        m_batchMaxPackets = (table != NULL) ? maxPackets : 0;
+        m_batchCount = 0;
+        m_batchDataUsed = 0;
+        setBatchSize(m_batchMaxPackets);
+    }
+
     /**
      * execute the queue event loop, keeping a reference to the java environment
      * and object, so that the java callback can be called.
@@ -91,10 +173,17 @@ int NFQJavaPeer::loop(JNIEnv *javaEnv, jobject javaObject)
         m_javaCallbackMethod =
             javaEnv->GetMethodID(javaClass, "onPacketReceived", "(J)I");
         assert(m_javaCallbackMethod);
+        m_javaBatchCallbackMethod =
+            javaEnv->GetMethodID(javaClass, "onPacketsReceived", "(I)I");
+        assert(m_javaBatchCallbackMethod);
     }
 
+    m_batchCount = 0;
+    m_batchDataUsed = 0;
+
     int retCode = NFQueue::loop();
 
+    m_javaBatchCallbackMethod = NULL;
     m_javaCallbackMethod = NULL;
     m_javaObject = NULL;
     m_javaEnv = NULL;
@@ -118,6 +207,38 @@ int NFQJavaPeer::onPacketReceived(nfq_q_handle *queueHandle,
     
     id = ntohl(header->packet_id);
 
+    if (m_batchTable != NULL)
+    {
+        unsigned char* payloadPtr = NULL;
+        int payloadLen = nfq_get_payload(pkt, &payloadPtr);
+
+        // Make room, if the table or the payload buffer is full
+        if ((m_batchCount >= m_batchMaxPackets) ||
+            ((payloadLen > 0) &&
+             (m_batchDataUsed + payloadLen > m_batchDataSize)))
+        {
+            flushBatch(queueHandle);
+        }
+
+        jint *entry = m_batchTable + m_batchCount * BATCH_FIELDS;
+        entry[BATCH_OFFSET] = m_batchDataUsed;
+        entry[BATCH_LENGTH] = -1;
+        entry[BATCH_ID] = id;
+        entry[BATCH_VERDICT] = NF_DROP;
+        if (payloadLen >= 0)
+        {
+            u_int32_t bytesToCopy =
+                MIN((u_int32_t)payloadLen, m_batchDataSize - m_batchDataUsed);
+            memcpy(m_batchData + m_batchDataUsed, payloadPtr, bytesToCopy);
+            entry[BATCH_LENGTH] = bytesToCopy;
+            m_batchDataUsed += bytesToCopy;
+        }
+        m_batchCount++;
+
+        // The verdict is sent later, by onBatchEnd()
+        return 0;
+    }
+
     assert(m_javaEnv && m_javaObject && m_javaCallbackMethod);
 
     u_int32_t verdict = NF_DROP;
@@ -131,6 +252,65 @@ int NFQJavaPeer::onPacketReceived(nfq_q_handle *queueHandle,
     return nfq_set_verdict(queueHandle, id, verdict, 0, NULL);
 }
 
+/**
+ * Pass the collected packets to java in a single call, then send the
+ * verdicts. A run of packets with the same verdict and ascending IDs is sent
+ * as a single batch verdict, which covers all the packets up to the last ID
+ * in the run. Earlier packets were already given their verdicts by then.
+ */
+int NFQJavaPeer::flushBatch(nfq_q_handle *queueHandle)
+{
+    if (m_batchCount == 0)
+        return 0;
+
+    assert(m_javaEnv && m_javaObject && m_javaBatchCallbackMethod);
+
+    if (m_javaEnv && m_javaObject && m_javaBatchCallbackMethod)
+    {
+        m_javaEnv->CallIntMethod(m_javaObject, m_javaBatchCallbackMethod,
+                                 (jint)m_batchCount);
+    }
+
+    int retCode = 0;
+    u_int32_t first = 0;
+    while (first < m_batchCount)
+    {
+        jint *entry = m_batchTable + first * BATCH_FIELDS;
+        u_int32_t verdict = (u_int32_t)entry[BATCH_VERDICT];
+
+        // Find the end of the run
+        u_int32_t last = first;
+        while (last + 1 < m_batchCount)
+        {
+            jint *next = entry + BATCH_FIELDS;
+            if (((u_int32_t)next[BATCH_VERDICT] != verdict) ||
+                ((u_int32_t)next[BATCH_ID] <= (u_int32_t)entry[BATCH_ID]))
+                break;
+            entry = next;
+            last++;
+        }
+
+        int verdictRet;
+        if (last == first)
+            verdictRet = nfq_set_verdict(queueHandle,
+                                         (u_int32_t)entry[BATCH_ID],
+                                         verdict, 0, NULL);
+        else
+            verdictRet = nfq_set_verdict_batch(queueHandle,
+                                               (u_int32_t)entry[BATCH_ID],
+                                               verdict);
+        if (verdictRet < 0)
+            retCode = verdictRet;
+
+        first = last + 1;
+    }
+
+    m_batchCount = 0;
+    m_batchDataUsed = 0;
+
+    return retCode;
+}
+
 
 
 //
@@ -216,6 +396,77 @@ JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setRecvBufferSize
     peer->setRecvBufferSize(bufSize);
 }
 
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    setBatchBuffers
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setBatchBuffers
+    (JNIEnv *env, jobject obj, jlong peerAsLong, jobject data, jobject table,
+     jint maxPackets)
+{
+    NFQJavaPeer* peer = (NFQJavaPeer*)peerAsLong;
+    assert(peer);
+
+    if ((data == NULL) || (table == NULL) || (maxPackets <= 1))
+    {
+        peer->setBatchBuffers(NULL, 0, NULL, 0);
+        return;
+    }
+
+    unsigned char *dataPtr = (unsigned char*)env->GetDirectBufferAddress(data);
+    jint *tablePtr = (jint*)env->GetDirectBufferAddress(table);
+    jlong dataSize = env->GetDirectBufferCapacity(data);
+    jlong tableSize = env->GetDirectBufferCapacity(table);
+    if ((dataPtr == NULL) || (tablePtr == NULL) ||
+        (tableSize < (jlong)maxPackets * BATCH_FIELDS * sizeof(jint)))
+    {
+        peer->setBatchBuffers(NULL, 0, NULL, 0);
+        return;
+    }
+
+    peer->setBatchBuffers(dataPtr, (u_int32_t)dataSize, tablePtr, maxPackets);
+}
+
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    setFailOpen
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setFailOpen
+    (JNIEnv *env, jobject obj, jlong peerAsLong, jboolean failOpen)
+{
+    NFQJavaPeer* peer = (NFQJavaPeer*)peerAsLong;
+    assert(peer);
+    peer->setFailOpen(failOpen == JNI_TRUE);
+}
+
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    setGso
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setGso
+    (JNIEnv *env, jobject obj, jlong peerAsLong, jboolean gso)
+{
+    NFQJavaPeer* peer = (NFQJavaPeer*)peerAsLong;
+    assert(peer);
+    peer->setGso(gso == JNI_TRUE);
+}
+
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    getOverruns
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_il_ac_technion_eyalzo_NFQueue_getOverruns
+    (JNIEnv *env, jobject obj, jlong peerAsLong)
+{
+    NFQJavaPeer* peer = (NFQJavaPeer*)peerAsLong;
+    assert(peer);
+    return (jlong)peer->getOverruns();
+}
+
 //
 // Some static helper methods. These are not forwarded to the class object.
 // Instead, they are handled here. Basically, these are getter methods for
@@ -8,7 +8,19 @@
 extern "C" {
 #endif
 #undef il_ac_technion_eyalzo_NFQueue_NFQ_JAVA_VERSION
-#define il_ac_technion_eyalzo_NFQueue_NFQ_JAVA_VERSION 4L
+#define il_ac_technion_eyalzo_NFQueue_NFQ_JAVA_VERSION 7L
+#undef il_ac_technion_eyalzo_NFQueue_MAX_PAYLOAD_BYTES
+#define il_ac_technion_eyalzo_NFQueue_MAX_PAYLOAD_BYTES 65535L
+#undef il_ac_technion_eyalzo_NFQueue_BATCH_OFFSET
+#define il_ac_technion_eyalzo_NFQueue_BATCH_OFFSET 0L
+#undef il_ac_technion_eyalzo_NFQueue_BATCH_LENGTH
+#define il_ac_technion_eyalzo_NFQueue_BATCH_LENGTH 1L
+#undef il_ac_technion_eyalzo_NFQueue_BATCH_ID
+#define il_ac_technion_eyalzo_NFQueue_BATCH_ID 2L
+#undef il_ac_technion_eyalzo_NFQueue_BATCH_VERDICT
+#define il_ac_technion_eyalzo_NFQueue_BATCH_VERDICT 3L
+#undef il_ac_technion_eyalzo_NFQueue_BATCH_FIELDS
+#define il_ac_technion_eyalzo_NFQueue_BATCH_FIELDS 4L
 /* Inaccessible static: c_libLoaded */
 /*
  * Class:     il_ac_technion_eyalzo_NFQueue
@@ -58,6 +70,38 @@ JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setCopyMode
 JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setRecvBufferSize
   (JNIEnv *, jobject, jlong, jint);
 
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    setBatchBuffers
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setBatchBuffers
+  (JNIEnv *, jobject, jlong, jobject, jobject, jint);
+
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    setFailOpen
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setFailOpen
+  (JNIEnv *, jobject, jlong, jboolean);
+
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    setGso
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_il_ac_technion_eyalzo_NFQueue_setGso
+  (JNIEnv *, jobject, jlong, jboolean);
+
+/*
+ * Class:     il_ac_technion_eyalzo_NFQueue
+ * Method:    getOverruns
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_il_ac_technion_eyalzo_NFQueue_getOverruns
+  (JNIEnv *, jobject, jlong);
+
 /*
  * Class:     il_ac_technion_eyalzo_NFQueue
  * Method:    getNativeVersion
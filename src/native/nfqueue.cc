@@ -87,10 +87,19 @@ int NFQueue::loop()
         return -7;
     }
 
+    // Not supported before kernel 3.6 (fail-open) and 3.10 (GSO), so warn
+    // and go on
+    u_int32_t queueFlags = (m_failOpen ? NFQA_CFG_F_FAIL_OPEN : 0) |
+        (m_gso ? NFQA_CFG_F_GSO : 0);
+    if ((queueFlags != 0) &&
+        nfq_set_queue_flags(queueHandle, queueFlags, queueFlags) < 0)
+    {
+        printf("Warning: failed to set flags 0x%x on queue %d\n", queueFlags,
+               m_queueNum);
+    }
+
     struct nfnl_handle *netlinkHandle;
     int netlinkSocket;
-    char buf[NFQ_PACKET_MAX_SIZE];
-
     netlinkHandle = nfq_nfnlh(nfqHandle);
     netlinkSocket = nfnl_fd(netlinkHandle);
 
@@ -109,21 +118,53 @@ int NFQueue::loop()
     getsockopt(netlinkSocket, SOL_SOCKET, SO_RCVBUF, (char*)&allocatedBuff, &size);    
 //    printf("Allocated socket receive buffer size %d\n", allocatedBuff);
 
-    //Verify that we have enough memory, otherwise exit. 
-    if(allocatedBuff < m_recvBuffSize)
+    //Verify that we have enough memory, otherwise exit. In fail-open mode
+    //overflows only let packets through, so a smaller buffer will do.
+    if(allocatedBuff < m_recvBuffSize && m_failOpen)
+    {
+        printf("Warning: socket receive buffer is %d instead of %d, "
+               "net.core.rmem_max is too low\n", allocatedBuff, m_recvBuffSize);
+    }
+    else if(allocatedBuff < m_recvBuffSize)
     {
         printf("!!! Error unable to allocate sufficient buffer size !!! \n");
         printf("!!! Need to update the net.core.rmem_max configuration in /etc/sysctl.conf !!!\n");
         return -5;
     }
     
+    // Too big for the stack of a java thread
+    char *buf = (char*)malloc(NFQ_RECV_BUF_SIZE);
+    if (buf == NULL)
+    {
+        return -8;
+    }
+
     int rcvCount;
+    u_int32_t batchCount;
     while (!m_stopped)
     {
-        rcvCount = recv(netlinkSocket, buf, sizeof(buf), 0);
+        rcvCount = recv(netlinkSocket, buf, NFQ_RECV_BUF_SIZE, 0);
         if (rcvCount > 0)
         {
             nfq_handle_packet(nfqHandle, buf, rcvCount);
+
+            // Take whatever else is already waiting, without blocking, so
+            // the verdicts can be sent together
+            for (batchCount = 1; batchCount < m_batchSize; batchCount++)
+            {
+                rcvCount = recv(netlinkSocket, buf, NFQ_RECV_BUF_SIZE,
+                                MSG_DONTWAIT);
+                if (rcvCount <= 0)
+                    break;
+                nfq_handle_packet(nfqHandle, buf, rcvCount);
+            }
+
+            onBatchEnd(queueHandle);
+        }
+        else if (errno == ENOBUFS)
+        {
+            // Messages were lost, but the socket is still good
+            m_statOverruns++;
         }
         else if (errno != EAGAIN)
         {
@@ -132,6 +173,8 @@ int NFQueue::loop()
         }
     }
 
+    free(buf);
+
     if(m_stopped)
     {
         //Only attempt to cleanup queue when exiting due to an application
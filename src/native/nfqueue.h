@@ -8,9 +8,16 @@ extern "C" {
 }
 
 /**
- * The queue readbuffer size.
+ * Max packet size that can be copied from the queue. Large enough for the
+ * super-packets of GRO/GSO, up to the max IPv4 packet size.
  */
-#define NFQ_PACKET_MAX_SIZE 4096
+#define NFQ_PACKET_MAX_SIZE 65535
+
+/**
+ * The queue read buffer size, with room for the netlink and queue attributes
+ * that come with the packet.
+ */
+#define NFQ_RECV_BUF_SIZE (NFQ_PACKET_MAX_SIZE + 4096)
 
 
 /**
@@ -56,6 +63,30 @@ class NFQueue
      */
     u_int32_t m_recvBuffSize;
 
+    /**
+     * Max number of netlink messages to read in one go, before calling
+     * onBatchEnd(). 1 means no batching.
+     */
+    u_int32_t m_batchSize;
+
+    /**
+     * Ask the kernel to accept packets instead of dropping them when the
+     * queue is full or the socket buffer overflows.
+     */
+    bool m_failOpen;
+
+    /**
+     * Ask the kernel to queue GSO packets as they are, instead of segmenting
+     * them first.
+     */
+    bool m_gso;
+
+    /**
+     * Number of times the socket buffer overflowed (ENOBUFS), meaning that
+     * the kernel had to drop or, in fail-open mode, accept queued packets.
+     */
+    unsigned long m_statOverruns;
+
     
     /**
      * The NFQueue callback function. Find the associated object, and
@@ -77,7 +108,11 @@ class NFQueue
         m_queueLen(queueLen),
         m_copyMode(NFQNL_COPY_PACKET),
         m_copyRange(NFQ_PACKET_MAX_SIZE),
-        m_recvBuffSize (queueLen * NFQ_RECEIVE_BUFFER_SIZE_PER_PACKET)
+        m_recvBuffSize (queueLen * NFQ_RECEIVE_BUFFER_SIZE_PER_PACKET),
+        m_batchSize(1),
+        m_failOpen(false),
+        m_gso(false),
+        m_statOverruns(0)
     {
     }
 
@@ -93,6 +128,16 @@ class NFQueue
                                  struct nfgenmsg *msg,
                                  nfq_data *pkt) = 0;
 
+    /**
+     * Called after a batch of packets was handled, meaning that the socket
+     * has no more packets waiting or the batch size was reached. Subclasses
+     * that defer verdicts should send them here.
+     */
+    virtual int onBatchEnd(nfq_q_handle *queueHandle)
+    {
+        return 0;
+    }
+
     /**
      * The Netfilter_Queue main loop: open the queue, then loop to dispatch
      * packets forever.
@@ -133,6 +178,44 @@ class NFQueue
     {
         m_recvBuffSize = bufSize;
     }
+
+    /**
+     * Set the max number of packets to read without blocking before calling
+     * onBatchEnd().
+     * @param batchSize Number of packets, 1 or less for no batching.
+     */
+    void setBatchSize(u_int32_t batchSize)
+    {
+        m_batchSize = (batchSize < 1) ? 1 : batchSize;
+    }
+
+    /**
+     * Set the fail-open flag for the NEXT call to loop(). In fail-open mode
+     * an undersized socket receive buffer is not an error either.
+     * @param failOpen True to accept packets when the queue overflows.
+     */
+    void setFailOpen(bool failOpen)
+    {
+        m_failOpen = failOpen;
+    }
+
+    /**
+     * Set the GSO flag for the NEXT call to loop().
+     * @param gso True to get GSO/GRO super-packets of up to 64KB in one
+     * piece.
+     */
+    void setGso(bool gso)
+    {
+        m_gso = gso;
+    }
+
+    /**
+     * @return Number of socket buffer overflows since the queue was created.
+     */
+    unsigned long getOverruns()
+    {
+        return m_statOverruns;
+    }
     
 };
 
@@ -0,0 +1,97 @@
+package il.ac.technion.eyalzo.pack;
+
+import il.ac.technion.eyalzo.pack.conns.TcpUtils;
+import il.ac.technion.eyalzo.pack.stamps.ChunkContentCache;
+import il.ac.technion.eyalzo.pack.stamps.ChunkItem;
+import il.ac.technion.eyalzo.pack.stamps.GlobalChunkList;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A predicted chunk whose content is evicted from the {@link ChunkContentCache} after the prediction was sent and
+ * before the PACK ACK, must still have its content when the ACK arrives, as the sender already held back those bytes.
+ * <p>
+ * Usage: <code>PredContentEvictionTest</code>, exits with 1 on failure.
+ */
+public class PredContentEvictionTest
+{
+	private static final int CHUNK_LEN = 1000;
+
+	public static void main(String[] args)
+	{
+		Main.chunks = new GlobalChunkList();
+		ChunkContentCache cache = new ChunkContentCache(10 * CHUNK_LEN, null);
+		Random rand = new Random(1);
+
+		// The predicted chunk, cached
+		byte[] content = new byte[CHUNK_LEN];
+		rand.nextBytes(content);
+		ChunkItem predChunk = Main.chunks.getChunkOrAddNew(0x12345678, CHUNK_LEN);
+		cache.put(predChunk, content);
+
+		// Prediction made and sent on an outgoing ACK, like TcpConnRcv does
+		long predSeq = 4294967000L;
+		PredOutChunks predOutbox = new PredOutChunks();
+		PredOutChunks predSent = new PredOutChunks();
+		predOutbox.init(predSeq);
+		check(predOutbox.addPredChunk(predSeq, predChunk, cache.get(predChunk)), "prediction added");
+		check(PackUtils.generatePackPredictionsPacketFromOutbox(emptyAck(predSeq), predOutbox, predSent) != null,
+				"prediction sent");
+
+		// Other chunks that repeat more, and are used again, push it out of the cache
+		for (int i = 0; i < 100 && predChunk.getContent() != null; i++)
+		{
+			ChunkItem other = Main.chunks.getChunkOrAddNew(i + 1, CHUNK_LEN);
+			for (int j = 0; j < 5; j++)
+				other.incStatStreamCount();
+			cache.put(other, new byte[CHUNK_LEN]);
+			cache.use(other);
+		}
+		check(predChunk.getContent() == null, "chunk evicted");
+
+		// The PACK ACK arrives
+		byte[] ackContent = predSent.popContent(predSeq);
+		check(predSent.popChunk(predSeq) == predChunk, "prediction found on ACK");
+		check(Arrays.equals(ackContent, content), "content kept until the ACK");
+
+		// Content of predictions the sender passed over is not held
+		predSent.init(predSeq);
+		predSent.addPredChunk(predSeq, predChunk, content);
+		predSent.releaseContentsBefore(TcpUtils.tcpSequenceAdd(predSeq, CHUNK_LEN - 1));
+		check(predSent.popContent(predSeq) != null, "content kept before the chunk's end");
+		predSent.init(predSeq);
+		predSent.addPredChunk(predSeq, predChunk, content);
+		predSent.releaseContentsBefore(TcpUtils.tcpSequenceAdd(predSeq, CHUNK_LEN));
+		check(predSent.popContent(predSeq) == null, "content released after the chunk's end");
+
+		System.out.println("OK");
+	}
+
+	/**
+	 * @return Outgoing IPv4 packet with a TCP header and no options or payload, that ACKs the given sequence.
+	 */
+	private static byte[] emptyAck(long ack)
+	{
+		byte[] packet = new byte[40];
+		packet[0] = 0x45;
+		packet[3] = 40;
+		packet[9] = 6;
+		packet[TcpUtils.OFFSET_ACK] = (byte) (ack >> 24);
+		packet[TcpUtils.OFFSET_ACK + 1] = (byte) (ack >> 16);
+		packet[TcpUtils.OFFSET_ACK + 2] = (byte) (ack >> 8);
+		packet[TcpUtils.OFFSET_ACK + 3] = (byte) ack;
+		packet[TcpUtils.OFFSET_TCP_DATA_OFFSET] = 0x50;
+		packet[TcpUtils.OFFSET_TCP_FLAGS] = 0x10;
+		return packet;
+	}
+
+	private static void check(boolean condition, String what)
+	{
+		if (condition)
+			return;
+
+		System.err.println("Failed: " + what);
+		System.exit(1);
+	}
+}